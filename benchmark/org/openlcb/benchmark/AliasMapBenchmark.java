@@ -0,0 +1,60 @@
+package org.openlcb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openlcb.NodeID;
+import org.openlcb.can.AliasMap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Alias to node ID lookups and back, in a map the size of a large layout.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AliasMapBenchmark {
+    @Param({"10", "500"})
+    public int nodes;
+
+    AliasMap map;
+    NodeID[] ids;
+    int[] aliases;
+    int next = 0;
+
+    @Setup
+    public void setUp() {
+        map = new AliasMap();
+        ids = new NodeID[nodes];
+        aliases = new int[nodes];
+        for (int i = 0; i < nodes; ++i) {
+            ids[i] = new NodeID(new byte[]{5, 1, 1, 1, (byte) (i >> 8), (byte) i});
+            aliases[i] = 0x100 + i;
+            map.insert(aliases[i], ids[i]);
+        }
+    }
+
+    @Benchmark
+    public NodeID getNodeID() {
+        next = (next + 1) % nodes;
+        return map.getNodeID(aliases[next]);
+    }
+
+    @Benchmark
+    public int getAlias() {
+        next = (next + 1) % nodes;
+        return map.getAlias(ids[next]);
+    }
+}
@@ -0,0 +1,76 @@
+package org.openlcb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.Message;
+import org.openlcb.MessageDecoder;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbExecution;
+import org.openlcb.OlcbInterface;
+import org.openlcb.ProducerConsumerEventReportMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery of an incoming message from the bus to the listeners registered on an
+ * {@link OlcbInterface}, as with many open windows each watching the bus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    @Param({"1", "10", "100"})
+    public int listeners;
+
+    OlcbInterface iface;
+    Connection input;
+    Message message;
+    int received = 0;
+
+    @Setup
+    public void setUp() {
+        iface = new OlcbInterface(new NodeID(new byte[]{5, 1, 1, 1, 3, 9}), new
+                AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+            }
+        }, OlcbExecution.getDefault().newThreadPool(1, 1));
+        for (int i = 0; i < listeners; ++i) {
+            iface.registerMessageListener(new MessageDecoder() {
+                @Override
+                public void handleProducerConsumerEventReport(ProducerConsumerEventReportMessage
+                        msg, Connection sender) {
+                    ++received;
+                }
+            });
+        }
+        input = iface.getInputConnection();
+        message = Fixtures.message("event");
+    }
+
+    @TearDown
+    public void tearDown() {
+        iface.dispose();
+    }
+
+    @Benchmark
+    public int dispatch() {
+        input.put(message, null);
+        return received;
+    }
+}
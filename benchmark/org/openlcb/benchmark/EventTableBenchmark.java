@@ -0,0 +1,56 @@
+package org.openlcb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openlcb.EventID;
+import org.openlcb.implementations.EventTable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Free-text event search as typed by the user into an event ID field.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventTableBenchmark {
+    static final String[] WORDS = {"Turnout", "Signal", "Block", "Sensor", "Yard", "Main",
+            "East", "West", "Siding", "Occupied", "Clear", "Thrown", "Closed", "Lamp"};
+
+    @Param({"1000", "10000"})
+    public int events;
+
+    @Param({"Turnout", "turnout sensor"})
+    public String query;
+
+    EventTable table;
+
+    @Setup
+    public void setUp() {
+        table = new EventTable();
+        for (int i = 0; i < events; ++i) {
+            String desc = WORDS[i % WORDS.length] + " " + (i / WORDS.length) + " " +
+                    WORDS[(i * 7 + 3) % WORDS.length];
+            table.addEvent(new EventID(new byte[]{5, 1, 1, 1, 3, 1, (byte) (i >> 8), (byte)
+                    i}), desc);
+        }
+    }
+
+    @Benchmark
+    public List<EventTable.EventTableEntry> searchForEvent() {
+        return table.searchForEvent(query, 10);
+    }
+}
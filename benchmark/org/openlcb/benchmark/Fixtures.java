@@ -0,0 +1,77 @@
+package org.openlcb.benchmark;
+
+import org.openlcb.DatagramMessage;
+import org.openlcb.EventID;
+import org.openlcb.IdentifyConsumersMessage;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.ProtocolIdentificationReplyMessage;
+import org.openlcb.SimpleNodeIdentInfoReplyMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+import org.openlcb.can.AliasMap;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.MessageBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sample nodes and messages shared by the benchmarks.
+ */
+class Fixtures {
+    static final NodeID SOURCE = new NodeID(new byte[]{5, 1, 1, 1, 3, 1});
+    static final NodeID DEST = new NodeID(new byte[]{5, 1, 1, 1, 3, 2});
+    static final int SOURCE_ALIAS = 0x123;
+    static final int DEST_ALIAS = 0x321;
+    static final EventID EVENT = new EventID(new byte[]{5, 1, 1, 1, 3, 1, 0, 7});
+
+    /// Message families for processMessage / processFrame.
+    static final String[] FAMILIES = {"init", "verify", "event", "identify", "datagram",
+            "snip", "pip"};
+
+    /// @return an alias map knowing the source and destination nodes.
+    static AliasMap newAliasMap() {
+        AliasMap map = new AliasMap();
+        map.insert(SOURCE_ALIAS, SOURCE);
+        map.insert(DEST_ALIAS, DEST);
+        return map;
+    }
+
+    /**
+     * @param family one of {@link #FAMILIES}
+     * @return a representative message of that family.
+     */
+    static Message message(String family) {
+        switch (family) {
+            case "init":
+                return new InitializationCompleteMessage(SOURCE);
+            case "verify":
+                return new VerifyNodeIDNumberMessage(SOURCE, DEST);
+            case "event":
+                return new ProducerConsumerEventReportMessage(SOURCE, EVENT);
+            case "identify":
+                return new IdentifyConsumersMessage(SOURCE, EVENT);
+            case "datagram":
+                return new DatagramMessage(SOURCE, DEST, new int[]{0x20, 0x43, 0, 0, 0, 0, 40});
+            case "snip":
+                return new SimpleNodeIdentInfoReplyMessage(SOURCE, DEST, new byte[]{4, 'M',
+                        'f', 'g', 0, 'M', 'o', 'd', 'e', 'l', 0, '1', '.', '0', 0, '2', 0, 2,
+                        'N', 'o', 'd', 'e', 0, 'D', 'e', 's', 'c', 0});
+            case "pip":
+                return new ProtocolIdentificationReplyMessage(SOURCE, DEST, 0x800000000000L);
+            default:
+                throw new IllegalArgumentException("Unknown message family " + family);
+        }
+    }
+
+    /**
+     * @param family one of {@link #FAMILIES}
+     * @return the CAN frames that the message of that family is sent as.
+     */
+    static List<CanFrame> frames(String family) {
+        return new ArrayList<CanFrame>(new MessageBuilder(newAliasMap()).processMessage(
+                message(family)));
+    }
+}
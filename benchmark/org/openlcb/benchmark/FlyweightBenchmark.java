@@ -0,0 +1,70 @@
+package org.openlcb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openlcb.EventID;
+import org.openlcb.MessageFlyweights;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.can.AliasMap;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.MessageBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of event reports from fifty sensors, each reporting two events over and over, with
+ * and without {@link MessageFlyweights}. Compare {@code gc.alloc.rate.norm} of the two for the
+ * bytes saved; one operation is one frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FlyweightBenchmark {
+    @Param({"false", "true"})
+    public boolean flyweights;
+
+    MessageBuilder builder;
+    List<CanFrame> frames;
+    int next = 0;
+
+    @Setup
+    public void setUp() {
+        AliasMap map = new AliasMap();
+        MessageBuilder encoder = new MessageBuilder(map);
+        frames = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            NodeID n = new NodeID(new byte[]{5, 1, 1, 1, 4, (byte) i});
+            map.insert(0x100 + i, n);
+            for (int j = 0; j < 2; j++) {
+                frames.addAll(encoder.processMessage(new ProducerConsumerEventReportMessage(n,
+                        new EventID(n, 0, j))));
+            }
+        }
+        builder = new MessageBuilder(map);
+        if (flyweights) {
+            builder.setFlyweights(new MessageFlyweights());
+        }
+    }
+
+    @Benchmark
+    public void decodeEventReport(Blackhole bh) {
+        bh.consume(builder.processFrame(frames.get(next)));
+        if (++next == frames.size()) next = 0;
+    }
+}
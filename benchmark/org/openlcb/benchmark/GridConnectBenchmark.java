@@ -0,0 +1,106 @@
+package org.openlcb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.impl.GridConnectInput;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Text encoding and decoding of CAN frames in the GridConnect format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GridConnectBenchmark {
+    /// Frames per GridConnectInput invocation; amortizes the reader thread start.
+    static final int INPUT_FRAMES = 1000;
+
+    CanFrame frame;
+    String line;
+    String stream;
+
+    @Setup
+    public void setUp() {
+        // Each reader thread logs the end of its data.
+        Logger.getLogger(GridConnectInput.class.getName()).setLevel(Level.WARNING);
+        frame = Fixtures.frames("event").get(0);
+        line = GridConnect.format(frame);
+        StringBuilder b = new StringBuilder();
+        List<CanFrame> snip = Fixtures.frames("snip");
+        for (int i = 0; i < INPUT_FRAMES; ++i) {
+            b.append(GridConnect.format(snip.get(i % snip.size()))).append('\n');
+        }
+        stream = b.toString();
+    }
+
+    @Benchmark
+    public String format() {
+        return GridConnect.format(frame);
+    }
+
+    @Benchmark
+    public List<CanFrame> parse() {
+        return GridConnect.parse(line);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUT_FRAMES)
+    public void gridConnectInput() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(INPUT_FRAMES);
+        // The reader thread exits on the IOException at the end of the data.
+        new GridConnectInput(new BufferedReader(new EndOfDataReader(stream)), new
+                CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                done.countDown();
+            }
+        }, null);
+        done.await();
+    }
+
+    /// Reads a string, then throws IOException instead of returning end of stream.
+    static class EndOfDataReader extends Reader {
+        private final String data;
+        private int pos = 0;
+
+        EndOfDataReader(String data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (pos >= data.length()) throw new IOException("end of data");
+            int n = Math.min(len, data.length() - pos);
+            data.getChars(pos, pos + n, cbuf, off);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.openlcb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openlcb.cdi.impl.MemorySpaceCache;
+import org.openlcb.cdi.impl.ReadWriteAccess;
+import org.openlcb.implementations.MemoryConfigurationService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a configuration variable out of a filled memory space cache, as the configuration
+ * dialog does for every field it displays.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemorySpaceCacheBenchmark {
+    /// Number of separate cached segments, like the groups of a CDI.
+    static final int SEGMENTS = 64;
+    static final int SEGMENT_SIZE = 256;
+
+    MemorySpaceCache cache;
+    int next = 0;
+
+    @Setup
+    public void setUp() {
+        cache = new MemorySpaceCache(new ReadWriteAccess() {
+            @Override
+            public void doRead(long address, int space, int length, MemoryConfigurationService
+                    .McsReadHandler handler) {
+                handler.handleReadData(Fixtures.DEST, space, address, new byte[length]);
+            }
+        }, 0xFD);
+        for (int i = 0; i < SEGMENTS; ++i) {
+            // Leave gaps so that the segments are not merged.
+            cache.addRangeToCache(i * 2 * SEGMENT_SIZE, i * 2 * SEGMENT_SIZE + SEGMENT_SIZE,
+                    false);
+        }
+        cache.fillCache();
+    }
+
+    @Benchmark
+    public byte[] read() {
+        next = (next + 1) % SEGMENTS;
+        return cache.read(next * 2 * SEGMENT_SIZE + 16, 8);
+    }
+}
@@ -0,0 +1,59 @@
+package org.openlcb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openlcb.Message;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.MessageBuilder;
+import org.openlcb.can.OpenLcbCanFrame;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion between messages and CAN frames, for each message family. Multi-frame messages
+ * (datagram, SNIP) measure the whole message, i.e. all its frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBuilderBenchmark {
+    @Param({"init", "verify", "event", "identify", "datagram", "snip", "pip"})
+    public String family;
+
+    MessageBuilder builder;
+    Message message;
+    List<CanFrame> frames;
+
+    @Setup
+    public void setUp() {
+        builder = new MessageBuilder(Fixtures.newAliasMap());
+        message = Fixtures.message(family);
+        frames = Fixtures.frames(family);
+    }
+
+    @Benchmark
+    public List<OpenLcbCanFrame> processMessage() {
+        return builder.processMessage(message);
+    }
+
+    @Benchmark
+    public void processFrame(Blackhole bh) {
+        for (int i = 0; i < frames.size(); ++i) {
+            bh.consume(builder.processFrame(frames.get(i)));
+        }
+    }
+}
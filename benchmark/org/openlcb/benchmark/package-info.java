@@ -0,0 +1,16 @@
+/**
+JMH microbenchmarks of the hot paths of the library: GridConnect parsing and formatting,
+message to CAN frame conversion, event report flyweights, alias lookups, message dispatch,
+event search and the memory space cache.
+
+<p>
+These are built only with the {@code jmh} Maven profile and are not part of the library jar.
+Run all of them, with the GC profiler reporting allocated bytes per operation
+({@code gc.alloc.rate.norm}), by
+<pre>
+mvn -Pjmh compile exec:exec
+</pre>
+or a subset by passing JMH arguments, e.g.
+{@code mvn -Pjmh compile exec:exec -Djmh.args="MessageBuilder -p family=datagram"}.
+*/
+package org.openlcb.benchmark;
@@ -2,11 +2,17 @@ package org.openlcb;
 
 // For annotations
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 
 /**
  * Datagram message implementation
+ * <p>
+ * The payload is kept as bytes when the message was made from bytes, and as ints when made
+ * from ints; the other form is created on first use. Byte-oriented code should use
+ * {@link #getPayload()}, which does not copy, rather than {@link #getData()}.
  *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
@@ -23,9 +29,22 @@ public class DatagramMessage extends AddressedMessage {
     
     public DatagramMessage(NodeID source, NodeID dest, byte[] dataIn) {
         super(source, dest);
-        this.data = new int[dataIn.length];
-        for (int i = 0; i<dataIn.length; i++)
-            this.data[i] = dataIn[i]&0xFF;
+        this.payload = dataIn.clone();
+    }
+
+    /**
+     * Creates a datagram using the given array as payload, without copying it. The caller
+     * hands the array over and must not change it afterwards.
+     *
+     * @param source  sender of the datagram
+     * @param dest    recipient of the datagram
+     * @param payload datagram payload
+     * @return the new message
+     */
+    public static DatagramMessage wrap(NodeID source, NodeID dest, byte[] payload) {
+        DatagramMessage m = new DatagramMessage(source, dest);
+        m.payload = payload;
+        return m;
     }
 
     /**
@@ -40,6 +59,12 @@ public class DatagramMessage extends AddressedMessage {
     
     @SuppressWarnings("JCIP_FIELD_ISNT_FINAL_IN_IMMUTABLE_CLASS")
     protected int[] data;
+    /// Payload as bytes; created from data on first use if the message was made from ints.
+    @SuppressWarnings("JCIP_FIELD_ISNT_FINAL_IN_IMMUTABLE_CLASS")
+    private volatile byte[] payload;
+    /// Payload as ints, created on first use if the message was made from bytes.
+    @SuppressWarnings("JCIP_FIELD_ISNT_FINAL_IN_IMMUTABLE_CLASS")
+    private volatile int[] intView;
     
      /**
       * To be equal, messages have to have the
@@ -51,14 +76,8 @@ public class DatagramMessage extends AddressedMessage {
         if (! (o instanceof DatagramMessage))
             return false;
         DatagramMessage msg = (DatagramMessage) o;
-        if (this.getData().length != msg.getData().length)
+        if (!Arrays.equals(this.bytes(), msg.bytes()))
             return false;
-        int n = this.getData().length;
-        int[] d1 = this.getData();
-        int[] d2 = msg.getData();
-        for (int i = 0; i<n; i++) {
-            if (d1[i]!= d2[i]) return false;
-        }
         return super.equals(o);
      }
      
@@ -77,8 +96,48 @@ public class DatagramMessage extends AddressedMessage {
         decoder.handleDatagram(this, sender);
     }
 
+    /**
+     * @return the payload as one int per byte. Prefer {@link #getPayload()}.
+     */
     public int[] getData() {
-        return data;
+        if (data != null) return data;
+        int[] d = intView;
+        if (d == null) {
+            byte[] p = payload;
+            d = new int[p.length];
+            for (int i = 0; i < p.length; i++) {
+                d[i] = p[i] & 0xFF;
+            }
+            intView = d;
+        }
+        return d;
+    }
+
+    /**
+     * @return a read-only view of the payload.
+     */
+    public ByteBuffer getPayload() {
+        return ByteBuffer.wrap(bytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the number of payload bytes.
+     */
+    public int getPayloadLength() {
+        byte[] p = payload;
+        return p != null ? p.length : data.length;
+    }
+
+    private byte[] bytes() {
+        byte[] p = payload;
+        if (p == null) {
+            p = new byte[data.length];
+            for (int i = 0; i < data.length; i++) {
+                p[i] = (byte) data[i];
+            }
+            payload = p;
+        }
+        return p;
     }
     
     @Override
@@ -88,12 +147,13 @@ public class DatagramMessage extends AddressedMessage {
     public String toString() {
         StringBuilder value = new StringBuilder(super.toString());
         value.append(" Datagram: ");
-        int n = getData().length;
+        byte[] p = bytes();
+        int n = p.length;
         value.append("("+n+") ");
         boolean first = true;
         for (int i = 0; i<n; i++) {
             if (!first) value.append(".");
-            value.append(Integer.toHexString((int)(data[i]&0xFF)).toUpperCase());
+            value.append(Integer.toHexString((int)(p[i]&0xFF)).toUpperCase());
             first = false;
         }
         return new String(value);   
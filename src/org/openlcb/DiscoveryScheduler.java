@@ -0,0 +1,349 @@
+package org.openlcb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Meters the discovery requests (Simple Node Information, Protocol Identification) that the
+ * {@link MimicNodeStore} sends to remote nodes.
+ * <p>
+ * After a refresh on a large layout hundreds of nodes announce themselves at the same time,
+ * and the user interface asks each of them for their identification. Without metering all
+ * these requests go out at once, the replies flood the bus and many of them time out and get
+ * retried. This scheduler limits
+ * <ul>
+ * <li>the number of requests outstanding at the same time across all nodes (window),</li>
+ * <li>the rate at which new requests are started (bus load target, as a token bucket whose
+ * depth is the window size).</li>
+ * </ul>
+ * The timeout of each request adapts to the measured response time of the target node (using
+ * the same smoothed round-trip estimate as TCP), and slow nodes are backed off after a
+ * timeout. Discovery latency statistics are recorded for diagnostics.
+ * <p>
+ * All timeouts and deferred starts run on the timer given in the constructor, which is
+ * normally the shared timer of the {@link OlcbInterface}.
+ */
+public class DiscoveryScheduler {
+    private final static Logger logger = Logger.getLogger(DiscoveryScheduler.class.getName());
+
+    /// Default number of concurrently outstanding discovery requests.
+    public static final int DEFAULT_WINDOW = 8;
+    /// Default number of discovery requests started per second.
+    public static final double DEFAULT_REQUESTS_PER_SECOND = 50;
+    /// Lower bound for the adaptive timeout.
+    static final int MIN_TIMEOUT_MSEC = 200;
+    /// Upper bound for the adaptive timeout.
+    static final int MAX_TIMEOUT_MSEC = 5000;
+
+    /**
+     * One request to be sent to a remote node. The scheduler calls send() when the request
+     * is allowed on the bus, and onTimeout() if complete() was not called in time. Neither is
+     * called with any lock of the scheduler held.
+     */
+    public static abstract class Request {
+        final NodeID node;
+        final int defaultTimeoutMsec;
+        final boolean metered;
+        /// One of QUEUED, SENT, DONE. Guarded by the scheduler.
+        int state = QUEUED;
+        long queuedAt;
+        long sentAt;
+        HashedWheelTimer.Timeout timeoutTask;
+
+        /**
+         * @param node               destination node
+         * @param defaultTimeoutMsec timeout to use until the node's response time is known
+         * @param metered            false if the request does not put traffic on the bus;
+         *                           such requests bypass the window and rate limit and always
+         *                           use their default timeout.
+         */
+        public Request(NodeID node, int defaultTimeoutMsec, boolean metered) {
+            this.node = node;
+            this.defaultTimeoutMsec = defaultTimeoutMsec;
+            this.metered = metered;
+        }
+
+        /// Sends the request to the bus.
+        protected abstract void send();
+
+        /// Called when the request was sent but not completed within the timeout.
+        protected abstract void onTimeout();
+    }
+
+    private static final int QUEUED = 0;
+    private static final int SENT = 1;
+    private static final int DONE = 2;
+
+    /// Per-node round trip time estimate.
+    private static class NodeTiming {
+        /// Smoothed round trip time, msec; negative if there is no sample yet.
+        double srtt = -1;
+        double rttvar = 0;
+        /// Multiplier applied after timeouts; reset by the next successful response.
+        int backoff = 1;
+    }
+
+    private final HashedWheelTimer timer;
+    private final ArrayDeque<Request> queue = new ArrayDeque<>();
+    private final Map<NodeID, NodeTiming> timings = new HashMap<>();
+    private int window = DEFAULT_WINDOW;
+    private double requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+    private int outstanding = 0;
+    private double tokens = DEFAULT_WINDOW;
+    private long lastRefill;
+    private HashedWheelTimer.Timeout pumpTask = null;
+    private final Runnable pumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiscoveryScheduler.this) {
+                pumpTask = null;
+            }
+            pump();
+        }
+    };
+
+    // Statistics
+    private long completedCount = 0;
+    private long timeoutCount = 0;
+    private long totalLatencyMsec = 0;
+    private long maxLatencyMsec = 0;
+    private long totalQueueingMsec = 0;
+
+    /**
+     * @param timer used for timeouts and deferred starts. Tasks scheduled here do not block.
+     */
+    public DiscoveryScheduler(HashedWheelTimer timer) {
+        this.timer = timer;
+        lastRefill = currentTimeMillis();
+    }
+
+    /// @return the current time in milliseconds. Overridden in tests.
+    long currentTimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Sets how many discovery requests may be outstanding at the same time.
+     *
+     * @param window number of requests, at least 1.
+     */
+    public void setWindow(int window) {
+        synchronized (this) {
+            this.window = Math.max(1, window);
+        }
+        pump();
+    }
+
+    /**
+     * Sets the bus load target.
+     *
+     * @param perSecond how many discovery requests may be started per second. Zero or
+     *                  negative disables the rate limit.
+     */
+    public void setRequestsPerSecond(double perSecond) {
+        synchronized (this) {
+            refill();
+            this.requestsPerSecond = perSecond;
+        }
+        pump();
+    }
+
+    /**
+     * Enqueues a request. It is sent right away if the window and rate allow, otherwise once
+     * earlier requests have completed.
+     *
+     * @param r request to send.
+     */
+    public void submit(Request r) {
+        synchronized (this) {
+            r.state = QUEUED;
+            r.queuedAt = currentTimeMillis();
+            queue.add(r);
+        }
+        pump();
+    }
+
+    /**
+     * Marks a request as completed (or no longer needed). Releases its slot in the window and
+     * records the response time if it had been sent.
+     *
+     * @param r the request; may be in any state.
+     */
+    public void complete(Request r) {
+        synchronized (this) {
+            if (r.state == QUEUED) {
+                queue.remove(r);
+            } else if (r.state == SENT) {
+                if (r.timeoutTask != null) r.timeoutTask.cancel();
+                long latency = currentTimeMillis() - r.sentAt;
+                if (r.metered) {
+                    --outstanding;
+                    recordLatency(r.node, latency);
+                }
+            }
+            r.state = DONE;
+        }
+        pump();
+    }
+
+    private void handleTimeout(Request r) {
+        synchronized (this) {
+            if (r.state != SENT) return;
+            r.state = DONE;
+            if (r.metered) {
+                --outstanding;
+                ++timeoutCount;
+                NodeTiming t = getTiming(r.node);
+                t.backoff = Math.min(t.backoff * 2, MAX_TIMEOUT_MSEC / MIN_TIMEOUT_MSEC);
+            }
+        }
+        logger.log(Level.FINE, "Discovery request to {0} timed out", r.node);
+        r.onTimeout();
+        pump();
+    }
+
+    private NodeTiming getTiming(NodeID node) {
+        NodeTiming t = timings.get(node);
+        if (t == null) {
+            t = new NodeTiming();
+            timings.put(node, t);
+        }
+        return t;
+    }
+
+    private void recordLatency(NodeID node, long latency) {
+        ++completedCount;
+        totalLatencyMsec += latency;
+        maxLatencyMsec = Math.max(maxLatencyMsec, latency);
+        NodeTiming t = getTiming(node);
+        if (t.srtt < 0) {
+            t.srtt = latency;
+            t.rttvar = latency / 2.0;
+        } else {
+            t.rttvar = 0.75 * t.rttvar + 0.25 * Math.abs(t.srtt - latency);
+            t.srtt = 0.875 * t.srtt + 0.125 * latency;
+        }
+        t.backoff = 1;
+    }
+
+    /**
+     * Computes the timeout for the next request to a node.
+     *
+     * @param node               remote node
+     * @param defaultTimeoutMsec the timeout to use if there are no measurements yet.
+     * @return timeout in milliseconds.
+     */
+    public synchronized int getTimeoutMsec(NodeID node, int defaultTimeoutMsec) {
+        NodeTiming t = timings.get(node);
+        double base;
+        if (t == null || t.srtt < 0) {
+            base = defaultTimeoutMsec;
+        } else {
+            base = Math.max(MIN_TIMEOUT_MSEC, t.srtt + 4 * t.rttvar);
+        }
+        if (t != null) base *= t.backoff;
+        return (int) Math.min(MAX_TIMEOUT_MSEC, base);
+    }
+
+    /// Adds the tokens accumulated since the last refill. Must hold the lock.
+    private void refill() {
+        long now = currentTimeMillis();
+        if (requestsPerSecond > 0) {
+            tokens = Math.min(window, tokens + (now - lastRefill) * requestsPerSecond / 1000);
+        } else {
+            tokens = window;
+        }
+        lastRefill = now;
+    }
+
+    /**
+     * Starts as many queued requests as the window and rate allow. If requests are held back
+     * only by the rate limit, schedules itself to run again when the next one is due.
+     */
+    void pump() {
+        List<Request> toSend = new ArrayList<>();
+        synchronized (this) {
+            refill();
+            boolean blocked = false;
+            for (Iterator<Request> it = queue.iterator(); it.hasNext(); ) {
+                Request r = it.next();
+                if (r.metered) {
+                    // Unmetered requests behind a blocked one may still go.
+                    if (blocked || outstanding >= window || tokens < 1) {
+                        blocked = true;
+                        continue;
+                    }
+                    ++outstanding;
+                    tokens -= 1;
+                }
+                it.remove();
+                r.state = SENT;
+                r.sentAt = currentTimeMillis();
+                if (r.metered) totalQueueingMsec += r.sentAt - r.queuedAt;
+                toSend.add(r);
+            }
+            if (blocked && outstanding < window && requestsPerSecond > 0 && pumpTask == null) {
+                long delay = (long) Math.ceil((1 - tokens) * 1000 / requestsPerSecond);
+                pumpTask = timer.schedule(pumpRunnable, Math.max(1, delay));
+            }
+        }
+        for (final Request r : toSend) {
+            int timeout = r.metered ? getTimeoutMsec(r.node, r.defaultTimeoutMsec) : r
+                    .defaultTimeoutMsec;
+            synchronized (this) {
+                if (r.state != SENT) continue;
+                // The timeout is armed before sending so that a synchronous reply can cancel
+                // it.
+                r.timeoutTask = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleTimeout(r);
+                    }
+                }, timeout);
+            }
+            r.send();
+        }
+    }
+
+    /// @return number of requests waiting to be sent.
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /// @return number of requests sent and not yet completed.
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /// @return number of requests that got a response.
+    public synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    /// @return number of requests that timed out.
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /// @return average time between sending a request and its completion, in msec.
+    public synchronized double getAverageLatencyMsec() {
+        return completedCount == 0 ? 0 : (double) totalLatencyMsec / completedCount;
+    }
+
+    /// @return longest time between sending a request and its completion, in msec.
+    public synchronized long getMaxLatencyMsec() {
+        return maxLatencyMsec;
+    }
+
+    /// @return average time requests spent waiting in the queue before being sent, in msec.
+    public synchronized double getAverageQueueingMsec() {
+        long sent = completedCount + timeoutCount + outstanding;
+        return sent == 0 ? 0 : (double) totalQueueingMsec / sent;
+    }
+}
@@ -0,0 +1,349 @@
+package org.openlcb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timer for protocol timeouts, shared by all components of an {@link OlcbInterface}.
+ * <p>
+ * Pending timeouts are kept in a hashed timing wheel: a ring of buckets, each holding a
+ * doubly linked list of the timeouts that expire in that slot. Scheduling and cancelling a
+ * timeout are O(1) and cancelled timeouts are unlinked immediately, so protocols that start and
+ * cancel a timeout for every request (datagrams, memory config) do not accumulate garbage the
+ * way {@link java.util.Timer} does. A single thread serves any number of timeouts; it is
+ * started on the first schedule and parks while nothing is pending.
+ * <p>
+ * Timeouts never fire early; they fire up to one tick (default 10 msec) late. Tasks scheduled
+ * with zero delay skip the wheel and run as soon as the timer thread has caught up with the
+ * ticks that are already due, so scheduling an empty task and waiting for it is a quick way to
+ * synchronize with the timer thread. Tasks run on the timer thread and must not block.
+ * <p>
+ * The timer thread comes from {@link OlcbExecution#getDefault()}. It parks on a
+ * {@link ReentrantLock} condition rather than a monitor, so on virtual threads it does not
+ * pin a carrier while idle.
+ */
+public class HashedWheelTimer {
+    private final static Logger logger = Logger.getLogger(HashedWheelTimer.class.getName());
+
+    public static final int DEFAULT_TICK_MSEC = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Handle to a scheduled task. Use it to cancel the task.
+     */
+    public static final class Timeout {
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadlineTick;
+        /// Neighbors in the bucket list; guarded by the timer lock.
+        private Timeout prev;
+        private Timeout next;
+        /// One of PENDING, EXPIRED, CANCELLED; guarded by the timer lock.
+        private int state = PENDING;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadlineTick) {
+            this.timer = timer;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Prevents the task from running.
+         *
+         * @return true if the task was still pending; false if it has already run or was
+         * cancelled before.
+         */
+        public boolean cancel() {
+            return timer.cancel(this);
+        }
+
+        /// @return true if the task was cancelled before it ran.
+        public boolean isCancelled() {
+            timer.lock.lock();
+            try {
+                return state == CANCELLED;
+            } finally {
+                timer.lock.unlock();
+            }
+        }
+
+        /// @return true if the task has been started.
+        public boolean isExpired() {
+            timer.lock.lock();
+            try {
+                return state == EXPIRED;
+            } finally {
+                timer.lock.unlock();
+            }
+        }
+    }
+
+    private static final int PENDING = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+    /// deadlineTick of the tasks in the immediate list.
+    private static final long IMMEDIATE = -1;
+
+    private final String name;
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final ReentrantLock lock = new ReentrantLock();
+    /// Signalled when the worker needs to re-check the wheel.
+    private final Condition changed = lock.newCondition();
+    /// Tasks with zero delay, in FIFO order. Guarded by lock.
+    private Timeout immediateHead = null;
+    private Timeout immediateTail = null;
+    private final long startNanos = System.nanoTime();
+    /// The next tick the worker will process. Guarded by lock.
+    private long nextTick = 0;
+    /// Number of tasks in the wheel and the immediate list. Guarded by lock.
+    private int pendingCount = 0;
+    /// Number of tasks in the wheel only. Guarded by lock.
+    private int wheelCount = 0;
+    private boolean stopped = false;
+    private Thread worker = null;
+
+    /**
+     * Creates a timer with the default resolution.
+     *
+     * @param name name of the timer thread.
+     */
+    public HashedWheelTimer(String name) {
+        this(name, DEFAULT_TICK_MSEC, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param name      name of the timer thread.
+     * @param tickMsec  resolution of the timer.
+     * @param wheelSize number of buckets; rounded up to a power of two.
+     */
+    public HashedWheelTimer(String name, int tickMsec, int wheelSize) {
+        this.name = name;
+        this.tickNanos = Math.max(1, tickMsec) * 1000000L;
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+        wheel = new Timeout[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Schedules a task to run once after a delay.
+     *
+     * @param task      what to run on the timer thread.
+     * @param delayMsec how long to wait.
+     * @return handle that allows cancelling the task. If the timer was stopped, the task will
+     * never run and the returned handle is already cancelled.
+     */
+    public Timeout schedule(Runnable task, long delayMsec) {
+        long deadline = System.nanoTime() + Math.max(0, delayMsec) * 1000000L - startNanos;
+        long tick = (deadline + tickNanos - 1) / tickNanos;
+        lock.lock();
+        try {
+            if (tick < nextTick) tick = nextTick;
+            Timeout t = new Timeout(this, task, delayMsec <= 0 ? IMMEDIATE : tick);
+            if (stopped) {
+                t.state = CANCELLED;
+                return t;
+            }
+            if (t.deadlineTick == IMMEDIATE) {
+                t.prev = immediateTail;
+                if (immediateTail != null) {
+                    immediateTail.next = t;
+                } else {
+                    immediateHead = t;
+                }
+                immediateTail = t;
+                changed.signalAll();
+            } else {
+                int idx = (int) (tick & mask);
+                t.next = wheel[idx];
+                if (t.next != null) t.next.prev = t;
+                wheel[idx] = t;
+                if (wheelCount++ == 0) changed.signalAll();
+            }
+            ++pendingCount;
+            if (worker == null) {
+                startWorker();
+            }
+            return t;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// Starts a new worker thread. Must hold the lock.
+    private void startWorker() {
+        worker = OlcbExecution.getDefault().newThread(name, new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, true);
+        worker.start();
+    }
+
+    private boolean cancel(Timeout t) {
+        lock.lock();
+        try {
+            if (t.state != PENDING) return false;
+            t.state = CANCELLED;
+            unlink(t);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// Removes a timeout from its bucket. Must hold the lock.
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else if (t.deadlineTick == IMMEDIATE) {
+            immediateHead = t.next;
+        } else {
+            int idx = (int) (t.deadlineTick & mask);
+            if (wheel[idx] == t) wheel[idx] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        } else if (t.deadlineTick == IMMEDIATE) {
+            immediateTail = t.prev;
+        }
+        if (t.deadlineTick != IMMEDIATE) --wheelCount;
+        t.prev = t.next = null;
+        --pendingCount;
+    }
+
+    /**
+     * Stops the timer. Pending tasks will not run, and later schedule calls are ignored.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            for (int i = 0; i < wheel.length; ++i) {
+                for (Timeout t = wheel[i]; t != null; t = t.next) {
+                    t.state = CANCELLED;
+                }
+                wheel[i] = null;
+            }
+            for (Timeout t = immediateHead; t != null; t = t.next) {
+                t.state = CANCELLED;
+            }
+            immediateHead = immediateTail = null;
+            pendingCount = 0;
+            wheelCount = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// @return true if stop() was called.
+    public boolean isStopped() {
+        lock.lock();
+        try {
+            return stopped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// @return number of tasks waiting to run.
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pendingCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runWorker() {
+        try {
+            workerLoop();
+        } finally {
+            // Whatever ended the loop, the next worker must not find a dead thread here.
+            lock.lock();
+            try {
+                if (worker == Thread.currentThread()) {
+                    worker = null;
+                    if (!stopped && pendingCount > 0) {
+                        startWorker();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void workerLoop() {
+        List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                try {
+                    while (!stopped && pendingCount == 0) {
+                        changed.await();
+                    }
+                    if (stopped) return;
+                    long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+                    if (wheelCount == 0) {
+                        // No buckets need to be visited for the time we were idle.
+                        nextTick = Math.max(nextTick, nowTick);
+                    }
+                    if (nextTick <= nowTick) {
+                        // Due ticks go first, so that an immediate task runs after everything
+                        // that was due when it was scheduled.
+                        int idx = (int) (nextTick & mask);
+                        Timeout t = wheel[idx];
+                        while (t != null) {
+                            Timeout n = t.next;
+                            if (t.deadlineTick <= nextTick) {
+                                unlink(t);
+                                t.state = EXPIRED;
+                                expired.add(t);
+                            }
+                            t = n;
+                        }
+                        ++nextTick;
+                    } else if (immediateHead != null) {
+                        while (immediateHead != null) {
+                            Timeout t = immediateHead;
+                            unlink(t);
+                            t.state = EXPIRED;
+                            expired.add(t);
+                        }
+                    } else {
+                        long wait = startNanos + nextTick * tickNanos - System.nanoTime();
+                        if (wait > 0) {
+                            changed.awaitNanos(wait);
+                        }
+                        // Re-check: new timeouts may have been added, or we woke up early.
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    // Only stop() ends the worker; re-check the wheel.
+                    logger.log(Level.FINE, "Timer thread " + name + " interrupted", e);
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Timeout t : expired) {
+                try {
+                    t.task.run();
+                } catch (Throwable e) {
+                    logger.log(Level.SEVERE, "Exception in timer task", e);
+                }
+            }
+            expired.clear();
+        }
+    }
+}
@@ -34,4 +34,12 @@ public abstract class Interaction {
      * within the timeout.
      */
     abstract void onTimeout();
+
+    /**
+     * @return false if this interaction does not send anything to the bus, so it does not
+     * need to be metered by the {@link DiscoveryScheduler}.
+     */
+    boolean isMetered() {
+        return true;
+    }
 }
@@ -1,7 +1,16 @@
 package org.openlcb;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.logging.Logger;
 import org.openlcb.implementations.DatagramService;
 import org.openlcb.implementations.MemoryConfigurationService;
@@ -18,13 +27,37 @@ import static org.openlcb.ProtocolIdentification.Protocol;
 //
 //
 
+/**
+ * Firmware upload to a node, through a stream if the node supports it, else through memory
+ * configuration write datagrams.
+ * <p>
+ * The image is read as it is sent, so it can come from a file or channel of any size. Only
+ * the data the target has not confirmed yet is held in memory; when a chunk fails, the upload
+ * resumes from that chunk instead of starting over.
+ * <p>
+ * All state is guarded by the lock of this object: the message handlers, the timeouts and the
+ * callbacks of the datagram and memory configuration services all take it.
+ */
 public class LoaderClient extends MessageDecoder {
     private static final Logger logger = Logger.getLogger(LoaderClient.class.getName());
-    private static final byte SRC_STREAM_ID = 4;
+    /// Lowest source stream ID handed out.
+    private static final int FIRST_SRC_STREAM_ID = 4;
+    private static final int LAST_SRC_STREAM_ID = 254;
+    /// Source stream IDs of the streams open from any loader, so that parallel uploads through
+    /// one node do not share an ID. Guarded by itself.
+    private static final BitSet srcStreamIDsInUse = new BitSet();
     private static final int PIP_TIMEOUT_MSEC = 3000;
     private static final int FREEZE_REBOOT_TIMEOUT_MSEC = 60000;
     private static final int STREAM_INIT_TIMEOUT_MSEC = 10000;
     private static final int STREAM_DATA_PROCEED_TIMEOUT_MSEC = 120000;
+    /// How long to wait for the target to proceed with the stream; settable for the tests.
+    int streamDataProceedTimeoutMsec = STREAM_DATA_PROCEED_TIMEOUT_MSEC;
+    /// Largest stream buffer; the field is 16 bits.
+    public static final int MAX_STREAM_BUFFER_SIZE = 0xFFFF;
+    /// Payload of one write datagram.
+    private static final int DATAGRAM_CHUNK_SIZE = 64;
+    /// How many times a chunk is retried before the upload fails.
+    private static final int MAX_RETRIES = 3;
 
     enum State { IDLE, ABORT, FREEZE, INITCOMPL, PIP, PIPREPLY, SETUPSTREAM, STREAM, STREAMDATA, DG, UNFREEEZE, SUCCESS, FAIL };
 
@@ -38,8 +71,13 @@ public class LoaderClient extends MessageDecoder {
     NodeID dest;
     int space;
     long address;
-    byte[] content;
     LoaderStatusReporter feedback;
+    /// The image being sent.
+    private ImageReader image;
+    private int streamBufferSize = MAX_STREAM_BUFFER_SIZE;
+    private int datagramWindow = 1;
+    /// When the data transfer started, from System.nanoTime().
+    private long transferStartNanos;
 
     private static final int ERR_CHECKSUM_FAILED = 0x2088;
     private static final int ERR_FILE_CORRUPTED = 0x1089;
@@ -48,15 +86,38 @@ public class LoaderClient extends MessageDecoder {
     public static abstract class LoaderStatusReporter {
         public abstract void onProgress(float percent);
         public abstract void onDone(int errorCode, String errorString);
+
+        /**
+         * Reports the speed of the transfer, along with each progress report while data is
+         * being sent. The default does nothing.
+         *
+         * @param bytesPerSecond average speed since the transfer started.
+         * @param etaMsec        estimated time until all data is sent, or -1 if unknown.
+         */
+        public void onRate(double bytesPerSecond, long etaMsec) {
+        }
     }
 
     public LoaderClient( Connection _connection, MemoryConfigurationService _mcs, DatagramService _dcs ) {
+        this(_connection, _mcs, _dcs, null);
+    }
+
+    /**
+     * @param _connection where to send messages
+     * @param _mcs        memory configuration service
+     * @param _dcs        datagram service
+     * @param _timer      shared timer for the timeouts (usually the interface's). If null, a
+     *                    private timer is created and stopped in dispose().
+     */
+    public LoaderClient( Connection _connection, MemoryConfigurationService _mcs, DatagramService _dcs, HashedWheelTimer _timer ) {
         connection = _connection;
         dcs = _dcs;
         mcs = _mcs;
-        if(timer == null) {
-           timer = new Timer("OpenLCB LoaderClient Timeout Timer");
+        if(_timer == null) {
+           _timer = new HashedWheelTimer("OpenLCB LoaderClient Timeout Timer");
+           ownsTimer = true;
         }
+        timer = _timer;
     }
 
     /* Protocol:
@@ -88,23 +149,93 @@ public class LoaderClient extends MessageDecoder {
 
      */
 
+    /**
+     * Sets the stream buffer size to ask the target for. The target may answer with a
+     * smaller one. Defaults to the largest possible.
+     *
+     * @param size buffer size in bytes, at most {@link #MAX_STREAM_BUFFER_SIZE}.
+     */
+    public void setStreamBufferSize(int size) {
+        streamBufferSize = Math.min(size, MAX_STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Sets how many write datagrams may be outstanding when the target has no streams. With
+     * more than one, the next writes are queued while the previous ones are being confirmed,
+     * and after a failure the writes following the failed one are sent again; only use it with
+     * targets that accept that. Defaults to 1.
+     *
+     * @param window number of writes in flight.
+     */
+    public void setDatagramWindow(int window) {
+        datagramWindow = Math.max(1, window);
+    }
+
     public void doLoad(NodeID _src, NodeID _dest, int _space, long _address, byte[] _content, LoaderStatusReporter _feedback) {
+        doLoad(_src, _dest, _space, _address, Channels.newChannel(new ByteArrayInputStream
+                (_content)), _content.length, _feedback);
+    }
+
+    /**
+     * Uploads an image read from a file, which is closed when done.
+     *
+     * @param _src      our node ID
+     * @param _dest     target node ID
+     * @param _space    memory space to write the image to
+     * @param _address  start address in the space
+     * @param _file     the image
+     * @param _feedback progress and result callbacks
+     * @throws IOException if the file cannot be opened.
+     */
+    public void doLoad(NodeID _src, NodeID _dest, int _space, long _address, File _file,
+                       LoaderStatusReporter _feedback) throws IOException {
+        FileInputStream in = new FileInputStream(_file);
+        start(_src, _dest, _space, _address, new ImageReader(in.getChannel(), _file.length(),
+                true), _feedback);
+    }
+
+    /**
+     * Uploads an image read from a channel, which is not closed.
+     *
+     * @param _src      our node ID
+     * @param _dest     target node ID
+     * @param _space    memory space to write the image to
+     * @param _address  start address in the space
+     * @param _channel  the image
+     * @param _length   number of bytes to read from the channel
+     * @param _feedback progress and result callbacks
+     */
+    public void doLoad(NodeID _src, NodeID _dest, int _space, long _address,
+                       ReadableByteChannel _channel, long _length, LoaderStatusReporter
+                               _feedback) {
+        start(_src, _dest, _space, _address, new ImageReader(_channel, _length, false),
+                _feedback);
+    }
+
+    private synchronized void start(NodeID _src, NodeID _dest, int _space, long _address, ImageReader
+            _image, LoaderStatusReporter _feedback) {
         src = _src;
         dest = _dest;
         space = _space;
         address = _address;
-        content = _content;
+        image = _image;
         state = State.IDLE;
         feedback = _feedback;
+        errorCounter = 0;
+        releaseSrcStreamID();
         sendFreeze();  // allow restarts
     }
 
     private void sendFreeze() {
-        state = State.FREEZE;
+        // Waits for the Init Complete already before sending: the node may reboot and announce
+        // itself before the datagram reply is processed.
+        state = State.INITCOMPL;
+        startTimeout(FREEZE_REBOOT_TIMEOUT_MSEC);
         dcs.sendData(
             new DatagramService.DatagramServiceTransmitMemo(dest, new int[]{0x20, 0xA1, space}) {
                 // Ignores both success and failure callback, because the state machine will
-                // proceed on the Node Init Complete message below.
+                // proceed on the Node Init Complete message below; the timeout covers a lost
+                // freeze.
                 @Override
                 public void handleSuccess(int flags) {
                 }
@@ -113,19 +244,22 @@ public class LoaderClient extends MessageDecoder {
                 public void handleFailure(int errorCode) {
                 }
             });
-        state = State.INITCOMPL;
-        startTimeout(FREEZE_REBOOT_TIMEOUT_MSEC);
     }
 
-    private static Timer timer;
-    private TimerTask task = null;
+    private HashedWheelTimer timer;
+    private boolean ownsTimer = false;
+    /// The running timeout, null if none.
+    private HashedWheelTimer.Timeout task = null;
+    private final Runnable expiry = new Runnable() {
+        public void run(){
+            timerExpired();
+        }
+    };
     private void startTimeout(int period_msec) {
-        task = new TimerTask(){
-            public void run(){
-                timerExpired();
-            }
-        };
-        timer.schedule(task, period_msec);
+        HashedWheelTimer t = timer;
+        if (t == null) return; // disposed
+        if (task != null) task.cancel();
+        task = t.schedule(expiry, period_msec);
     }
     private void endTimeout() {
         if (task != null) task.cancel();
@@ -134,7 +268,11 @@ public class LoaderClient extends MessageDecoder {
         }
         task = null;
     }
-    private void timerExpired() {
+    private synchronized void timerExpired() {
+        // A timeout that was cancelled or replaced while it was firing.
+        if (task == null || !task.isExpired()) return;
+        task = null;
+        if (state == State.STREAMDATA && retryStream()) return;
         failWith(1, "Timed out in state " + state.name());
     }
 
@@ -157,7 +295,7 @@ public class LoaderClient extends MessageDecoder {
     }
 
     @Override
-    public void handleInitializationComplete(InitializationCompleteMessage msg, Connection sender){
+    public synchronized void handleInitializationComplete(InitializationCompleteMessage msg, Connection sender){
                                         //System.out.println("lhandleInitializationComplete state: "+state);
         if (state == State.INITCOMPL && isReply(msg)) {
             endTimeout();
@@ -175,16 +313,19 @@ public class LoaderClient extends MessageDecoder {
         startTimeout(PIP_TIMEOUT_MSEC);
     }
     @Override
-    public void handleProtocolIdentificationReply(ProtocolIdentificationReplyMessage msg, Connection sender){
+    public synchronized void handleProtocolIdentificationReply(ProtocolIdentificationReplyMessage msg, Connection sender){
         if (state == State.PIPREPLY && isReply(msg)) {
             endTimeout();
             ProtocolIdentification pi = new ProtocolIdentification(msg.getSourceNodeID(), msg);
             if(!pi.hasProtocol(Protocol.FirmwareUpgradeActive)) {
                 failWith(1, "Target not in Upgrade state.");
             } else if(pi.hasProtocol(Protocol.Stream)) {
+                transferStartNanos = System.nanoTime();
                 state = State.SETUPSTREAM;
+                srcStreamID = allocateSrcStreamID();
                 setupStream();
             } else if(pi.hasProtocol(Protocol.Datagram)) {
+                transferStartNanos = System.nanoTime();
                 state = State.DG;
                 sendDGs();
             } else {
@@ -194,149 +335,338 @@ public class LoaderClient extends MessageDecoder {
     }
 
     private int bufferSize;      // chunk size
-    private int nextIndex;
     private int errorCounter;
     private byte destStreamID;
+    /// Our ID of the current stream; a new one for each retry. 0 if there is no stream open.
+    private byte srcStreamID;
+    /// Stream data sent and waiting for the target to proceed.
+    private byte[] streamChunk;
 
     // ============================= STREAMS ==============================================
     private void setupStream() {
-        bufferSize = 16384;
+        bufferSize = streamBufferSize;
         state = State.STREAM;
 
-        mcs.request(new McsWriteStreamMemo(dest, space, address, SRC_STREAM_ID) {
+        // After a retry, the stream starts at the first byte not confirmed yet.
+        final byte id = srcStreamID;
+        mcs.request(new McsWriteStreamMemo(dest, space, address + image.position(), id & 0xFF) {
             @Override
             public void handleSuccess() {
-                sendStream();
+                synchronized (LoaderClient.this) {
+                    if (state != State.STREAM || srcStreamID != id) return;
+                    sendStream();
+                }
             }
 
             @Override
             public void handleFailure(String where, int errorCode) {
-                String f = "Failed to setup stream at " + where + ": error 0x" + Integer
-                        .toHexString(errorCode);
-                logger.warning(f);
-                failWith(errorCode, f);
+                synchronized (LoaderClient.this) {
+                    if (state != State.STREAM || srcStreamID != id) return;
+                    String f = "Failed to setup stream at " + where + ": error 0x" + Integer
+                            .toHexString(errorCode);
+                    logger.warning(f);
+                    failWith(errorCode, f);
+                }
             }
         });
     }
 
+    /**
+     * Takes the lowest source stream ID no other loader is using. When all are taken (more
+     * than two hundred uploads at once), IDs are shared again starting from the lowest one.
+     */
+    private static byte allocateSrcStreamID() {
+        synchronized (srcStreamIDsInUse) {
+            int id = srcStreamIDsInUse.nextClearBit(FIRST_SRC_STREAM_ID);
+            if (id > LAST_SRC_STREAM_ID) {
+                logger.warning("Out of stream IDs; sharing one between uploads.");
+                id = FIRST_SRC_STREAM_ID;
+            }
+            srcStreamIDsInUse.set(id);
+            return (byte) id;
+        }
+    }
+
+    private static void releaseSrcStreamID(byte id) {
+        if (id == 0) return;
+        synchronized (srcStreamIDsInUse) {
+            srcStreamIDsInUse.clear(id & 0xFF);
+        }
+    }
+
+    private void releaseSrcStreamID() {
+        releaseSrcStreamID(srcStreamID);
+        srcStreamID = 0;
+    }
+
     private void sendStream() {
                                       // System.out.println("lSend Stream ");
         // @todo the destStreamID is probably bogus at this point. Check why it is needed here.
-        StreamInitiateRequestMessage m = new StreamInitiateRequestMessage(src, dest, bufferSize, SRC_STREAM_ID, destStreamID);
+        StreamInitiateRequestMessage m = new StreamInitiateRequestMessage(src, dest, bufferSize, srcStreamID, destStreamID);
         connection.put(m, this);
         startTimeout(STREAM_INIT_TIMEOUT_MSEC);
     }
 
     @Override
-    public void handleStreamInitiateReply(StreamInitiateReplyMessage msg, Connection sender){
+    public synchronized void handleStreamInitiateReply(StreamInitiateReplyMessage msg, Connection sender){
                                       // System.out.println("handleStreamInitiateReply ");
         // pick up buffer size to use
-        if(state==State.STREAM && isReply(msg) && SRC_STREAM_ID == msg.getSourceStreamID()) {
+        if(state==State.STREAM && isReply(msg) && srcStreamID == msg.getSourceStreamID()) {
             endTimeout();
             this.bufferSize = msg.getBufferSize();
             this.destStreamID = msg.getDestinationStreamID();
-            // init transfer
-            nextIndex = 0;
             // send data
             state=State.STREAMDATA;
             sendStreamNext();
         }
     }
     private void sendStreamNext() {
-        int size = Math.min(bufferSize, content.length-nextIndex);
-        int[] data = new int[size];
+        streamChunk = readImage(bufferSize);
+        if (streamChunk == null) return;
+        int[] data = new int[streamChunk.length];
         // copy the needed data
-        for (int i=0; i<size; i++) data[i] = content[nextIndex+i];
+        for (int i=0; i<data.length; i++) data[i] = streamChunk[i];
                                          // System.out.println("\nsendStreamNext: "+data);
         Message m = new StreamDataSendMessage(src, dest, destStreamID, data);
         connection.put(m, this);
         // are we done?
-        nextIndex = nextIndex+size;
-        feedback.onProgress(100.0F * (float)nextIndex / (float)content.length);
-        if (nextIndex < content.length) {
-            startTimeout(STREAM_DATA_PROCEED_TIMEOUT_MSEC);
+        reportProgress(image.position());
+        if (image.position() < image.length) {
+            startTimeout(streamDataProceedTimeoutMsec);
             return; // wait for Data Proceed message
         }
         // yes, say we're done
-        m = new StreamDataCompleteMessage(src, dest, SRC_STREAM_ID, destStreamID);
+        m = new StreamDataCompleteMessage(src, dest, srcStreamID, destStreamID);
         connection.put(m, this);
+        releaseSrcStreamID();
         sendUnfreeze();
         state = State.SUCCESS;
     }
 
     @Override
-    public void handleStreamDataProceed(StreamDataProceedMessage msg, Connection sender){
+    public synchronized void handleStreamDataProceed(StreamDataProceedMessage msg, Connection sender){
                                       // System.out.println("handleStreamDataProceed");
-        if (state == State.STREAMDATA && isReply(msg)) {
+        if (state == State.STREAMDATA && isReply(msg) && srcStreamID == msg
+                .getSourceStreamID()) {
             endTimeout();
+            errorCounter = 0;
             sendStreamNext();
         }
     }
 
+    /**
+     * Closes the current stream and sets up a new one, with a new stream ID, starting at the
+     * data the target did not confirm. Late messages of the old stream are ignored.
+     * @return false if there were too many retries.
+     */
+    private boolean retryStream() {
+        if (++errorCounter > MAX_RETRIES) return false;
+        logger.warning("No stream data proceed from target; retrying from offset " + (image
+                .position() - streamChunk.length));
+        connection.put(new StreamDataCompleteMessage(src, dest, srcStreamID, destStreamID),
+                this);
+        image.unread(streamChunk);
+        streamChunk = null;
+        byte old = srcStreamID;
+        srcStreamID = allocateSrcStreamID();
+        releaseSrcStreamID(old);
+        state = State.SETUPSTREAM;
+        setupStream();
+        return true;
+    }
+
 
     // ============================= DATAGRAMS ==============================================
-    private void sendDGs() {
+    /// A part of the image in a write datagram.
+    private static class Chunk {
+        final long offset;
+        final byte[] data;
+
+        Chunk(long offset, byte[] data) {
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    /// Writes sent and not confirmed yet, oldest first.
+    private final ArrayDeque<Chunk> unacked = new ArrayDeque<>();
+    /// Counts the retries; confirmations of writes sent before the last retry are ignored.
+    private int generation;
+
+    private synchronized void sendDGs() {
                                        //System.out.println("\nlsendDGs: ");
-        nextIndex = 0;
-        bufferSize = 64;
-        errorCounter = 0;
+        bufferSize = DATAGRAM_CHUNK_SIZE;
+        unacked.clear();
         sendDGNext();
     }
 
+    /// Sends writes until the window is full, or finishes when all were confirmed.
     private void sendDGNext() {
-        final int size = Math.min(bufferSize, content.length-nextIndex);
-                                    //System.out.println("lsendDGNext Enter: "+state);
-                                    //System.out.println("content.length: "+content.length);
-                                    //System.out.println("nextIndex: "+nextIndex);
-                                    //System.out.println("lbufferSize: "+bufferSize);
-                                    //System.out.println("lsize: "+size);
-        byte[] data = new byte[size];
-        // copy the needed data
-        System.arraycopy(content, nextIndex, data, 0, size);
+        while (state == State.DG && unacked.size() < datagramWindow && image.position() <
+                image.length) {
+            long offset = image.position();
+            byte[] data = readImage(bufferSize);
+            if (data == null) return;
+            Chunk c = new Chunk(offset, data);
+            unacked.add(c);
+            sendDG(c, generation);
+        }
+        if (state == State.DG && unacked.isEmpty() && image.position() >= image.length) {
+            state = State.SUCCESS;
+            sendUnfreeze();
+        }
+    }
 
-        mcs.requestWrite(dest, space, nextIndex, data, new McsWriteHandler() {
+    private void sendDG(final Chunk chunk, final int gen) {
+        mcs.requestWrite(dest, space, address + chunk.offset, chunk.data, new McsWriteHandler() {
             @Override
             public void handleFailure(int errorCode) {
-                if (++errorCounter > 3) {
-                    failWith(errorCode, "Repeated errors writing to firmware space.");
-                } else {
-                    sendDGNext();
-                }
+                dgFailed(chunk, gen, errorCode);
             }
 
             @Override
             public void handleSuccess() {
-                nextIndex += size;
-                errorCounter = 0;
-                float p = 100.0F * nextIndex / content.length;
-                feedback.onProgress(p);
-                if(nextIndex<content.length) sendDGNext();
-                else {
-                    state = State.SUCCESS;
-                    sendUnfreeze();
-                }
+                dgDone(chunk, gen);
             }
         });
     }
 
+    private synchronized void dgDone(Chunk chunk, int gen) {
+        if (gen != generation || unacked.peek() != chunk) return;
+        unacked.poll();
+        errorCounter = 0;
+        reportProgress(chunk.offset + chunk.data.length);
+        sendDGNext();
+    }
+
+    /// Sends again from the failed chunk on.
+    private synchronized void dgFailed(Chunk chunk, int gen, int errorCode) {
+        if (gen != generation || state != State.DG) return;
+        if (++errorCounter > MAX_RETRIES) {
+            failWith(errorCode, "Repeated errors writing to firmware space.");
+            return;
+        }
+        ++generation;
+        Iterator<Chunk> it = unacked.descendingIterator();
+        while (it.hasNext()) {
+            image.unread(it.next().data);
+        }
+        unacked.clear();
+        sendDGNext();
+    }
+
+    // ============================= IMAGE ==============================================
+    /**
+     * Reads the image in order. Data handed out can be given back to be read again, for
+     * retries.
+     */
+    private static class ImageReader {
+        final ReadableByteChannel channel;
+        final long length;
+        final boolean ownsChannel;
+        /// Data given back, to be read before the channel.
+        final ArrayDeque<ByteBuffer> unread = new ArrayDeque<>();
+        /// Offset of the next byte to read.
+        long position = 0;
+
+        ImageReader(ReadableByteChannel channel, long length, boolean ownsChannel) {
+            this.channel = channel;
+            this.length = length;
+            this.ownsChannel = ownsChannel;
+        }
+
+        long position() {
+            return position;
+        }
+
+        /**
+         * @param max how many bytes to read at most.
+         * @return the next bytes; shorter than max only at the end of the image.
+         * @throws IOException if the channel fails or ends early.
+         */
+        byte[] read(int max) throws IOException {
+            int n = (int) Math.min(max, length - position);
+            ByteBuffer b = ByteBuffer.allocate(n);
+            while (b.hasRemaining() && !unread.isEmpty()) {
+                ByteBuffer u = unread.peek();
+                int k = Math.min(u.remaining(), b.remaining());
+                ByteBuffer part = u.duplicate();
+                part.limit(part.position() + k);
+                b.put(part);
+                u.position(u.position() + k);
+                if (!u.hasRemaining()) unread.poll();
+            }
+            while (b.hasRemaining()) {
+                if (channel.read(b) < 0) {
+                    throw new EOFException("Image ended at " + (position + b.position()) + " " +
+                            "of " + length + " bytes");
+                }
+            }
+            position += n;
+            return b.array();
+        }
+
+        /// Gives back the data returned by the last read calls, last first.
+        void unread(byte[] data) {
+            unread.push(ByteBuffer.wrap(data));
+            position -= data.length;
+        }
+
+        void close() {
+            if (!ownsChannel) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /// @return the next bytes of the image, or null after reporting a failure.
+    private byte[] readImage(int max) {
+        try {
+            return image.read(max);
+        } catch (IOException e) {
+            failWith(1, "Error reading the firmware image: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void reportProgress(long done) {
+        long total = image.length;
+        feedback.onProgress(total == 0 ? 100.0F : 100.0F * (float) done / (float) total);
+        long elapsed = System.nanoTime() - transferStartNanos;
+        if (elapsed <= 0 || done <= 0) {
+            feedback.onRate(0, -1);
+            return;
+        }
+        double rate = done * 1e9 / elapsed;
+        feedback.onRate(rate, (long) ((total - done) * 1000 / rate));
+    }
+
     private void sendUnfreeze() {
         dcs.sendData(new DatagramService.DatagramServiceTransmitMemo(dest, new int[]{0x20, 0xA0, space}) {
             @Override
             public void handleSuccess(int flags) {
-                if (state == State.SUCCESS) {
-                    feedback.onProgress((float) 100.0);
-                    feedback.onDone(0, "");
+                synchronized (LoaderClient.this) {
+                    if (state == State.SUCCESS) {
+                        image.close();
+                        feedback.onProgress((float) 100.0);
+                        feedback.onDone(0, "");
+                    }
                 }
             }
 
             @Override
             public void handleFailure(int errorCode) {
-                if (errorCode == DatagramRejectedMessage.DATAGRAM_REJECTED_DST_REBOOT) {
-                    // that's ok
-                    handleSuccess(0);
-                } else if (state == State.SUCCESS){
-                    failWith(errorCode, "Download Failed in UnFreeze");
-                } // else we already reported a failure
+                synchronized (LoaderClient.this) {
+                    if (errorCode == DatagramRejectedMessage.DATAGRAM_REJECTED_DST_REBOOT) {
+                        // that's ok
+                        handleSuccess(0);
+                    } else if (state == State.SUCCESS){
+                        failWith(errorCode, "Download Failed in UnFreeze");
+                    } // else we already reported a failure
+                }
             }
         });
     }
@@ -344,6 +674,8 @@ public class LoaderClient extends MessageDecoder {
     private void failWith(int errorCode, String errorString) {
         boolean b = (state != State.FAIL && state != State.UNFREEEZE);
         state = State.FAIL;
+        releaseSrcStreamID();
+        if (image != null) image.close();
         String tmpString = null;
         if (errorCode == ERR_CHECKSUM_FAILED) {
             tmpString = "Failed download checksum; try again";
@@ -364,10 +696,13 @@ public class LoaderClient extends MessageDecoder {
     /*
      * clean up local storage
      */
-    public void dispose(){
-       if(timer!=null) {
-          timer.cancel();
-          timer = null;
+    public synchronized void dispose(){
+       if (task != null) task.cancel();
+       task = null;
+       releaseSrcStreamID();
+       if(timer!=null && ownsTimer) {
+          timer.stop();
        }
+       timer = null;
     }
 }
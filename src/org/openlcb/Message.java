@@ -68,4 +68,18 @@ abstract public class Message implements OpenLcb {
      }
 
      abstract public int getMTI();
+
+     /**
+      * @param c a message class
+      * @return display name of the message type: the class name without the "Message"
+      * suffix, e.g. "ProducerConsumerEventReport".
+      */
+     public static String typeName(Class<?> c) {
+        String n = c.getSimpleName();
+        if (n.isEmpty()) n = c.getName();
+        if (n.endsWith("Message") && n.length() > "Message".length()) {
+            n = n.substring(0, n.length() - "Message".length());
+        }
+        return n;
+     }
 }
@@ -0,0 +1,187 @@
+package org.openlcb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Shared instances of event IDs and event reports, for decoding busy event traffic without
+ * allocating per message. Opt-in: give an instance to
+ * {@link org.openlcb.can.MessageBuilder#setFlyweights} (or the interface that owns it).
+ * <p>
+ * Event IDs are kept in a table keyed by their 64-bit value, filled as events are seen (or
+ * ahead of time through {@link #addKnownEvent}) up to a fixed capacity. Events seen after the
+ * table is full are decoded into new objects as without flyweights. For each event the last
+ * Producer/Consumer Event Report of each reporting node is kept too, in {@link #REPORT_SLOTS}
+ * slots picked by the node ID; nodes sharing a slot replace each other's report. Lookups take
+ * no lock.
+ * <p>
+ * Message lifetime: the shared objects are immutable and are never recycled, so a listener
+ * may keep a message for as long as it likes. The same instance is however delivered every
+ * time the same node reports the same event, so listeners must not tell messages apart by
+ * identity (e.g. in an IdentityHashMap, or by == to detect a new report).
+ */
+@ThreadSafe
+public class MessageFlyweights {
+    public static final int DEFAULT_CAPACITY = 4096;
+    /// Reporting nodes remembered per event, e.g. a producer and the consumers echoing it.
+    public static final int REPORT_SLOTS = 4;
+    private static final int REPORT_SLOT_BITS = 2;
+
+    private static class Entry {
+        final long key;
+        final EventID eventId;
+        /// Last report of the nodes whose ID hashes to each slot.
+        final AtomicReferenceArray<ProducerConsumerEventReportMessage> reports = new
+                AtomicReferenceArray<>(REPORT_SLOTS);
+
+        Entry(long key, EventID eventId) {
+            this.key = key;
+            this.eventId = eventId;
+        }
+    }
+
+    private final int capacity;
+    /// Open addressing table; a slot is free while it is null. Entries are never removed.
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public MessageFlyweights() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity how many distinct events to keep.
+     */
+    public MessageFlyweights(int capacity) {
+        this.capacity = capacity;
+        // At most half full, so that probe sequences stay short.
+        int slots = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) * 2;
+        entries = new AtomicReferenceArray<>(slots);
+    }
+
+    /**
+     * Adds an event to the table ahead of time, e.g. the events of the local producers and
+     * consumers.
+     *
+     * @param eventId event to keep.
+     */
+    public void addKnownEvent(EventID eventId) {
+        long key = eventId.toLong();
+        if (find(key) == null) {
+            insert(key, eventId);
+        }
+    }
+
+    /**
+     * @param value the event ID as a number, the first byte in the top bits.
+     * @return the shared instance for the event ID, or a new one if the table is full.
+     */
+    public EventID getEventID(long value) {
+        Entry e = entry(value);
+        return e != null ? e.eventId : toEventID(value);
+    }
+
+    /**
+     * @param source node that sent the report.
+     * @param event  the event ID as a number, the first byte in the top bits.
+     * @return an event report message; the same instance as before if this node reported this
+     * event before, unless another node sharing its slot reported it since.
+     */
+    public ProducerConsumerEventReportMessage getEventReport(NodeID source, long event) {
+        Entry e = entry(event);
+        if (e == null) {
+            return new ProducerConsumerEventReportMessage(source, toEventID(event));
+        }
+        // Top bits of the mixed node ID; nodes of one batch differ only in the low bytes.
+        int slot = (int) ((source.toLong() * 0x9E3779B97F4A7C15L) >>> (64 - REPORT_SLOT_BITS));
+        ProducerConsumerEventReportMessage m = e.reports.get(slot);
+        if (m != null && m.getSourceNodeID().equals(source)) {
+            return m;
+        }
+        m = new ProducerConsumerEventReportMessage(source, e.eventId);
+        e.reports.set(slot, m);
+        return m;
+    }
+
+    /// @return the number of events in the table.
+    public int size() {
+        return size.get();
+    }
+
+    /// @return how many lookups found the event in the table.
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /// @return how many lookups did not find the event in the table.
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /// Looks up an event, adding it if there is room.
+    /// @return the entry, or null if the event is not in the table and the table is full.
+    private Entry entry(long key) {
+        Entry e = find(key);
+        if (e != null) {
+            hits.increment();
+            return e;
+        }
+        misses.increment();
+        // Another thread may have added the key and filled the table since the lookup above.
+        // Entries are counted only once they are in the table, so looking again finds it.
+        if (size.get() >= capacity) return find(key);
+        return insert(key, toEventID(key));
+    }
+
+    private int home(long key) {
+        // Mixes the bits, as event IDs of one node differ only in the low bytes.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (entries.length() - 1);
+    }
+
+    /// @return the entry of the key, or null if it is not in the table.
+    private Entry find(long key) {
+        int mask = entries.length() - 1;
+        for (int slot = home(key); ; slot = (slot + 1) & mask) {
+            Entry e = entries.get(slot);
+            if (e == null || e.key == key) return e;
+        }
+    }
+
+    /**
+     * Adds an entry, unless the table is full or another thread added the key first. Adding
+     * takes a lock, so that the size never counts an entry that does not make it into the
+     * table; this happens at most once per event kept.
+     *
+     * @return the entry in the table, or null if the table is full.
+     */
+    private Entry insert(long key, EventID id) {
+        synchronized (entries) {
+            Entry e = find(key);
+            if (e != null) return e;
+            if (size.get() >= capacity) return null;
+            e = new Entry(key, id);
+            int mask = entries.length() - 1;
+            int slot = home(key);
+            while (entries.get(slot) != null) {
+                slot = (slot + 1) & mask;
+            }
+            entries.set(slot, e);
+            size.incrementAndGet();
+            return e;
+        }
+    }
+
+    private static EventID toEventID(long value) {
+        byte[] b = new byte[EventID.BYTECOUNT];
+        for (int i = EventID.BYTECOUNT - 1; i >= 0; --i) {
+            b[i] = (byte) value;
+            value >>>= 8;
+        }
+        return new EventID(b);
+    }
+}
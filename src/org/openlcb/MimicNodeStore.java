@@ -1,11 +1,11 @@
 package org.openlcb;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Collection;
-
+import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -16,6 +16,12 @@ import javax.annotation.Nullable;
  * Store containing mimic proxies for nodes on external connections
  * <p>
  * Provides a Connection for incoming Messages.
+ * <p>
+ * The store is safe to use from multiple threads. Lookups do not take any locks; the list
+ * returned by {@link #getNodeMemos()} is an immutable snapshot that is only rebuilt after the
+ * set of nodes changed. With {@link #setBatchDelay(int)} the notifications about new nodes
+ * are coalesced into {@link #ADD_PROP_NODES} events, which is useful when a refresh makes
+ * hundreds of nodes reply at the same time.
  *
  * @author  Bob Jacobsen   Copyright 2011
  * @version $Revision$
@@ -23,42 +29,155 @@ import javax.annotation.Nullable;
 public class MimicNodeStore extends AbstractConnection {
 
     public static final String ADD_PROP_NODE = "AddNode";
+    /// Fired instead of ADD_PROP_NODE when batching is enabled. The new value is an
+    /// unmodifiable List of NodeMemo.
+    public static final String ADD_PROP_NODES = "AddNodes";
     public static final String CLEAR_ALL_NODES = "ClearAllNodes";
     private final static Logger logger = Logger.getLogger(MimicNodeStore.class.getName());
 
+    /**
+     * Creates a node store with its own timer thread.
+     *
+     * @param connection where to send requests to the remote nodes
+     * @param node       our node ID
+     */
     public MimicNodeStore(Connection connection, NodeID node) {
+        this(connection, node, null);
+    }
+
+    /**
+     * @param connection where to send requests to the remote nodes
+     * @param node       our node ID
+     * @param timer      shared timer to run timeouts on (usually the interface's timer). If
+     *                   null, the store creates its own and stops it in dispose().
+     */
+    public MimicNodeStore(Connection connection, NodeID node, @Nullable HashedWheelTimer timer) {
         this.connection = connection;
         this.node = node;
-        if(timer == null) {
-           timer = new Timer("OpenLCB Mimic Node Store Timer");
+        if (timer == null) {
+            timer = new HashedWheelTimer("OpenLCB Mimic Node Store Timer");
+            ownsTimer = true;
         }
+        this.timer = timer;
+        scheduler = new DiscoveryScheduler(timer);
     }
 
     public void dispose(){
-       // cancel the timer.
-       if(timer != null ) {
-          timer.cancel();
-          timer=null;
+       // stop the timer if it's ours.
+       if(timer != null && ownsTimer) {
+          timer.stop();
        }
+       timer = null;
     }
 
-    void scheduleTask(TimerTask t,int delay){
-       if(timer == null) {
+    void scheduleTask(Runnable r,int delay){
+       HashedWheelTimer tm = timer;
+       if(tm == null) {
           return; // attempt to schedule after dispose.
        }
-       timer.schedule(t,delay);
+       tm.schedule(r,delay);
     }
-    
+
+    /**
+     * @return the scheduler that meters the discovery requests sent to the remote nodes. Use
+     * it to configure the request window and bus load target, or to read latency statistics.
+     */
+    public DiscoveryScheduler getDiscoveryScheduler() {
+        return scheduler;
+    }
+
     Connection connection;
     NodeID node;
-    private static Timer timer;
+    private volatile HashedWheelTimer timer;
+    @Nullable
+    private volatile NodeIdentityStore identityStore = null;
+    private boolean ownsTimer = false;
+    private final DiscoveryScheduler scheduler;
     
+    /**
+     * @return an immutable snapshot of the currently known nodes. Later changes to the store
+     * are not reflected in the returned collection; call again to get an updated list.
+     */
     public Collection<NodeMemo> getNodeMemos() {
-        return map.values();
-    } 
+        List<NodeMemo> s = snapshot;
+        if (s != null) return s;
+        int v;
+        synchronized (snapshotLock) {
+            v = version;
+        }
+        s = Collections.unmodifiableList(new ArrayList<>(map.values()));
+        synchronized (snapshotLock) {
+            // Only publish if no node was added or removed while we were copying.
+            if (v == version) snapshot = s;
+        }
+        return s;
+    }
+
+    /**
+     * Enables coalescing of new node notifications. When the delay is positive, nodes added
+     * to the store are collected and a single {@link #ADD_PROP_NODES} event is fired after
+     * the delay has elapsed, instead of one {@link #ADD_PROP_NODE} event per node.
+     *
+     * @param delayMsec how long to collect new nodes before notifying; 0 (the default)
+     *                  fires one ADD_PROP_NODE event per node immediately.
+     */
+    public void setBatchDelay(int delayMsec) {
+        batchDelayMsec = delayMsec;
+        if (delayMsec <= 0) {
+            flushPendingNodes();
+        }
+    }
+
+    /**
+     * Fires the pending {@link #ADD_PROP_NODES} event right away, if any nodes are waiting
+     * to be announced.
+     */
+    public void flushPendingNodes() {
+        List<NodeMemo> added;
+        synchronized (pendingNodes) {
+            if (batchTask != null) {
+                batchTask.cancel();
+                batchTask = null;
+            }
+            if (pendingNodes.isEmpty()) return;
+            added = Collections.unmodifiableList(new ArrayList<>(pendingNodes));
+            pendingNodes.clear();
+        }
+        pcs.firePropertyChange(ADD_PROP_NODES, null, added);
+    }
+
+    private void notifyNodeAdded(NodeMemo memo) {
+        int delay = batchDelayMsec;
+        if (delay <= 0) {
+            pcs.firePropertyChange(ADD_PROP_NODE, null, memo);
+            return;
+        }
+        HashedWheelTimer tm = timer;
+        synchronized (pendingNodes) {
+            pendingNodes.add(memo);
+            if (batchTask != null) return;
+            if (tm != null && !tm.isStopped()) {
+                batchTask = tm.schedule(flushRunnable, delay);
+                return;
+            }
+        }
+        // Disposed; there is nothing to defer the notification to.
+        flushPendingNodes();
+    }
+
+    private void invalidateSnapshot() {
+        synchronized (snapshotLock) {
+            ++version;
+            snapshot = null;
+        }
+    }
     
     public void put(Message msg, Connection sender) {
         NodeMemo memo = addNode(msg.getSourceNodeID());
+        NodeIdentityStore s = identityStore;
+        if (s != null) {
+            s.recordSeen(msg.getSourceNodeID(), System.currentTimeMillis());
+        }
         // check for necessary updates in specific node
         memo.put(msg, sender);
     }
@@ -68,20 +187,63 @@ public class MimicNodeStore extends AbstractConnection {
      */
     public void refresh() {
         map.clear();
+        invalidateSnapshot();
+        synchronized (pendingNodes) {
+            pendingNodes.clear();
+        }
         pcs.firePropertyChange(CLEAR_ALL_NODES, null, null);
         connection.put(new VerifyNodeIDNumberMessage(node), this);
     }
 
     public NodeMemo addNode(NodeID id) {
+        // Fast path: the node is almost always known already.
         NodeMemo memo = map.get(id);
-        if (memo == null) {
-            memo = new NodeMemo(id);
-            map.put(id, memo);
-            pcs.firePropertyChange(ADD_PROP_NODE, null, memo);
+        if (memo != null) return memo;
+        final NodeMemo[] created = new NodeMemo[1];
+        memo = map.computeIfAbsent(id, k -> {
+            created[0] = new NodeMemo(k);
+            NodeIdentityStore s = identityStore;
+            if (s != null) {
+                created[0].loadCached(s.get(k));
+            }
+            return created[0];
+        });
+        if (memo == created[0]) {
+            invalidateSnapshot();
+            notifyNodeAdded(memo);
         }
         return memo;
     }
     
+    /**
+     * Attaches a persistent store for the identification of remote nodes. All nodes in the
+     * store are added right away with their cached Simple Node Information and Protocol
+     * Identification; these are re-read from the node (through the discovery scheduler) the
+     * first time they are asked for. Replies received from now on are recorded in the store.
+     *
+     * @param s store to use, or null to stop recording.
+     */
+    public void setIdentityStore(@Nullable NodeIdentityStore s) {
+        identityStore = s;
+        if (s == null) return;
+        for (NodeIdentityStore.Entry e : s.getEntries()) {
+            addNode(e.nodeId);
+        }
+    }
+
+    /**
+     * Records the CAN alias of a remote node in the identity store, if one is attached.
+     *
+     * @param id    remote node
+     * @param alias its alias
+     */
+    public void recordAlias(NodeID id, int alias) {
+        NodeIdentityStore s = identityStore;
+        if (s != null) {
+            s.recordAlias(id, alias);
+        }
+    }
+
     /**
      * If node not present, initiate process to find it.
      * @param id    remote node ID to find
@@ -115,7 +277,23 @@ public class MimicNodeStore extends AbstractConnection {
         }
     }
     
-    HashMap<NodeID, NodeMemo> map = new java.util.HashMap<NodeID, NodeMemo>();
+    final ConcurrentHashMap<NodeID, NodeMemo> map = new ConcurrentHashMap<>();
+    /// Cached result of getNodeMemos; null if the set of nodes changed since.
+    private volatile List<NodeMemo> snapshot = null;
+    /// Incremented every time the set of nodes changes. Guarded by snapshotLock.
+    private int version = 0;
+    private final Object snapshotLock = new Object();
+
+    private volatile int batchDelayMsec = 0;
+    /// Nodes added but not yet announced in batched mode. Also guards batchTask.
+    private final List<NodeMemo> pendingNodes = new ArrayList<>();
+    private HashedWheelTimer.Timeout batchTask = null;
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingNodes();
+        }
+    };
 
     java.beans.PropertyChangeSupport pcs = new java.beans.PropertyChangeSupport(this);
     public synchronized void addPropertyChangeListener(java.beans.PropertyChangeListener l) {pcs.addPropertyChangeListener(l);}
@@ -134,7 +312,7 @@ public class MimicNodeStore extends AbstractConnection {
 
         Queue<Interaction> pendingInteractions = new ConcurrentLinkedDeque<>();
         Interaction currentInteraction = null;
-        private TimerTask currentTask;
+        private DiscoveryScheduler.Request currentRequest;
 
         public synchronized void startInteraction(final Interaction request) {
             if (currentInteraction == null) {
@@ -149,15 +327,20 @@ public class MimicNodeStore extends AbstractConnection {
                 return;
             }
             currentInteraction = request;
-            request.sendRequest(connection);
-            currentTask = new TimerTask() {
+            currentRequest = new DiscoveryScheduler.Request(id, request.deadlineMsec, request
+                    .isMetered()) {
                 @Override
-                public void run() {
+                protected void send() {
+                    request.sendRequest(connection);
+                }
+
+                @Override
+                protected void onTimeout() {
                     request.onTimeout();
                     tryCompleteInteraction(request);
                 }
             };
-            scheduleTask(currentTask, request.deadlineMsec);
+            scheduler.submit(currentRequest);
         }
 
         public synchronized void tryCompleteInteraction(@Nullable Interaction request) {
@@ -176,9 +359,9 @@ public class MimicNodeStore extends AbstractConnection {
             synchronized (request) {
                 request.isComplete = true;
             }
-            currentTask.cancel();
+            scheduler.complete(currentRequest);
             currentInteraction = null;
-            currentTask = null;
+            currentRequest = null;
             if (pendingInteractions.isEmpty()) {
                 return;
             }
@@ -188,19 +371,30 @@ public class MimicNodeStore extends AbstractConnection {
 
         ProtocolIdentification pIdent = null;
         Interaction pipInteraction = null;
+        /// True if pIdent was loaded from the identity store and not yet re-read from the node.
+        boolean pipStale = false;
         public void handleProtocolIdentificationReply(ProtocolIdentificationReplyMessage msg, Connection sender){
             // accept assumes from mimic'd node
             pIdent = new ProtocolIdentification(node, msg);
+            pipStale = false;
+            NodeIdentityStore s = identityStore;
+            if (s != null) {
+                s.recordPip(id, pIdent.getValue());
+            }
             pcs.firePropertyChange(UPDATE_PROP_PROTOCOL, null, pIdent);
             tryCompleteInteraction(pipInteraction);
             pipInteraction = null;
         }  
         public ProtocolIdentification getProtocolIdentification() {
-            if (pIdent == null) {
+            if (pIdent == null || pipStale) {
                 if (id == null) {
                     throw new AssertionError("MimicNodeStore id == null");
                 }
-                pIdent = new ProtocolIdentification(node, id);
+                if (pIdent == null) {
+                    pIdent = new ProtocolIdentification(node, id);
+                }
+                // Cached data is returned now and re-validated in the background.
+                pipStale = false;
                 pipInteraction = new Interaction() {
                     int numTriesLeft = 3;
 
@@ -221,7 +415,7 @@ public class MimicNodeStore extends AbstractConnection {
                         }
                         final Interaction request = this;
                         if (--numTriesLeft > 0) {
-                            scheduleTask(new TimerTask() {
+                            scheduleTask(new Runnable() {
                                 @Override
                                 public void run() {
                                     startInteraction(request);
@@ -237,21 +431,51 @@ public class MimicNodeStore extends AbstractConnection {
 
         SimpleNodeIdent pSimpleNode = null;
         Interaction snipInteraction = null;
+        /// True if pSimpleNode was loaded from the identity store and not yet re-read.
+        boolean snipStale = false;
+
+        /**
+         * Fills in the identification from the persistent store.
+         * @param e cached data, or null if the node is not known to the store.
+         */
+        void loadCached(@Nullable NodeIdentityStore.Entry e) {
+            if (e == null) return;
+            byte[] snip = e.getSnipData();
+            if (snip != null) {
+                pSimpleNode = new SimpleNodeIdent(node, id, snip);
+                snipStale = true;
+            }
+            if (e.hasProtocolIdentification()) {
+                pIdent = new ProtocolIdentification(node, id, e.getProtocolIdentification());
+                pipStale = true;
+            }
+        }
         public void handleSimpleNodeIdentInfoReply(SimpleNodeIdentInfoReplyMessage msg, Connection sender){
             // accept assumes from mimic'd node
-            if (pSimpleNode == null) 
+            boolean replyComplete;
+            if (pSimpleNode == null) {
                 pSimpleNode = new SimpleNodeIdent(msg);
-            else
-                pSimpleNode.addMsg(msg);
-            if (pSimpleNode.contentComplete()) {
+                replyComplete = pSimpleNode.contentComplete();
+            } else {
+                replyComplete = pSimpleNode.addMsg(msg);
+            }
+            if (replyComplete) {
+                NodeIdentityStore s = identityStore;
+                if (s != null) {
+                    s.recordSnip(id, pSimpleNode.getRawData());
+                }
                 tryCompleteInteraction(snipInteraction);
                 snipInteraction = null;
             }
             pcs.firePropertyChange(UPDATE_PROP_SIMPLE_NODE_IDENT, null, pSimpleNode);
         }  
         public SimpleNodeIdent getSimpleNodeIdent() {
-            if (pSimpleNode == null) {
-                pSimpleNode = new SimpleNodeIdent(node, id);
+            if (pSimpleNode == null || snipStale) {
+                if (pSimpleNode == null) {
+                    pSimpleNode = new SimpleNodeIdent(node, id);
+                }
+                // Cached data is returned now and re-validated in the background.
+                snipStale = false;
                 snipInteraction = new Interaction() {
                     int numTriesLeft = 3;
 
@@ -272,7 +496,7 @@ public class MimicNodeStore extends AbstractConnection {
                         }
                         final Interaction request = this;
                         if (--numTriesLeft > 0) {
-                            scheduleTask(new TimerTask() {
+                            scheduleTask(new Runnable() {
                                 @Override
                                 public void run() {
                                     startInteraction(request);
@@ -331,6 +555,11 @@ public class MimicNodeStore extends AbstractConnection {
                 void onTimeout() {
                     // do nothing; let the next interaction begin
                 }
+
+                @Override
+                boolean isMetered() {
+                    return false;
+                }
             };
             fakeInteraction.deadlineMsec = timeoutMsec;
             startInteraction(fakeInteraction);
@@ -0,0 +1,431 @@
+package org.openlcb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Persistent cache of what we know about remote nodes: the Simple Node Information reply,
+ * the Protocol Identification bits, the CAN alias and when the node was last seen.
+ * <p>
+ * Attach it to the {@link MimicNodeStore} with {@link MimicNodeStore#setIdentityStore} to get
+ * the node list and names right after startup, without waiting for every node to answer on
+ * the bus. The cached data is re-validated from the nodes as it is requested.
+ * <p>
+ * The file is an append-only log, so recording a change is a single small write. Each record
+ * is {@code type(1) nodeID(6) length(2) payload}; on load the last record of each type wins.
+ * A record cut short by a crash is discarded. When the log holds many more records than
+ * nodes it is compacted on open.
+ * <p>
+ * The record methods only update the memory and queue the write to a background thread, so
+ * they are cheap to call from the network threads. {@link #flush} waits for the queued
+ * writes.
+ */
+public class NodeIdentityStore implements Closeable {
+    private final static Logger logger = Logger.getLogger(NodeIdentityStore.class.getName());
+
+    static final byte[] MAGIC = {'O', 'L', 'C', 'B', 'N', 'I', 'D', 'S'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 1;
+    static final int RECORD_HEADER_SIZE = 1 + 6 + 2;
+
+    static final int TYPE_SNIP = 1;
+    static final int TYPE_PIP = 2;
+    static final int TYPE_SEEN = 3;
+    static final int TYPE_ALIAS = 4;
+
+    /// Last-seen times closer than this to the stored one are not written to the file.
+    static final long SEEN_RESOLUTION_MSEC = 60 * 1000;
+    /// Compact when the log has more than this many records per node (plus slack).
+    static final int COMPACT_RATIO = 4;
+
+    /**
+     * What is known about a single node.
+     */
+    public static class Entry {
+        public final NodeID nodeId;
+        @Nullable
+        byte[] snip = null;
+        long pip = 0;
+        boolean hasPip = false;
+        long lastSeen = 0;
+        int alias = -1;
+
+        Entry(NodeID nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        Entry(Entry o) {
+            this.nodeId = o.nodeId;
+            this.snip = o.snip;
+            this.pip = o.pip;
+            this.hasPip = o.hasPip;
+            this.lastSeen = o.lastSeen;
+            this.alias = o.alias;
+        }
+
+        /// @return the raw Simple Node Information reply payload, or null if not known.
+        @Nullable
+        public byte[] getSnipData() {
+            return snip == null ? null : snip.clone();
+        }
+
+        /// @return true if the protocol identification bits are known.
+        public boolean hasProtocolIdentification() {
+            return hasPip;
+        }
+
+        /// @return the protocol identification bits.
+        public long getProtocolIdentification() {
+            return pip;
+        }
+
+        /// @return when the node was last seen on the bus, in msec since the epoch, or 0.
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /// @return the last known CAN alias of the node, or -1.
+        public int getAlias() {
+            return alias;
+        }
+    }
+
+    private final Path file;
+    /// Written by the writer thread, or by compact and close after a flush.
+    private volatile FileChannel channel;
+    /// Writes the queued records in order; its thread exits when idle.
+    private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, OlcbExecution
+            .THREAD_TIMEOUT_SEC, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            OlcbExecution.getDefault().threadFactory("Olcb-NodeStore-"));
+    private final Map<NodeID, Entry> entries = new LinkedHashMap<>();
+    /// Last-seen time of each node as last recorded, read without the lock by recordSeen.
+    private final Map<NodeID, Long> lastSeen = new ConcurrentHashMap<>();
+    private int recordCount = 0;
+
+    private NodeIdentityStore(Path file) {
+        this.file = file;
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Opens (or creates) a store file and loads its contents.
+     *
+     * @param file where the data is kept
+     * @return the store, ready for use.
+     * @throws IOException if the file cannot be read or created, or is not a node identity
+     *                     store.
+     */
+    public static NodeIdentityStore open(Path file) throws IOException {
+        NodeIdentityStore s = new NodeIdentityStore(file);
+        s.load();
+        return s;
+    }
+
+    private void load() throws IOException {
+        long validLength = HEADER_SIZE;
+        if (Files.exists(file) && Files.size(file) > 0) {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+            byte[] magic = new byte[MAGIC.length];
+            if (buf.remaining() < HEADER_SIZE) {
+                throw new IOException("Not a node identity store: " + file);
+            }
+            buf.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a node identity store: " + file);
+            }
+            int version = buf.get() & 0xff;
+            if (version != VERSION) {
+                throw new IOException("Unsupported node identity store version " + version);
+            }
+            while (buf.remaining() >= RECORD_HEADER_SIZE) {
+                int type = buf.get() & 0xff;
+                byte[] nid = new byte[6];
+                buf.get(nid);
+                int len = buf.getShort() & 0xffff;
+                if (buf.remaining() < len) break;
+                byte[] payload = new byte[len];
+                buf.get(payload);
+                apply(type, new NodeID(nid), payload);
+                ++recordCount;
+                validLength = buf.position();
+            }
+            if (validLength < buf.capacity()) {
+                logger.log(Level.WARNING, "Discarding {0} bytes of incomplete data at the end "
+                        + "of {1}", new Object[]{buf.capacity() - validLength, file});
+            }
+        }
+        if (recordCount > COMPACT_RATIO * entries.size() + 64) {
+            compact();
+            return;
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            h.put(MAGIC);
+            h.put((byte) VERSION);
+            h.flip();
+            writeFully(channel, h);
+        } else {
+            channel.truncate(validLength);
+        }
+        channel.position(channel.size());
+    }
+
+    private void apply(int type, NodeID nid, byte[] payload) {
+        Entry e = getOrCreate(nid);
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        switch (type) {
+            case TYPE_SNIP:
+                e.snip = payload;
+                break;
+            case TYPE_PIP:
+                if (payload.length < 8) return;
+                e.pip = b.getLong();
+                e.hasPip = true;
+                break;
+            case TYPE_SEEN:
+                if (payload.length < 8) return;
+                e.lastSeen = b.getLong();
+                lastSeen.put(nid, e.lastSeen);
+                break;
+            case TYPE_ALIAS:
+                if (payload.length < 2) return;
+                e.alias = b.getShort() & 0xffff;
+                break;
+            default:
+                // Written by a newer version; ignore.
+                break;
+        }
+    }
+
+    private Entry getOrCreate(NodeID nid) {
+        Entry e = entries.get(nid);
+        if (e == null) {
+            e = new Entry(nid);
+            entries.put(nid, e);
+        }
+        return e;
+    }
+
+    private static void writeFully(FileChannel c, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            c.write(b);
+        }
+    }
+
+    /// @return a record ready to be written.
+    private static ByteBuffer record(int type, NodeID nid, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        b.put((byte) type);
+        b.put(nid.getContents());
+        b.putShort((short) payload.length);
+        b.put(payload);
+        b.flip();
+        return b;
+    }
+
+    /// Queues a record to be appended to the log. Must hold the lock.
+    private void append(int type, NodeID nid, byte[] payload) {
+        if (channel == null) return;
+        final ByteBuffer b = record(type, nid, payload);
+        ++recordCount;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileChannel c = channel;
+                if (c == null) return;
+                try {
+                    writeFully(c, b);
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Cannot write node identity store " + file, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the changes recorded so far are written to the file.
+     */
+    public void flush() {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            // Closed; nothing is queued.
+        }
+    }
+
+    /**
+     * Rewrites the file with a single record per known fact, replacing the old file
+     * atomically.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public synchronized void compact() throws IOException {
+        // No new records can be queued while we hold the lock.
+        flush();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            h.put(MAGIC);
+            h.put((byte) VERSION);
+            h.flip();
+            writeFully(out, h);
+            recordCount = 0;
+            for (Entry e : entries.values()) {
+                writeEntry(out, e);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption
+                .ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /// Writes all facts of an entry to a file right away. Must hold the lock.
+    private void writeEntry(FileChannel out, Entry e) throws IOException {
+        List<ByteBuffer> l = new ArrayList<>(4);
+        if (e.snip != null) l.add(record(TYPE_SNIP, e.nodeId, e.snip));
+        if (e.hasPip) l.add(record(TYPE_PIP, e.nodeId, ByteBuffer.allocate(8).putLong(e.pip)
+                .array()));
+        if (e.lastSeen != 0) {
+            l.add(record(TYPE_SEEN, e.nodeId, ByteBuffer.allocate(8).putLong(e.lastSeen)
+                    .array()));
+        }
+        if (e.alias >= 0) {
+            l.add(record(TYPE_ALIAS, e.nodeId, ByteBuffer.allocate(2).putShort((short) e
+                    .alias).array()));
+        }
+        for (ByteBuffer b : l) {
+            writeFully(out, b);
+            ++recordCount;
+        }
+    }
+
+    /// @return a copy of all known entries, in the order the nodes were first seen.
+    public synchronized Collection<Entry> getEntries() {
+        List<Entry> l = new ArrayList<>(entries.size());
+        for (Entry e : entries.values()) {
+            l.add(new Entry(e));
+        }
+        return l;
+    }
+
+    /**
+     * @param nid node to look up
+     * @return a copy of what is known about the node, or null.
+     */
+    @Nullable
+    public synchronized Entry get(NodeID nid) {
+        Entry e = entries.get(nid);
+        return e == null ? null : new Entry(e);
+    }
+
+    /**
+     * Records a complete Simple Node Information reply.
+     *
+     * @param nid  node
+     * @param data concatenated payload of the reply messages.
+     */
+    public synchronized void recordSnip(NodeID nid, byte[] data) {
+        Entry e = getOrCreate(nid);
+        if (e.snip != null && Arrays.equals(e.snip, data)) return;
+        e.snip = data.clone();
+        append(TYPE_SNIP, nid, e.snip);
+    }
+
+    /**
+     * Records the protocol identification bits of a node.
+     *
+     * @param nid   node
+     * @param value protocol bits as in the reply message.
+     */
+    public synchronized void recordPip(NodeID nid, long value) {
+        Entry e = getOrCreate(nid);
+        if (e.hasPip && e.pip == value) return;
+        e.pip = value;
+        e.hasPip = true;
+        append(TYPE_PIP, nid, ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    /**
+     * Records that a node was seen on the bus. Only written to the file if the stored time
+     * is older than {@link #SEEN_RESOLUTION_MSEC}, so this is cheap to call for every message:
+     * a recent time is detected without taking the lock.
+     *
+     * @param nid  node
+     * @param time msec since the epoch.
+     */
+    public void recordSeen(NodeID nid, long time) {
+        Long last = lastSeen.get(nid);
+        if (last != null && time - last < SEEN_RESOLUTION_MSEC) return;
+        synchronized (this) {
+            Entry e = getOrCreate(nid);
+            if (time - e.lastSeen < SEEN_RESOLUTION_MSEC) return;
+            e.lastSeen = time;
+            lastSeen.put(nid, time);
+            append(TYPE_SEEN, nid, ByteBuffer.allocate(8).putLong(time).array());
+        }
+    }
+
+    /**
+     * Records the CAN alias of a node.
+     *
+     * @param nid   node
+     * @param alias 12-bit alias.
+     */
+    public synchronized void recordAlias(NodeID nid, int alias) {
+        Entry e = getOrCreate(nid);
+        if (e.alias == alias) return;
+        e.alias = alias;
+        append(TYPE_ALIAS, nid, ByteBuffer.allocate(2).putShort((short) alias).array());
+    }
+
+    /// @return the number of records in the log file.
+    synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /// Writes the queued records and closes the file.
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        writer.shutdown();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
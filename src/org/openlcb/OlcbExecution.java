@@ -0,0 +1,212 @@
+package org.openlcb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Source of the threads used by the library: the thread pools of the interfaces and the
+ * long-running reader, connect and timer threads.
+ * <p>
+ * The default is {@link #platform()}, which creates ordinary threads. On Java 21 and later
+ * {@link #virtual()} runs everything on virtual threads, which makes it cheap to have many
+ * interfaces in one JVM (simulated nodes in tests, gateways with several buses). The library
+ * is still compiled for Java 8, so virtual threads are looked up reflectively; use
+ * {@link #isVirtualThreadSupported()} to check whether they are available. Any other policy
+ * can be plugged in with {@link #custom(ThreadFactory)}.
+ * <p>
+ * The default can be set with {@link #setDefault} before creating interfaces, or with the
+ * system property {@code org.openlcb.execution} set to {@code virtual} or {@code platform}.
+ * <p>
+ * Virtual threads are always daemon threads.
+ */
+public abstract class OlcbExecution {
+    private final static Logger logger = Logger.getLogger(OlcbExecution.class.getName());
+
+    /// System property that selects the default execution mode.
+    public static final String PROPERTY = "org.openlcb.execution";
+    /// Idle time after which pool threads exit, in seconds.
+    static final long THREAD_TIMEOUT_SEC = 10;
+
+    private static volatile OlcbExecution defaultExecution = null;
+
+    /**
+     * Creates a factory for threads belonging to one component.
+     *
+     * @param namePrefix prefix of the thread names.
+     * @return factory creating unstarted threads.
+     */
+    public abstract ThreadFactory threadFactory(String namePrefix);
+
+    /// @return true if this execution runs on virtual threads.
+    public boolean isVirtual() {
+        return false;
+    }
+
+    /**
+     * Creates an unstarted thread for a long-running loop, such as reading a socket.
+     *
+     * @param name   name of the thread
+     * @param r      body of the thread
+     * @param daemon whether the thread should not keep the JVM alive. Ignored for virtual
+     *               threads, which are always daemon.
+     * @return the new thread; the caller starts it.
+     */
+    public Thread newThread(String name, Runnable r, boolean daemon) {
+        Thread t = threadFactory(name).newThread(r);
+        t.setName(name);
+        if (!t.isDaemon() && daemon) t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Creates a thread pool for an interface. Idle threads exit after a while.
+     * <p>
+     * With virtual threads the limits are ignored: every task gets a new thread right away,
+     * since virtual threads are cheap and queueing work behind a few of them only adds delay.
+     *
+     * @param coreThreads number of threads kept while the pool is busy. Since the queue is
+     *                    unbounded, the pool does not grow beyond this.
+     * @param maxThreads  maximum number of threads.
+     * @return the new pool.
+     */
+    public ThreadPoolExecutor newThreadPool(int coreThreads, int maxThreads) {
+        if (isVirtual()) {
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), threadFactory("Olcb-Pool-"));
+        }
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(coreThreads, maxThreads,
+                THREAD_TIMEOUT_SEC, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                threadFactory("Olcb-Pool-"));
+        tpe.allowCoreThreadTimeOut(true);
+        return tpe;
+    }
+
+    /// @return execution creating ordinary (platform) threads.
+    public static OlcbExecution platform() {
+        return PLATFORM;
+    }
+
+    /**
+     * @return execution creating virtual threads.
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads.
+     */
+    public static OlcbExecution virtual() {
+        if (VirtualHolder.BUILDER == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later.");
+        }
+        return VirtualHolder.VIRTUAL;
+    }
+
+    /**
+     * @param factory creates all threads. Pool threads keep the names it gives them;
+     *                long-running threads are renamed by the library.
+     * @return execution taking its threads from a user-supplied factory.
+     */
+    public static OlcbExecution custom(final ThreadFactory factory) {
+        return new OlcbExecution() {
+            @Override
+            public ThreadFactory threadFactory(String namePrefix) {
+                return factory;
+            }
+        };
+    }
+
+    /// @return true if {@link #virtual()} can be used in this JVM.
+    public static boolean isVirtualThreadSupported() {
+        return VirtualHolder.BUILDER != null;
+    }
+
+    /**
+     * @return the execution used by components that are not given one explicitly. Determined
+     * by the {@value #PROPERTY} system property unless {@link #setDefault} was called.
+     */
+    public static OlcbExecution getDefault() {
+        OlcbExecution e = defaultExecution;
+        if (e == null) {
+            e = PLATFORM;
+            if ("virtual".equalsIgnoreCase(System.getProperty(PROPERTY))) {
+                if (isVirtualThreadSupported()) {
+                    e = VirtualHolder.VIRTUAL;
+                } else {
+                    logger.warning("Virtual threads requested but not supported by this JVM; "
+                            + "using platform threads.");
+                }
+            }
+            defaultExecution = e;
+        }
+        return e;
+    }
+
+    /**
+     * Sets the execution used by components created afterwards without an explicit one.
+     *
+     * @param execution the new default; null to go back to the system property.
+     */
+    public static void setDefault(OlcbExecution execution) {
+        defaultExecution = execution;
+    }
+
+    private static final OlcbExecution PLATFORM = new OlcbExecution() {
+        @Override
+        public ThreadFactory threadFactory(String namePrefix) {
+            return new OlcbThreadFactory(namePrefix);
+        }
+    };
+
+    /// Looks up the virtual thread builder only when first needed.
+    private static class VirtualHolder {
+        /// Thread.ofVirtual(), or null if not available.
+        static final Object BUILDER;
+        static final Method NAME;
+        static final Method FACTORY;
+
+        static {
+            Object builder = null;
+            Method name = null;
+            Method factory = null;
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                name = builderClass.getMethod("name", String.class, long.class);
+                factory = builderClass.getMethod("factory");
+                builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                // On Java 19-20 this fails unless preview features are enabled.
+                ((ThreadFactory) factory.invoke(builder)).newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                logger.log(Level.FINE, "Virtual threads are not available", e);
+                builder = null;
+            }
+            BUILDER = builder;
+            NAME = name;
+            FACTORY = factory;
+        }
+
+        static final OlcbExecution VIRTUAL = new OlcbExecution() {
+            @Override
+            public ThreadFactory threadFactory(String namePrefix) {
+                try {
+                    // Thread builders are not thread-safe; each factory gets its own.
+                    Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+                    b = NAME.invoke(b, namePrefix, 0L);
+                    return (ThreadFactory) FACTORY.invoke(b);
+                } catch (ReflectiveOperationException e) {
+                    throw new UnsupportedOperationException("Cannot create virtual threads", e);
+                }
+            }
+
+            @Override
+            public boolean isVirtual() {
+                return true;
+            }
+        };
+    }
+}
@@ -3,8 +3,12 @@ package org.openlcb;
 import org.openlcb.cdi.impl.ConfigRepresentation;
 import org.openlcb.implementations.DatagramMeteringBuffer;
 import org.openlcb.implementations.DatagramService;
+import org.openlcb.implementations.EventRegistry;
 import org.openlcb.implementations.EventTable;
 import org.openlcb.implementations.MemoryConfigurationService;
+import org.openlcb.metrics.Gauge;
+import org.openlcb.metrics.Histogram;
+import org.openlcb.metrics.MetricsRegistry;
 import org.openlcb.protocols.VerifyNodeIdHandler;
 
 import java.util.ArrayList;
@@ -18,6 +22,8 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 /**
@@ -27,7 +33,12 @@ import java.util.logging.Logger;
  */
 public class OlcbInterface {
     private final static Logger log = Logger.getLogger(OlcbInterface.class.getName());
-    private final Timer timer = new Timer();
+    /// Shared timer for all protocol timeouts of this interface.
+    private final HashedWheelTimer timerService = new HashedWheelTimer("OpenLCB Interface Timer");
+    /// Legacy timer; created on first use of getTimer().
+    private Timer timer = null;
+    /// Counters and latencies of all layers of this interface.
+    private final MetricsRegistry metrics = new MetricsRegistry();
 
     /// Object for sending messages to the network.
     protected final Connection internalOutputConnection;
@@ -60,6 +71,9 @@ public class OlcbInterface {
     // Event Table is a helper for user interfaces to register and retrieve user names for
     // events. By default this is null, initialized lazily when needed only.
     private EventTable eventTable = null;
+    // Index of the producers and consumers seen on the network. Created on first use; it only
+    // knows about the traffic arriving after that.
+    private EventRegistry eventRegistry = null;
 
 
     private ThreadPoolExecutor threadPool = null;
@@ -96,12 +110,8 @@ public class OlcbInterface {
      */
     @Deprecated
     public OlcbInterface(NodeID nodeId_, Connection outputConnection_) {
-          this(nodeId_,outputConnection_, 
-               new ThreadPoolExecutor(minThreads,maxThreads,threadTimeout,
-                                      TimeUnit.SECONDS,
-                                      new LinkedBlockingQueue<Runnable>(),
-                                      new OlcbThreadFactory()));
-          threadPool.allowCoreThreadTimeOut(true);
+          this(nodeId_,outputConnection_,
+               OlcbExecution.getDefault().newThreadPool(minThreads, maxThreads));
     }
 
     /**
@@ -122,10 +132,19 @@ public class OlcbInterface {
         this.outputConnection = this.queuedOutputConnection;
         inputConnection = new MessageDispatcher();
 
-        nodeStore = new MimicNodeStore(getOutputConnection(), nodeId);
-        dmb = new DatagramMeteringBuffer(getOutputConnection(),threadPool);
+        nodeStore = new MimicNodeStore(getOutputConnection(), nodeId, timerService);
+        dmb = new DatagramMeteringBuffer(getOutputConnection(), threadPool, timerService);
         dcs = new DatagramService(nodeId, dmb);
-        mcs = new MemoryConfigurationService(nodeId, dcs);
+        mcs = new MemoryConfigurationService(nodeId, dcs, timerService);
+        dmb.setMetrics(metrics);
+        dcs.setMetrics(metrics);
+        mcs.setMetrics(metrics);
+        metrics.gauge("output.queue", new Gauge() {
+            @Override
+            public long getValue() {
+                return queuedOutputConnection.getPendingCount();
+            }
+        });
         inputConnection.registerMessageListener(nodeStore);
         inputConnection.registerMessageListener(dmb.connectionForRepliesFromDownstream());
         inputConnection.registerMessageListener(dcs);
@@ -169,11 +188,32 @@ public class OlcbInterface {
 
     /**
      * @return a shared Timer thread to be used by all components in this interface. Tasks scheduled on this timer are not allowed to block (as it's a shared timer thread).
+     * @deprecated use {@link #getTimerService()}, which does not need a separate thread.
      */
-    public Timer getTimer() {
+    @Deprecated
+    public synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = new Timer("OpenLCB Interface Legacy Timer");
+        }
         return timer;
     }
 
+    /**
+     * @return the timer that all components of this interface use for protocol timeouts.
+     * Tasks scheduled on this timer are not allowed to block (as it's a shared timer thread).
+     */
+    public HashedWheelTimer getTimerService() {
+        return timerService;
+    }
+
+    /**
+     * @return the metrics of this interface. Components of the interface register their
+     * counters here; take a {@link MetricsRegistry#snapshot()} to read them.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     /**
      * Accessor for the outside interface for arriving inbound messages.
      *
@@ -223,6 +263,17 @@ public class OlcbInterface {
         }
         return eventTable;
     }
+
+    /**
+     * @return the registry of producers and consumers identified on the network. The registry
+     * is created on the first call and records the traffic arriving from then on.
+     */
+    public synchronized EventRegistry getEventRegistry() {
+        if (eventRegistry == null) {
+            eventRegistry = new EventRegistry(this);
+        }
+        return eventRegistry;
+    }
     /**
      * Creates a new or returns a cached CDI representation for the given node.
      * @param remoteNode    target node (on the network)
@@ -267,6 +318,7 @@ public class OlcbInterface {
         private List<Connection> listeners = new ArrayList<>();
         private List<Connection> pendingListeners = new ArrayList<>();
         private List<Connection> unpendingListeners = new ArrayList<>();
+        private final Histogram dispatchTime = metrics.histogram("dispatch.nanos");
 
         public synchronized void registerMessageListener(Connection c) {
             pendingListeners.add(c);
@@ -288,9 +340,11 @@ public class OlcbInterface {
                 listeners.removeAll(unpendingListeners);
                 unpendingListeners.clear();
             }
+            long start = System.nanoTime();
             for (Connection c : listeners) {
                 c.put(msg, sender);
             }
+            dispatchTime.recordSince(start);
         }
     }
 
@@ -352,7 +406,10 @@ public class OlcbInterface {
      */
     public void dispose(){
         // shut down shared timer's thread.
-        timer.cancel();
+        timerService.stop();
+        synchronized (this) {
+            if (timer != null) timer.cancel();
+        }
         // shut down the thread pool
         if(threadPool != null && !(threadPool.isShutdown())) {
            // modified from the javadoc for ExecutorService 
@@ -388,6 +445,11 @@ public class OlcbInterface {
         private final Connection realOutput;
         private final BlockingQueue<QEntry> outputQueue = new
                 LinkedBlockingQueue<>();
+        /// Guards pendingCount. A lock rather than a monitor so that waiting does not pin a
+        /// virtual thread.
+        private final ReentrantLock lock = new ReentrantLock();
+        /// Signalled when pendingCount drops to zero.
+        private final Condition drained = lock.newCondition();
         private int pendingCount = 0;
 
         QueuedOutputConnection(Connection realOutput) {
@@ -396,8 +458,11 @@ public class OlcbInterface {
 
         @Override
         public void put(Message msg, Connection sender) {
-            synchronized(this) {
+            lock.lock();
+            try {
                 pendingCount++;
+            } finally {
+                lock.unlock();
             }
             outputQueue.add(new QEntry(msg, sender));
         }
@@ -407,16 +472,25 @@ public class OlcbInterface {
             internalOutputConnection.registerStartNotification(c);
         }
 
+        int getPendingCount() {
+            lock.lock();
+            try {
+                return pendingCount;
+            } finally {
+                lock.unlock();
+            }
+        }
+
         public void waitForSendQueue() {
-            while(true) {
-                synchronized (this) {
-                    if (pendingCount == 0) return;
-                }
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    return;
+            lock.lock();
+            try {
+                while (pendingCount != 0) {
+                    drained.await();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
             }
         }
 
@@ -443,8 +517,11 @@ public class OlcbInterface {
                                     log.warning("Exception while sending message: " + e.toString());
                                     e.printStackTrace();
                                 }
-                                synchronized(QueuedOutputConnection.this) {
-                                    pendingCount--;
+                                lock.lock();
+                                try {
+                                    if (--pendingCount == 0) drained.signalAll();
+                                } finally {
+                                    lock.unlock();
                                 }
                             }
                         }
@@ -15,13 +15,23 @@ public class OlcbThreadFactory implements ThreadFactory{
     static int factoryCount = 0;
 
     public OlcbThreadFactory(){
-       factoryNumber=++factoryCount;
-       name = "Olcb-Pool-";
+       this("Olcb-Pool-");
+    }
+
+    /**
+     * @param namePrefix prefix of the thread names; the factory and thread numbers are
+     *                   appended to it.
+     */
+    public OlcbThreadFactory(String namePrefix){
+       synchronized (OlcbThreadFactory.class) {
+           factoryNumber=++factoryCount;
+       }
+       name = namePrefix;
        count = 0;
     }
 
     @Override
-    public Thread newThread(Runnable r){
+    public synchronized Thread newThread(Runnable r){
        Thread t = new Thread(r, name + factoryNumber + "-Thread-" + (count++));
        return t;
     }
@@ -0,0 +1,328 @@
+package org.openlcb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Updates the firmware of many nodes on one interface at the same time, e.g. a batch of
+ * identical boards.
+ * <p>
+ * Each node gets its own {@link LoaderClient} session, registered on the interface for as long
+ * as it runs and using the interface's timer. The image is held once in memory and read by all
+ * sessions. At most {@link #setMaxConcurrent} sessions run at a time, the others wait in line;
+ * this and the stream buffer size bound the load on the bus. A node that fails is tried again
+ * after a delay, up to {@link #setMaxAttempts} times in all.
+ * <p>
+ * Datagrams to different nodes are still sent one at a time by the interface, so the gain is
+ * largest for nodes that take stream data, and in the reboot waits of all nodes.
+ */
+public class ParallelLoader {
+    private final static Logger logger = Logger.getLogger(ParallelLoader.class.getName());
+
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final int DEFAULT_RETRY_DELAY_MSEC = 5000;
+
+    public enum Status { QUEUED, RUNNING, RETRY_WAIT, SUCCEEDED, FAILED }
+
+    /// State of the update of one node.
+    public static class NodeResult {
+        private final NodeID node;
+        private Status status = Status.QUEUED;
+        private int attempts = 0;
+        private float percent = 0;
+        private int errorCode = 0;
+        private String errorString = "";
+
+        NodeResult(NodeID node) {
+            this.node = node;
+        }
+
+        NodeResult(NodeResult r) {
+            node = r.node;
+            status = r.status;
+            attempts = r.attempts;
+            percent = r.percent;
+            errorCode = r.errorCode;
+            errorString = r.errorString;
+        }
+
+        public NodeID getNode() {
+            return node;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /// @return how many times the update was started.
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /// @return progress of the current or last attempt, in percent.
+        public float getPercent() {
+            return percent;
+        }
+
+        /// @return error code of the last failed attempt, 0 if none failed.
+        public int getErrorCode() {
+            return errorCode;
+        }
+
+        public String getErrorString() {
+            return errorString;
+        }
+
+        @Override
+        public String toString() {
+            return node + " " + status + " attempts=" + attempts + (errorCode != 0 ? " error=" +
+                    Integer.toHexString(errorCode) + " " + errorString : "");
+        }
+    }
+
+    public static abstract class Listener {
+        /// Progress of one node. The default does nothing.
+        public void onProgress(NodeID node, float percent) {
+        }
+
+        /**
+         * An attempt to update a node ended. The default does nothing.
+         *
+         * @param willRetry true if the node will be tried again.
+         */
+        public void onNodeDone(NodeID node, int errorCode, String errorString, boolean
+                willRetry) {
+        }
+
+        /// All nodes are done, successfully or not.
+        public abstract void onAllDone(Map<NodeID, NodeResult> results);
+    }
+
+    private final OlcbInterface iface;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private int retryDelayMsec = DEFAULT_RETRY_DELAY_MSEC;
+    private int streamBufferSize = LoaderClient.MAX_STREAM_BUFFER_SIZE;
+
+    // The following are guarded by this.
+    private final Map<NodeID, NodeResult> results = new LinkedHashMap<>();
+    /// Nodes waiting for a free session, first in line first.
+    private final ArrayDeque<NodeID> ready = new ArrayDeque<>();
+    private final Map<NodeID, LoaderClient> running = new LinkedHashMap<>();
+    private final List<HashedWheelTimer.Timeout> retries = new ArrayList<>();
+    private int space;
+    private long address;
+    private byte[] image;
+    private Listener listener;
+    private boolean disposed = false;
+
+    public ParallelLoader(OlcbInterface iface) {
+        this.iface = iface;
+    }
+
+    /// Sets how many nodes are updated at the same time.
+    public void setMaxConcurrent(int count) {
+        maxConcurrent = Math.max(1, count);
+    }
+
+    /// Sets how many times the update of a node is started before it is given up.
+    public void setMaxAttempts(int count) {
+        maxAttempts = Math.max(1, count);
+    }
+
+    /// Sets how long to wait before starting a failed node again.
+    public void setRetryDelayMsec(int delay) {
+        retryDelayMsec = delay;
+    }
+
+    /// Sets the stream buffer size each session asks for; see {@link LoaderClient#setStreamBufferSize}.
+    public void setStreamBufferSize(int size) {
+        streamBufferSize = size;
+    }
+
+    /**
+     * Starts updating nodes with an image from a file, read once.
+     *
+     * @param nodes    nodes to update
+     * @param space    memory space to write the image to
+     * @param address  start address in the space
+     * @param file     the image
+     * @param listener progress and result callbacks
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalStateException if an update is running, or after {@link #dispose}.
+     */
+    public void start(Collection<NodeID> nodes, int space, long address, File file, Listener
+            listener) throws IOException {
+        start(nodes, space, address, Files.readAllBytes(file.toPath()), listener);
+    }
+
+    /**
+     * Starts updating nodes.
+     *
+     * @param nodes    nodes to update
+     * @param space    memory space to write the image to
+     * @param address  start address in the space
+     * @param image    the image; shared by all sessions, must not be changed until done
+     * @param listener progress and result callbacks; with no nodes, onAllDone is called
+     *                 before this returns.
+     * @throws IllegalStateException if an update is running, or after {@link #dispose}.
+     */
+    public void start(Collection<NodeID> nodes, int space, long address, byte[] image, Listener
+            listener) {
+        boolean empty;
+        synchronized (this) {
+            if (disposed) {
+                throw new IllegalStateException("The loader was disposed.");
+            }
+            if (!running.isEmpty() || !ready.isEmpty() || !retries.isEmpty()) {
+                throw new IllegalStateException("An update is already running.");
+            }
+            this.space = space;
+            this.address = address;
+            this.image = image;
+            this.listener = listener;
+            results.clear();
+            for (NodeID n : nodes) {
+                if (results.containsKey(n)) continue;
+                results.put(n, new NodeResult(n));
+                ready.add(n);
+            }
+            empty = ready.isEmpty();
+        }
+        if (empty) {
+            listener.onAllDone(getResults());
+            return;
+        }
+        pump();
+    }
+
+    /// @return a copy of the state of each node.
+    public synchronized Map<NodeID, NodeResult> getResults() {
+        Map<NodeID, NodeResult> copy = new LinkedHashMap<>();
+        for (NodeResult r : results.values()) {
+            copy.put(r.node, new NodeResult(r));
+        }
+        return copy;
+    }
+
+    /// Stops all sessions and retries. Nodes not done are left as they are. The loader cannot
+    /// be started again.
+    public void dispose() {
+        List<LoaderClient> clients;
+        synchronized (this) {
+            disposed = true;
+            ready.clear();
+            for (HashedWheelTimer.Timeout t : retries) {
+                t.cancel();
+            }
+            retries.clear();
+            clients = new ArrayList<>(running.values());
+            running.clear();
+        }
+        for (LoaderClient c : clients) {
+            iface.unRegisterMessageListener(c);
+            c.dispose();
+        }
+    }
+
+    /// Starts sessions for waiting nodes while there is room.
+    private void pump() {
+        List<NodeID> toStart = new ArrayList<>();
+        List<LoaderClient> clients = new ArrayList<>();
+        synchronized (this) {
+            while (!disposed && running.size() < maxConcurrent && !ready.isEmpty()) {
+                NodeID n = ready.poll();
+                LoaderClient c = new LoaderClient(iface.getOutputConnection(), iface
+                        .getMemoryConfigurationService(), iface.getDatagramService(), iface
+                        .getTimerService());
+                c.setStreamBufferSize(streamBufferSize);
+                running.put(n, c);
+                NodeResult r = results.get(n);
+                r.status = Status.RUNNING;
+                r.percent = 0;
+                ++r.attempts;
+                toStart.add(n);
+                clients.add(c);
+            }
+        }
+        for (int i = 0; i < toStart.size(); i++) {
+            startSession(toStart.get(i), clients.get(i));
+        }
+    }
+
+    private void startSession(final NodeID node, final LoaderClient client) {
+        iface.registerMessageListener(client);
+        client.doLoad(iface.getNodeId(), node, space, address, image, new LoaderClient
+                .LoaderStatusReporter() {
+            @Override
+            public void onProgress(float percent) {
+                synchronized (ParallelLoader.this) {
+                    if (running.get(node) != client) return;
+                    results.get(node).percent = percent;
+                }
+                listener.onProgress(node, percent);
+            }
+
+            @Override
+            public void onDone(int errorCode, String errorString) {
+                sessionDone(node, client, errorCode, errorString);
+            }
+        });
+    }
+
+    private void sessionDone(final NodeID node, LoaderClient client, int errorCode, String
+            errorString) {
+        boolean retry;
+        boolean allDone;
+        synchronized (this) {
+            // Late callbacks of a session that was already finished or disposed.
+            if (running.get(node) != client) return;
+            running.remove(node);
+            NodeResult r = results.get(node);
+            retry = errorCode != 0 && r.attempts < maxAttempts && !disposed;
+            if (errorCode == 0) {
+                r.status = Status.SUCCEEDED;
+            } else {
+                r.errorCode = errorCode;
+                r.errorString = errorString;
+                r.status = retry ? Status.RETRY_WAIT : Status.FAILED;
+            }
+            if (retry) {
+                final HashedWheelTimer.Timeout[] t = new HashedWheelTimer.Timeout[1];
+                t[0] = iface.getTimerService().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (ParallelLoader.this) {
+                            if (!retries.remove(t[0])) return;
+                            results.get(node).status = Status.QUEUED;
+                            ready.add(node);
+                        }
+                        pump();
+                    }
+                }, retryDelayMsec);
+                retries.add(t[0]);
+            }
+            allDone = running.isEmpty() && ready.isEmpty() && retries.isEmpty();
+        }
+        iface.unRegisterMessageListener(client);
+        client.dispose();
+        if (errorCode != 0) {
+            logger.warning("Firmware update of " + node + " failed: " + errorString + (retry ?
+                    "; retrying" : ""));
+        }
+        listener.onNodeDone(node, errorCode, errorString, retry);
+        pump();
+        if (allDone) {
+            listener.onAllDone(getResults());
+        }
+    }
+}
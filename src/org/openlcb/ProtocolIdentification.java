@@ -80,6 +80,11 @@ public class ProtocolIdentification {
         value = 0;
     }
 
+    ProtocolIdentification(NodeID source, NodeID dest, long value) {
+        this(source, dest);
+        this.value = value;
+    }
+
     void start(Connection connection) {
         if (dest == null) {
             throw new AssertionError("PIP dest==null");
@@ -30,11 +30,31 @@ public class SimpleNodeIdent {
         this.dest = dest;
     }
 
+    /**
+     * Creates the ident from previously stored reply data.
+     * @param source our node
+     * @param dest   the node that this ident belongs to
+     * @param data   concatenated payload of the reply messages
+     */
+    SimpleNodeIdent(NodeID source, NodeID dest, byte[] data) {
+        this(source, dest);
+        next = Math.min(data.length, MAX_REPLY_LENGTH);
+        System.arraycopy(data, 0, bytes, 0, next);
+    }
+
     NodeID source;
     NodeID dest;
     
+    /**
+     * Sends a request. Content already known stays readable until the whole reply has arrived
+     * and replaces it; if no reply comes, it is kept.
+     * @param connection where to send the request
+     */
     void start(Connection connection) {
-        next = 0;
+        if (next > 0) {
+            incoming = new byte[MAX_REPLY_LENGTH];
+            incomingNext = 0;
+        }
         connection.put(new SimpleNodeIdentInfoRequestMessage(source, dest), null);
     }
     
@@ -43,29 +63,72 @@ public class SimpleNodeIdent {
     static final int MAX_REPLY_LENGTH = 256; // TODO from standard
     byte[] bytes = new byte[MAX_REPLY_LENGTH];
     int next = 0;
+    /// Reply to a request made while content was known; null if none is being received.
+    byte[] incoming = null;
+    int incomingNext = 0;
    
-    public void addMsg(SimpleNodeIdentInfoReplyMessage msg) {
+    /**
+     * Adds one reply message.
+     * @param msg part of the reply
+     * @return true if this message completed the reply. While a reply to a request made with
+     * content already known is arriving, the old content is still complete; this tells when
+     * the new one has fully arrived.
+     */
+    public boolean addMsg(SimpleNodeIdentInfoReplyMessage msg) {
+        if (incoming != null) {
+            incomingNext = append(incoming, incomingNext, msg.getData());
+            if (isComplete(incoming, incomingNext)) {
+                bytes = incoming;
+                next = incomingNext;
+                incoming = null;
+                return true;
+            } else if (incomingNext == MAX_REPLY_LENGTH) {
+                // Garbled reply; keep the content we had.
+                incoming = null;
+            }
+            return false;
+        }
         // if complete, restart with handling this message
         if (contentComplete()) {
             bytes = new byte[MAX_REPLY_LENGTH];
             next = 0;
         }
-        byte data[] = msg.getData();
-        for (int i = 0; i < data.length ; i++ ) {
-           bytes[next++] = (byte)data[i];
-        }
+        next = append(bytes, next, msg.getData());
+        return contentComplete();
+    }
+
+    /**
+     * Copies reply data into a buffer, dropping what does not fit.
+     *
+     * @return the new length of the data in the buffer.
+     */
+    private static int append(byte[] buffer, int length, byte[] data) {
+        int count = Math.min(data.length, buffer.length - length);
+        System.arraycopy(data, 0, buffer, length, count);
+        return length + count;
     }
     
+    /**
+     * @return the payload received so far.
+     */
+    byte[] getRawData() {
+        return java.util.Arrays.copyOf(bytes, next);
+    }
+
     /**
      * Check whether enough messages have arrived to
      * completely fill content.
      * @return true if we have seen the end of the ident info.
      */
     public boolean contentComplete() {
+        return isComplete(bytes, next);
+    }
+
+    private static boolean isComplete(byte[] b, int length) {
         // this is for the version 1 case only
         int strings = 0;
-        for (int i=0; i<next; i++) {
-            if (bytes[i] == 0) strings++;
+        for (int i=0; i<length; i++) {
+            if (b[i] == 0) strings++;
         }
         return strings == 6;
     }
@@ -9,6 +9,7 @@ import edu.umd.cs.findbugs.annotations.*;
  * 
  * Two forms:  Global, with and without
  *             target NodeID in data
+ *             Addressed, sent to a single node
  *
  * @author  Bob Jacobsen   Copyright 2009, 2010
  * @version $Revision$
@@ -26,10 +27,27 @@ public class VerifyNodeIDNumberMessage extends Message {
         this(source);
         this.content = content;
     }
+
+    /**
+     * Creates the addressed form.
+     * @param source  sending node
+     * @param dest    node the message is addressed to
+     * @param content node ID carried in the data, or null
+     */
+    public VerifyNodeIDNumberMessage(NodeID source, NodeID dest, NodeID content) {
+        this(source, content);
+        this.dest = dest;
+    }
     
     NodeID content;
+    NodeID dest = null;
     
     public NodeID getContent() { return content; }
+
+    /**
+     * @return the node this message is addressed to, or null for the global form.
+     */
+    public NodeID getDestNodeID() { return dest; }
     
      /**
       * To be equal, messages have to have the
@@ -45,6 +63,7 @@ public class VerifyNodeIDNumberMessage extends Message {
         } else {
             if (msg.content != null) return false;
         }
+        if (this.dest != null ? !this.dest.equals(msg.dest) : msg.dest != null) return false;
         return super.equals(o);
      }
 
@@ -63,6 +82,7 @@ public class VerifyNodeIDNumberMessage extends Message {
     public String toString() {
         return super.toString()
                 +" Verify Node ID Number: "
+                + ((dest != null) ? ("to " + dest + " ") : "")
                 + ((content != null) ? (content+" only") : ("all nodes"));    
     }
 
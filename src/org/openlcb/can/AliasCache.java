@@ -0,0 +1,101 @@
+package org.openlcb.can;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openlcb.NodeID;
+
+/**
+ * Alias state kept across connections, so that a {@link CanInterface} created after a
+ * reconnect can start without a full alias reservation and without learning the aliases of
+ * the other nodes again.
+ * <p>
+ * Holds the alias the local node used, the spare aliases reserved for it by an
+ * {@link AliasPool}, and a snapshot of the aliases of the remote nodes. Give the same
+ * instance to each CanInterface of the node; the interface keeps it up to date.
+ */
+public class AliasCache {
+    public static final int DEFAULT_SPARE_COUNT = 2;
+
+    private NodeID localNode = null;
+    private int localAlias = -1;
+    private final List<Integer> spares = new ArrayList<>();
+    private final Map<NodeID, Integer> remoteAliases = new HashMap<>();
+    private int spareCount = DEFAULT_SPARE_COUNT;
+
+    /**
+     * Sets how many spare aliases the interface reserves in the background.
+     *
+     * @param count number of spare aliases; 0 to not reserve any.
+     */
+    public synchronized void setSpareCount(int count) {
+        spareCount = count;
+    }
+
+    public synchronized int getSpareCount() {
+        return spareCount;
+    }
+
+    /**
+     * @param node local node.
+     * @return the alias the node used last, or -1 if unknown.
+     */
+    public synchronized int getLocalAlias(NodeID node) {
+        if (!node.equals(localNode)) return -1;
+        return localAlias;
+    }
+
+    /**
+     * Picks the alias to start the node with: its last alias, or a spare one.
+     *
+     * @param node local node.
+     * @return an alias the node held, or -1 to do a full reservation.
+     */
+    synchronized int takeStartAlias(NodeID node) {
+        if (!node.equals(localNode)) return -1;
+        if (localAlias >= 0) return localAlias;
+        if (!spares.isEmpty()) return spares.remove(0);
+        return -1;
+    }
+
+    synchronized void setLocalAlias(NodeID node, int alias) {
+        if (!node.equals(localNode)) {
+            localNode = node;
+            spares.clear();
+        }
+        localAlias = alias;
+    }
+
+    /// @return the spare aliases of the node.
+    synchronized List<Integer> getSpares(NodeID node) {
+        if (!node.equals(localNode)) return new ArrayList<>();
+        return new ArrayList<>(spares);
+    }
+
+    synchronized void setSpares(NodeID node, List<Integer> aliases) {
+        if (!node.equals(localNode)) {
+            localNode = node;
+            localAlias = -1;
+        }
+        spares.clear();
+        spares.addAll(aliases);
+    }
+
+    synchronized void recordRemote(NodeID node, int alias) {
+        remoteAliases.put(node, alias);
+    }
+
+    /// @return a copy of the remote aliases seen.
+    public synchronized Map<NodeID, Integer> getRemoteAliases() {
+        return new HashMap<>(remoteAliases);
+    }
+
+    /// Forgets everything, e.g. when connecting to a different bus.
+    public synchronized void clear() {
+        localNode = null;
+        localAlias = -1;
+        spares.clear();
+        remoteAliases.clear();
+    }
+}
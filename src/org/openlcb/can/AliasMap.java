@@ -14,10 +14,39 @@ public class AliasMap {
 
     public AliasMap() {
     }
+
+    /**
+     * Notified when an alias gets assigned to a node.
+     */
+    public interface Watcher {
+        /**
+         * @param nid   node
+         * @param alias the alias it is now using
+         */
+        void aliasAdded(NodeID nid, int alias);
+    }
+
+    private final java.util.List<Watcher> watchers = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+    public void addWatcher(Watcher w) {
+        watchers.add(w);
+    }
+
+    public void removeWatcher(Watcher w) {
+        watchers.remove(w);
+    }
     java.util.HashMap<NodeID, Integer> iMap = new java.util.HashMap<NodeID, Integer>();
     java.util.HashMap<Integer, NodeID> nMap = new java.util.HashMap<Integer, NodeID>();
+    /// Aliases restored from a snapshot that no frame has confirmed yet.
+    private final java.util.HashSet<Integer> provisional = new java.util.HashSet<Integer>();
     
     public void processFrame(OpenLcbCanFrame f) {
+        synchronized (this) {
+            if (!provisional.isEmpty()) {
+                // Any frame from the alias shows that it is still in use.
+                provisional.remove(f.getSourceAlias());
+            }
+        }
         // check type
         if (f.isInitializationComplete() || f.isVerifiedNID() || f.isAliasMapDefinition()) {
             Integer alias = Integer.valueOf(f.getSourceAlias());
@@ -30,25 +59,88 @@ public class AliasMap {
     }
     
     public void insert(int alias, NodeID nid) {
-        nMap.put(alias, nid);
-        iMap.put(nid, alias);
+        synchronized (this) {
+            NodeID oldNode = nMap.put(alias, nid);
+            if (oldNode != null && !oldNode.equals(nid)) {
+                // The alias was reused by another node.
+                iMap.remove(oldNode, alias);
+            }
+            Integer old = iMap.put(nid, alias);
+            if (old != null && old != alias) {
+                // The node has a new alias.
+                nMap.remove(old, nid);
+            }
+            provisional.remove(alias);
+            if (old != null && old == alias) return;
+        }
+        for (Watcher w : watchers) {
+            w.aliasAdded(nid, alias);
+        }
     }
     
-    public void remove(int alias) {
-        NodeID nid = getNodeID(alias);
+    public synchronized void remove(int alias) {
+        NodeID nid = nMap.remove(alias);
         if (nid == null) return;
-        nMap.remove(alias);
         iMap.remove(nid);
+        provisional.remove(alias);
     }
     
-    public NodeID getNodeID(int alias) {
+    public synchronized NodeID getNodeID(int alias) {
         NodeID retVal = nMap.get(Integer.valueOf(alias));
         if (retVal != null) return retVal;
         else return new NodeID();
     }
-    public int getAlias(NodeID nid) {
+    public synchronized int getAlias(NodeID nid) {
         Integer r = iMap.get(nid);
         if (r == null) return -1;
         else return r.intValue();
     }
+
+    /**
+     * @return a copy of all known node to alias mappings, e.g. to restore them with
+     * {@link #restore(java.util.Map)} after a reconnect.
+     */
+    public synchronized java.util.Map<NodeID, Integer> snapshot() {
+        return new java.util.HashMap<NodeID, Integer>(iMap);
+    }
+
+    /**
+     * Adds mappings from an earlier snapshot as provisional entries. They are used like any
+     * other entry, become confirmed by any frame from their alias, and are dropped by
+     * {@link #dropProvisional()}. Mappings already known are not changed; watchers are not
+     * notified.
+     *
+     * @param snapshot node to alias mappings.
+     */
+    public synchronized void restore(java.util.Map<NodeID, Integer> snapshot) {
+        for (java.util.Map.Entry<NodeID, Integer> e : snapshot.entrySet()) {
+            if (iMap.containsKey(e.getKey()) || nMap.containsKey(e.getValue())) continue;
+            iMap.put(e.getKey(), e.getValue());
+            nMap.put(e.getValue(), e.getKey());
+            provisional.add(e.getValue());
+        }
+    }
+
+    /**
+     * @param alias an alias.
+     * @return true if the alias was restored from a snapshot and not confirmed since.
+     */
+    public synchronized boolean isProvisional(int alias) {
+        return provisional.contains(alias);
+    }
+
+    /**
+     * Removes the restored entries that have not been confirmed.
+     *
+     * @return the number of entries removed.
+     */
+    public synchronized int dropProvisional() {
+        int n = provisional.size();
+        for (Integer alias : provisional) {
+            NodeID nid = nMap.remove(alias);
+            if (nid != null) iMap.remove(nid);
+        }
+        provisional.clear();
+        return n;
+    }
  }
@@ -0,0 +1,215 @@
+package org.openlcb.can;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+import org.openlcb.HashedWheelTimer;
+import org.openlcb.NodeID;
+
+/**
+ * Reserves spare aliases for a node in the background, so that a new alias is at hand
+ * without the reservation wait, e.g. when the alias of the node turns out to be taken.
+ * <p>
+ * Each spare runs the usual check / reserve sequence through its own
+ * {@link NIDaAlgorithm}. Reserved spares are defended like the alias of a node: a check
+ * frame for them is answered with a reserve frame, and any other frame using them drops them
+ * from the pool, which then reserves a replacement. Forward all frames arriving from the bus
+ * to {@link #send(CanFrame)}.
+ * <p>
+ * Spares reserved on an earlier connection may have been taken by other nodes meanwhile, so
+ * they are checked again before use: those remembered in the cache, and all of them after
+ * {@link #recheck}.
+ */
+public class AliasPool implements CanFrameListener {
+    private final static Logger logger = Logger.getLogger(AliasPool.class.getName());
+
+    private final NodeID nodeId;
+    private final CanFrameListener output;
+    private final HashedWheelTimer timer;
+    private final AliasCache cache;
+    /// Reservations in progress.
+    private final CopyOnWriteArrayList<NIDaAlgorithm> pending = new CopyOnWriteArrayList<>();
+    /// Reserved spare aliases, oldest first. Guarded by this.
+    private final LinkedHashSet<Integer> reserved = new LinkedHashSet<>();
+    /// Spares of an earlier connection, to be checked again before use. Guarded by this.
+    private final LinkedHashSet<Integer> unchecked = new LinkedHashSet<>();
+    /// Aliases not to use: the node's own, handed out, or taken. Guarded by this.
+    private final LinkedHashSet<Integer> excluded = new LinkedHashSet<>();
+    private int target = 0;
+    private boolean disposed = false;
+
+    /**
+     * @param nodeId node ID to reserve aliases for.
+     * @param output where to send the frames.
+     * @param timer  timer for the reservations, usually the interface's.
+     * @param cache  if not null, checks the spares remembered there first when reserving,
+     *               and keeps the cache up to date.
+     */
+    public AliasPool(NodeID nodeId, CanFrameListener output, HashedWheelTimer timer, AliasCache
+            cache) {
+        this.nodeId = nodeId;
+        this.output = output;
+        this.timer = timer;
+        this.cache = cache;
+        if (cache != null) {
+            unchecked.addAll(cache.getSpares(nodeId));
+        }
+    }
+
+    /**
+     * Sets how many spares to keep, and starts reserving the missing ones.
+     *
+     * @param count number of spare aliases.
+     */
+    public synchronized void fill(int count) {
+        target = count;
+        refill();
+    }
+
+    /**
+     * Keeps the pool from handing out or reserving an alias.
+     *
+     * @param alias an alias in use by the node.
+     */
+    public synchronized void exclude(int alias) {
+        excluded.add(alias);
+        if (reserved.remove(alias)) {
+            changed();
+        }
+    }
+
+    /**
+     * Takes a reserved alias out of the pool and starts reserving a replacement.
+     *
+     * @return the alias, or -1 if none is reserved yet.
+     */
+    public synchronized int take() {
+        if (reserved.isEmpty()) return -1;
+        Integer a = reserved.iterator().next();
+        reserved.remove(a);
+        excluded.add(a);
+        changed();
+        refill();
+        return a;
+    }
+
+    /**
+     * Checks all reserved spares again, e.g. after the connection to the bus was restored;
+     * they cannot be taken until the check is done. Spares another node took meanwhile are
+     * replaced.
+     */
+    public synchronized void recheck() {
+        if (reserved.isEmpty()) return;
+        unchecked.addAll(reserved);
+        reserved.clear();
+        changed();
+        refill();
+    }
+
+    /// @return the reserved spare aliases.
+    public synchronized List<Integer> getReserved() {
+        return new ArrayList<>(reserved);
+    }
+
+    /// @return the number of reservations in progress.
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void send(CanFrame frame) {
+        for (NIDaAlgorithm a : pending) {
+            a.send(frame);
+        }
+        OpenLcbCanFrame f = new OpenLcbCanFrame(frame);
+        int alias = f.getSourceAlias();
+        synchronized (this) {
+            if (!reserved.contains(alias)) return;
+            if (!f.isCIM()) {
+                logger.fine("Spare alias " + Integer.toHexString(alias) + " taken by another " +
+                        "node");
+                reserved.remove(alias);
+                excluded.add(alias);
+                changed();
+                refill();
+                return;
+            }
+        }
+        // Someone tries to reserve our spare.
+        OpenLcbCanFrame rim = new OpenLcbCanFrame(alias);
+        rim.setRIM(alias);
+        output.send(rim);
+    }
+
+    /// Stops the reservations in progress. The reserved spares stay in the cache.
+    public synchronized void dispose() {
+        disposed = true;
+        for (NIDaAlgorithm a : pending) {
+            a.dispose();
+        }
+        pending.clear();
+    }
+
+    private boolean inUse(int alias) {
+        if (reserved.contains(alias) || excluded.contains(alias) || unchecked.contains(alias)) {
+            return true;
+        }
+        for (NIDaAlgorithm a : pending) {
+            if (a.getNIDa() == alias) return true;
+        }
+        return false;
+    }
+
+    /// Starts reservations until reserved and pending spares make the target. Holds the lock.
+    private void refill() {
+        while (!disposed && reserved.size() + pending.size() < target) {
+            final NIDaAlgorithm a = new NIDaAlgorithm(nodeId, output, timer);
+            Runnable done = new Runnable() {
+                @Override
+                public void run() {
+                    reservationDone(a);
+                }
+            };
+            Integer old = null;
+            while (!unchecked.isEmpty() && old == null) {
+                old = unchecked.iterator().next();
+                unchecked.remove(old);
+                if (excluded.contains(old)) old = null;
+            }
+            if (old != null) {
+                pending.add(a);
+                a.startWithCheck(old, done);
+                continue;
+            }
+            while (inUse(a.getNIDa())) {
+                a.nida.nextAlias();
+            }
+            pending.add(a);
+            a.start(done);
+        }
+    }
+
+    private synchronized void reservationDone(NIDaAlgorithm a) {
+        if (!pending.remove(a) || disposed) return;
+        int alias = a.getNIDa();
+        a.dispose();
+        if (excluded.contains(alias) || reserved.contains(alias)) {
+            // A conflict moved the reservation onto an alias we have already.
+            refill();
+            return;
+        }
+        reserved.add(alias);
+        changed();
+    }
+
+    private void changed() {
+        if (cache != null) {
+            // The unchecked ones are still worth a check on the next connection.
+            List<Integer> l = new ArrayList<>(reserved);
+            l.addAll(unchecked);
+            cache.setSpares(nodeId, l);
+        }
+    }
+}
@@ -1,22 +1,41 @@
 package org.openlcb.can;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import org.openlcb.Connection;
 import org.openlcb.Connection.ConnectionListener;
+import org.openlcb.InitializationCompleteMessage;
 import org.openlcb.Message;
+import org.openlcb.MessageFlyweights;
+import org.openlcb.MimicNodeStore;
 import org.openlcb.NodeID;
+import org.openlcb.OlcbExecution;
 import org.openlcb.OlcbInterface;
+import org.openlcb.metrics.Counter;
+import org.openlcb.metrics.MessageCounter;
+import org.openlcb.metrics.MetricsRegistry;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * CanInterface collects all objects necessary to operate a standards-compliant node that connects
  * via CAN-bus.
+ * <p>
+ * With an {@link AliasCache} the interface starts fast when the node was on the same bus
+ * before, e.g. after a reconnect to the hub: it takes the alias it held last (or a spare one)
+ * without the reservation wait, and restores the alias map of the last connection as
+ * provisional entries. A node that objects to the alias makes the interface switch to a new
+ * one; remote aliases not confirmed within {@link #PROVISIONAL_TIMEOUT_MSEC} are dropped.
+ * Spare aliases are reserved in the background for the next start or conflict; those of an
+ * earlier connection are checked again before use.
+ * <p>
+ * While the node holds no alias, e.g. while reserving a new one after a conflict, outgoing
+ * messages are held back and sent in order once the alias is reserved.
  *
  * Created by bracz on 12/27/15.
  */
@@ -39,37 +58,116 @@ public class CanInterface {
     /// Objects waiting for startup.
     private final List<ConnectionListener> listeners = new ArrayList<>();
     private final NodeID nodeId;
-    private final NIDaAlgorithm aliasWatcher;
+    private volatile NIDaAlgorithm aliasWatcher;
+    /// Alias in use by the local node; -1 until reserved, or while reserving after a conflict.
+    private volatile int localAlias = -1;
+    /// Outgoing messages waiting for the local alias, oldest first. Guarded by itself.
+    private final ArrayDeque<Message> heldMessages = new ArrayDeque<>();
+    /// State kept across connections; null if fast start is off.
+    @Nullable
+    private final AliasCache aliasCache;
+    /// Spare aliases; null if fast start is off.
+    @Nullable
+    private final AliasPool aliasPool;
+    /// How long the restored remote aliases may stay unconfirmed after a fast start.
+    public static final long PROVISIONAL_TIMEOUT_MSEC = 2000;
 
     protected boolean initialized = false;
 
     private ThreadPoolExecutor threadPool = null;
+    // Traffic counters in the interface's metrics; set before any frame can flow.
+    private Counter framesIn;
+    private Counter framesOut;
+    private MessageCounter messagesIn;
+    private MessageCounter messagesOut;
     final static int minThreads = 10;
     final static int maxThreads = 10;
     final static long threadTimeout = 10; // allowed idle time for threads, in seconds.
 
     public CanInterface(NodeID interfaceId, CanFrameListener frameOutput) {
-        this(interfaceId,frameOutput,
-                          new ThreadPoolExecutor(minThreads,maxThreads,
-                          threadTimeout,TimeUnit.SECONDS,
-                          new LinkedBlockingQueue<Runnable>(),
-                          new org.openlcb.OlcbThreadFactory()));
-        threadPool.allowCoreThreadTimeOut(true);
+        this(interfaceId, frameOutput, OlcbExecution.getDefault());
+    }
+
+    /**
+     * Creates an interface whose thread pool comes from a given execution, for example
+     * {@link OlcbExecution#virtual()} when running many interfaces in the same JVM.
+     *
+     * @param interfaceId node ID of this interface
+     * @param frameOutput where to send the CAN frames
+     * @param execution   source of the threads of the interface
+     */
+    public CanInterface(NodeID interfaceId, CanFrameListener frameOutput, OlcbExecution
+            execution) {
+        this(interfaceId, frameOutput, execution.newThreadPool(minThreads, maxThreads));
     }
 
     public CanInterface(NodeID interfaceId, CanFrameListener frameOutput, ThreadPoolExecutor tpe ) {
+        this(interfaceId, frameOutput, tpe, null);
+    }
+
+    /**
+     * Creates an interface that starts fast if the cache knows the node from an earlier
+     * connection.
+     *
+     * @param interfaceId node ID of this interface
+     * @param frameOutput where to send the CAN frames
+     * @param aliasCache  alias state shared with the earlier and later interfaces of the node
+     */
+    public CanInterface(NodeID interfaceId, CanFrameListener frameOutput, AliasCache
+            aliasCache) {
+        this(interfaceId, frameOutput, OlcbExecution.getDefault().newThreadPool(minThreads,
+                maxThreads), aliasCache);
+    }
+
+    /**
+     * @param interfaceId node ID of this interface
+     * @param frameOutput where to send the CAN frames
+     * @param tpe         thread pool of the interface
+     * @param aliasCache  alias state shared with the earlier and later interfaces of the node;
+     *                    null for the full alias reservation at every start.
+     */
+    public CanInterface(NodeID interfaceId, CanFrameListener frameOutput, ThreadPoolExecutor
+            tpe, @Nullable AliasCache aliasCache) {
         threadPool=tpe;
+        this.aliasCache = aliasCache;
         this.frameOutput = frameOutput;
         this.frameRenderer = new FrameRenderer();
         this.nodeId = interfaceId;
 
         // Creates high-level OpenLCB interface.
         olcbInterface = new OlcbInterface(nodeId, frameRenderer,threadPool);
+        MetricsRegistry metrics = olcbInterface.getMetrics();
+        framesIn = metrics.counter("can.frames.in");
+        framesOut = metrics.counter("can.frames.out");
+        messagesIn = metrics.messageCounter("messages.in");
+        messagesOut = metrics.messageCounter("messages.out");
 
         // Creates CAN-level OpenLCB objects.
         aliasMap = new AliasMap();
+        // Remembers the aliases of remote nodes if the node store has a persistent store.
+        final MimicNodeStore store = olcbInterface.getNodeStore();
+        aliasMap.addWatcher(new AliasMap.Watcher() {
+            @Override
+            public void aliasAdded(NodeID nid, int alias) {
+                store.recordAlias(nid, alias);
+            }
+        });
+        if (aliasCache != null) {
+            aliasMap.restore(aliasCache.getRemoteAliases());
+            aliasMap.addWatcher(new AliasMap.Watcher() {
+                @Override
+                public void aliasAdded(NodeID nid, int alias) {
+                    if (!nid.equals(nodeId)) aliasCache.recordRemote(nid, alias);
+                }
+            });
+            aliasPool = new AliasPool(interfaceId, frameOutput, olcbInterface.getTimerService(),
+                    aliasCache);
+        } else {
+            aliasPool = null;
+        }
         messageBuilder = new MessageBuilder(aliasMap);
-        aliasWatcher = new NIDaAlgorithm(interfaceId, frameOutput);
+        aliasWatcher = new NIDaAlgorithm(interfaceId, frameOutput, olcbInterface
+                .getTimerService());
 
         this.frameInput = new FrameParser();
         threadPool.execute(new Runnable() {
@@ -94,6 +192,11 @@ public class CanInterface {
     }
 
     public void initialize() {
+        int cachedAlias = aliasCache != null ? aliasCache.takeStartAlias(nodeId) : -1;
+        if (cachedAlias >= 0) {
+            fastInitialize(cachedAlias);
+            return;
+        }
         // Do initialization tasks here.
         final Semaphore sema = new Semaphore(1, true);
         sema.acquireUninterruptibly();
@@ -126,9 +229,177 @@ public class CanInterface {
         }
         // Stores local node alias.
         aliasMap.insert(aliasWatcher.getNIDa(), nodeId);
-        /// TODO(balazs.racz): If the alias changes, we need to update the local alias map.
+        aliasReserved(aliasWatcher.getNIDa());
+        notifyStarted();
+    }
 
-        // Notify all listeners waiting for init. Call them outside of the lock.
+    /**
+     * Starts with an alias the node held on an earlier connection: sends the check and reserve
+     * frames without waiting for objections. Objections arriving later are handled by
+     * {@link #aliasConflict(int)}.
+     *
+     * @param alias alias to use.
+     */
+    private void fastInitialize(int alias) {
+        logger.fine("Fast start with alias " + Integer.toHexString(alias));
+        aliasWatcher.startWithAlias(alias);
+        aliasMap.insert(alias, nodeId);
+        sendAliasMapDefinition(alias);
+        // Refreshes the restored aliases, and learns the ones that are new.
+        OpenLcbCanFrame ameFrame = new OpenLcbCanFrame(0);
+        ameFrame.setAME(alias, null);
+        frameOutput.send(ameFrame);
+        OpenLcbCanFrame gReqFrame = new OpenLcbCanFrame(alias);
+        gReqFrame.setVerifyNID(null);
+        frameOutput.send(gReqFrame);
+        olcbInterface.getTimerService().schedule(new Runnable() {
+            @Override
+            public void run() {
+                int n = aliasMap.dropProvisional();
+                if (n > 0) logger.fine("Dropped " + n + " stale aliases");
+            }
+        }, PROVISIONAL_TIMEOUT_MSEC);
+        aliasReserved(alias);
+        notifyStarted();
+    }
+
+    /**
+     * Announces the node again, e.g. when the connection to the hub was restored after an
+     * outage: reserves the alias it holds with the usual check / reserve sequence (switching
+     * to a new alias if another node took it meanwhile), then sends the alias map definition
+     * and Initialization Complete, and asks for the aliases of the other nodes.
+     * <p>
+     * The frames up to Initialization Complete go to {@code direct}, so that the caller can
+     * hold everything else back until {@code done} runs. If no alias is held, e.g. because a
+     * reservation is still in progress, {@code done} runs right away.
+     *
+     * @param direct where to send the reservation frames and Initialization Complete.
+     * @param done   invoked after Initialization Complete was sent; may be null.
+     */
+    public void reannounce(final CanFrameListener direct, @Nullable final Runnable done) {
+        final int alias = localAlias;
+        if (alias < 0) {
+            if (done != null) done.run();
+            return;
+        }
+        localAlias = -1;
+        if (aliasPool != null) {
+            // Other nodes may have taken the spares during the outage.
+            aliasPool.recheck();
+        }
+        final NIDaAlgorithm a = new NIDaAlgorithm(nodeId, direct, olcbInterface
+                .getTimerService());
+        aliasWatcher.dispose();
+        aliasWatcher = a;
+        a.startWithCheck(alias, new Runnable() {
+            @Override
+            public void run() {
+                if (aliasWatcher != a) return;
+                int newAlias = a.getNIDa();
+                if (newAlias != alias) {
+                    logger.warning("Alias " + Integer.toHexString(alias) + " of node " + nodeId
+                            + " was taken during the outage; changing alias");
+                    aliasMap.remove(alias);
+                    aliasMap.insert(newAlias, nodeId);
+                }
+                OpenLcbCanFrame amd = new OpenLcbCanFrame(newAlias);
+                amd.setAMD(newAlias, nodeId);
+                direct.send(amd);
+                Message init = new InitializationCompleteMessage(nodeId);
+                messagesOut.count(init);
+                List<OpenLcbCanFrame> l = messageBuilder.processMessage(init);
+                framesOut.add(l.size());
+                for (CanFrame f : l) {
+                    direct.send(f);
+                }
+                aliasReserved(newAlias);
+                if (done != null) done.run();
+                OpenLcbCanFrame ameFrame = new OpenLcbCanFrame(0);
+                ameFrame.setAME(newAlias, null);
+                frameOutput.send(ameFrame);
+                OpenLcbCanFrame gReqFrame = new OpenLcbCanFrame(newAlias);
+                gReqFrame.setVerifyNID(null);
+                frameOutput.send(gReqFrame);
+            }
+        });
+    }
+
+    /// @return the alias of the local node, or -1 while none is reserved.
+    public int getLocalAlias() {
+        return localAlias;
+    }
+
+    /**
+     * Records the local alias once it is in the alias map, sends the messages held back
+     * meanwhile, and tops up the spares.
+     */
+    private void aliasReserved(int alias) {
+        synchronized (heldMessages) {
+            localAlias = alias;
+            // New messages queue up behind these until all are sent.
+            Message m;
+            while ((m = heldMessages.poll()) != null) {
+                frameRenderer.render(m);
+            }
+        }
+        if (aliasCache != null) {
+            aliasCache.setLocalAlias(nodeId, alias);
+            aliasPool.exclude(alias);
+            aliasPool.fill(aliasCache.getSpareCount());
+        }
+    }
+
+    private void sendAliasMapDefinition(int alias) {
+        OpenLcbCanFrame amd = new OpenLcbCanFrame(alias);
+        amd.setAMD(alias, nodeId);
+        frameOutput.send(amd);
+    }
+
+    /**
+     * Called when another node uses the local alias. Releases it with Alias Map Reset, then
+     * switches to a spare alias if there is one, otherwise reserves a new alias; outgoing messages are held back until then.
+     *
+     * @param alias the alias that was lost.
+     */
+    private void aliasConflict(int alias) {
+        logger.warning("Alias " + Integer.toHexString(alias) + " of node " + nodeId + " is " +
+                "used by another node; changing alias");
+        localAlias = -1;
+        aliasMap.remove(alias);
+        // Gives up the alias before taking another one.
+        OpenLcbCanFrame amr = new OpenLcbCanFrame(alias);
+        amr.setAMR(alias, nodeId);
+        frameOutput.send(amr);
+        final NIDaAlgorithm old = aliasWatcher;
+        final NIDaAlgorithm a = new NIDaAlgorithm(nodeId, frameOutput, olcbInterface
+                .getTimerService());
+        old.dispose();
+        aliasWatcher = a;
+        int spare = aliasPool != null ? aliasPool.take() : -1;
+        if (spare >= 0) {
+            a.assumeReserved(spare);
+            aliasMap.insert(spare, nodeId);
+            sendAliasMapDefinition(spare);
+            aliasReserved(spare);
+            return;
+        }
+        while (a.getNIDa() == alias) {
+            a.nida.nextAlias();
+        }
+        a.start(new Runnable() {
+            @Override
+            public void run() {
+                if (aliasWatcher != a) return;
+                aliasMap.insert(a.getNIDa(), nodeId);
+                sendAliasMapDefinition(a.getNIDa());
+                aliasReserved(a.getNIDa());
+            }
+        });
+    }
+
+    /// Notifies all listeners waiting for init.
+    private void notifyStarted() {
+        // Call them outside of the lock.
         List<ConnectionListener> listeners_copy = new ArrayList<>();
         synchronized (listeners) {
             initialized = true;
@@ -144,14 +415,35 @@ public class CanInterface {
         return olcbInterface;
     }
 
+    /**
+     * Turns on decoding the incoming event messages into shared instances.
+     *
+     * @param flyweights the table of shared instances, or null to turn it off.
+     * @see MessageBuilder#setFlyweights
+     */
+    public void setFlyweights(MessageFlyweights flyweights) {
+        messageBuilder.setFlyweights(flyweights);
+    }
+
     class FrameParser implements CanFrameListener {
         @Override
         public void send(CanFrame frame) {
-            aliasWatcher.send(frame);
-            aliasMap.processFrame(new OpenLcbCanFrame(frame));
+            framesIn.inc();
+            OpenLcbCanFrame f = new OpenLcbCanFrame(frame);
+            int alias = localAlias;
+            if (alias >= 0 && f.getSourceAlias() == alias && !f.isCIM()) {
+                aliasConflict(alias);
+            } else {
+                aliasWatcher.send(frame);
+            }
+            if (aliasPool != null) {
+                aliasPool.send(frame);
+            }
+            aliasMap.processFrame(f);
             List<Message> l = messageBuilder.processFrame(frame);
             if (l == null) return;
             for (Message m : l) {
+                messagesIn.count(m);
                 olcbInterface.getInputConnection().put(m, null);
             }
         }
@@ -160,7 +452,19 @@ public class CanInterface {
     class FrameRenderer implements Connection {
         @Override
         public void put(Message msg, Connection sender) {
+            synchronized (heldMessages) {
+                if (localAlias < 0 || !heldMessages.isEmpty()) {
+                    heldMessages.add(msg);
+                    return;
+                }
+            }
+            render(msg);
+        }
+
+        void render(Message msg) {
+            messagesOut.count(msg);
             List<OpenLcbCanFrame> l = messageBuilder.processMessage(msg);
+            framesOut.add(l.size());
             for (CanFrame f : l) {
                 frameOutput.send(f);
             }
@@ -174,6 +478,7 @@ public class CanInterface {
 
     public void dispose(){
         aliasWatcher.dispose();
+        if (aliasPool != null) aliasPool.dispose();
         // shut down the thread pool
         if(threadPool != null && !(threadPool.isShutdown())) {
            // modified from the javadoc for ExecutorService 
@@ -1,6 +1,7 @@
 package org.openlcb.can;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Level;
@@ -36,6 +37,21 @@ public class MessageBuilder {
     }
 
     AliasMap map;
+    /// If not null, event messages are decoded into shared instances.
+    private volatile MessageFlyweights flyweights = null;
+    private static final int MTI_PC_EVENT_REPORT = MessageTypeIdentifier
+            .ProducerConsumerEventReport.mti() & 0xFFF;
+
+    /**
+     * Turns on decoding event IDs and event reports into shared instances, which saves most
+     * of the allocation on busy event traffic. See {@link MessageFlyweights} for what this
+     * means for the lifetime of the messages.
+     *
+     * @param flyweights the table of shared instances, or null to turn it off.
+     */
+    public void setFlyweights(MessageFlyweights flyweights) {
+        this.flyweights = flyweights;
+    }
     
     /** 
      * Accept a frame, and convert to 
@@ -78,13 +94,50 @@ public class MessageBuilder {
         }
     }
     
-    HashMap<NodeID, List<Integer>> datagramData = new HashMap<NodeID, List<Integer>>();
+    /**
+     * Collects the payload of a datagram from its segments.
+     */
+    static class DatagramAccumulator {
+        /// Datagrams carry at most 72 bytes.
+        byte[] data = new byte[72];
+        int length = 0;
+
+        void add(CanFrame f) {
+            int n = f.getNumDataElements();
+            if (length + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + n));
+            }
+            for (int i = 0; i < n; i++) {
+                data[length++] = (byte) f.getElement(i);
+            }
+        }
+
+        byte[] toPayload() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+    HashMap<NodeID, DatagramAccumulator> datagramData = new HashMap<NodeID, DatagramAccumulator>();
     // dph
     HashMap<NodeID, List<Integer>> streamData = new HashMap<NodeID, List<Integer>>();
     
     int getSourceID(CanFrame f) { return f.getHeader()&0x00000FFF; }
     int getMTI(CanFrame f) { return ( f.getHeader() & 0x00FFF000 ) >> 12; }
-    EventID getEventID(CanFrame f) { return new EventID(f.getData()); }
+    EventID getEventID(CanFrame f) {
+        MessageFlyweights fw = flyweights;
+        if (fw != null && f.getNumDataElements() == 8) return fw.getEventID(eventAsLong(f));
+        return new EventID(f.getData());
+    }
+
+    /// @return the 8 data bytes of the frame as a number, the first byte in the top bits.
+    static long eventAsLong(CanFrame f) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (f.getElement(i) & 0xFF);
+        }
+        return value;
+    }
+
     
     List<Message> processFormat0(CanFrame f) {
         // reserved
@@ -96,12 +149,25 @@ public class MessageBuilder {
         NodeID source;
         NodeID dest;
         byte[] data;
+        /// Number of bytes used in data; the rest is room to grow.
+        int length;
         
         public AccumulationMemo(long header, NodeID source, NodeID dest, byte[] data) {
             this.header = header;
             this.source = source;
             this.dest = dest;
             this.data = data;
+            this.length = data.length;
+        }
+
+        /// Appends the bytes of a continuation frame, skipping the address bytes.
+        void append(byte[] more) {
+            int n = more.length - 2;
+            if (length + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + n));
+            }
+            System.arraycopy(more, 2, data, length, n);
+            length += n;
         }
         
         public boolean equals(Object obj) {
@@ -125,6 +191,13 @@ public class MessageBuilder {
     
     List<Message> processFormat1(CanFrame f) {
         // MTI
+        MessageFlyweights fw = flyweights;
+        if (fw != null && getMTI(f) == MTI_PC_EVENT_REPORT && f.getNumDataElements() == 8) {
+            // Fast path for the most frequent message.
+            List<Message> l = new ArrayList<Message>(1);
+            l.add(fw.getEventReport(map.getNodeID(getSourceID(f)), eventAsLong(f)));
+            return l;
+        }
         List<Message> retlist = new java.util.ArrayList<Message>();
         NodeID source = map.getNodeID(getSourceID(f));
         NodeID dest = null;
@@ -145,10 +218,7 @@ public class MessageBuilder {
                 mold = mnew;
             } else {
                 // combine data into old one
-                byte[] newdata = new byte[mold.data.length+mnew.data.length-2];  // skip address
-                System.arraycopy(mold.data, 0, newdata, 0, mold.data.length);
-                System.arraycopy(mnew.data, 2, newdata, mold.data.length, mnew.data.length-2);
-                mold.data = newdata;
+                mold.append(data);
             }
             // see if final bit active
             if ( (f.getElement(0) & 0x10 ) != 0) {
@@ -156,11 +226,11 @@ public class MessageBuilder {
                 return retlist; // which is null right now
             } 
             // we're going to continue processing with the accumulated data
-            data = mold.data;
             accumulations.remove(f.getHeader());
+            data = mold.length == mold.data.length ? mold.data : Arrays.copyOf(mold.data, mold
+                    .length);
 
-            content = new byte[data.length-2];
-            System.arraycopy(data, 2, content, 0, content.length);
+            content = Arrays.copyOfRange(data, 2, data.length);
         }
         
         MessageTypeIdentifier value = MessageTypeIdentifier.get(mti);
@@ -299,77 +369,61 @@ public class MessageBuilder {
     List<Message> processFormat2(CanFrame f) {
         // datagram only-segment
         NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-            // don't need to put it back, as we're doing just one
+        DatagramAccumulator acc = datagramData.get(source);
+        byte[] data;
+        if (acc == null) {
+            // getData() returns a fresh copy, which the message can own.
+            data = f.getData();
         } else {
             // this is actually an error, datagram already in process for only-segment
-        }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
+            acc.add(f);
+            data = acc.toPayload();
         }
         
         // done, forward
         
-        int[] data = new int[list.size()];
-        for (int i=0; i<list.size(); i++) {
-            data[i] = list.get(i);
-        }
         List<Message> retlist = new java.util.ArrayList<Message>();
         NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
-        retlist.add(new DatagramMessage(source, dest, data));
+        retlist.add(DatagramMessage.wrap(source, dest, data));
         return retlist;
     }
     List<Message> processFormat3(CanFrame f) {
         // datagram first-segment
         NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-            datagramData.put(source, list);
+        DatagramAccumulator acc = datagramData.get(source);
+        if (acc == null) {
+            acc = new DatagramAccumulator();
+            datagramData.put(source, acc);
         } else {
             // this is actually an error, datagram already in process for only-segment
         }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
-        }
+        acc.add(f);
         return null;
     }
     List<Message> processFormat4(CanFrame f) {
         // datagram middle-segment
         NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
+        DatagramAccumulator acc = datagramData.get(source);
+        if (acc == null) {
             // this is actually an error, should be already started
-            list = new ArrayList<Integer>();
-            datagramData.put(source, list);
-        }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
+            acc = new DatagramAccumulator();
+            datagramData.put(source, acc);
         }
+        acc.add(f);
         return null;
     }
     List<Message> processFormat5(CanFrame f) {
         // datagram last
         NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-        }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
+        DatagramAccumulator acc = datagramData.remove(source); // not accumulating any more
+        if (acc == null) {
+            acc = new DatagramAccumulator();
         }
+        acc.add(f);
         
-        datagramData.put(source, null); // not accumulating any more
-        
-        int[] data = new int[list.size()];
-        for (int i=0; i<list.size(); i++) {
-            data[i] = list.get(i);
-        }
         List<Message> retlist = new java.util.ArrayList<Message>();
         NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
-        retlist.add(new DatagramMessage(source, dest, data));
+        retlist.add(DatagramMessage.wrap(source, dest, acc.toPayload()));
         return retlist;
     }
     List<Message> processFormat6(CanFrame f) {
@@ -503,6 +557,9 @@ public class MessageBuilder {
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
             if (msg.getContent() != null) 
                 f.setData(msg.getContent().getContents());
+            else if (msg.getDestNodeID() != null)
+                // sent as global; only the destination node will reply
+                f.setData(msg.getDestNodeID().getContents());
             retlist.add(f);
         }
 
@@ -611,16 +668,14 @@ public class MessageBuilder {
         @Override
         public void handleDatagram(DatagramMessage msg, Connection sender){
             // must loop over data to send 8 byte chunks
-            int remains = msg.getData().length;
-            int j = 0;
+            java.nio.ByteBuffer payload = msg.getPayload();
+            int remains = payload.remaining();
             boolean first = true;
             // always sends at least one datagram, even with zero bytes
             do {
                 int size = Math.min(8, remains);
-                int[] data = new int[size];
-                for (int i = 0; i<size; i++) {
-                    data[i] = msg.getData()[j++];
-                }
+                byte[] data = new byte[size];
+                payload.get(data);
                 
                 OpenLcbCanFrame f = new OpenLcbCanFrame(0x00);
                 f.setDatagram(data, map.getAlias(msg.getDestNodeID()), first, remains <= 8);
@@ -0,0 +1,606 @@
+package org.openlcb.can;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import org.openlcb.AddressedMessage;
+import org.openlcb.Connection;
+import org.openlcb.HashedWheelTimer;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbExecution;
+import org.openlcb.VerifiedNodeIDNumberMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+import org.openlcb.implementations.DatagramMeteringBuffer;
+import org.openlcb.implementations.DatagramService;
+import org.openlcb.implementations.MemoryConfigurationService;
+import org.openlcb.metrics.Counter;
+import org.openlcb.metrics.Gauge;
+import org.openlcb.metrics.MessageCounter;
+import org.openlcb.metrics.MetricsRegistry;
+
+/**
+ * Hosts any number of local (virtual) OpenLCB nodes on one CAN-bus connection, e.g. one train
+ * node per DCC locomotive, or many simulated boards.
+ * <p>
+ * Unlike running a {@link CanInterface} per node, all nodes share one frame parser, one alias
+ * map, one timer and one thread pool. Each node reserves its own alias; the reservations run
+ * in parallel, so adding many nodes at once takes as long as adding one. Incoming addressed
+ * messages are routed to their local node by a hash lookup on the destination node ID; global
+ * messages go to every local node. Messages between local nodes do not touch the bus unless
+ * they are global, in which case the remote nodes get them too.
+ * <p>
+ * A {@link VirtualNode} answers Verify Node ID and Alias Map Enquiry by itself. Everything
+ * else is up to the listeners registered on it. Its datagram and memory configuration
+ * services are only created when first asked for.
+ */
+public class MultiNodeCanInterface {
+    private final static Logger logger = Logger.getLogger(MultiNodeCanInterface.class.getName());
+
+    /// Keeps tracks of aliases, both local and remote.
+    private final AliasMap aliasMap = new AliasMap();
+    /// State machines for frame reassembly. Guards itself and the alias map.
+    private final MessageBuilder messageBuilder = new MessageBuilder(aliasMap);
+    /// CAN adapter to send outgoing frames to.
+    private final CanFrameListener frameOutput;
+    /// Converts incoming frames to messages and routes them to the local nodes.
+    private final FrameParser frameInput = new FrameParser();
+    /// Shared timer for the alias reservations and datagram timeouts of all nodes.
+    private final HashedWheelTimer timerService = new HashedWheelTimer("OpenLCB Multi-Node " +
+            "Timer");
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private ThreadPoolExecutor threadPool;
+
+    /// All local nodes, keyed by NodeID.toLong().
+    private final ConcurrentHashMap<Long, VirtualNode> nodes = new ConcurrentHashMap<>();
+    /// Local nodes that hold an alias, keyed by the alias.
+    private final ConcurrentHashMap<Integer, VirtualNode> nodesByAlias = new
+            ConcurrentHashMap<>();
+    /// Local nodes whose alias reservation is in progress. These see every incoming frame.
+    private final CopyOnWriteArrayList<VirtualNode> reserving = new CopyOnWriteArrayList<>();
+    /// Listeners that see every message arriving from the bus, e.g. monitors.
+    private final CopyOnWriteArrayList<Connection> busListeners = new CopyOnWriteArrayList<>();
+    /// Set when the first node is up and has asked the bus for the aliases of everyone else.
+    private final AtomicBoolean busQueried = new AtomicBoolean(false);
+
+    private final Counter framesIn;
+    private final Counter framesOut;
+    private final MessageCounter messagesIn;
+    private final MessageCounter messagesOut;
+    final static int minThreads = 2;
+    final static int maxThreads = 10;
+
+    public MultiNodeCanInterface(CanFrameListener frameOutput) {
+        this(frameOutput, OlcbExecution.getDefault());
+    }
+
+    /**
+     * @param frameOutput where to send the CAN frames
+     * @param execution   source of the threads shared by all nodes
+     */
+    public MultiNodeCanInterface(CanFrameListener frameOutput, OlcbExecution execution) {
+        this(frameOutput, execution.newThreadPool(minThreads, maxThreads));
+    }
+
+    public MultiNodeCanInterface(CanFrameListener frameOutput, ThreadPoolExecutor tpe) {
+        this.frameOutput = frameOutput;
+        this.threadPool = tpe;
+        framesIn = metrics.counter("can.frames.in");
+        framesOut = metrics.counter("can.frames.out");
+        messagesIn = metrics.messageCounter("messages.in");
+        messagesOut = metrics.messageCounter("messages.out");
+        metrics.gauge("nodes", new Gauge() {
+            @Override
+            public long getValue() {
+                return nodes.size();
+            }
+        });
+    }
+
+    /// @return where to forward the frames arriving from the bus.
+    public CanFrameListener frameInput() {
+        return frameInput;
+    }
+
+    /// @return the counters of the shared layers.
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /// @return the timer shared by all nodes. Tasks must not block.
+    public HashedWheelTimer getTimerService() {
+        return timerService;
+    }
+
+    /**
+     * Adds a local node and starts reserving its alias. The node sends Initialization Complete
+     * once the alias is reserved; messages it is asked to send before that are held back.
+     *
+     * @param nodeId node ID of the new node.
+     * @return the node.
+     * @throws IllegalArgumentException if a node with this ID is already hosted.
+     */
+    public VirtualNode addNode(NodeID nodeId) {
+        VirtualNode n = new VirtualNode(nodeId);
+        if (nodes.putIfAbsent(nodeId.toLong(), n) != null) {
+            throw new IllegalArgumentException("Node " + nodeId + " is already hosted");
+        }
+        n.reserveAlias(-1);
+        return n;
+    }
+
+    /**
+     * Removes a local node. Its alias is released on the bus.
+     *
+     * @param node a node of this interface.
+     */
+    public void removeNode(VirtualNode node) {
+        if (!nodes.remove(node.nodeId.toLong(), node)) return;
+        node.stop();
+    }
+
+    /**
+     * @param nodeId node ID.
+     * @return the local node with this ID, or null.
+     */
+    public VirtualNode getNode(NodeID nodeId) {
+        return nodes.get(nodeId.toLong());
+    }
+
+    /// @return the number of local nodes.
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Registers a listener for all messages arriving from the bus, regardless of their
+     * destination. Messages between local nodes are not included.
+     *
+     * @param c listener.
+     */
+    public void registerBusListener(Connection c) {
+        busListeners.add(c);
+    }
+
+    public void unRegisterBusListener(Connection c) {
+        busListeners.remove(c);
+    }
+
+    /// Sends a frame to the bus.
+    private void sendFrame(OpenLcbCanFrame f) {
+        framesOut.inc();
+        frameOutput.send(f);
+    }
+
+    /**
+     * Renders a message to frames and sends them to the bus.
+     */
+    private void sendToBus(Message msg) {
+        messagesOut.count(msg);
+        List<OpenLcbCanFrame> l;
+        synchronized (messageBuilder) {
+            l = messageBuilder.processMessage(msg);
+        }
+        for (OpenLcbCanFrame f : l) {
+            sendFrame(f);
+        }
+    }
+
+    /**
+     * Sends a message of a local node: to the addressed local node, or to the bus and to all
+     * other local nodes.
+     */
+    void send(VirtualNode from, Message msg) {
+        if (msg instanceof AddressedMessage) {
+            NodeID dest = ((AddressedMessage) msg).getDestNodeID();
+            VirtualNode to = dest == null ? null : nodes.get(dest.toLong());
+            if (to != null) {
+                to.deliver(msg, from.output);
+            } else {
+                sendToBus(msg);
+            }
+            return;
+        }
+        sendToBus(msg);
+        for (VirtualNode n : nodes.values()) {
+            if (n != from) n.deliver(msg, from.output);
+        }
+    }
+
+    /// Routes a message arriving from the bus.
+    private void route(Message msg) {
+        messagesIn.count(msg);
+        for (Connection c : busListeners) {
+            c.put(msg, null);
+        }
+        if (msg instanceof AddressedMessage) {
+            NodeID dest = ((AddressedMessage) msg).getDestNodeID();
+            VirtualNode to = dest == null ? null : nodes.get(dest.toLong());
+            if (to != null) to.deliver(msg, null);
+            return;
+        }
+        for (VirtualNode n : nodes.values()) {
+            n.deliver(msg, null);
+        }
+    }
+
+    /// Called on the timer thread when a node has reserved its alias.
+    private void aliasReserved(final VirtualNode n, final int alias) {
+        synchronized (reserving) {
+            reserving.remove(n);
+            synchronized (n) {
+                if (n.stopped) return;
+                // Set before the node can be found by its alias, so that conflicts and
+                // enquiries seen from now on are answered.
+                n.alias = alias;
+            }
+            if (nodesByAlias.putIfAbsent(alias, n) != null) {
+                // Another local node got here first after a conflict moved this one's alias.
+                n.alias = -1;
+                n.aliasWatcher.dispose();
+                n.reserveAlias(alias);
+                return;
+            }
+        }
+        OpenLcbCanFrame amd = new OpenLcbCanFrame(alias);
+        amd.setAMD(alias, n.nodeId);
+        sendFrame(amd);
+        synchronized (messageBuilder) {
+            aliasMap.insert(alias, n.nodeId);
+        }
+        if (busQueried.compareAndSet(false, true)) {
+            // Acquires everybody else's alias.
+            OpenLcbCanFrame ameFrame = new OpenLcbCanFrame(alias);
+            ameFrame.setAME(alias, null);
+            sendFrame(ameFrame);
+            OpenLcbCanFrame gReqFrame = new OpenLcbCanFrame(alias);
+            gReqFrame.setVerifyNID(null);
+            sendFrame(gReqFrame);
+        }
+        // Listeners of the nodes may block; keep them off the timer thread.
+        threadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                n.initialized(alias);
+            }
+        });
+    }
+
+    /// @return true if a local node holds or is trying to reserve the alias.
+    private boolean isLocalAlias(int alias) {
+        if (nodesByAlias.containsKey(alias)) return true;
+        for (VirtualNode n : reserving) {
+            if (n.aliasWatcher.getNIDa() == alias) return true;
+        }
+        return false;
+    }
+
+    class FrameParser implements CanFrameListener {
+        @Override
+        public void send(CanFrame frame) {
+            framesIn.inc();
+            OpenLcbCanFrame f = new OpenLcbCanFrame(frame);
+            for (VirtualNode n : reserving) {
+                n.aliasWatcher.send(frame);
+            }
+            VirtualNode owner = nodesByAlias.get(f.getSourceAlias());
+            if (owner != null) {
+                owner.aliasConflict(f);
+            }
+            if (f.isAliasMapEnquiry()) {
+                answerEnquiry(f);
+            }
+            List<Message> l;
+            synchronized (messageBuilder) {
+                aliasMap.processFrame(f);
+                l = messageBuilder.processFrame(frame);
+            }
+            if (l == null) return;
+            for (Message m : l) {
+                route(m);
+            }
+        }
+
+        private void answerEnquiry(OpenLcbCanFrame f) {
+            if (f.getNumDataElements() >= 6) {
+                VirtualNode n = nodes.get(f.getNodeID().toLong());
+                if (n != null) n.sendAliasMapDefinition();
+                return;
+            }
+            for (VirtualNode n : nodesByAlias.values()) {
+                n.sendAliasMapDefinition();
+            }
+        }
+    }
+
+    /**
+     * One local node. Register listeners to receive the messages addressed to it and the
+     * global messages; send through {@link #getOutputConnection()}.
+     */
+    public class VirtualNode {
+        private final NodeID nodeId;
+        private final CopyOnWriteArrayList<Connection> listeners = new CopyOnWriteArrayList<>();
+        /// Messages sent before the alias was reserved. Guarded by this.
+        private final List<Message> heldBack = new ArrayList<>();
+        /// Messages received while the node was initializing. Guarded by this.
+        private final List<HeldDelivery> heldIn = new ArrayList<>();
+        private final List<Connection.ConnectionListener> startListeners = new ArrayList<>();
+        private volatile NIDaAlgorithm aliasWatcher;
+        private volatile int alias = -1;
+        private volatile boolean initialized = false;
+        private volatile boolean stopped = false;
+        private DatagramMeteringBuffer dmb;
+        private DatagramService dcs;
+        private MemoryConfigurationService mcs;
+
+        private final Connection output = new Connection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                synchronized (VirtualNode.this) {
+                    if (stopped) return;
+                    if (!initialized) {
+                        heldBack.add(msg);
+                        return;
+                    }
+                }
+                send(VirtualNode.this, msg);
+            }
+
+            @Override
+            public void registerStartNotification(ConnectionListener c) {
+                synchronized (VirtualNode.this) {
+                    if (!initialized) {
+                        startListeners.add(c);
+                        return;
+                    }
+                }
+                c.connectionActive(this);
+            }
+        };
+
+        VirtualNode(NodeID nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        public NodeID getNodeId() {
+            return nodeId;
+        }
+
+        /// @return the alias of the node, or -1 while it is not reserved.
+        public int getAlias() {
+            return alias;
+        }
+
+        /// @return true once the node has reserved its alias and sent Initialization Complete.
+        public boolean isInitialized() {
+            return initialized;
+        }
+
+        /// @return the connection through which this node sends messages.
+        public Connection getOutputConnection() {
+            return output;
+        }
+
+        public void registerMessageListener(Connection c) {
+            listeners.add(c);
+        }
+
+        public void unRegisterMessageListener(Connection c) {
+            listeners.remove(c);
+        }
+
+        /// @return the datagram service of this node. Created on first call.
+        public synchronized DatagramService getDatagramService() {
+            if (dcs == null) {
+                dmb = new DatagramMeteringBuffer(output, threadPool, timerService);
+                dcs = new DatagramService(nodeId, dmb);
+                listeners.add(dmb.connectionForRepliesFromDownstream());
+                listeners.add(dcs);
+            }
+            return dcs;
+        }
+
+        /// @return the memory configuration service of this node. Created on first call.
+        public synchronized MemoryConfigurationService getMemoryConfigurationService() {
+            if (mcs == null) {
+                mcs = new MemoryConfigurationService(nodeId, getDatagramService(), timerService);
+            }
+            return mcs;
+        }
+
+        /**
+         * Starts reserving an alias.
+         *
+         * @param avoid alias known to be taken by someone else, or -1.
+         */
+        private void reserveAlias(int avoid) {
+            final NIDaAlgorithm a = new NIDaAlgorithm(nodeId, frameOutput, timerService);
+            synchronized (reserving) {
+                // Local nodes do not see each other's reservation frames, so the candidate
+                // alias must not collide with one used or tried by another local node.
+                while (a.getNIDa() == avoid || isLocalAlias(a.getNIDa())) {
+                    a.nida.nextAlias();
+                }
+                aliasWatcher = a;
+                reserving.add(this);
+            }
+            a.start(new Runnable() {
+                @Override
+                public void run() {
+                    if (stopped || aliasWatcher != a) return;
+                    aliasReserved(VirtualNode.this, a.getNIDa());
+                }
+            });
+        }
+
+        /// Called with the frames from the bus carrying the alias of this node.
+        private void aliasConflict(OpenLcbCanFrame f) {
+            int a = alias;
+            if (a < 0) return;
+            if (f.isCIM()) {
+                // Someone tries to reserve our alias.
+                OpenLcbCanFrame rim = new OpenLcbCanFrame(a);
+                rim.setRIM(a);
+                sendFrame(rim);
+                return;
+            }
+            // Someone else uses our alias: release it and reserve a new one.
+            logger.warning("Alias conflict for node " + nodeId + " on alias " + Integer
+                    .toHexString(a));
+            synchronized (this) {
+                if (stopped || alias != a) return;
+                initialized = false;
+                alias = -1;
+            }
+            nodesByAlias.remove(a, this);
+            OpenLcbCanFrame amr = new OpenLcbCanFrame(a);
+            amr.setAMR(a, nodeId);
+            sendFrame(amr);
+            synchronized (messageBuilder) {
+                aliasMap.remove(a);
+            }
+            aliasWatcher.dispose();
+            reserveAlias(a);
+        }
+
+        private void initialized(int newAlias) {
+            synchronized (this) {
+                // The alias may have been lost again meanwhile.
+                if (stopped || alias != newAlias) return;
+            }
+            send(this, new InitializationCompleteMessage(nodeId));
+            // Sends and delivers the held back messages; new ones are held back until both
+            // lists are empty.
+            List<Message> pending = new ArrayList<>();
+            List<HeldDelivery> received = new ArrayList<>();
+            List<Connection.ConnectionListener> started;
+            while (true) {
+                synchronized (this) {
+                    if (heldBack.isEmpty() && heldIn.isEmpty()) {
+                        initialized = true;
+                        started = new ArrayList<>(startListeners);
+                        startListeners.clear();
+                        break;
+                    }
+                    pending.clear();
+                    pending.addAll(heldBack);
+                    heldBack.clear();
+                    received.clear();
+                    received.addAll(heldIn);
+                    heldIn.clear();
+                }
+                for (Message m : pending) {
+                    send(this, m);
+                }
+                for (HeldDelivery d : received) {
+                    dispatch(d.msg, d.sender);
+                }
+            }
+            for (Connection.ConnectionListener l : started) {
+                l.connectionActive(output);
+            }
+        }
+
+        private void sendAliasMapDefinition() {
+            int a = alias;
+            if (a < 0) return;
+            OpenLcbCanFrame amd = new OpenLcbCanFrame(a);
+            amd.setAMD(a, nodeId);
+            sendFrame(amd);
+        }
+
+        /**
+         * Receives a message addressed to this node, or a global message. Messages arriving
+         * while the node is initializing are kept until it is done; before it has an alias
+         * they are dropped.
+         */
+        void deliver(Message msg, Connection sender) {
+            if (!initialized) {
+                synchronized (this) {
+                    if (!initialized) {
+                        if (alias >= 0 && !stopped) heldIn.add(new HeldDelivery(msg, sender));
+                        return;
+                    }
+                }
+            }
+            dispatch(msg, sender);
+        }
+
+        private void dispatch(Message msg, Connection sender) {
+            if (msg instanceof VerifyNodeIDNumberMessage) {
+                NodeID content = ((VerifyNodeIDNumberMessage) msg).getContent();
+                if (content == null || content.equals(nodeId)) {
+                    output.put(new VerifiedNodeIDNumberMessage(nodeId), null);
+                }
+            }
+            for (Connection c : listeners) {
+                c.put(msg, sender);
+            }
+        }
+
+        private void stop() {
+            int a;
+            synchronized (this) {
+                stopped = true;
+                initialized = false;
+                heldIn.clear();
+                a = alias;
+                alias = -1;
+            }
+            reserving.remove(this);
+            aliasWatcher.dispose();
+            if (a >= 0) {
+                nodesByAlias.remove(a, this);
+                OpenLcbCanFrame amr = new OpenLcbCanFrame(a);
+                amr.setAMR(a, nodeId);
+                sendFrame(amr);
+                synchronized (messageBuilder) {
+                    aliasMap.remove(a);
+                }
+            }
+            synchronized (this) {
+                if (mcs != null) mcs.dispose();
+                if (dmb != null) dmb.dispose();
+            }
+        }
+    }
+
+    /// A received message waiting for its node to finish initializing.
+    private static class HeldDelivery {
+        final Message msg;
+        final Connection sender;
+
+        HeldDelivery(Message msg, Connection sender) {
+            this.msg = msg;
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * Removes all nodes and stops the shared timer and threads.
+     */
+    public void dispose() {
+        for (VirtualNode n : nodes.values()) {
+            removeNode(n);
+        }
+        timerService.stop();
+        if (threadPool != null && !threadPool.isShutdown()) {
+            threadPool.shutdown();
+            try {
+                if (!threadPool.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+                    threadPool.shutdownNow();
+                }
+            } catch (InterruptedException ie) {
+                threadPool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        threadPool = null;
+    }
+}
@@ -1,7 +1,5 @@
 package org.openlcb.can;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Logger;
 import org.openlcb.*;
 
@@ -19,23 +17,32 @@ public class NIDaAlgorithm implements CanFrameListener {
     /// Callback to invoke when the alias was successfully reserved.
     private Runnable done;
     private CanFrameListener sendInterface;
-    private static Timer timer;
-    private TimerTask task;
-    private final static Logger logger = Logger.getLogger(NIDaAlgorithm.class.getName());
+    private HashedWheelTimer timer;
+    /// Timer of the instances that were not given one; created on first use.
+    private static HashedWheelTimer defaultTimer;
 
-    private synchronized void scheduleTimer(long delay) {
-        task = new TimerTask() {
+    private static synchronized HashedWheelTimer getDefaultTimer() {
+        if (defaultTimer == null) {
+            defaultTimer = new HashedWheelTimer("OpenLCB NIDaAlgorithm Timer");
+        }
+        return defaultTimer;
+    }
+    private HashedWheelTimer.Timeout task;
+    private final Runnable expiry = new Runnable() {
         @Override
         public void run() {
             timerExpired();
         }
-        };
-        try {
-           timer.schedule(task, delay);
-        } catch (IllegalStateException | NullPointerException ise){
-           // the timer was canceled, dispose occured before
-           // the task was scheduled.
+    };
+    private final static Logger logger = Logger.getLogger(NIDaAlgorithm.class.getName());
+
+    private synchronized void scheduleTimer(long delay) {
+        HashedWheelTimer t = timer;
+        if (t == null) {
+           // dispose occured before the task was scheduled.
+           return;
         }
+        task = t.schedule(expiry, delay);
     }
 
     public NIDaAlgorithm(NodeID n) {
@@ -44,11 +51,19 @@ public class NIDaAlgorithm implements CanFrameListener {
     }
 
     public NIDaAlgorithm(NodeID n, CanFrameListener sendInterface) {
+        this(n, sendInterface, null);
+    }
+
+    /**
+     * @param n             node ID to allocate an alias for
+     * @param sendInterface where to send the frames
+     * @param timer         shared timer (usually the interface's). If null, a timer shared
+     *                      by all such instances is used.
+     */
+    public NIDaAlgorithm(NodeID n, CanFrameListener sendInterface, HashedWheelTimer timer) {
         this(n);
         this.sendInterface = sendInterface;
-	if(timer == null ) {
-           timer = new Timer("OpenLCB NIDaAlgorithm Timer");
-	}
+        this.timer = timer != null ? timer : getDefaultTimer();
     }
 
     public void start(Runnable done) {
@@ -56,6 +71,49 @@ public class NIDaAlgorithm implements CanFrameListener {
         scheduleTimer(100);
     }
 
+    /**
+     * Reuses an alias this node held before, e.g. on the same bus before a reconnect, without
+     * the reservation wait: sends the check and reserve frames right away and is complete
+     * when this returns. A node that still uses the alias will object to the check frames;
+     * the caller has to watch for that and reserve a new alias.
+     *
+     * @param alias alias to take.
+     */
+    public void startWithAlias(int alias) {
+        nida.forceAliasValue(alias);
+        index = 0;
+        while (index < 5) {
+            sendInterface.send(nextFrame());
+        }
+    }
+
+    /**
+     * Reserves an alias this node held before, e.g. after a reconnect, with the full check /
+     * reserve sequence of {@link #start}. If another node turns out to use it, goes on with
+     * the next alias as start() does.
+     *
+     * @param alias alias to check first.
+     * @param done  invoked when an alias is reserved.
+     */
+    public void startWithCheck(int alias, Runnable done) {
+        nida.forceAliasValue(alias);
+        index = 0;
+        complete = false;
+        start(done);
+    }
+
+    /**
+     * Marks an alias as reserved without sending anything, e.g. one reserved earlier by an
+     * {@link AliasPool}.
+     *
+     * @param alias alias to take.
+     */
+    public void assumeReserved(int alias) {
+        nida.forceAliasValue(alias);
+        index = 5;
+        complete = true;
+    }
+
     public OpenLcbCanFrame nextFrame() {
         OpenLcbCanFrame f;
         if (index<4) {
@@ -136,8 +194,7 @@ public class NIDaAlgorithm implements CanFrameListener {
     }
 
     public void dispose(){
-       cancelTimer();  // dispose of the timer task
-       timer.cancel();
+       if (task != null) task.cancel();  // dispose of the timer task
        timer = null;
        done = null;
        complete = true;
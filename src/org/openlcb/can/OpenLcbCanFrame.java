@@ -199,6 +199,20 @@ public class OpenLcbCanFrame implements CanFrame {
     data[5] = val[5];
   }
 
+  void setAMD(int alias, NodeID nid) {
+    init(alias);
+    setFrameTypeCAN();
+    setVariableField(AMD_VAR_FIELD);
+    length=6;
+    byte[] val = nid.getContents();
+    data[0] = val[0];
+    data[1] = val[1];
+    data[2] = val[2];
+    data[3] = val[3];
+    data[4] = val[4];
+    data[5] = val[5];
+  }
+
   void setAME(int alias, @Nullable NodeID nid) {
     init(alias);
     setFrameTypeCAN();
@@ -380,7 +394,7 @@ public class OpenLcbCanFrame implements CanFrame {
      * @param first        true if this is the first of the payload
      * @param last         true if this is the lastl of the payload
      */
-  void setDatagram(int[] content, int destAlias, boolean first, boolean last) {
+  void setDatagram(byte[] content, int destAlias, boolean first, boolean last) {
     init(nodeAlias);
     if (last) {
         if (first)
@@ -393,10 +407,8 @@ public class OpenLcbCanFrame implements CanFrame {
         else
             setVariableField((FRAME_FORMAT_ADDRESSED_DATAGRAM_MID << 12 ) | destAlias);
     }
-    length=content.length;
-    for (int i = 0; i< content.length; i++) {
-        data[i] = (byte)(content[i]&0xFF);
-    }
+    length = content.length;
+    System.arraycopy(content, 0, data, 0, content.length);
   }
 
   void setStream(byte[] content, int destAlias) {
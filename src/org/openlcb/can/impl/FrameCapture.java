@@ -0,0 +1,243 @@
+package org.openlcb.can.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+
+/**
+ * Records CAN frames with timestamps into compact binary capture files.
+ * <p>
+ * The capture has two taps, {@link #getInputTap()} for frames received from the network and
+ * {@link #getOutputTap()} for frames sent to it; add them to the input and output hubs of an
+ * {@link OlcbConnection} (see {@link #attach(OlcbConnection)}). Each frame is written as a
+ * fixed size record into a memory-mapped file, so recording a frame does not allocate and
+ * does not do a system call; it keeps up with a fully loaded bus.
+ * <p>
+ * A capture is a sequence of segment files {@code <base>.0000.olcbcap},
+ * {@code <base>.0001.olcbcap}, ...; when a segment is full, the next one is started. If a
+ * segment limit is given, the oldest segments are deleted. Read captures with
+ * {@link FrameReplay}.
+ * <p>
+ * File format (little endian): a {@value #HEADER_SIZE}-byte header with the magic
+ * "OLCBCAP1", the wall clock time of the capture start in msec and the segment sequence
+ * number; then {@value #RECORD_SIZE}-byte records: nanoseconds since capture start (8),
+ * CAN header (4), flags (1), data length (1), data (8, zero padded), reserved (2). A record
+ * with flags == 0 marks the end of the data.
+ */
+public class FrameCapture implements Closeable {
+    private final static Logger logger = Logger.getLogger(FrameCapture.class.getName());
+
+    static final long MAGIC = 0x3150414342434C4FL; // "OLCBCAP1" in little endian
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 24;
+    static final String SUFFIX = ".olcbcap";
+
+    /// Record flag: record is valid (always set).
+    static final int FLAG_VALID = 0x01;
+    /// Record flag: frame was sent by us (output hub) rather than received.
+    static final int FLAG_OUTPUT = 0x02;
+    /// Record flag: extended (29-bit) header.
+    static final int FLAG_EXTENDED = 0x04;
+    /// Record flag: remote transmission request.
+    static final int FLAG_RTR = 0x08;
+
+    /// Default size of one segment file.
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private final File base;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long startMillis;
+    private final long startNanos;
+    private int segmentNumber = -1;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private long frameCount = 0;
+    private boolean closed = false;
+
+    private final CanFrameListener inputTap = new CanFrameListener() {
+        @Override
+        public void send(CanFrame frame) {
+            record(frame, false);
+        }
+    };
+
+    private final CanFrameListener outputTap = new CanFrameListener() {
+        @Override
+        public void send(CanFrame frame) {
+            record(frame, true);
+        }
+    };
+
+    /**
+     * Starts a capture with the default segment size and no segment limit.
+     *
+     * @param base path and name prefix of the segment files.
+     * @throws IOException if the first segment cannot be created.
+     */
+    public FrameCapture(File base) throws IOException {
+        this(base, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * Starts a capture.
+     *
+     * @param base        path and name prefix of the segment files.
+     * @param segmentSize size of each segment file in bytes.
+     * @param maxSegments how many segments to keep on disk; the oldest ones are deleted. 0
+     *                    keeps all.
+     * @throws IOException if the first segment cannot be created.
+     */
+    public FrameCapture(File base, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.base = base;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        nextSegment();
+    }
+
+    /// @return listener to add to the hub of frames received from the network.
+    public CanFrameListener getInputTap() {
+        return inputTap;
+    }
+
+    /// @return listener to add to the hub of frames sent to the network.
+    public CanFrameListener getOutputTap() {
+        return outputTap;
+    }
+
+    /**
+     * Adds the taps to the front of the input and output hubs of a connection, so that the
+     * frames are recorded before they are processed or sent.
+     *
+     * @param connection an established connection.
+     */
+    public void attach(OlcbConnection connection) {
+        connection.getInputHub().addEntry(inputTap, true);
+        connection.getOutputHub().addEntry(outputTap, true);
+    }
+
+    /**
+     * Removes the taps added by {@link #attach(OlcbConnection)}.
+     *
+     * @param connection the connection.
+     */
+    public void detach(OlcbConnection connection) {
+        if (connection.getInputHub() != null) {
+            connection.getInputHub().removeEntry(inputTap);
+        }
+        if (connection.getOutputHub() != null) {
+            connection.getOutputHub().removeEntry(outputTap);
+        }
+    }
+
+    /// @return the number of frames recorded so far.
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /// @return the file of a given segment of a capture.
+    static File segmentFile(File base, int number) {
+        return new File(base.getPath() + String.format(".%04d", number) + SUFFIX);
+    }
+
+    private synchronized void record(CanFrame frame, boolean output) {
+        if (closed) return;
+        if (buffer.remaining() < RECORD_SIZE) {
+            try {
+                nextSegment();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Cannot start new capture segment; capture stopped.",
+                        e);
+                closeQuietly();
+                return;
+            }
+        }
+        int flags = FLAG_VALID;
+        if (output) flags |= FLAG_OUTPUT;
+        if (frame.isExtended()) flags |= FLAG_EXTENDED;
+        if (frame.isRtr()) flags |= FLAG_RTR;
+        int len = Math.min(8, frame.getNumDataElements());
+        int pos = buffer.position();
+        buffer.putLong(pos, System.nanoTime() - startNanos);
+        buffer.putInt(pos + 8, frame.getHeader());
+        buffer.put(pos + 13, (byte) len);
+        for (int i = 0; i < len; ++i) {
+            buffer.put(pos + 14 + i, (byte) frame.getElement(i));
+        }
+        // The flags go last: a reader of a crashed capture sees either a complete record or
+        // the end marker.
+        buffer.put(pos + 12, (byte) flags);
+        buffer.position(pos + RECORD_SIZE);
+        ++frameCount;
+    }
+
+    private void nextSegment() throws IOException {
+        finishSegment();
+        ++segmentNumber;
+        if (maxSegments > 0 && segmentNumber >= maxSegments) {
+            File old = segmentFile(base, segmentNumber - maxSegments);
+            if (old.exists() && !old.delete()) {
+                logger.log(Level.WARNING, "Cannot delete old capture segment {0}", old);
+            }
+        }
+        File f = segmentFile(base, segmentNumber);
+        file = new RandomAccessFile(f, "rw");
+        file.setLength(0);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(MAGIC);
+        buffer.putLong(startMillis);
+        buffer.putInt(segmentNumber);
+        buffer.position(HEADER_SIZE);
+    }
+
+    /// Flushes the current segment and cuts off its unused end.
+    private void finishSegment() throws IOException {
+        if (file == null) return;
+        int used = buffer.position();
+        buffer.force();
+        buffer = null;
+        try {
+            // Not all platforms allow truncating a mapped file; the zero tail is harmless.
+            file.getChannel().truncate(used);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Cannot truncate capture segment", e);
+        }
+        file.close();
+        file = null;
+    }
+
+    private void closeQuietly() {
+        closed = true;
+        try {
+            finishSegment();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing capture segment", e);
+        }
+    }
+
+    /**
+     * Stops the capture and closes the current segment. Frames arriving later are ignored.
+     *
+     * @throws IOException if the segment cannot be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        finishSegment();
+    }
+}
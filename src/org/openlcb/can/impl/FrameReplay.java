@@ -0,0 +1,236 @@
+package org.openlcb.can.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openlcb.OlcbExecution;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.OpenLcbCanFrame;
+import org.openlcb.hub.Hub;
+
+/**
+ * Plays back a capture recorded by {@link FrameCapture}.
+ * <p>
+ * The frames are sent to a {@link CanFrameListener}, for example
+ * {@link org.openlcb.can.CanInterface#frameInput()} to have an interface process the
+ * recorded traffic as if it came from the network, or {@link #toHub(Hub)} to put it on a hub.
+ * The frames are sent with their original timing, faster by a given factor, or as fast as
+ * possible (speed {@link #AS_FAST_AS_POSSIBLE}). By default only the frames that were
+ * received from the network are played back.
+ * <p>
+ * The same frame object is handed to the target for every frame; a target that keeps a frame
+ * beyond the send call has to copy it, e.g. with
+ * {@link OpenLcbCanFrame#OpenLcbCanFrame(CanFrame)}.
+ */
+public class FrameReplay {
+    private final static Logger logger = Logger.getLogger(FrameReplay.class.getName());
+
+    /// Speed value for replaying without any delay between the frames.
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final List<File> segments;
+    private final CanFrameListener target;
+    private double speed = 1.0;
+    private boolean replayInput = true;
+    private boolean replayOutput = false;
+    private volatile boolean stopped = false;
+    private volatile long frameCount = 0;
+
+    /**
+     * @param base   path and name prefix of the capture, as given to {@link FrameCapture}.
+     * @param target where to send the frames.
+     * @throws IOException if there are no segments for this capture.
+     */
+    public FrameReplay(File base, CanFrameListener target) throws IOException {
+        this.segments = findSegments(base);
+        if (segments.isEmpty()) {
+            throw new IOException("No capture files found for " + base);
+        }
+        this.target = target;
+    }
+
+    /**
+     * Sets the replay speed.
+     *
+     * @param speed 1.0 for the original timing, 2.0 for twice as fast, etc.;
+     *              {@link #AS_FAST_AS_POSSIBLE} to not wait between frames.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) throw new IllegalArgumentException("Negative speed: " + speed);
+        this.speed = speed;
+    }
+
+    /**
+     * Selects which frames to play back.
+     *
+     * @param input  frames that were received from the network.
+     * @param output frames that were sent to the network by the capturing node.
+     */
+    public void setDirections(boolean input, boolean output) {
+        this.replayInput = input;
+        this.replayOutput = output;
+    }
+
+    /// @return the number of frames sent so far.
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /// Makes a running replay return after the current frame.
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Plays back the capture on the calling thread.
+     *
+     * @return the number of frames sent.
+     * @throws IOException if a capture file cannot be read or is not a capture.
+     */
+    public long replay() throws IOException {
+        ReplayFrame frame = new ReplayFrame();
+        // One data array per length, so that the frame never holds stale bytes.
+        byte[][] buffers = new byte[9][];
+        for (int i = 0; i < buffers.length; ++i) {
+            buffers[i] = new byte[i];
+        }
+        long startNanos = System.nanoTime();
+        long firstTimestamp = -1;
+        for (File f : segments) {
+            try (RandomAccessFile file = new RandomAccessFile(f, "r")) {
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        0, file.length());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.remaining() < FrameCapture.HEADER_SIZE || buffer.getLong(0) !=
+                        FrameCapture.MAGIC) {
+                    throw new IOException("Not a frame capture file: " + f);
+                }
+                for (int pos = FrameCapture.HEADER_SIZE; pos + FrameCapture.RECORD_SIZE <=
+                        buffer.limit(); pos += FrameCapture.RECORD_SIZE) {
+                    if (stopped) return frameCount;
+                    int flags = buffer.get(pos + 12) & 0xff;
+                    if ((flags & FrameCapture.FLAG_VALID) == 0) break;
+                    boolean output = (flags & FrameCapture.FLAG_OUTPUT) != 0;
+                    if (output ? !replayOutput : !replayInput) continue;
+                    long timestamp = buffer.getLong(pos);
+                    if (firstTimestamp < 0) firstTimestamp = timestamp;
+                    if (speed != AS_FAST_AS_POSSIBLE) {
+                        waitUntil(startNanos + (long) ((timestamp - firstTimestamp) / speed));
+                    }
+                    int len = Math.min(8, buffer.get(pos + 13) & 0xff);
+                    byte[] data = buffers[len];
+                    for (int i = 0; i < len; ++i) {
+                        data[i] = buffer.get(pos + 14 + i);
+                    }
+                    frame.setHeader(buffer.getInt(pos + 8));
+                    frame.setData(data);
+                    frame.extended = (flags & FrameCapture.FLAG_EXTENDED) != 0;
+                    frame.rtr = (flags & FrameCapture.FLAG_RTR) != 0;
+                    target.send(frame);
+                    frameCount++;
+                }
+            }
+        }
+        return frameCount;
+    }
+
+    /**
+     * Plays back the capture on a new thread.
+     *
+     * @param onDone called on the replay thread when the replay finished or failed. May be
+     *               null.
+     */
+    public void start(final Runnable onDone) {
+        OlcbExecution.getDefault().newThread("openlcb-replay", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Error replaying capture", e);
+                }
+                if (onDone != null) onDone.run();
+            }
+        }, true).start();
+    }
+
+    /**
+     * @param hub a hub.
+     * @return a replay target that puts the frames on the hub in GridConnect format.
+     */
+    public static CanFrameListener toHub(final Hub hub) {
+        return new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                hub.putLine(GridConnect.format(frame));
+            }
+        };
+    }
+
+    private void waitUntil(long deadline) {
+        long delta;
+        while (!stopped && (delta = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(delta);
+        }
+    }
+
+    /// @return the segment files of a capture, in order.
+    static List<File> findSegments(File base) {
+        File dir = base.getAbsoluteFile().getParentFile();
+        final String prefix = base.getName() + ".";
+        List<Integer> numbers = new ArrayList<>();
+        String[] names = dir == null ? null : dir.list();
+        if (names != null) {
+            for (String n : names) {
+                if (!n.startsWith(prefix) || !n.endsWith(FrameCapture.SUFFIX)) continue;
+                String num = n.substring(prefix.length(), n.length() - FrameCapture.SUFFIX
+                        .length());
+                try {
+                    numbers.add(Integer.parseInt(num));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(numbers);
+        List<File> ret = new ArrayList<>(numbers.size());
+        for (int n : numbers) {
+            ret.add(FrameCapture.segmentFile(base, n));
+        }
+        return ret;
+    }
+
+    /**
+     * The frame handed to the target. Unlike its base class, also represents standard and
+     * remote frames, which may be in a capture.
+     */
+    private static class ReplayFrame extends OpenLcbCanFrame {
+        boolean extended;
+        boolean rtr;
+
+        ReplayFrame() {
+            super(0);
+        }
+
+        @Override
+        public boolean isExtended() {
+            return extended;
+        }
+
+        @Override
+        public boolean isRtr() {
+            return rtr;
+        }
+    }
+}
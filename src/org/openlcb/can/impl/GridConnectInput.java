@@ -1,9 +1,11 @@
 package org.openlcb.can.impl;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.logging.Logger;
+import org.openlcb.OlcbExecution;
 import org.openlcb.can.CanFrame;
 import org.openlcb.can.CanFrameListener;
 import org.openlcb.implementations.DatagramUtils;
@@ -34,18 +36,22 @@ public class GridConnectInput {
         this.input = input;
         this.listener = listener;
         this.onError = onError;
-        new Thread("openlcb-gc-input") {
+        OlcbExecution.getDefault().newThread("openlcb-gc-input", new Runnable() {
             public void run() {
                 threadBody();
             }
-        }.start();
+        }, false).start();
     }
 
     private void threadBody() {
         try {
             while (true) {
                 // assumption: we are at the end of a frame now.
-                while (input.read() != ':') {
+                int sync;
+                while ((sync = input.read()) != ':') {
+                    if (sync < 0) {
+                        throw new EOFException("connection closed by peer");
+                    }
                 }
                 int typeChar = input.read();
                 if (typeChar == 'X') {
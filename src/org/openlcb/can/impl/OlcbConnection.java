@@ -5,20 +5,36 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.openlcb.Connection;
 import org.openlcb.NodeID;
+import org.openlcb.OlcbExecution;
 import org.openlcb.OlcbInterface;
+import org.openlcb.can.AliasCache;
 import org.openlcb.can.CanFrame;
 import org.openlcb.can.CanFrameListener;
 import org.openlcb.can.CanInterface;
+import org.openlcb.can.OpenLcbCanFrame;
 import org.openlcb.cdi.impl.ConfigRepresentation;
+import org.openlcb.metrics.Counter;
 
 /**
+ * Connects an OpenLCB interface to a GridConnect hub over TCP.
+ * <p>
+ * By default a dropped connection is final: the listeners get onDisconnect and the caller
+ * builds a new connection (and with it a new interface). With {@link #setAutoReconnect}
+ * the connection instead keeps its {@link CanInterface} and {@link OlcbInterface}, with all
+ * their caches and listeners, and reconnects in the background with exponential backoff,
+ * trying the endpoints added by {@link #addEndpoint} in turn. Frames sent during the outage
+ * are buffered up to a limit and sent after the node announced itself again, from its new
+ * alias if the old one was taken meanwhile. The listeners get onConnect once that is done.
+ * <p>
  * Created by bracz on 12/23/15.
  */
 public class OlcbConnection {
@@ -38,6 +54,19 @@ public class OlcbConnection {
     private CanInterface canInterface;
     // TCP-IP connection to the gridconnect server hub.
     private Socket socket;
+    /// Alias state carried over to the next connection; null if fast reconnect is off.
+    private AliasCache aliasCache = null;
+    /// Hubs to connect to when reconnecting automatically, in turn.
+    private final List<InetSocketAddress> endpoints = new ArrayList<>();
+    private int endpointIndex = 0;
+    private boolean autoReconnect = false;
+    private long initialReconnectDelayMsec = 500;
+    private long maxReconnectDelayMsec = 30000;
+    private int outageBufferFrames = 1000;
+    /// Holds the outgoing frames while disconnected; only with auto reconnect.
+    private OutageBuffer outageBuffer = null;
+    /// Set by shutdown(); stops reconnecting.
+    private volatile boolean closed = false;
 
     public OlcbConnection(NodeID nodeId, String
             hostName, int portNumber, ConnectionListener connectionListener) {
@@ -46,14 +75,76 @@ public class OlcbConnection {
         this.listenerProxy = new ListenerProxy();
         this.listenerProxy.add(connectionListener);
         this.nodeId = nodeId;
+        endpoints.add(InetSocketAddress.createUnresolved(hostName, portNumber));
+    }
+
+    /**
+     * Turns automatic reconnection on or off. When on, the interface survives the loss of the
+     * connection: the listeners get onDisconnect, then onConnect again once a hub is reached.
+     * Call before connecting.
+     *
+     * @param enable true to reconnect automatically.
+     */
+    public synchronized void setAutoReconnect(boolean enable) {
+        autoReconnect = enable;
+    }
+
+    /**
+     * Adds a hub to fail over to when reconnecting automatically. Endpoints are tried in the
+     * order added, starting with the one given to the constructor; a connection stays on the
+     * endpoint that worked last.
+     *
+     * @param hostName   host of the hub.
+     * @param portNumber TCP port of the hub.
+     */
+    public synchronized void addEndpoint(String hostName, int portNumber) {
+        endpoints.add(InetSocketAddress.createUnresolved(hostName, portNumber));
+    }
+
+    /**
+     * Sets the delays between reconnection attempts. The delay doubles after each failed
+     * attempt, up to the maximum.
+     *
+     * @param initialMsec delay before the first attempt.
+     * @param maxMsec     longest delay.
+     */
+    public synchronized void setReconnectDelay(long initialMsec, long maxMsec) {
+        initialReconnectDelayMsec = initialMsec;
+        maxReconnectDelayMsec = maxMsec;
+    }
+
+    /**
+     * Sets how many outgoing frames are kept during an outage. Further frames are dropped and
+     * counted in the interface metrics as {@code connection.outage.dropped}. Call before
+     * connecting.
+     *
+     * @param frames maximum number of frames to buffer.
+     */
+    public synchronized void setOutageBufferSize(int frames) {
+        outageBufferFrames = frames;
+    }
+
+    /**
+     * Turns fast reconnect on or off. When on, a connection made after an earlier one reuses
+     * the alias and the alias map of the earlier connection instead of reserving and
+     * discovering them again, so it is ready in a few milliseconds. Call before connecting.
+     *
+     * @param enable true to carry the alias state over to the next connection.
+     */
+    public synchronized void setFastReconnect(boolean enable) {
+        if (!enable) {
+            aliasCache = null;
+        } else if (aliasCache == null) {
+            aliasCache = new AliasCache();
+        }
     }
 
     public void startConnect() {
-        new Thread("openlcb-connect") {
+        OlcbExecution.getDefault().newThread("openlcb-connect", new Runnable() {
             public void run() {
                 connect();
             }
-        }.start();
+        }, false).start();
     }
 
     private Runnable mOnError = new Runnable() {
@@ -69,7 +160,19 @@ public class OlcbConnection {
         }
     };
 
-    private synchronized void connect() {
+    private void connect() {
+        boolean resilient;
+        synchronized (this) {
+            resilient = autoReconnect;
+        }
+        if (resilient) {
+            reconnectLoop(false);
+        } else {
+            connectOnce();
+        }
+    }
+
+    private synchronized void connectOnce() {
         this.inputHub = new CanFrameHub();
         this.outputHub = new CanFrameHub();
         listenerProxy.onConnectionPending();
@@ -92,7 +195,11 @@ public class OlcbConnection {
         outputHub.addEntry(output);
 
         // Creates the actual OpenLCB objects and wires up with the interface.
-        canInterface = new CanInterface(nodeId, outputHub);
+        if (aliasCache != null) {
+            canInterface = new CanInterface(nodeId, outputHub, aliasCache);
+        } else {
+            canInterface = new CanInterface(nodeId, outputHub);
+        }
         inputHub.addEntry(canInterface.frameInput());
         canInterface.addStartListener(new Connection.ConnectionListener() {
             @Override
@@ -103,7 +210,167 @@ public class OlcbConnection {
         lastConnection = this;
     }
 
-    public synchronized void shutdown() {
+    /**
+     * Keeps trying to connect until it works or the connection is shut down.
+     *
+     * @param waitFirst true to wait before the first attempt.
+     */
+    private void reconnectLoop(boolean waitFirst) {
+        long delay;
+        synchronized (this) {
+            delay = initialReconnectDelayMsec;
+        }
+        if (!waitFirst && tryConnect()) return;
+        while (!closed) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (tryConnect()) return;
+            synchronized (this) {
+                delay = Math.min(delay * 2, maxReconnectDelayMsec);
+            }
+        }
+    }
+
+    /**
+     * One connection attempt of the auto reconnect mode. Creates the interface on the first
+     * success; later ones attach the new socket to the existing interface.
+     *
+     * @return true if connected (or shut down meanwhile); false to try again.
+     */
+    private boolean tryConnect() {
+        if (closed) return true;
+        InetSocketAddress endpoint;
+        synchronized (this) {
+            endpoint = endpoints.get(endpointIndex);
+        }
+        listenerProxy.onConnectionPending();
+        listenerProxy.onStatusChange("Connecting to " + endpoint.getHostString() + ":" +
+                endpoint.getPort() + "...");
+        final Socket s;
+        BufferedReader reader;
+        OutputStream outputStream;
+        try {
+            s = new Socket(endpoint.getHostString(), endpoint.getPort());
+            s.setTcpNoDelay(true);
+            reader = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(),"ISO-8859-1"));
+            outputStream = s.getOutputStream();
+        } catch (IOException e) {
+            listenerProxy.onStatusChange("Connection failed: " + e.toString());
+            synchronized (this) {
+                endpointIndex = (endpointIndex + 1) % endpoints.size();
+            }
+            return false;
+        }
+        Runnable onError = new Runnable() {
+            @Override
+            public void run() {
+                connectionLost(s);
+            }
+        };
+        boolean first;
+        GridConnectOutput newOutput;
+        synchronized (this) {
+            if (closed) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+                return true;
+            }
+            socket = s;
+            hostName = endpoint.getHostString();
+            portNumber = endpoint.getPort();
+            first = canInterface == null;
+            if (first) {
+                inputHub = new CanFrameHub();
+                outputHub = new CanFrameHub();
+                outageBuffer = new OutageBuffer(outageBufferFrames);
+                outputHub.addEntry(outageBuffer);
+                if (aliasCache != null) {
+                    canInterface = new CanInterface(nodeId, outputHub, aliasCache);
+                } else {
+                    canInterface = new CanInterface(nodeId, outputHub);
+                }
+                outageBuffer.setCounters(canInterface.getInterface().getMetrics());
+                inputHub.addEntry(canInterface.frameInput());
+                lastConnection = this;
+            }
+            output = newOutput = new GridConnectOutput(outputStream, onError);
+            input = new GridConnectInput(reader, inputHub, onError);
+        }
+        if (first) {
+            outageBuffer.attach(newOutput, false);
+            canInterface.addStartListener(new Connection.ConnectionListener() {
+                @Override
+                public void connectionActive(Connection c) {
+                    listenerProxy.onConnect();
+                }
+            });
+        } else {
+            final OutageBuffer buffer = outageBuffer;
+            final CanInterface iface = canInterface;
+            final int oldAlias = iface.getLocalAlias();
+            buffer.attach(newOutput, true);
+            // Outside the buffer's lock: the reservation waits for objections from the bus.
+            iface.reannounce(new CanFrameListener() {
+                @Override
+                public void send(CanFrame frame) {
+                    buffer.sendAhead(frame);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    buffer.release(oldAlias, iface.getLocalAlias());
+                    listenerProxy.onStatusChange("Reconnected.");
+                    listenerProxy.onConnect();
+                }
+            });
+        }
+        return true;
+    }
+
+    /// Called from the input or output of a socket in auto reconnect mode when it fails.
+    private void connectionLost(Socket s) {
+        synchronized (this) {
+            if (s != socket) return; // already handled
+            socket = null;
+            input = null;
+            output = null;
+        }
+        outageBuffer.detach();
+        try {
+            s.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+        listenerProxy.onDisconnect();
+        if (closed) return;
+        OlcbExecution.getDefault().newThread("openlcb-reconnect", new Runnable() {
+            public void run() {
+                reconnectLoop(true);
+            }
+        }, true).start();
+    }
+
+    public void shutdown() {
+        closed = true;
+        OutageBuffer b;
+        synchronized (this) {
+            b = outageBuffer;
+        }
+        // Outside our lock: a failing send holds the buffer's lock while it reports the error.
+        if (b != null) {
+            b.detach();
+        }
+        closeHubs();
+    }
+
+    private synchronized void closeHubs() {
         if (inputHub != null) {
             inputHub.clear();
             inputHub = null;
@@ -271,6 +538,104 @@ public class OlcbConnection {
         }
     }
 
+    /**
+     * Passes the outgoing frames to the current connection, and keeps them while there is
+     * none, or while the node announces itself again after a reconnect.
+     */
+    private static class OutageBuffer implements CanFrameListener {
+        private final int capacity;
+        private final ArrayDeque<CanFrame> backlog = new ArrayDeque<>();
+        private CanFrameListener target = null;
+        /// True while frames are kept although a connection is attached.
+        private boolean held = false;
+        private Counter dropped = new Counter();
+        private Counter reconnects = new Counter();
+
+        OutageBuffer(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void setCounters(org.openlcb.metrics.MetricsRegistry metrics) {
+            dropped = metrics.counter("connection.outage.dropped");
+            reconnects = metrics.counter("connection.reconnects");
+        }
+
+        @Override
+        public synchronized void send(CanFrame frame) {
+            if (target != null && !held) {
+                target.send(frame);
+            } else if (backlog.size() < capacity) {
+                backlog.add(frame);
+            } else {
+                dropped.inc();
+            }
+        }
+
+        /**
+         * Starts sending to a new connection.
+         *
+         * @param t    the new connection.
+         * @param hold true to keep the frames until {@link #release}; only those given to
+         *             {@link #sendAhead} go out meanwhile.
+         */
+        synchronized void attach(CanFrameListener t, boolean hold) {
+            target = t;
+            held = hold;
+            if (hold) {
+                reconnects.inc();
+            } else {
+                flush();
+            }
+        }
+
+        /// Sends a frame to the connection ahead of the kept ones; drops it if there is none.
+        synchronized void sendAhead(CanFrame frame) {
+            if (target != null) {
+                target.send(frame);
+            }
+        }
+
+        /**
+         * Sends the kept frames, and the later ones as they come. If the node had to change its
+         * alias, the kept message frames are sent from the new alias and the kept control
+         * frames of the old alias are dropped.
+         *
+         * @param oldAlias alias the kept frames were built with, or -1 if unknown.
+         * @param newAlias alias the node holds now.
+         */
+        synchronized void release(int oldAlias, int newAlias) {
+            held = false;
+            if (oldAlias >= 0 && newAlias >= 0 && oldAlias != newAlias) {
+                readdress(oldAlias, newAlias);
+            }
+            flush();
+        }
+
+        private void readdress(int oldAlias, int newAlias) {
+            int n = backlog.size();
+            for (int i = 0; i < n; ++i) {
+                CanFrame f = backlog.poll();
+                if ((f.getHeader() & 0xFFF) != oldAlias) {
+                    backlog.add(f);
+                } else if ((f.getHeader() & 0x08000000) != 0) {
+                    OpenLcbCanFrame copy = new OpenLcbCanFrame(f);
+                    copy.setHeader((f.getHeader() & ~0xFFF) | newAlias);
+                    backlog.add(copy);
+                }
+            }
+        }
+
+        private void flush() {
+            while (target != null && !backlog.isEmpty()) {
+                target.send(backlog.poll());
+            }
+        }
+
+        synchronized void detach() {
+            target = null;
+        }
+    }
+
     public void dispose(){
        canInterface.dispose();
     }
@@ -0,0 +1,96 @@
+package org.openlcb.cdi.cmd;
+
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.openlcb.Utilities;
+import org.openlcb.cdi.CdiRep;
+import org.openlcb.cdi.impl.ConfigRepresentation;
+import org.openlcb.cdi.impl.ConfigSnapshot;
+import org.openlcb.cdi.sax.SaxCdiReader;
+
+/**
+ * Compares two binary config snapshots (see {@link ConfigSnapshot}) of nodes with the same CDI
+ * and prints the variables that differ.
+ */
+public class DiffConfig {
+
+    /**
+     * Renders the raw bytes of a variable for display.
+     *
+     * @param e    the variable (for its type)
+     * @param data raw bytes, or null if missing
+     * @return user-visible rendering of the value.
+     */
+    static String renderValue(@Nullable ConfigRepresentation.CdiEntry e, @Nullable byte[] data) {
+        if (data == null) return "(missing)";
+        if (e instanceof ConfigRepresentation.IntegerEntry) {
+            long v = 0;
+            for (byte b : data) {
+                v = (v << 8) | (b & 0xff);
+            }
+            return Long.toString(v);
+        } else if (e instanceof ConfigRepresentation.StringEntry) {
+            int len = 0;
+            while (len < data.length && data[len] != 0) ++len;
+            return Util.escapeString(new String(data, 0, len, Charset.forName("UTF-8")));
+        }
+        return Utilities.toHexDotsString(data);
+    }
+
+    /**
+     * Prints the differences between two snapshots.
+     *
+     * @param repr a representation of the common CDI (used for the layout and value types).
+     * @param a    old snapshot
+     * @param b    new snapshot
+     * @param out  where to print
+     * @return the number of differing variables.
+     */
+    public static int printDiff(ConfigRepresentation repr, ConfigSnapshot a, ConfigSnapshot b,
+                                java.io.PrintStream out) {
+        List<ConfigSnapshot.Difference> diffs = ConfigSnapshot.diff(new ConfigSnapshot.Layout
+                (repr), a, b);
+        for (ConfigSnapshot.Difference d : diffs) {
+            ConfigRepresentation.CdiEntry e = repr.getVariableForKey(d.key);
+            out.println(Util.escapeString(d.key) + ": " + renderValue(e, d.oldData) + " -> " +
+                    renderValue(e, d.newData));
+        }
+        return diffs.size();
+    }
+
+    // Main entry point
+    static public void main(String[] args) {
+        if (args.length != 3) {
+            usage();
+            return;
+        }
+        try {
+            CdiRep cdi;
+            try (Reader r = Files.newBufferedReader(Paths.get(args[0]), Charset.forName
+                    ("UTF-8"))) {
+                cdi = SaxCdiReader.getRep(r);
+            }
+            ConfigSnapshot a = ConfigSnapshot.readFromFile(Paths.get(args[1]));
+            ConfigSnapshot b = ConfigSnapshot.readFromFile(Paths.get(args[2]));
+            ConfigRepresentation repr = new ConfigRepresentation(a.getReadWriteAccess(), cdi);
+            int count = printDiff(repr, a, b, System.out);
+            System.out.println(count + " variables differ.");
+            System.exit(count == 0 ? 0 : 2);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        String usageString = "usage: diffconfig cdi_filename snapshot_a snapshot_b\n";
+        System.err.print(usageString);
+    }
+}
@@ -8,10 +8,11 @@ import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
-import org.openlcb.EventID;
 import org.openlcb.NodeID;
 import org.openlcb.can.impl.OlcbConnection;
 import org.openlcb.cdi.impl.ConfigRepresentation;
+import org.openlcb.cdi.impl.ConfigSnapshot;
+import org.openlcb.cdi.impl.ConfigSync;
 
 /**
  * Created by bracz on 4/9/16.
@@ -73,28 +74,15 @@ public class RestoreConfig {
         Util.waitForPropertyChange(repr, ConfigRepresentation.UPDATE_REP);
         System.out.println("CDI fetch done. Waiting for caches.");
         Util.waitForPropertyChange(repr, ConfigRepresentation.UPDATE_CACHE_COMPLETE);
-        System.out.println("Caches complete. Writing variables to the node.");
+        System.out.println("Caches complete. Comparing with the backup.");
+        final ConfigSync sync = new ConfigSync(repr);
+        final ConfigSnapshot desired = sync.createDesiredSnapshot();
         parseConfigFromFile(srcFileName, new ConfigCallback() {
             @Override
             public void onConfigEntry(String key, String value) {
-                ConfigRepresentation.CdiEntry e = repr.getVariableForKey(key);
-                if (e == null) {
-                    System.out.println("Variable not found: " + key);
-                    return;
+                if (!sync.setValue(desired, key, value)) {
+                    System.out.println("Variable not found or not valid: " + key);
                 }
-                if (e instanceof ConfigRepresentation.EventEntry) {
-                    ((ConfigRepresentation.EventEntry) e).setValue(new EventID(value));
-                } else if (e instanceof ConfigRepresentation.IntegerEntry) {
-                    ((ConfigRepresentation.IntegerEntry) e).setValue(Long.parseLong(value));
-                } else if (e instanceof ConfigRepresentation.StringEntry) {
-                    ((ConfigRepresentation.StringEntry) e).setValue(value);
-                } else {
-                    System.out.println("Unknown variable type: " + e.getClass().getName() + " for" +
-                            " key: " + key);
-                    return;
-                }
-                Util.waitForPropertyChange(e, ConfigRepresentation.UPDATE_WRITE_COMPLETE);
-                System.out.print(e.key + "\n"); System.out.flush();
             }
 
             @Override
@@ -103,6 +91,36 @@ public class RestoreConfig {
                 System.exit(1);
             }
         });
+        final Object done = new Object();
+        final ConfigSync.Result[] result = new ConfigSync.Result[1];
+        sync.sync(desired, new ConfigSync.Listener() {
+            @Override
+            public void onComplete(ConfigSync.Result r) {
+                synchronized (done) {
+                    result[0] = r;
+                    done.notify();
+                }
+            }
+        });
+        synchronized (done) {
+            while (result[0] == null) {
+                try {
+                    done.wait();
+                } catch (InterruptedException e) {
+                    logger.log(Level.SEVERE, "Interrupted while writing the config.");
+                    System.exit(1);
+                }
+            }
+        }
+        for (ConfigSnapshot.Difference d : result[0].changes) {
+            System.out.println(d.key);
+        }
+        System.out.println(result[0].changes.size() + " variables changed using " + result[0]
+                .writes.size() + " writes.");
+        if (!result[0].isSuccess()) {
+            System.err.println(result[0].failedWrites.size() + " writes failed.");
+            System.exit(1);
+        }
         System.out.println("Done.");
         System.exit(0);
     }
@@ -3,7 +3,6 @@ package org.openlcb.cdi.impl;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.io.Reader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
@@ -21,8 +20,8 @@ import org.openlcb.OlcbInterface;
 import org.openlcb.Utilities;
 import org.openlcb.cdi.CdiRep;
 import org.openlcb.cdi.jdom.CdiMemConfigReader;
-import org.openlcb.cdi.jdom.JdomCdiReader;
-import org.openlcb.cdi.jdom.XmlHelper;
+import org.openlcb.cdi.sax.SaxCdiReader;
+import org.openlcb.cdi.sax.SaxCdiRep;
 import org.openlcb.implementations.MemoryConfigurationService;
 
 /**
@@ -57,6 +56,8 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
     private final Map<String, CdiEntry> variables = new HashMap<>();
     // Last time the progressbar was updated from the load.
     private long lastProgress;
+    // True after all the caches have been pre-filled.
+    private volatile boolean cacheComplete = false;
 
 
     /**
@@ -83,12 +84,29 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
     public @Nullable NodeID getRemoteNodeID() { return remoteNodeID; }
 
     /**
-     * Retrieves the CDI from the remote node, and if successful, calls @link parseRep.
+     * Retrieves the CDI from the remote node. Each segment is turned into its internal
+     * representation, with its variables registered in the caches, as soon as it is closed
+     * in the download; the caches are filled once the CDI is complete.
      */
     private void triggerFetchCdi() {
+        // The CDI is parsed incrementally while it is being downloaded.
+        final List<CdiEntry> segments = new ArrayList<>();
+        variables.clear();
+        final SaxCdiReader parser = new SaxCdiReader(new SaxCdiRep.Listener() {
+            @Override
+            public void identificationComplete(CdiRep.Identification id) {
+            }
+
+            @Override
+            public void segmentComplete(CdiRep.Segment segment) {
+                SegmentEntry e = new SegmentEntry(segment);
+                registerVariables(e);
+                segments.add(e);
+            }
+        });
         new CdiMemConfigReader(remoteNodeID, connection,
-                MemoryConfigurationService.SPACE_CDI).startLoadReader(new CdiMemConfigReader
-                .ReaderAccess() {
+                MemoryConfigurationService.SPACE_CDI).startLoadChunks(new CdiMemConfigReader
+                .ChunkAccess() {
 
             @Override
             public void progressNotify(long bytesRead, long totalBytes) {
@@ -102,20 +120,47 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
             }
 
             @Override
-            public void provideReader(Reader r) {
+            public void provideData(byte[] data, int offset, int length) {
+                parser.feed(data, offset, length);
+            }
+
+            @Override
+            public void endOfData() {
                 try {
-                    cdiRep = new JdomCdiReader().getRep(XmlHelper.parseXmlFromReader(r));
+                    cdiRep = parser.finish();
                 } catch (Exception e) {
                     String error = "Failed to parse CDI output: " + e.toString();
                     logger.warning(error);
+                    discardVariables();
                     setState(error);
                     return;
                 }
-                parseRep();
+                root = new Root(cdiRep, segments);
+                setState("Representation complete.");
+                fillCaches();
+                firePropertyChange(UPDATE_REP, null, root);
+            }
+
+            @Override
+            public void loadFailed(int errorCode) {
+                if (parser.isComplete()) {
+                    // The CDI filled the space without a terminating null; the read past its
+                    // end failed.
+                    endOfData();
+                    return;
+                }
+                discardVariables();
+                setState("Failed to load CDI: error 0x" + Integer.toHexString(errorCode));
             }
         });
     }
 
+    /// Forgets the variables and caches registered by the segments of a failed download.
+    private synchronized void discardVariables() {
+        variables.clear();
+        spaces.clear();
+    }
+
     private void parseRep() {
         root = new Root(cdiRep);
         setState("Representation complete.");
@@ -135,6 +180,7 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
                     .UPDATE_LOADING_COMPLETE)) {
                 synchronized (this) {
                     if (--pendingCacheFills == 0) {
+                        cacheComplete = true;
                         firePropertyChange(UPDATE_CACHE_COMPLETE, null, null);
                         for (MemorySpaceCache sp : spaces.values()) {
                             sp.removePropertyChangeListener(prefillListener);
@@ -147,24 +193,39 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
 
     private void prefillCaches() {
         variables.clear();
-        visit(new Visitor() {
-                  @Override
-                  public void visitLeaf(final CdiEntry e) {
-                      variables.put(e.key, e);
-                      boolean nullTerminated = e.isNullTerminated();
-                      MemorySpaceCache cache = getCacheForSpace(e.space);
-                      cache.addRangeToCache(e.origin, e.origin + e.size, nullTerminated);
-                      cache.addRangeListener(e.origin, e.origin + e.size, nullTerminated, new
-                              PropertyChangeListener() {
-                                  @Override
-                                  public void propertyChange(PropertyChangeEvent event) {
-                                      e.fireUpdate();
-                                  }
-                              });
-                  }
-              }
-        );
+        for (CdiEntry e : root.getEntries()) {
+            registerVariables(e);
+        }
+        fillCaches();
+    }
+
+    /// Adds the variables under an entry to the lookup table and to the caches to fill.
+    private void registerVariables(CdiEntry entry) {
+        new Visitor() {
+            @Override
+            public void visitLeaf(final CdiEntry e) {
+                variables.put(e.key, e);
+                boolean nullTerminated = e.isNullTerminated();
+                MemorySpaceCache cache = getCacheForSpace(e.space);
+                cache.addRangeToCache(e.origin, e.origin + e.size, nullTerminated);
+                cache.addRangeListener(e.origin, e.origin + e.size, nullTerminated, new
+                        PropertyChangeListener() {
+                            @Override
+                            public void propertyChange(PropertyChangeEvent event) {
+                                e.fireUpdate();
+                            }
+                        });
+            }
+        }.visitEntry(entry);
+    }
+
+    /// Starts loading all registered ranges of all caches.
+    private void fillCaches() {
+        cacheComplete = false;
         pendingCacheFills = spaces.size();
+        if (pendingCacheFills == 0) {
+            cacheComplete = true;
+        }
         for (MemorySpaceCache sp : spaces.values()) {
             sp.addPropertyChangeListener(prefillListener);
             // This will send off the first read, then continue asynchronously.
@@ -177,6 +238,14 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
         prefillCaches();
     }
 
+    /**
+     * @return true if all memory caches have been filled, i.e. {@link #UPDATE_CACHE_COMPLETE}
+     * has already been fired.
+     */
+    public boolean isCacheComplete() {
+        return cacheComplete;
+    }
+
     /**
      * @return the internal representation of the root entry. The root entry contains all
      * segments as children.
@@ -212,6 +281,13 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
         }
     }
 
+    /**
+     * @return the memory space caches created for this node, keyed by space number.
+     */
+    synchronized Map<Integer, MemorySpaceCache> getCachedSpaces() {
+        return new TreeMap<>(spaces);
+    }
+
     /**
      * Performs a visitation of the entire tree (starting at the root node).
      * @param v is an implementation of a tree Visitor.
@@ -404,6 +480,15 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
             }
         }
 
+        /**
+         * @param rep      the CDI representation
+         * @param segments the internal representations of the segments of rep, in order.
+         */
+        Root(CdiRep rep, List<CdiEntry> segments) {
+            items = segments;
+            this.rep = rep;
+        }
+
         @Override
         public List<CdiEntry> getEntries() {
             return items;
@@ -595,12 +680,17 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
 
         public void setValue(long value) {
             MemorySpaceCache cache = getCacheForSpace(space);
+            cache.write(origin, encode(value), this);
+        }
+
+        /// @return the bytes that setValue writes for a value.
+        byte[] encode(long value) {
             byte[] b = new byte[size];
             for (int i = size - 1; i >= 0; --i) {
                 b[i] = (byte)(value & 0xff);
                 value >>= 8;
             }
-            cache.write(origin, b, this);
+            return b;
         }
     }
 
@@ -642,10 +732,15 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
 
         public void setValue(EventID event) {
             MemorySpaceCache cache = getCacheForSpace(space);
-            byte[] b = event.getContents();
+            byte[] b = encode(event);
             if (b == null) return;
             cache.write(origin, b, this);
         }
+
+        /// @return the bytes that setValue writes for an event ID.
+        byte[] encode(EventID event) {
+            return event.getContents();
+        }
     }
 
     /**
@@ -692,11 +787,17 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
 
         public void setValue(String value) {
             MemorySpaceCache cache = getCacheForSpace(space);
+            cache.write(this.origin, encode(value), this);
+        }
+
+        /// @return the bytes that setValue writes for a string, including the terminator if
+        /// it fits.
+        byte[] encode(String value) {
             byte[] f;
             f = value.getBytes(UTF8);
             byte[] b = new byte[Math.min(size, f.length + 1)];
             System.arraycopy(f, 0, b, 0, Math.min(f.length, b.length - 1));
-            cache.write(this.origin, b, this);
+            return b;
         }
     }
 
@@ -0,0 +1,533 @@
+package org.openlcb.cdi.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+import org.openlcb.NodeID;
+import org.openlcb.implementations.MemoryConfigurationService;
+
+/**
+ * Binary snapshot of the configuration memory of a node. Stores the raw memory images of each
+ * space (as they were cached by the {@link MemorySpaceCache}s of a {@link ConfigRepresentation})
+ * together with a hash of the CDI layout.
+ * <p>
+ * File format (all numbers big-endian):
+ * <pre>
+ *   "OLCBSNAP"  magic, 8 bytes
+ *   int         format version (1)
+ *   byte[6]     node ID (zeros if unknown)
+ *   long        timestamp, milliseconds since epoch
+ *   byte, byte[] length and contents of the CDI layout hash
+ *   int         number of spaces, then per space:
+ *     int         space number
+ *     int         number of blocks, then per block:
+ *       long        start address
+ *       int         length
+ *       byte[]      data
+ * </pre>
+ * Large files are memory-mapped on load; the blocks then point directly into the mapping.
+ * <p>
+ * Use {@link #getReadWriteAccess()} to create a {@link ConfigRepresentation} that is filled
+ * from the snapshot without any network traffic, and {@link Layout} / {@link #diff} to compare
+ * two snapshots of the same CDI per entry key.
+ */
+public class ConfigSnapshot {
+    private static final byte[] MAGIC = "OLCBSNAP".getBytes(Charset.forName("US-ASCII"));
+    private static final int VERSION = 1;
+    /// Snapshot files at least this large are memory-mapped instead of read into the heap.
+    static final long MMAP_THRESHOLD = 64 * 1024;
+    /// Error code reported when a read is outside the data stored in the snapshot.
+    public static final int ERROR_NOT_IN_SNAPSHOT = 0x1000;
+    /// Orders the locking of two snapshots whose identity hashes are equal.
+    private static final Object TIE_LOCK = new Object();
+
+    private final NodeID node;
+    private final long timestamp;
+    private final byte[] cdiHash;
+    /// Space number -> (start address -> data block).
+    private final NavigableMap<Integer, NavigableMap<Long, ByteBuffer>> spaces = new TreeMap<>();
+
+    /**
+     * Creates an empty snapshot.
+     *
+     * @param node      which node the data belongs to, or null if unknown.
+     * @param timestamp when the data was taken, milliseconds since epoch.
+     * @param cdiHash   hash of the CDI layout, see {@link Layout#getHash()}.
+     */
+    public ConfigSnapshot(@Nullable NodeID node, long timestamp, byte[] cdiHash) {
+        this.node = node;
+        this.timestamp = timestamp;
+        this.cdiHash = cdiHash.clone();
+    }
+
+    /**
+     * Captures the current contents of the caches of a configuration representation.
+     *
+     * @param rep a representation whose caches are filled (i.e. after
+     *            {@link ConfigRepresentation#UPDATE_CACHE_COMPLETE} was fired).
+     * @return a new snapshot holding a copy of all cached memory.
+     */
+    public static ConfigSnapshot fromRepresentation(ConfigRepresentation rep) {
+        ConfigSnapshot s = new ConfigSnapshot(rep.getRemoteNodeID(), System.currentTimeMillis(),
+                new Layout(rep).getHash());
+        for (Map.Entry<Integer, MemorySpaceCache> e : rep.getCachedSpaces().entrySet()) {
+            for (Map.Entry<Long, byte[]> b : e.getValue().getCachedData().entrySet()) {
+                s.putBlock(e.getKey(), b.getKey(), b.getValue());
+            }
+        }
+        return s;
+    }
+
+    public @Nullable NodeID getNodeID() {
+        return node;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public byte[] getCdiHash() {
+        return cdiHash.clone();
+    }
+
+    /// @return the space numbers that have data in this snapshot.
+    public synchronized List<Integer> getSpaces() {
+        return new ArrayList<>(spaces.keySet());
+    }
+
+    /**
+     * Adds (or replaces) a block of memory data.
+     *
+     * @param space   memory space number
+     * @param address address of the first byte
+     * @param data    contents; the array is not copied.
+     */
+    public synchronized void putBlock(int space, long address, byte[] data) {
+        NavigableMap<Long, ByteBuffer> blocks = spaces.get(space);
+        if (blocks == null) {
+            blocks = new TreeMap<>();
+            spaces.put(space, blocks);
+        }
+        blocks.put(address, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Finds the blocks holding a given byte range. A range may span several adjacent blocks,
+     * e.g. when the caches stored neighbouring variables separately.
+     *
+     * @return the block entries covering the range in address order, or null if some byte of
+     * the range is not stored.
+     */
+    private List<Map.Entry<Long, ByteBuffer>> findBlocks(int space, long address, int len) {
+        NavigableMap<Long, ByteBuffer> blocks = spaces.get(space);
+        if (blocks == null) return null;
+        List<Map.Entry<Long, ByteBuffer>> ret = new ArrayList<>(1);
+        long pos = address;
+        long end = address + len;
+        do {
+            Map.Entry<Long, ByteBuffer> e = blocks.floorEntry(pos);
+            if (e == null) return null;
+            long blockEnd = e.getKey() + e.getValue().remaining();
+            if (blockEnd < end && blockEnd <= pos) return null;
+            ret.add(e);
+            pos = blockEnd;
+        } while (pos < end);
+        return ret;
+    }
+
+    /**
+     * Reads data from the snapshot.
+     *
+     * @param space   memory space number
+     * @param address first byte to read
+     * @param len     number of bytes
+     * @return a copy of the data, or null if the snapshot does not contain the entire range.
+     */
+    public synchronized @Nullable byte[] read(int space, long address, int len) {
+        List<Map.Entry<Long, ByteBuffer>> l = findBlocks(space, address, len);
+        if (l == null) return null;
+        byte[] ret = new byte[len];
+        int done = 0;
+        for (Map.Entry<Long, ByteBuffer> e : l) {
+            ByteBuffer b = e.getValue().duplicate();
+            int offset = (int) (address + done - e.getKey());
+            int n = Math.min(len - done, b.remaining() - offset);
+            b.position(b.position() + offset);
+            b.get(ret, done, n);
+            done += n;
+        }
+        return ret;
+    }
+
+    /**
+     * Compares a byte range in this snapshot with the same range in another one.
+     *
+     * @return true if both snapshots contain the range with identical contents.
+     */
+    boolean rangeEquals(ConfigSnapshot other, int space, long address, int len) {
+        // Both snapshots are locked, always in the same order, so that a.diff(b) and b.diff(a)
+        // running at the same time cannot deadlock.
+        int ha = System.identityHashCode(this);
+        int hb = System.identityHashCode(other);
+        ConfigSnapshot first = ha <= hb ? this : other;
+        ConfigSnapshot second = ha <= hb ? other : this;
+        if (ha == hb && this != other) {
+            synchronized (TIE_LOCK) {
+                synchronized (first) {
+                    synchronized (second) {
+                        return rangeEqualsLocked(other, space, address, len);
+                    }
+                }
+            }
+        }
+        synchronized (first) {
+            synchronized (second) {
+                return rangeEqualsLocked(other, space, address, len);
+            }
+        }
+    }
+
+    /// Compares a byte range. Must hold the locks of both snapshots.
+    private boolean rangeEqualsLocked(ConfigSnapshot other, int space, long address, int len) {
+        List<Map.Entry<Long, ByteBuffer>> la = findBlocks(space, address, len);
+        List<Map.Entry<Long, ByteBuffer>> lb = other.findBlocks(space, address, len);
+        if (la == null || lb == null) return la == lb;
+        if (la.size() > 1 || lb.size() > 1) {
+            return Arrays.equals(read(space, address, len), other.read(space, address, len));
+        }
+        Map.Entry<Long, ByteBuffer> a = la.get(0);
+        Map.Entry<Long, ByteBuffer> b = lb.get(0);
+        int pa = a.getValue().position() + (int) (address - a.getKey());
+        int pb = b.getValue().position() + (int) (address - b.getKey());
+        for (int i = 0; i < len; ++i) {
+            if (a.getValue().get(pa + i) != b.getValue().get(pb + i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Updates data in the snapshot. Only bytes inside existing blocks are changed.
+     *
+     * @return true if the entire range was inside stored blocks.
+     */
+    synchronized boolean update(int space, long address, byte[] data) {
+        List<Map.Entry<Long, ByteBuffer>> l = findBlocks(space, address, data.length);
+        if (l == null) return false;
+        int done = 0;
+        for (Map.Entry<Long, ByteBuffer> e : l) {
+            ByteBuffer b = e.getValue();
+            if (b.isReadOnly()) {
+                // Detach this block from the mapped file before modifying it.
+                byte[] copy = new byte[b.remaining()];
+                b.duplicate().get(copy);
+                b = ByteBuffer.wrap(copy);
+                spaces.get(space).put(e.getKey(), b);
+            }
+            ByteBuffer d = b.duplicate();
+            int offset = (int) (address + done - e.getKey());
+            int n = Math.min(data.length - done, d.remaining() - offset);
+            d.position(d.position() + offset);
+            d.put(data, done, n);
+            done += n;
+        }
+        return true;
+    }
+
+    /**
+     * @return an access object that serves reads (and writes) from the snapshot data. Passing
+     * this to the {@link ConfigRepresentation} constructor fills all caches synchronously.
+     */
+    public ReadWriteAccess getReadWriteAccess() {
+        return new ReadWriteAccess() {
+            @Override
+            public void doWrite(long address, int space, byte[] data, MemoryConfigurationService
+                    .McsWriteHandler handler) {
+                if (update(space, address, data)) {
+                    handler.handleSuccess();
+                } else {
+                    handler.handleFailure(ERROR_NOT_IN_SNAPSHOT);
+                }
+            }
+
+            @Override
+            public void doRead(long address, int space, int length, MemoryConfigurationService
+                    .McsReadHandler handler) {
+                byte[] data = read(space, address, length);
+                if (data == null) {
+                    handler.handleFailure(ERROR_NOT_IN_SNAPSHOT);
+                } else {
+                    handler.handleReadData(node, space, address, data);
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes the snapshot to a file in the binary format.
+     *
+     * @param file destination path; will be overwritten.
+     * @throws IOException on write errors.
+     */
+    public void writeToFile(Path file) throws IOException {
+        try (OutputStream os = Files.newOutputStream(file)) {
+            write(os);
+        }
+    }
+
+    /**
+     * Writes the snapshot to a stream in the binary format.
+     *
+     * @param os output stream; will be flushed but not closed.
+     * @throws IOException on write errors.
+     */
+    public synchronized void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 65536));
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.write(node != null ? node.getContents() : new byte[6]);
+        out.writeLong(timestamp);
+        out.writeByte(cdiHash.length);
+        out.write(cdiHash);
+        out.writeInt(spaces.size());
+        for (Map.Entry<Integer, NavigableMap<Long, ByteBuffer>> s : spaces.entrySet()) {
+            out.writeInt(s.getKey());
+            out.writeInt(s.getValue().size());
+            for (Map.Entry<Long, ByteBuffer> b : s.getValue().entrySet()) {
+                ByteBuffer d = b.getValue();
+                out.writeLong(b.getKey());
+                out.writeInt(d.remaining());
+                if (d.hasArray()) {
+                    out.write(d.array(), d.arrayOffset() + d.position(), d.remaining());
+                } else {
+                    byte[] tmp = new byte[d.remaining()];
+                    d.duplicate().get(tmp);
+                    out.write(tmp);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Loads a snapshot from a file. Files larger than {@link #MMAP_THRESHOLD} are
+     * memory-mapped, and the data blocks are not copied into the heap.
+     *
+     * @param file source path.
+     * @return the loaded snapshot.
+     * @throws IOException if the file cannot be read or is not a valid snapshot.
+     */
+    public static ConfigSnapshot readFromFile(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer buf;
+            if (size >= MMAP_THRESHOLD) {
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buf = ByteBuffer.allocate((int) size);
+                while (buf.hasRemaining() && ch.read(buf) >= 0) {}
+                buf.flip();
+            }
+            return read(buf);
+        }
+    }
+
+    /**
+     * Parses a snapshot from a buffer. The data blocks of the returned snapshot are slices of
+     * the buffer.
+     *
+     * @param buf the binary snapshot contents.
+     * @return the parsed snapshot.
+     * @throws IOException if the data is not a valid snapshot.
+     */
+    public static ConfigSnapshot read(ByteBuffer buf) throws IOException {
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buf.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a config snapshot file.");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported config snapshot version " + version);
+            }
+            byte[] nid = new byte[6];
+            buf.get(nid);
+            boolean hasNode = false;
+            for (byte b : nid) {
+                if (b != 0) hasNode = true;
+            }
+            long timestamp = buf.getLong();
+            byte[] hash = new byte[buf.get() & 0xff];
+            buf.get(hash);
+            ConfigSnapshot s = new ConfigSnapshot(hasNode ? new NodeID(nid) : null, timestamp,
+                    hash);
+            int numSpaces = buf.getInt();
+            for (int i = 0; i < numSpaces; ++i) {
+                int space = buf.getInt();
+                int numBlocks = buf.getInt();
+                NavigableMap<Long, ByteBuffer> blocks = new TreeMap<>();
+                for (int j = 0; j < numBlocks; ++j) {
+                    long address = buf.getLong();
+                    int len = buf.getInt();
+                    if (len < 0 || len > buf.remaining()) {
+                        throw new IOException("Truncated config snapshot.");
+                    }
+                    ByteBuffer d = buf.slice();
+                    d.limit(len);
+                    blocks.put(address, d.asReadOnlyBuffer());
+                    buf.position(buf.position() + len);
+                }
+                s.spaces.put(space, blocks);
+            }
+            return s;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated config snapshot.", e);
+        }
+    }
+
+    /**
+     * Flattened list of the leaf entries of a CDI: key, space, address and size of every
+     * variable. Computing it once per CDI allows comparing any number of snapshots without
+     * walking the representation tree again.
+     */
+    public static class Layout {
+        final String[] keys;
+        final int[] spaces;
+        final long[] origins;
+        final int[] sizes;
+        /// True for string entries, which are compared only up to the terminating null.
+        final boolean[] isString;
+        private final byte[] hash;
+
+        public Layout(ConfigRepresentation rep) {
+            final List<ConfigRepresentation.CdiEntry> leaves = new ArrayList<>();
+            rep.visit(new ConfigRepresentation.Visitor() {
+                @Override
+                public void visitLeaf(ConfigRepresentation.CdiEntry e) {
+                    leaves.add(e);
+                }
+            });
+            int n = leaves.size();
+            keys = new String[n];
+            spaces = new int[n];
+            origins = new long[n];
+            sizes = new int[n];
+            isString = new boolean[n];
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            ByteBuffer b = ByteBuffer.allocate(21);
+            Charset utf8 = Charset.forName("UTF-8");
+            for (int i = 0; i < n; ++i) {
+                ConfigRepresentation.CdiEntry e = leaves.get(i);
+                keys[i] = e.key;
+                spaces[i] = e.space;
+                origins[i] = e.origin;
+                sizes[i] = e.size;
+                isString[i] = e instanceof ConfigRepresentation.StringEntry;
+                md.update(e.key.getBytes(utf8));
+                b.clear();
+                b.putInt(e.space).putLong(e.origin).putInt(e.size).put((byte) (isString[i] ? 1
+                        : 0)).putInt(e.getClass().getSimpleName().hashCode());
+                md.update(b.array());
+            }
+            hash = md.digest();
+        }
+
+        /// @return the number of variables.
+        public int size() {
+            return keys.length;
+        }
+
+        /// @return a hash identifying the variable layout of the CDI.
+        public byte[] getHash() {
+            return hash.clone();
+        }
+    }
+
+    /**
+     * One variable whose value differs between two snapshots.
+     */
+    public static class Difference {
+        public final String key;
+        public final int space;
+        public final long origin;
+        public final int size;
+        /// Value in the first snapshot, or null if it was not present there.
+        public final @Nullable byte[] oldData;
+        /// Value in the second snapshot, or null if it was not present there.
+        public final @Nullable byte[] newData;
+
+        Difference(String key, int space, long origin, int size, byte[] oldData, byte[]
+                newData) {
+            this.key = key;
+            this.space = space;
+            this.origin = origin;
+            this.size = size;
+            this.oldData = oldData;
+            this.newData = newData;
+        }
+
+        @Override
+        public String toString() {
+            return key + " (space " + space + " address " + origin + " size " + size + ")";
+        }
+    }
+
+    /**
+     * Compares two snapshots of nodes with the same CDI.
+     *
+     * @param layout layout of the CDI, whose hash must match both snapshots.
+     * @param a      first (old) snapshot
+     * @param b      second (new) snapshot
+     * @return the variables whose bytes differ, in CDI order.
+     * @throws IllegalArgumentException if the CDI hashes do not match.
+     */
+    public static List<Difference> diff(Layout layout, ConfigSnapshot a, ConfigSnapshot b) {
+        if (!Arrays.equals(layout.hash, a.cdiHash) || !Arrays.equals(layout.hash, b.cdiHash)) {
+            throw new IllegalArgumentException("Snapshots were taken with a different CDI.");
+        }
+        List<Difference> ret = new ArrayList<>();
+        for (int i = 0; i < layout.keys.length; ++i) {
+            int space = layout.spaces[i];
+            long origin = layout.origins[i];
+            int size = layout.sizes[i];
+            if (!layout.isString[i] && a.rangeEquals(b, space, origin, size)) continue;
+            byte[] da = a.read(space, origin, size);
+            byte[] db = b.read(space, origin, size);
+            if (layout.isString[i] && stringEquals(da, db)) continue;
+            ret.add(new Difference(layout.keys[i], space, origin, size, da, db));
+        }
+        return Collections.unmodifiableList(ret);
+    }
+
+    /// Compares two string fields up to and including the first null byte.
+    private static boolean stringEquals(byte[] a, byte[] b) {
+        if (a == null || b == null) return a == b;
+        for (int i = 0; i < a.length; ++i) {
+            if (a[i] != b[i]) return false;
+            if (a[i] == 0) return true;
+        }
+        return true;
+    }
+}
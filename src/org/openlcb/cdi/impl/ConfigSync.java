@@ -0,0 +1,286 @@
+package org.openlcb.cdi.impl;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openlcb.EventID;
+import org.openlcb.implementations.MemoryConfigurationService;
+
+/**
+ * Brings the configuration of a node to a desired state by writing only the bytes that differ.
+ * <p>
+ * The current memory contents are taken from the (pre-filled) caches of a
+ * {@link ConfigRepresentation}. They are compared against a desired {@link ConfigSnapshot}
+ * per variable; the differing byte runs are coalesced into as few write requests as possible
+ * and issued one after the other. The result lists the variables that were changed.
+ * <p>
+ * Usage: create a desired snapshot with {@link #createDesiredSnapshot()}, modify it with
+ * {@link #setValue} (or load one from a file), then call {@link #sync}.
+ */
+public class ConfigSync {
+    private static final Logger logger = Logger.getLogger(ConfigSync.class.getName());
+    /// Maximum number of bytes in a single memory config write request.
+    static final int MAX_WRITE_LENGTH = 64;
+    /// Differing runs separated by at most this many unchanged bytes are written together.
+    static final int MERGE_GAP = 8;
+
+    private final ConfigRepresentation rep;
+    private ConfigSnapshot.Layout layout = null;
+
+    /**
+     * @param rep the node to synchronize. The CDI must already be loaded.
+     */
+    public ConfigSync(ConfigRepresentation rep) {
+        this.rep = rep;
+    }
+
+    private synchronized ConfigSnapshot.Layout getLayout() {
+        if (layout == null) {
+            layout = new ConfigSnapshot.Layout(rep);
+        }
+        return layout;
+    }
+
+    /**
+     * One write request.
+     */
+    public static class Write {
+        public final int space;
+        public final long address;
+        public final byte[] data;
+
+        Write(int space, long address, byte[] data) {
+            this.space = space;
+            this.address = address;
+            this.data = data;
+        }
+
+        @Override
+        public String toString() {
+            return "Write(space " + space + " address " + address + " length " + data.length +
+                    ")";
+        }
+    }
+
+    /**
+     * Outcome of a synchronization.
+     */
+    public static class Result {
+        /// The variables that differed between the node and the desired state.
+        public final List<ConfigSnapshot.Difference> changes;
+        /// The write requests that were issued.
+        public final List<Write> writes;
+        /// The subset of writes that failed.
+        public final List<Write> failedWrites;
+        /// Filled in while the writes complete.
+        private final List<Write> failed = new ArrayList<>();
+
+        Result(List<ConfigSnapshot.Difference> changes, List<Write> writes) {
+            this.changes = changes;
+            this.writes = Collections.unmodifiableList(writes);
+            this.failedWrites = Collections.unmodifiableList(failed);
+        }
+
+        /// @return true if all writes succeeded.
+        public boolean isSuccess() {
+            return failedWrites.isEmpty();
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called when all write requests have completed.
+         * @param result what was changed.
+         */
+        void onComplete(Result result);
+    }
+
+    /**
+     * @return a snapshot of the current node contents that can be modified to describe the
+     * desired state. Requires the caches to be complete.
+     */
+    public ConfigSnapshot createDesiredSnapshot() {
+        return ConfigSnapshot.fromRepresentation(rep);
+    }
+
+    /**
+     * Sets a variable in a desired snapshot from its textual (backup file) representation,
+     * encoding it the same way the setValue methods of the CDI entries do.
+     *
+     * @param desired snapshot to modify
+     * @param key     variable key
+     * @param value   the value as written by BackupConfig
+     * @return false if the key is unknown, the value cannot be parsed, or the variable is not
+     * in the snapshot.
+     */
+    public boolean setValue(ConfigSnapshot desired, String key, String value) {
+        ConfigRepresentation.CdiEntry e = rep.getVariableForKey(key);
+        if (e == null) return false;
+        byte[] b;
+        try {
+            if (e instanceof ConfigRepresentation.EventEntry) {
+                b = ((ConfigRepresentation.EventEntry) e).encode(new EventID(value));
+            } else if (e instanceof ConfigRepresentation.IntegerEntry) {
+                b = ((ConfigRepresentation.IntegerEntry) e).encode(Long.parseLong(value));
+            } else if (e instanceof ConfigRepresentation.StringEntry) {
+                b = ((ConfigRepresentation.StringEntry) e).encode(value);
+            } else {
+                return false;
+            }
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Cannot parse value for {0}: {1}", new Object[]{key, ex});
+            return false;
+        }
+        return desired.update(e.space, e.origin, b);
+    }
+
+    /**
+     * Computes the minimal set of writes that turns the current cache contents into the
+     * desired snapshot.
+     *
+     * @param current the node's current state
+     * @param desired the target state
+     * @param changes if not null, the differing variables are appended here.
+     * @return the coalesced write requests, ordered by space and address.
+     */
+    List<Write> computeWrites(ConfigSnapshot current, ConfigSnapshot desired,
+                              List<ConfigSnapshot.Difference> changes) {
+        ConfigSnapshot.Layout l = getLayout();
+        List<ConfigSnapshot.Difference> diffs = ConfigSnapshot.diff(l, current, desired);
+        if (changes != null) changes.addAll(diffs);
+        // Collects the runs of differing bytes as [space, start, end) triples.
+        List<long[]> runs = new ArrayList<>();
+        for (ConfigSnapshot.Difference d : diffs) {
+            if (d.newData == null) continue;
+            int len = d.size;
+            if (rep.getVariableForKey(d.key) instanceof ConfigRepresentation.StringEntry) {
+                // Only the string up to and including the terminator needs to be written.
+                int n = 0;
+                while (n < d.newData.length && d.newData[n] != 0) ++n;
+                len = Math.min(d.size, n + 1);
+            }
+            int i = 0;
+            while (i < len) {
+                if (d.oldData != null && d.oldData[i] == d.newData[i]) {
+                    ++i;
+                    continue;
+                }
+                int start = i;
+                while (i < len && (d.oldData == null || d.oldData[i] != d.newData[i])) ++i;
+                runs.add(new long[]{d.space, d.origin + start, d.origin + i});
+            }
+        }
+        Collections.sort(runs, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long
+                .compare(a[1], b[1]));
+        List<Write> writes = new ArrayList<>();
+        long[] cur = null;
+        for (long[] r : runs) {
+            if (cur != null && cur[0] == r[0] && r[1] - cur[2] <= MERGE_GAP && r[2] - cur[1]
+                    <= MAX_WRITE_LENGTH && (r[1] <= cur[2] || current.read((int) r[0], cur[2],
+                    (int) (r[1] - cur[2])) != null)) {
+                cur[2] = Math.max(cur[2], r[2]);
+                continue;
+            }
+            if (cur != null) writes.add(makeWrite(cur, current, desired));
+            cur = r.clone();
+        }
+        if (cur != null) writes.add(makeWrite(cur, current, desired));
+        return writes;
+    }
+
+    /**
+     * Assembles the payload for a coalesced run. Bytes come from the desired snapshot where
+     * present, otherwise (gaps between variables) from the current state.
+     */
+    private static Write makeWrite(long[] run, ConfigSnapshot current, ConfigSnapshot desired) {
+        int space = (int) run[0];
+        int len = (int) (run[2] - run[1]);
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; ) {
+            // Find the longest prefix available in the desired snapshot.
+            byte[] b = null;
+            int n = len - i;
+            while (n > 0 && (b = desired.read(space, run[1] + i, n)) == null) --n;
+            if (b == null) {
+                b = current.read(space, run[1] + i, 1);
+                n = 1;
+            }
+            if (b != null) System.arraycopy(b, 0, data, i, n);
+            i += n;
+        }
+        return new Write(space, run[1], data);
+    }
+
+    /**
+     * Writes the differences between the node and the desired snapshot. If the caches of the
+     * representation are not yet filled, waits for them first.
+     *
+     * @param desired the target state (must have the same CDI hash as the node's CDI)
+     * @param listener called once all writes have completed.
+     */
+    public void sync(final ConfigSnapshot desired, final Listener listener) {
+        // Set by whichever of the event and the check below sees the caches complete first.
+        final AtomicBoolean started = new AtomicBoolean(false);
+        PropertyChangeListener l = new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent event) {
+                if (!event.getPropertyName().equals(ConfigRepresentation.UPDATE_CACHE_COMPLETE)) {
+                    return;
+                }
+                rep.removePropertyChangeListener(this);
+                if (started.compareAndSet(false, true)) {
+                    startSync(desired, listener);
+                }
+            }
+        };
+        // Registers before checking, so that completion in between is not missed.
+        rep.addPropertyChangeListener(l);
+        if (rep.isCacheComplete()) {
+            rep.removePropertyChangeListener(l);
+            if (started.compareAndSet(false, true)) {
+                startSync(desired, listener);
+            }
+        }
+    }
+
+    private void startSync(ConfigSnapshot desired, final Listener listener) {
+        List<ConfigSnapshot.Difference> changes = new ArrayList<>();
+        final List<Write> writes = computeWrites(ConfigSnapshot.fromRepresentation(rep),
+                desired, changes);
+        final Result result = new Result(Collections.unmodifiableList(changes), writes);
+        final Map<Integer, MemorySpaceCache> caches = rep.getCachedSpaces();
+        logger.log(Level.FINE, "Config sync for {0}: {1} changed variables, {2} writes", new
+                Object[]{rep.getRemoteNodeAsString(), changes.size(), writes.size()});
+        class SequentialWrite implements MemoryConfigurationService.McsWriteHandler {
+            int next = 0;
+            Write current;
+
+            void next() {
+                if (next >= writes.size()) {
+                    listener.onComplete(result);
+                    return;
+                }
+                current = writes.get(next++);
+                caches.get(current.space).write(current.address, current.data, this);
+            }
+
+            @Override
+            public void handleFailure(int errorCode) {
+                result.failed.add(current);
+                next();
+            }
+
+            @Override
+            public void handleSuccess() {
+                next();
+            }
+        }
+        new SequentialWrite().next();
+    }
+}
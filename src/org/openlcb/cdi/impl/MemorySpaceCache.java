@@ -30,6 +30,9 @@ public class MemorySpaceCache {
     private final int space;
     private final RangeCacheUtil ranges = new RangeCacheUtil();
     private final NavigableMap<Range, byte[]> dataCache = new TreeMap<>();
+    /// Guards dataCache and the bytes in it. Loads and writes update them from the network
+    /// threads, while getCachedData and read may be called from any thread.
+    private final Object dataLock = new Object();
     private final NavigableMap<Range, ChangeEntry> dataChangeListeners = new
             TreeMap<>();
     java.beans.PropertyChangeSupport pcs = new java.beans.PropertyChangeSupport(this);
@@ -170,9 +173,11 @@ public class MemorySpaceCache {
         }
         List<Range> rlist = ranges.getRanges();
         if (rlist.isEmpty()) return;
-        for (Range r : rlist) {
-            dataCache.put(r, null);
-            rangesToLoad.add(r);
+        synchronized (dataLock) {
+            for (Range r : rlist) {
+                dataCache.put(r, null);
+                rangesToLoad.add(r);
+            }
         }
         continueLoading();
     }
@@ -199,10 +204,15 @@ public class MemorySpaceCache {
         if (currentRangeNextOffset < 0) { // first cut in loading this range
             int len = (int)(nextRangeToLoad.end - nextRangeToLoad.start);
             // Try to check if there is an existing range covering the stuff to load.
-            Map.Entry<Range, byte[]> cachedRange = getCacheForRange(nextRangeToLoad.start, len);
+            Map.Entry<Range, byte[]> cachedRange;
+            synchronized (dataLock) {
+                cachedRange = getCacheForRange(nextRangeToLoad.start, len);
+                if (cachedRange == null) {
+                    currentRangeData = new byte[len];
+                    dataCache.put(nextRangeToLoad, currentRangeData);
+                }
+            }
             if (cachedRange == null) {
-                currentRangeData = new byte[len];
-                dataCache.put(nextRangeToLoad, currentRangeData);
                 currentRangeNextOffset = nextRangeToLoad.start;
             } else {
                 currentRangeData = cachedRange.getValue();
@@ -260,9 +270,11 @@ public class MemorySpaceCache {
                                     space, address));
                             currentRangeNextOffset += fcount;
                         } else {
-                            System.arraycopy(data, 0, currentRangeData, (int)
-                                    (currentRangeNextOffset -
-                                            nextRangeToLoad.start), data.length);
+                            synchronized (dataLock) {
+                                System.arraycopy(data, 0, currentRangeData, (int)
+                                        (currentRangeNextOffset - nextRangeToLoad.start), data
+                                        .length);
+                            }
                             for (int i = 0; i < data.length; ++i) {
                                 if (data[i] == 0) {
                                     hasZero = true;
@@ -293,20 +305,70 @@ public class MemorySpaceCache {
         return entry;
     }
 
-    public byte[] read(long offset, int len) {
-        Map.Entry<Range, byte[]> entry = getCacheForRange(offset, len);
-        if (entry == null) return null;
-        byte[] ret = new byte[len];
-        System.arraycopy(entry.getValue(), (int) (offset - entry.getKey().start), ret, 0, len);
+    /**
+     * @return a copy of the data blocks currently held in the cache, keyed by their start
+     * address. Blocks that have not been loaded yet are omitted.
+     */
+    public NavigableMap<Long, byte[]> getCachedData() {
+        NavigableMap<Long, byte[]> ret = new TreeMap<>();
+        synchronized (dataLock) {
+            for (Map.Entry<Range, byte[]> e : dataCache.entrySet()) {
+                if (e.getValue() == null) continue;
+                ret.put(e.getKey().start, e.getValue().clone());
+            }
+        }
         return ret;
     }
 
+    public byte[] read(long offset, int len) {
+        synchronized (dataLock) {
+            Map.Entry<Range, byte[]> entry = getCacheForRange(offset, len);
+            if (entry == null) return null;
+            byte[] ret = new byte[len];
+            System.arraycopy(entry.getValue(), (int) (offset - entry.getKey().start), ret, 0,
+                    len);
+            return ret;
+        }
+    }
+
     public void write(final long offset, final byte[] data, final ConfigRepresentation.CdiEntry
             cdiEntry) {
+        write(offset, data, new MemoryConfigurationService.McsWriteHandler() {
+            @Override
+            public void handleFailure(int errorCode) {
+                cdiEntry.fireWriteComplete();
+            }
+
+            @Override
+            public void handleSuccess() {
+                cdiEntry.fireWriteComplete();
+            }
+        });
+    }
+
+    /**
+     * Updates the cache and writes data to the remote node, splitting it into as many requests
+     * as needed.
+     *
+     * @param offset  address of the first byte to write
+     * @param data    payload
+     * @param handler called once after the last write request completed, or upon the first
+     *                failure (in which case the rest of the data is not written).
+     */
+    public void write(final long offset, final byte[] data, final MemoryConfigurationService
+            .McsWriteHandler handler) {
         int len = data.length;
-        Map.Entry<Range, byte[]> entry = getCacheForRange(offset, len);
-        if (entry != null && entry.getValue() != null) {
-            System.arraycopy(data, 0, entry.getValue(), (int) (offset - entry.getKey().start), data.length);
+        // Updates every cached block the write touches, also when it spans several blocks.
+        Range after = new Range(offset + len, offset + len, false);
+        synchronized (dataLock) {
+            for (Map.Entry<Range, byte[]> entry : dataCache.headMap(after, false).entrySet()) {
+                Range r = entry.getKey();
+                if (r.end <= offset || entry.getValue() == null) continue;
+                long from = Math.max(offset, r.start);
+                long to = Math.min(offset + len, r.end);
+                System.arraycopy(data, (int) (from - offset), entry.getValue(), (int) (from - r
+                        .start), (int) (to - from));
+            }
         }
         logger.finer("Writing to space " + space + " offset 0x" + Long.toHexString(offset) +
                 " payload length " + data.length);
@@ -332,7 +394,7 @@ public class MemorySpaceCache {
             public void handleFailure(int errorCode) {
                 logger.warning(String.format("Write failed (space %d address %d): 0x" +
                         "%04x", space, offset, errorCode));
-                cdiEntry.fireWriteComplete();
+                handler.handleFailure(errorCode);
             }
 
             @Override
@@ -340,7 +402,7 @@ public class MemorySpaceCache {
                 logger.finer(String.format("Write complete (space %d address %d).",
                         space, offset));
                 if (dataOffset >= data.length) {
-                    cdiEntry.fireWriteComplete();
+                    handler.handleSuccess();
                 } else {
                     next();
                 }
@@ -11,8 +11,9 @@ import org.openlcb.implementations.*;
 /**
  * Provide a Reader to the OpenLCB CDI in a node.
  *
- * This first implementation reads the entire data before providing the Reader
- * by call back.
+ * The Reader interface reads the entire data before providing the Reader
+ * by call back. The chunk interface hands out each block as it arrives, which allows
+ * incremental parsing (see {@link org.openlcb.cdi.sax.SaxCdiReader}).
  *
  * @author	Bob Jacobsen   Copyright (C) 2012
  * @version	$Revision$
@@ -43,27 +44,53 @@ public class CdiMemConfigReader  {
 
 
     long nextAddress = 0;
+    long bytesRead = 0;
     StringBuffer buf;
     
     ReaderAccess retval;
+    ChunkAccess chunks;
     public void startLoadReader(ReaderAccess retval) {
         this.retval = retval;
+        this.chunks = null;
         nextAddress = 0;
+        bytesRead = 0;
         buf = new StringBuffer();
         nextRequest();
     }
+
+    /**
+     * Starts loading the data, handing each block to the caller as soon as it arrives instead
+     * of collecting the entire contents first.
+     *
+     * @param chunks will be called with the data blocks in order.
+     */
+    public void startLoadChunks(ChunkAccess chunks) {
+        this.retval = null;
+        this.chunks = chunks;
+        nextAddress = 0;
+        bytesRead = 0;
+        buf = null;
+        nextRequest();
+    }
     
     void nextRequest() {
         if (retval != null) {
-            retval.progressNotify(buf.length(), -1);
+            retval.progressNotify(bytesRead, -1);
+        }
+        if (chunks != null) {
+            chunks.progressNotify(bytesRead, -1);
         }
         MemoryConfigurationService.McsReadHandler memo =
             new MemoryConfigurationService.McsReadHandler() {
                 @Override
                 public void handleFailure(int code) {
                     logger.warning("Error reading CDI: " + Integer.toHexString(code));
+                    if (chunks != null) {
+                        chunks.loadFailed(code);
+                        return;
+                    }
                     done();
-                    // TODO: 5/2/16 proxy error messages to the caller.
+                    // TODO: 5/2/16 proxy error messages to the reader caller.
                     // don't do next request
                 }
 
@@ -73,12 +100,21 @@ public class CdiMemConfigReader  {
                         done();
                         return;  // don't do next request
                     }
-                    for (int i = 0; i<data.length; i++) {
-                        if (data[i] == 0) {
-                            done();
-                            return;  // don't do next request
+                    int len = 0;
+                    while (len < data.length && data[len] != 0) {
+                        ++len;
+                    }
+                    bytesRead += len;
+                    if (chunks != null) {
+                        chunks.provideData(data, 0, len);
+                    } else {
+                        for (int i = 0; i < len; i++) {
+                            buf.append((char)data[i]);
                         }
-                        buf.append((char)data[i]);
+                    }
+                    if (len < data.length) {
+                        done();
+                        return;  // don't do next request
                     }
                     // repeat if not done
                     nextAddress = nextAddress + LENGTH;
@@ -89,6 +125,10 @@ public class CdiMemConfigReader  {
     }
     
     private void done() {
+        if (chunks != null) {
+            chunks.progressNotify(bytesRead, bytesRead);
+            chunks.endOfData();
+        }
         // done, pass back a reader based on the current buffer contents
         if (retval != null) {
             retval.progressNotify(buf.length(), buf.length());
@@ -106,4 +146,33 @@ public class CdiMemConfigReader  {
         public void progressNotify(long bytesRead, long totalBytes);
         public void provideReader(java.io.Reader r);
     }
+
+    public interface ChunkAccess {
+        /**
+         *
+         * @param bytesRead how many bytes we have fetched so far from the server
+         * @param totalBytes the total number of bytes to read, or -1 if not known
+         */
+        public void progressNotify(long bytesRead, long totalBytes);
+
+        /**
+         * Called with each block of data as it arrives, in address order. The terminating
+         * null byte is not included. The array must not be retained after the call returns.
+         */
+        public void provideData(byte[] data, int offset, int length);
+
+        /**
+         * Called once after the last block.
+         */
+        public void endOfData();
+
+        /**
+         * Called instead of {@link #endOfData} when reading fails. The data provided so far
+         * may still be complete, e.g. if it fills the memory space without a terminating
+         * null.
+         *
+         * @param errorCode error code of the failed read.
+         */
+        public void loadFailed(int errorCode);
+    }
 }
@@ -0,0 +1,426 @@
+package org.openlcb.cdi.sax;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Push-style XML tokenizer that accepts the document in arbitrary byte chunks (as they arrive
+ * from the memory configuration protocol) and reports SAX events to a handler as soon as each
+ * piece of markup is complete.
+ * <p>
+ * Only the subset of XML that appears in CDI/FDI files is supported: elements, attributes,
+ * character data with the predefined and numeric entities, CDATA sections, comments and
+ * processing instructions. DOCTYPE declarations are skipped. The parser holds at most one
+ * incomplete token in memory, so the footprint does not depend on the document size.
+ * <p>
+ * Element and attribute local names are reported with any namespace prefix removed; namespace
+ * declarations are not reported as attributes. A leading byte order mark is skipped, and line
+ * ends (CR LF or a lone CR) are normalized to LF as the XML specification requires.
+ */
+public class IncrementalXmlParser {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DefaultHandler2 handler;
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /// Bytes of an incomplete multi-byte sequence left over from the previous chunk.
+    private ByteBuffer leftover = ByteBuffer.allocate(8);
+    private CharBuffer decoded = CharBuffer.allocate(256);
+    /// Characters that have been decoded but not yet consumed by a complete token.
+    private final StringBuilder pending = new StringBuilder();
+    private final Deque<String> openElements = new ArrayDeque<>();
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean rootSeen = false;
+    /// True once the first character has been decoded (and a byte order mark skipped).
+    private boolean firstCharSeen = false;
+    /// True if the last decoded character was a CR, so that an LF following it is dropped.
+    private boolean afterCr = false;
+
+    /**
+     * @param handler will receive the content, lexical (comment, CDATA) and processing
+     *                instruction callbacks.
+     */
+    public IncrementalXmlParser(DefaultHandler2 handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Adds more bytes of the document. Every token that becomes complete is reported to the
+     * handler before this call returns.
+     *
+     * @param data   buffer holding the new bytes
+     * @param offset index of the first byte to consume
+     * @param length number of bytes to consume
+     * @throws SAXException if the document is not well-formed, or if the handler throws.
+     */
+    public void feed(byte[] data, int offset, int length) throws SAXException {
+        if (finished) {
+            throw new SAXException("Data after end of document.");
+        }
+        if (!started) {
+            started = true;
+            handler.startDocument();
+        }
+        ByteBuffer in;
+        if (leftover.position() > 0) {
+            in = ByteBuffer.allocate(leftover.position() + length);
+            leftover.flip();
+            in.put(leftover);
+            in.put(data, offset, length);
+            in.flip();
+            leftover.clear();
+        } else {
+            in = ByteBuffer.wrap(data, offset, length);
+        }
+        while (true) {
+            CoderResult r = decoder.decode(in, decoded, false);
+            decoded.flip();
+            appendNormalized(decoded);
+            decoded.clear();
+            if (!r.isOverflow()) break;
+        }
+        // Whatever remains is a partial multi-byte character.
+        leftover.put(in);
+        tokenize();
+    }
+
+    /**
+     * Moves decoded characters to the pending buffer, skipping a byte order mark at the start
+     * of the document and translating line ends to LF.
+     */
+    private void appendNormalized(CharBuffer chars) {
+        while (chars.hasRemaining()) {
+            char c = chars.get();
+            if (!firstCharSeen) {
+                firstCharSeen = true;
+                if (c == '\uFEFF') continue;
+            }
+            if (c == '\r') {
+                afterCr = true;
+                pending.append('\n');
+                continue;
+            }
+            if (c == '\n' && afterCr) {
+                afterCr = false;
+                continue;
+            }
+            afterCr = false;
+            pending.append(c);
+        }
+    }
+
+    /**
+     * Signals the end of the document.
+     *
+     * @throws SAXException if the document ended in the middle of markup or with unclosed
+     *                      elements.
+     */
+    public void finish() throws SAXException {
+        if (finished) return;
+        if (!started) {
+            started = true;
+            handler.startDocument();
+        }
+        finished = true;
+        tokenize();
+        if (pending.length() > 0) {
+            if (pending.indexOf("<") >= 0 || !openElements.isEmpty()) {
+                throw new SAXException("Unexpected end of document in markup.");
+            }
+            if (!pending.toString().trim().isEmpty()) {
+                throw new SAXException("Content after the root element.");
+            }
+            pending.setLength(0);
+        }
+        if (!openElements.isEmpty()) {
+            throw new SAXException("Unexpected end of document: element <"
+                    + openElements.peek() + "> is not closed.");
+        }
+        handler.endDocument();
+    }
+
+    /// @return true if the root element has been opened and closed again.
+    public boolean isDocumentComplete() {
+        return rootSeen && openElements.isEmpty();
+    }
+
+    /**
+     * Consumes as many complete tokens from the beginning of the pending buffer as possible.
+     */
+    private void tokenize() throws SAXException {
+        int pos = 0;
+        try {
+            while (pos < pending.length()) {
+                int next;
+                if (pending.charAt(pos) == '<') {
+                    next = parseMarkup(pos);
+                } else {
+                    next = parseText(pos);
+                }
+                if (next < 0) break;
+                pos = next;
+            }
+        } finally {
+            pending.delete(0, pos);
+        }
+    }
+
+    /**
+     * Handles character data starting at pos.
+     *
+     * @return the position after the consumed text, or -1 if the text run is not yet complete.
+     */
+    private int parseText(int pos) throws SAXException {
+        int end = pending.indexOf("<", pos);
+        if (end < 0) {
+            if (!finished) return -1;
+            end = pending.length();
+        }
+        if (openElements.isEmpty()) {
+            // Outside of the root element only whitespace is allowed.
+            for (int i = pos; i < end; ++i) {
+                if (!Character.isWhitespace(pending.charAt(i))) {
+                    if (finished) return -1; // reported by finish()
+                    throw new SAXException("Content outside of the root element.");
+                }
+            }
+            return end;
+        }
+        char[] text = decodeEntities(pending, pos, end).toCharArray();
+        handler.characters(text, 0, text.length);
+        return end;
+    }
+
+    /**
+     * Handles a markup token starting at pos (which holds a '&lt;').
+     *
+     * @return the position after the markup, or -1 if more data is needed.
+     */
+    private int parseMarkup(int pos) throws SAXException {
+        int avail = pending.length() - pos;
+        if (avail < 2) return -1;
+        char c = pending.charAt(pos + 1);
+        if (c == '!') {
+            if (startsWithOrPrefix(pos, "<!--")) {
+                if (avail < 4) return -1;
+                int end = pending.indexOf("-->", pos + 4);
+                if (end < 0) return -1;
+                if (!openElements.isEmpty()) {
+                    char[] text = pending.substring(pos + 4, end).toCharArray();
+                    handler.comment(text, 0, text.length);
+                }
+                return end + 3;
+            }
+            if (startsWithOrPrefix(pos, "<![CDATA[")) {
+                if (avail < 9) return -1;
+                int end = pending.indexOf("]]>", pos + 9);
+                if (end < 0) return -1;
+                if (openElements.isEmpty()) {
+                    throw new SAXException("CDATA outside of the root element.");
+                }
+                char[] text = pending.substring(pos + 9, end).toCharArray();
+                handler.startCDATA();
+                handler.characters(text, 0, text.length);
+                handler.endCDATA();
+                return end + 3;
+            }
+            // DOCTYPE or other declaration: skip, honoring an internal subset.
+            int end = findTagEnd(pos + 2, true);
+            if (end < 0) return -1;
+            return end + 1;
+        }
+        if (c == '?') {
+            int end = pending.indexOf("?>", pos + 2);
+            if (end < 0) return -1;
+            String body = pending.substring(pos + 2, end);
+            int sp = 0;
+            while (sp < body.length() && !Character.isWhitespace(body.charAt(sp))) ++sp;
+            String target = body.substring(0, sp);
+            if (!target.equalsIgnoreCase("xml") && !openElements.isEmpty()) {
+                handler.processingInstruction(target, body.substring(sp).trim());
+            }
+            return end + 2;
+        }
+        int end = findTagEnd(pos + 1, false);
+        if (end < 0) return -1;
+        if (c == '/') {
+            String qName = pending.substring(pos + 2, end).trim();
+            if (openElements.isEmpty() || !openElements.peek().equals(qName)) {
+                throw new SAXException("Unexpected closing tag </" + qName + ">"
+                        + (openElements.isEmpty() ? "" : ", expected </" + openElements.peek()
+                        + ">"));
+            }
+            openElements.pop();
+            handler.endElement("", localName(qName), qName);
+            return end + 1;
+        }
+        parseStartTag(pos + 1, end);
+        return end + 1;
+    }
+
+    /**
+     * @return true if the pending buffer at pos starts with prefix, or if all the available
+     * characters are a prefix of it (so more data is needed to decide).
+     */
+    private boolean startsWithOrPrefix(int pos, String prefix) {
+        int len = Math.min(prefix.length(), pending.length() - pos);
+        for (int i = 0; i < len; ++i) {
+            if (pending.charAt(pos + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the closing '&gt;' of a tag, skipping quoted attribute values.
+     *
+     * @param pos      where to start searching
+     * @param brackets if true, '&gt;' inside square brackets does not count (DOCTYPE internal
+     *                 subset)
+     * @return the index of the closing character or -1 if it has not arrived yet.
+     */
+    private int findTagEnd(int pos, boolean brackets) {
+        char quote = 0;
+        int depth = 0;
+        for (int i = pos; i < pending.length(); ++i) {
+            char c = pending.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (brackets && c == '[') {
+                ++depth;
+            } else if (brackets && c == ']') {
+                --depth;
+            } else if (c == '>' && depth <= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a start tag (or empty element tag) between begin (first character after the
+     * '&lt;') and end (the position of the '&gt;').
+     */
+    private void parseStartTag(int begin, int end) throws SAXException {
+        if (openElements.isEmpty() && rootSeen) {
+            throw new SAXException("More than one root element.");
+        }
+        boolean empty = false;
+        int last = end;
+        if (last > begin && pending.charAt(last - 1) == '/') {
+            empty = true;
+            --last;
+        }
+        int i = begin;
+        while (i < last && !Character.isWhitespace(pending.charAt(i))) ++i;
+        String qName = pending.substring(begin, i);
+        if (qName.isEmpty()) {
+            throw new SAXException("Missing element name.");
+        }
+        AttributesImpl attributes = new AttributesImpl();
+        while (true) {
+            while (i < last && Character.isWhitespace(pending.charAt(i))) ++i;
+            if (i >= last) break;
+            int nameStart = i;
+            while (i < last && pending.charAt(i) != '=' && !Character.isWhitespace(pending
+                    .charAt(i))) {
+                ++i;
+            }
+            String attrName = pending.substring(nameStart, i);
+            while (i < last && Character.isWhitespace(pending.charAt(i))) ++i;
+            if (i >= last || pending.charAt(i) != '=') {
+                throw new SAXException("Attribute " + attrName + " of <" + qName + "> has no "
+                        + "value.");
+            }
+            ++i;
+            while (i < last && Character.isWhitespace(pending.charAt(i))) ++i;
+            char quote = i < last ? pending.charAt(i) : 0;
+            if (quote != '"' && quote != '\'') {
+                throw new SAXException("Attribute " + attrName + " of <" + qName + "> is not "
+                        + "quoted.");
+            }
+            int valueEnd = pending.indexOf(String.valueOf(quote), i + 1);
+            if (valueEnd < 0 || valueEnd >= last) {
+                throw new SAXException("Unterminated attribute " + attrName + ".");
+            }
+            String value = decodeEntities(pending, i + 1, valueEnd);
+            i = valueEnd + 1;
+            if (attrName.equals("xmlns") || attrName.startsWith("xmlns:")) continue;
+            attributes.addAttribute("", localName(attrName), attrName, "CDATA", value);
+        }
+        rootSeen = true;
+        String local = localName(qName);
+        handler.startElement("", local, qName, attributes);
+        if (empty) {
+            handler.endElement("", local, qName);
+        } else {
+            openElements.push(qName);
+        }
+    }
+
+    private static String localName(String qName) {
+        int colon = qName.indexOf(':');
+        return colon < 0 ? qName : qName.substring(colon + 1);
+    }
+
+    /**
+     * Replaces the predefined and numeric character references in a range of the input.
+     */
+    private static String decodeEntities(CharSequence s, int begin, int end) throws
+            SAXException {
+        StringBuilder out = null;
+        int copied = begin;
+        for (int i = begin; i < end; ++i) {
+            if (s.charAt(i) != '&') continue;
+            if (out == null) out = new StringBuilder(end - begin);
+            out.append(s, copied, i);
+            int semi = -1;
+            for (int j = i + 1; j < end; ++j) {
+                if (s.charAt(j) == ';') {
+                    semi = j;
+                    break;
+                }
+            }
+            if (semi < 0) throw new SAXException("Unterminated entity reference.");
+            String name = s.subSequence(i + 1, semi).toString();
+            switch (name) {
+                case "lt": out.append('<'); break;
+                case "gt": out.append('>'); break;
+                case "amp": out.append('&'); break;
+                case "quot": out.append('"'); break;
+                case "apos": out.append('\''); break;
+                default:
+                    try {
+                        int cp;
+                        if (name.startsWith("#x")) {
+                            cp = Integer.parseInt(name.substring(2), 16);
+                        } else if (name.startsWith("#")) {
+                            cp = Integer.parseInt(name.substring(1));
+                        } else {
+                            throw new SAXException("Unknown entity &" + name + ";");
+                        }
+                        out.appendCodePoint(cp);
+                    } catch (IllegalArgumentException e) {
+                        throw new SAXException("Invalid character reference &" + name + ";");
+                    }
+            }
+            copied = semi + 1;
+            i = semi;
+        }
+        if (out == null) return s.subSequence(begin, end).toString();
+        out.append(s, copied, end);
+        return out.toString();
+    }
+}
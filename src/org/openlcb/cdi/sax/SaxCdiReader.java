@@ -0,0 +1,104 @@
+package org.openlcb.cdi.sax;
+
+import java.io.Reader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Streaming OpenLCB CDI loader. Bytes of the CDI are fed in as they arrive from the node;
+ * segments become available through the {@link SaxCdiRep.Listener} as soon as they are closed,
+ * and no intermediate text buffer or document tree is built.
+ * <p>
+ * Typical use together with {@link org.openlcb.cdi.jdom.CdiMemConfigReader#startLoadChunks}:
+ * call {@link #feed} for every chunk, then {@link #finish} at the end of the data to get the
+ * complete representation. A failed download is reported separately and must not be finished.
+ */
+public class SaxCdiReader {
+    private final static Logger logger = Logger.getLogger(SaxCdiReader.class.getName());
+
+    private final SaxCdiRep.Builder builder;
+    private final IncrementalXmlParser parser;
+    private SAXException error = null;
+
+    /**
+     * @param listener is notified of every completed segment while parsing. May be null.
+     */
+    public SaxCdiReader(SaxCdiRep.Listener listener) {
+        builder = new SaxCdiRep.Builder(listener);
+        parser = new IncrementalXmlParser(builder);
+    }
+
+    public SaxCdiReader() {
+        this(null);
+    }
+
+    /**
+     * Parses the next chunk of the CDI. After a parse error further data is ignored; the error
+     * is reported from {@link #finish}.
+     *
+     * @param data   buffer holding the bytes
+     * @param offset first byte to use
+     * @param length number of bytes to use
+     */
+    public void feed(byte[] data, int offset, int length) {
+        if (error != null) return;
+        try {
+            parser.feed(data, offset, length);
+        } catch (SAXException e) {
+            logger.log(Level.WARNING, "Error parsing CDI: {0}", e.getMessage());
+            error = e;
+        }
+    }
+
+    /**
+     * @return the representation built so far. Only the segments that are already closed are
+     * present.
+     */
+    public SaxCdiRep getPartialRep() {
+        return builder.getRep();
+    }
+
+    /// @return true if the closing tag of the root element has been seen.
+    public boolean isComplete() {
+        return error == null && parser.isDocumentComplete();
+    }
+
+    /**
+     * Signals the end of the data.
+     *
+     * @return the completed representation.
+     * @throws SAXException if the CDI was not well-formed or truncated.
+     */
+    public SaxCdiRep finish() throws SAXException {
+        if (error != null) throw error;
+        parser.finish();
+        return builder.getRep();
+    }
+
+    /**
+     * Parses a complete CDI document from a Reader using the platform SAX parser.
+     *
+     * @param r source of the XML text.
+     * @return the parsed representation.
+     * @throws Exception on parse or I/O errors.
+     */
+    public static SaxCdiRep getRep(Reader r) throws Exception {
+        SaxCdiRep.Builder b = new SaxCdiRep.Builder(null);
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setValidating(false);
+        SAXParser p = factory.newSAXParser();
+        p.setProperty("http://xml.org/sax/properties/lexical-handler", b);
+        try {
+            p.parse(new InputSource(r), b);
+        } catch (SAXException e) {
+            logger.log(Level.SEVERE, "Could not parse CDI: {0}", e);
+            throw e;
+        }
+        return b.getRep();
+    }
+}
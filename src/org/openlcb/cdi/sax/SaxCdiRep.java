@@ -0,0 +1,577 @@
+package org.openlcb.cdi.sax;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import org.openlcb.cdi.CdiRep;
+import org.xml.sax.Attributes;
+import org.xml.sax.ext.DefaultHandler2;
+
+/**
+ * Implement the CdiRep interface with plain objects that are filled in from SAX events.
+ * <p>
+ * Unlike {@link org.openlcb.cdi.jdom.JdomCdiRep}, no document tree is kept: only the
+ * information exposed through the CdiRep interface is retained, so the memory use is
+ * proportional to the model. Use {@link SaxCdiReader} to create an instance.
+ * <p>
+ * The structure, names, offsets and sizes (including the index in parent, which counts text,
+ * comment and element content the same way JDOM does) are identical to those of JdomCdiRep
+ * for the same XML, so keys derived from the CDI stay stable. Unlike JdomCdiRep, which
+ * always returns 0 and false, the min, max and default of integers and the default of bits
+ * are parsed from the XML.
+ */
+public class SaxCdiRep implements CdiRep {
+
+    /**
+     * Callback for consumers that want to start working on the CDI before the whole document
+     * has arrived.
+     */
+    public interface Listener {
+        /**
+         * Called when the identification element has been parsed.
+         * @param id the completed identification.
+         */
+        void identificationComplete(CdiRep.Identification id);
+
+        /**
+         * Called when a segment element is closed. The segment will not change anymore.
+         * @param segment the completed segment.
+         */
+        void segmentComplete(CdiRep.Segment segment);
+    }
+
+    SaxCdiRep() {}
+
+    private Identification identification;
+    private final List<CdiRep.Segment> segments = new ArrayList<>();
+
+    @Override
+    public Identification getIdentification() {
+        return identification;
+    }
+
+    /**
+     * @return the segments parsed so far. While the CDI is being loaded this list contains only
+     * the segments that are already closed.
+     */
+    @Override
+    public synchronized List<CdiRep.Segment> getSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    private synchronized void addSegment(Segment s) {
+        segments.add(s);
+    }
+
+    public static class Identification implements CdiRep.Identification {
+        String manufacturer;
+        String model;
+        String hardwareVersion;
+        String softwareVersion;
+        Map map;
+
+        @Override
+        public String getManufacturer() {
+            return manufacturer;
+        }
+
+        @Override
+        public String getModel() {
+            return model;
+        }
+
+        @Override
+        public String getHardwareVersion() {
+            return hardwareVersion;
+        }
+
+        @Override
+        public String getSoftwareVersion() {
+            return softwareVersion;
+        }
+
+        @Override
+        public Map getMap() {
+            return map != null ? map : Map.EMPTY;
+        }
+    }
+
+    public static class Map implements CdiRep.Map {
+        static final Map EMPTY = new Map();
+
+        final List<String> keys = new ArrayList<>();
+        final List<String> values = new ArrayList<>();
+
+        @Override
+        public String getEntry(String key) {
+            int i = keys.indexOf(key);
+            return i < 0 ? null : values.get(i);
+        }
+
+        @Override
+        public String getKey(String entry) {
+            int i = values.indexOf(entry);
+            return i < 0 ? null : keys.get(i);
+        }
+
+        @Override
+        public List<String> getKeys() {
+            return Collections.unmodifiableList(keys);
+        }
+
+        @Override
+        public List<String> getValues() {
+            return Collections.unmodifiableList(values);
+        }
+    }
+
+    public static class Item implements CdiRep.Item {
+        String name;
+        String description;
+        Map map;
+        int offset;
+        int indexInParent;
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public Map getMap() {
+            return map != null ? map : Map.EMPTY;
+        }
+
+        @Override
+        public int getOffset() {
+            return offset;
+        }
+
+        @Override
+        public int getIndexInParent() {
+            return indexInParent;
+        }
+    }
+
+    public static class Segment extends Item implements CdiRep.Segment {
+        int space;
+        int origin;
+        final List<CdiRep.Item> items = new ArrayList<>();
+
+        @Override
+        public int getSpace() {
+            return space;
+        }
+
+        @Override
+        public int getOrigin() {
+            return origin;
+        }
+
+        @Override
+        public List<CdiRep.Item> getItems() {
+            return Collections.unmodifiableList(items);
+        }
+    }
+
+    public static class Group extends Item implements CdiRep.Group {
+        int replication;
+        String repName;
+        final List<CdiRep.Item> items = new ArrayList<>();
+
+        @Override
+        public List<CdiRep.Item> getItems() {
+            return Collections.unmodifiableList(items);
+        }
+
+        @Override
+        public int getReplication() {
+            return replication;
+        }
+
+        @Override
+        public String getRepName() {
+            return repName;
+        }
+    }
+
+    public static class EventID extends Item implements CdiRep.EventID {
+    }
+
+    public static class IntRep extends Item implements CdiRep.IntegerRep {
+        int size;
+        int min;
+        int max;
+        int defaultValue;
+
+        @Override
+        public int getDefault() {
+            return defaultValue;
+        }
+
+        @Override
+        public int getMin() {
+            return min;
+        }
+
+        @Override
+        public int getMax() {
+            return max;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+    }
+
+    public static class BitRep extends Item implements CdiRep.BitRep {
+        int size;
+        boolean defaultValue;
+
+        @Override
+        public boolean getDefault() {
+            return defaultValue;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+    }
+
+    public static class StringRep extends Item implements CdiRep.StringRep {
+        int size;
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Parses an integer attribute the same way JDOM's Attribute.getIntValue does.
+     *
+     * @param a     attributes of the element
+     * @param name  attribute name
+     * @param dflt  value to return when the attribute is missing
+     * @return the value, dflt if missing, or 0 if unparseable.
+     */
+    private static int intAttribute(Attributes a, String name, int dflt) {
+        String v = a.getValue("", name);
+        if (v == null) v = a.getValue(name);
+        if (v == null) return dflt;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int intText(String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * SAX handler that fills in a SaxCdiRep. Can be driven by a regular SAX parser (set it as
+     * both the content and the lexical handler) or by {@link IncrementalXmlParser}.
+     */
+    public static class Builder extends DefaultHandler2 {
+        private final SaxCdiRep rep = new SaxCdiRep();
+        private final Listener listener;
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private boolean inCdata = false;
+
+        /**
+         * One open element in the document.
+         */
+        private static class Frame {
+            final String name;
+            /// Model object this element maps to, or null if it is not interesting.
+            final Object target;
+            /// Collects the direct text content for elements whose value we need.
+            final StringBuilder text;
+            /// Number of content nodes (JDOM semantics) seen so far in this element.
+            int contentCount = 0;
+            boolean lastWasText = false;
+
+            Frame(String name, Object target, boolean collectText) {
+                this.name = name;
+                this.target = target;
+                this.text = collectText ? new StringBuilder() : null;
+            }
+        }
+
+        /**
+         * @param listener will be notified of completed segments. May be null.
+         */
+        public Builder(Listener listener) {
+            this.listener = listener;
+        }
+
+        /// @return the representation being built.
+        public SaxCdiRep getRep() {
+            return rep;
+        }
+
+        private static boolean isTextElement(String name) {
+            switch (name) {
+                case "name":
+                case "description":
+                case "repname":
+                case "manufacturer":
+                case "model":
+                case "hardwareVersion":
+                case "softwareVersion":
+                case "property":
+                case "value":
+                case "min":
+                case "max":
+                case "default":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes
+                attributes) {
+            String name = localName == null || localName.isEmpty() ? qName : localName;
+            Frame parent = stack.peek();
+            int index = 0;
+            if (parent != null) {
+                index = parent.contentCount++;
+                parent.lastWasText = false;
+            }
+            Object parentTarget = parent != null ? parent.target : null;
+            Object target = null;
+            if (parent == null) {
+                target = rep;
+            } else if (parentTarget == rep) {
+                if (name.equals("identification")) {
+                    target = new Identification();
+                } else if (name.equals("segment")) {
+                    Segment s = new Segment();
+                    s.space = intAttribute(attributes, "space", 0);
+                    s.origin = intAttribute(attributes, "origin", 0);
+                    target = s;
+                }
+            } else if (parentTarget instanceof Segment || parentTarget instanceof Group) {
+                Item it = null;
+                switch (name) {
+                    case "group": {
+                        Group g = new Group();
+                        g.replication = intAttribute(attributes, "replication", 0);
+                        it = g;
+                        break;
+                    }
+                    case "int": {
+                        IntRep r = new IntRep();
+                        r.size = intAttribute(attributes, "size", 1);
+                        it = r;
+                        break;
+                    }
+                    case "bit": {
+                        BitRep r = new BitRep();
+                        r.size = intAttribute(attributes, "size", 1);
+                        it = r;
+                        break;
+                    }
+                    case "string": {
+                        StringRep r = new StringRep();
+                        r.size = intAttribute(attributes, "size", 1);
+                        it = r;
+                        break;
+                    }
+                    case "eventid":
+                        it = new EventID();
+                        break;
+                    default:
+                        break;
+                }
+                if (it != null) {
+                    it.offset = intAttribute(attributes, "offset", 0);
+                    it.indexInParent = index;
+                    if (parentTarget instanceof Segment) {
+                        ((Segment) parentTarget).items.add(it);
+                    } else {
+                        ((Group) parentTarget).items.add(it);
+                    }
+                    target = it;
+                }
+            }
+            if (target == null && name.equals("map") && (parentTarget instanceof Item
+                    || parentTarget instanceof Identification)) {
+                target = new Map();
+            } else if (target == null && name.equals("relation") && parentTarget instanceof
+                    Map) {
+                target = new String[2];
+            }
+            if (target instanceof Segment) {
+                ((Segment) target).indexInParent = index;
+            }
+            stack.push(new Frame(name, target, target == null && isTextElement(name)));
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            Frame f = stack.pop();
+            Frame parent = stack.peek();
+            if (parent != null) {
+                parent.lastWasText = false;
+            }
+            Object parentTarget = parent != null ? parent.target : null;
+            if (f.text != null) {
+                setText(parentTarget, f.name, f.text.toString());
+            } else if (f.target instanceof Map) {
+                if (parentTarget instanceof Item && ((Item) parentTarget).map == null) {
+                    ((Item) parentTarget).map = (Map) f.target;
+                } else if (parentTarget instanceof Identification && ((Identification)
+                        parentTarget).map == null) {
+                    ((Identification) parentTarget).map = (Map) f.target;
+                }
+            } else if (f.target instanceof String[]) {
+                String[] rel = (String[]) f.target;
+                // JDOM would throw on a relation missing a child; we skip those instead.
+                if (rel[0] != null && rel[1] != null) {
+                    ((Map) parentTarget).keys.add(rel[0]);
+                    ((Map) parentTarget).values.add(rel[1]);
+                }
+            } else if (f.target instanceof Identification) {
+                if (rep.identification == null) {
+                    rep.identification = (Identification) f.target;
+                    if (listener != null) listener.identificationComplete(rep.identification);
+                }
+            } else if (f.target instanceof Segment) {
+                rep.addSegment((Segment) f.target);
+                if (listener != null) listener.segmentComplete((Segment) f.target);
+            }
+        }
+
+        /**
+         * Stores the text of a completed child element into the parent model object. As with
+         * JDOM's getChild, only the first occurrence counts.
+         */
+        private static void setText(Object target, String name, String text) {
+            if (target instanceof Item) {
+                Item it = (Item) target;
+                switch (name) {
+                    case "name":
+                        if (it.name == null) it.name = text;
+                        return;
+                    case "description":
+                        if (it.description == null) it.description = text;
+                        return;
+                    default:
+                        break;
+                }
+                if (it instanceof Group && name.equals("repname")) {
+                    Group g = (Group) it;
+                    if (g.repName == null) g.repName = text;
+                } else if (it instanceof IntRep) {
+                    IntRep r = (IntRep) it;
+                    switch (name) {
+                        case "min":
+                            r.min = intText(text);
+                            break;
+                        case "max":
+                            r.max = intText(text);
+                            break;
+                        case "default":
+                            r.defaultValue = intText(text);
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (it instanceof BitRep && name.equals("default")) {
+                    ((BitRep) it).defaultValue = "true".equalsIgnoreCase(text.trim());
+                }
+            } else if (target instanceof Identification) {
+                Identification id = (Identification) target;
+                switch (name) {
+                    case "manufacturer":
+                        if (id.manufacturer == null) id.manufacturer = text;
+                        break;
+                    case "model":
+                        if (id.model == null) id.model = text;
+                        break;
+                    case "hardwareVersion":
+                        if (id.hardwareVersion == null) id.hardwareVersion = text;
+                        break;
+                    case "softwareVersion":
+                        if (id.softwareVersion == null) id.softwareVersion = text;
+                        break;
+                    default:
+                        break;
+                }
+            } else if (target instanceof String[]) {
+                String[] rel = (String[]) target;
+                if (name.equals("property") && rel[0] == null) rel[0] = text;
+                if (name.equals("value") && rel[1] == null) rel[1] = text;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            Frame f = stack.peek();
+            if (f == null || length == 0) return;
+            if (!inCdata && !f.lastWasText) {
+                f.contentCount++;
+                f.lastWasText = true;
+            }
+            if (f.text != null) {
+                f.text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            characters(ch, start, length);
+        }
+
+        @Override
+        public void startCDATA() {
+            Frame f = stack.peek();
+            if (f != null) {
+                f.contentCount++;
+                f.lastWasText = false;
+            }
+            inCdata = true;
+        }
+
+        @Override
+        public void endCDATA() {
+            inCdata = false;
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) {
+            countNonText();
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) {
+            countNonText();
+        }
+
+        private void countNonText() {
+            Frame f = stack.peek();
+            if (f != null) {
+                f.contentCount++;
+                f.lastWasText = false;
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.openlcb.OlcbExecution;
 
 /**
  * Simple multi-threaded OpenLCB hub implementation.
@@ -37,7 +38,7 @@ public class Hub {
     public Hub(int port) {
         this.port = port;
         // create array server thread
-        Thread t = new Thread("openlcb-hub-output") {
+        Thread t = OlcbExecution.getDefault().newThread("openlcb-hub-output", new Runnable() {
             public void run() {
                 while (true) {
                     try {
@@ -53,8 +54,7 @@ public class Hub {
                     }
                 }
             }
-        };
-        t.setDaemon(true);
+        }, true);
         t.start();
     }
     
@@ -113,11 +113,16 @@ public class Hub {
         public void forward(Memo m);
     }
     
-    class ReaderThread extends Thread implements Forwarding {
+    class ReaderThread implements Runnable, Forwarding {
     
         ReaderThread(Socket clientSocket) {
             this.clientSocket = clientSocket;
         }
+
+        /// Starts reading the socket on a new thread.
+        void start() {
+            OlcbExecution.getDefault().newThread("openlcb-hub-input", this, false).start();
+        }
         
         Socket clientSocket;
         DataInputStream input;
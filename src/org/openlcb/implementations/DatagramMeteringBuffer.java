@@ -1,15 +1,18 @@
 package org.openlcb.implementations;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.openlcb.*;
+import org.openlcb.metrics.Counter;
+import org.openlcb.metrics.Gauge;
+import org.openlcb.metrics.MetricsRegistry;
 
 /**
  * Accepts Datagrams over a Connection from "upstream", and meters them out
@@ -25,6 +28,9 @@ import org.openlcb.*;
  *<li>Needs to timeout and resume operation if no reply received
  *</ul>
  *<p>
+ * No thread waits for the next datagram; it is handed to the thread pool when the previous
+ * one completes, or when it is queued while the buffer is idle.
+ *<p>
  *
  * @author  Bob Jacobsen   Copyright 2012
  * @version $Revision$
@@ -47,10 +53,7 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     @Deprecated
     public DatagramMeteringBuffer(Connection toDownstream ){
           this(toDownstream,
-               new ThreadPoolExecutor(minThreads,maxThreads,
-                                      threadTimeout,TimeUnit.SECONDS,
-                                 new LinkedBlockingQueue<Runnable>(),
-                                 new OlcbThreadFactory()));
+               OlcbExecution.getDefault().newThreadPool(minThreads, maxThreads));
     }
     
     /**
@@ -58,10 +61,23 @@ public class DatagramMeteringBuffer extends MessageDecoder {
      * @param tpe Thread pool in which threads associated with the buffer run.
      */
     public DatagramMeteringBuffer(Connection toDownstream,ThreadPoolExecutor tpe) {
+        this(toDownstream, tpe, null);
+    }
+
+    /**
+     * @param toDownstream Connection object associated with the new buffer
+     * @param tpe Thread pool in which threads associated with the buffer run.
+     * @param timer shared timer for the datagram timeouts (usually the interface's). If null,
+     *              a private timer is created and stopped in dispose().
+     */
+    public DatagramMeteringBuffer(Connection toDownstream, ThreadPoolExecutor tpe,
+                                  HashedWheelTimer timer) {
         threadPool = tpe;
         if(timer == null){
-           timer = new Timer("OpenLCB-datagram-timer");
+           timer = new HashedWheelTimer("OpenLCB-datagram-timer");
+           ownsTimer = true;
         }
+        this.timer = timer;
         this.toDownstream = toDownstream;
         datagramComplete();
         
@@ -71,8 +87,11 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     Connection toDownstream;
     Connection fromDownstream;
     MessageMemo currentMemo;
-    private Timer timer = null;
+    private HashedWheelTimer timer = null;
+    private boolean ownsTimer = false;
     int timeoutMillis = TIMEOUT;
+    private Counter retries = new Counter();
+    private Counter timeouts = new Counter();
 
     /**
      * This is where e.g. replies from the OpenLCB
@@ -84,29 +103,52 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     }
     
     BlockingQueue<MessageMemo> queue = new LinkedBlockingQueue<MessageMemo>();
+    /// Guards the counters below. A lock rather than a monitor so that waiting does not pin a
+    /// virtual thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    /// Signalled whenever pendingEntries or threadPending changes.
+    private final Condition countsChanged = lock.newCondition();
     int pendingEntries = 0;
     int threadPending = 0;
+    /// Number of send slots released by datagramComplete() that have no datagram yet.
+    private int idleConsumers = 0;
 
     public void setTimeout(int timeoutMillis) {
         this.timeoutMillis = timeoutMillis;
     }
 
+    /**
+     * Reports the retries, timeouts and queue length of this buffer in a metrics registry.
+     * Call before sending datagrams.
+     *
+     * @param metrics where to register the metrics.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        retries = metrics.counter("datagram.retries");
+        timeouts = metrics.counter("datagram.timeouts");
+        metrics.gauge("datagram.queue", new Gauge() {
+            @Override
+            public long getValue() {
+                return queue.size();
+            }
+        });
+    }
+
     /**
      * Waits until all pending entries are sent or we are blocked on sending multiple requests to
      * the same target node.
      */
     public void waitForSendQueue() {
-        while(true) {
-            synchronized (this) {
-                if (pendingEntries == 0 || threadPending == 0) {
-                    break;
-                }
-            }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                return;
+        lock.lock();
+        try {
+            while (pendingEntries != 0 && threadPending != 0) {
+                countsChanged.await();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            lock.unlock();
         }
         waitForTimer();
     }
@@ -116,29 +158,28 @@ public class DatagramMeteringBuffer extends MessageDecoder {
      * @throws java.lang.InterruptedException when interrupted.
      */
     public void waitForSendCallbacks() throws InterruptedException {
-        while(true) {
-            synchronized (this) {
-                if (pendingEntries == 0 && threadPending == 1) {
-                    break;
-                }
-            }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                throw e;
+        lock.lock();
+        try {
+            while (pendingEntries != 0 || threadPending != 1) {
+                countsChanged.await();
             }
+        } finally {
+            lock.unlock();
         }
         waitForTimer();
     }
 
     private void waitForTimer() {
         final Semaphore s = new Semaphore(0);
-        timer.schedule(new TimerTask() {
+        if (timer == null || timer.isStopped()) return;
+        if (timer.schedule(new Runnable() {
             @Override
             public void run() {
                 s.release();
             }
-        }, 1);
+        }, 0).isCancelled()) {
+            return;
+        }
         try {
             s.acquire();
         } catch (InterruptedException e) {
@@ -152,10 +193,15 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     @Override
     public void put(Message msg, Connection toUpstream) {
         if (msg instanceof DatagramMessage) {
-            synchronized (this) {
+            lock.lock();
+            try {
                 ++pendingEntries;
+                countsChanged.signalAll();
+            } finally {
+                lock.unlock();
             }
             queue.add(new MessageMemo((DatagramMessage) msg, toUpstream, toDownstream));
+            dispatch();
         } else {
             toDownstream.put(msg, fromDownstream);
         }
@@ -163,10 +209,35 @@ public class DatagramMeteringBuffer extends MessageDecoder {
 
     private void datagramComplete() {
         currentMemo = null;
-        synchronized (this) {
+        lock.lock();
+        try {
             threadPending++;
+            idleConsumers++;
+            countsChanged.signalAll();
+        } finally {
+            lock.unlock();
         }
-        threadPool.execute(new Consumer(queue));
+        dispatch();
+    }
+
+    /// Hands the next queued datagram to the thread pool if a send slot is free.
+    private void dispatch() {
+        MessageMemo m;
+        lock.lock();
+        try {
+            if (idleConsumers == 0) return;
+            m = queue.poll();
+            if (m == null) return;
+            idleConsumers--;
+        } finally {
+            lock.unlock();
+        }
+        ThreadPoolExecutor pool = threadPool;
+        if (pool == null || pool.isShutdown()) {
+            // the buffer has been disposed of.
+            return;
+        }
+        pool.execute(new Consumer(m));
     }
 
     class ReplyHandler extends AbstractConnection {
@@ -186,7 +257,13 @@ public class DatagramMeteringBuffer extends MessageDecoder {
         DatagramMessage message;
         Connection toDownstream;
         Connection toUpstream;
-        TimerTask timerTask;
+        HashedWheelTimer.Timeout timerTask;
+        private final Runnable expiry = new Runnable() {
+            @Override
+            public void run() {
+                timerExpired();
+            }
+        };
 
         MessageMemo(DatagramMessage msg, Connection toUpstream, Connection toDownstream) {
             message = msg;
@@ -205,18 +282,13 @@ public class DatagramMeteringBuffer extends MessageDecoder {
         }
         
         void startTimeout() {
-            timerTask = new TimerTask(){
-                public void run(){
-                    timerExpired();
-                }
-            };
-            try {
-                timer.schedule(timerTask, timeoutMillis);
-            } catch( java.lang.IllegalStateException ise) {
+            HashedWheelTimer t = timer;
+            if (t == null || t.isStopped()) {
                 logger.log(Level.WARNING, "Timer already canceled when starting timeout for datagram {0}", message != null ? message : " == null");
-            } catch( java.util.concurrent.RejectedExecutionException ree) {
-                logger.log(Level.WARNING, "Timer rejected execution when starting timeout for datagram {0}", message != null ? message : " == null");
+                return;
             }
+            // Retries reuse the same Runnable; only the small timeout handle is allocated.
+            timerTask = t.schedule(expiry, timeoutMillis);
         }
 
         void endTimeout() {
@@ -229,6 +301,7 @@ public class DatagramMeteringBuffer extends MessageDecoder {
             // fabricate a permanent error and forward up
             DatagramRejectedMessage msg = new DatagramRejectedMessage(message.getDestNodeID(), message.getSourceNodeID(), 0x0100);
             logger.log(Level.INFO, "Never received reply for datagram {0}", message);
+            timeouts.inc();
             handleDatagramRejected(msg, null);
             // Inject message to upstream listener
             toUpstream.put(msg, toUpstream);
@@ -281,6 +354,7 @@ public class DatagramMeteringBuffer extends MessageDecoder {
             endTimeout();
             // check if resend permitted
             if (msg.canResend()) {
+                retries.inc();
                 forwardDownstream();
             } else {
                 // allow sending another
@@ -313,15 +387,17 @@ public class DatagramMeteringBuffer extends MessageDecoder {
             }
         }
         threadPool = null;
-        // and cancel the timer
-        timer.cancel();
+        // and stop the timer if it's ours
+        if (ownsTimer) {
+            timer.stop();
+        }
         timer = null;
     }    
 
 
     class Consumer implements Runnable {
-        private final BlockingQueue<MessageMemo> queue;
-        Consumer(BlockingQueue<MessageMemo> q) { queue = q; }
+        private final MessageMemo memo;
+        Consumer(MessageMemo m) { memo = m; }
         @Override
         public void run() {
             if(threadPool == null || threadPool.isShutdown()) {
@@ -329,18 +405,24 @@ public class DatagramMeteringBuffer extends MessageDecoder {
                return;
             }
             try {
-                consume(queue.take());
-                synchronized (DatagramMeteringBuffer.this) {
+                consume(memo);
+                lock.lock();
+                try {
                     pendingEntries--;
+                    countsChanged.signalAll();
+                } finally {
+                    lock.unlock();
                 }
-            } catch (InterruptedException ex) {
-                // interrupted while processing, but not in a loop.
             } finally {
-                synchronized (DatagramMeteringBuffer.this) {
+                lock.lock();
+                try {
                     threadPending--;
+                    countsChanged.signalAll();
+                } finally {
+                    lock.unlock();
                 }
             }
-            // and exits. Another has to be started with this item is done.
+            // and exits. Another is started when this item is done.
         }
         void consume(MessageMemo x) { x.sendIt(); }
     }    
@@ -1,10 +1,17 @@
 package org.openlcb.implementations;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 import org.openlcb.*;
+import org.openlcb.metrics.Counter;
+import org.openlcb.metrics.Histogram;
+import org.openlcb.metrics.MetricsRegistry;
 
 /**
  * Service for sending and receiving data via datagrams.
@@ -20,9 +27,10 @@ import org.openlcb.*;
  * <p>
  * Multiple copies of this can exist.  
  * <ul>
- * <li>Replies to sent datagrams are processed one-by-one here. This object
- *      can send to multiple destination nodes, but it cannot overlap sent messages:
- *      each send&amp;reply must be complete before the next is started.
+ * <li>Replies to sent datagrams are matched by the node they come from. This object
+ *      can have one datagram outstanding to each destination node, so transfers to different
+ *      nodes may overlap; to the same node, each send&amp;reply must be complete before the
+ *      next is started.
  * <li>Incoming datagrams for this node are forwarded to the receiving
  *      code, regardless of whether the sending node was ever a destination.
  * </ul>
@@ -48,18 +56,38 @@ public class DatagramService extends MessageDecoder {
     static final int DEFAULT_ERROR_CODE = 0x1000;
     NodeID here;
     Connection downstream;
+    private Counter sent = new Counter();
+    private Counter received = new Counter();
+    private Counter failed = new Counter();
+    private Histogram sendTime = new Histogram();
+
+    /**
+     * Reports the datagram traffic of this service in a metrics registry.
+     *
+     * @param metrics where to register the metrics.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        sent = metrics.counter("datagram.sent");
+        received = metrics.counter("datagram.received");
+        failed = metrics.counter("datagram.failed");
+        sendTime = metrics.histogram("datagram.nanos");
+    }
 
     /**
      * Send data to layout
      * @param memo    datagram to send
      */
     public void sendData(DatagramServiceTransmitMemo memo){
-        if (xmtMemo != null) {
-            logger.log(Level.SEVERE, "Overriding datagram transmit memo. old {0} new {1}", new Object[]{xmtMemo, memo}); //log
+        DatagramServiceTransmitMemo old;
+        memo.startNanos = System.nanoTime();
+        synchronized (xmtMemos) {
+            old = xmtMemos.put(memo.dest, memo);
+        }
+        if (old != null) {
+            logger.log(Level.SEVERE, "Overriding datagram transmit memo. old {0} new {1}", new Object[]{old, memo}); //log
         }
-        xmtMemo = memo;
-        Message m = new DatagramMessage(here, memo.dest, memo.data);
-        downstream.put(m, this);
+        sent.inc();
+        downstream.put(memo.toMessage(here), this);
     }
 
     /**
@@ -68,16 +96,28 @@ public class DatagramService extends MessageDecoder {
      * @param data    datagram payload
      */
     public void sendData(NodeID dest, int[] data){
-        DatagramServiceTransmitMemo memo = new DatagramServiceTransmitMemo(dest, data) {
+        sendData(new DatagramServiceTransmitMemo(dest, data) {
             @Override
             public void handleSuccess(int flags) {}
 
             @Override
             public void handleFailure(int errorCode) {}
-        };
-        xmtMemo = memo;
-        Message m = new DatagramMessage(here, memo.dest, memo.data);
-        downstream.put(m, this);
+        });
+    }
+
+    /**
+     * Send data to layout
+     * @param dest    target node ID
+     * @param data    datagram payload; not copied, must not be changed afterwards
+     */
+    public void sendData(NodeID dest, byte[] data){
+        sendData(new DatagramServiceTransmitMemo(dest, data) {
+            @Override
+            public void handleSuccess(int flags) {}
+
+            @Override
+            public void handleFailure(int errorCode) {}
+        });
     }
 
     /**
@@ -87,18 +127,17 @@ public class DatagramService extends MessageDecoder {
     public void handleDatagram(DatagramMessage msg, Connection sender){
         // ignore if not for here
         if (!msg.getDestNodeID().equals(here)) return;
-        
+        received.inc();
+
         // forward
         int retval = DEFAULT_ERROR_CODE;
         ReplyMemo replyMemo = new ReplyMemo(msg, downstream, here, this);
-        if (msg.getData() == null) {
-            new Exception("Unexpected null content of datagram").printStackTrace();
-        }
-        if (msg.getData() != null && msg.getData().length == 0) {
+        ByteBuffer payload = msg.getPayload();
+        if (!payload.hasRemaining()) {
             new Exception("Unexpected zero length content of datagram").printStackTrace();
         }
-        if (rcvMemo != null && msg.getData()!=null && msg.getData().length > 0 && rcvMemo.type == msg.getData()[0]) {
-            rcvMemo.handleData(msg.getSourceNodeID(), msg.getData(), replyMemo);
+        if (rcvMemo != null && payload.hasRemaining() && rcvMemo.type == (payload.get(0) & 0xFF)) {
+            rcvMemo.handleData(msg.getSourceNodeID(), payload, replyMemo);
             // check that client replied
             if (! replyMemo.hasReplied())
                 logger.log(Level.SEVERE, "No internal reply received to datagram with contents {0}", Utilities.toHexDotsString(msg.getData())); //log
@@ -114,10 +153,11 @@ public class DatagramService extends MessageDecoder {
      */
     @Override
     public void handleDatagramRejected(DatagramRejectedMessage msg, Connection sender){
-        if (xmtMemo != null && msg.getDestNodeID().equals(here) && xmtMemo.dest.equals(msg.getSourceNodeID()) ) {
-            if (msg.canResend()) return;
-            DatagramServiceTransmitMemo temp = xmtMemo;
-            xmtMemo = null;
+        if (!msg.getDestNodeID().equals(here) || msg.canResend()) return;
+        DatagramServiceTransmitMemo temp = takeMemo(msg.getSourceNodeID());
+        if (temp != null) {
+            failed.inc();
+            sendTime.recordSince(temp.startNanos);
             temp.handleFailure(msg.getCode());
         }
     }
@@ -127,15 +167,24 @@ public class DatagramService extends MessageDecoder {
      */
     @Override
     public void handleDatagramAcknowledged(DatagramAcknowledgedMessage msg, Connection sender){
-        if (xmtMemo != null && msg.getDestNodeID().equals(here) && xmtMemo.dest.equals(msg.getSourceNodeID()) ) {
-            DatagramServiceTransmitMemo temp = xmtMemo;
-            xmtMemo = null;
+        if (!msg.getDestNodeID().equals(here)) return;
+        DatagramServiceTransmitMemo temp = takeMemo(msg.getSourceNodeID());
+        if (temp != null) {
+            sendTime.recordSince(temp.startNanos);
             temp.handleSuccess(msg.getFlags());
         }
     }
 
+    /// @return the outstanding transmit memo to a node, removed, or null if there is none.
+    private DatagramServiceTransmitMemo takeMemo(NodeID dest) {
+        synchronized (xmtMemos) {
+            return xmtMemos.remove(dest);
+        }
+    }
+
     DatagramServiceReceiveMemo rcvMemo;
-    DatagramServiceTransmitMemo xmtMemo;
+    /// Outstanding datagram for each destination node. Guarded by itself.
+    private final Map<NodeID, DatagramServiceTransmitMemo> xmtMemos = new HashMap<>();
     
     /**
      * Accept request to notify for a particular
@@ -196,6 +245,23 @@ public class DatagramService extends MessageDecoder {
             service.acceptData(DEFAULT_ERROR_CODE);
         }
 
+        /**
+         * Called by the service with the payload of an incoming datagram. Overload this
+         * instead of {@link #handleData(NodeID, int[], ReplyMemo)} to get the bytes without
+         * a copy; the default converts them to ints and calls that.
+         *
+         * @param n       sender node ID (somewhere on the bus)
+         * @param data    read-only view of the payload
+         * @param service must be replied to as for the int[] variant
+         */
+        public void handleData(NodeID n, ByteBuffer data, ReplyMemo service) {
+            int[] d = new int[data.remaining()];
+            for (int i = 0; i < d.length; i++) {
+                d[i] = data.get(data.position() + i) & 0xFF;
+            }
+            handleData(n, d, service);
+        }
+
     }
     
     @Immutable
@@ -248,33 +314,63 @@ public class DatagramService extends MessageDecoder {
             this.dest = dest;
         }
 
+        /**
+         * @param dest    target node ID
+         * @param payload datagram payload; not copied, must not be changed afterwards
+         */
+        public DatagramServiceTransmitMemo(NodeID dest, byte[] payload) {
+            this.payload = payload;
+            this.dest = dest;
+        }
+
         protected DatagramServiceTransmitMemo(NodeID dest) {
             this.data = null;  // sends zero-byte datagram
             this.dest = dest; 
         }
         
         protected int[] data;
+        /// Payload when made from bytes; data is null then.
+        private byte[] payload;
         final NodeID dest;
+        /// When the datagram was sent, from System.nanoTime().
+        private long startNanos;
+
+        /**
+         * @param here source node ID
+         * @return the datagram message carrying this memo's payload.
+         */
+        DatagramMessage toMessage(NodeID here) {
+            if (payload != null) return DatagramMessage.wrap(here, dest, payload);
+            return new DatagramMessage(here, dest, data != null ? data : new int[0]);
+        }
+
+        /// @return the payload as bytes; a copy when the memo was made from ints.
+        private byte[] bytes() {
+            if (payload != null) return payload;
+            byte[] b = new byte[data != null ? data.length : 0];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = (byte) data[i];
+            }
+            return b;
+        }
         
         @Override
         public boolean equals(Object o) {
             if (o == null) return false;
             if (! (o instanceof DatagramServiceTransmitMemo)) return false;
             DatagramServiceTransmitMemo m = (DatagramServiceTransmitMemo) o;
-            if (this.data.length != m.data.length) return false;
             if (this.dest != m.dest) return false;
-            for (int i = 0; i < this.data.length; i++)
-                if (this.data[i] != m.data[i]) return false;
-            return true;
+            if (this.payload == null && m.payload == null) return Arrays.equals(this.data, m.data);
+            return Arrays.equals(this.bytes(), m.bytes());
         } 
     
         @Override
         public String toString() {
-            return "DatagramServiceTransmitMemo to " + dest.toString() + ": "+Utilities.toHexDotsString(data);
+            return "DatagramServiceTransmitMemo to " + dest.toString() + ": "+Utilities.toHexDotsString(bytes());
         }
         
         @Override
-        public int hashCode() { return this.data.length+this.data[0]+dest.hashCode(); }
+        public int hashCode() { return Arrays.hashCode(bytes())+dest.hashCode(); }
         
         /**
          * Notifies that the datagram was accepted by the destination.
@@ -1,5 +1,7 @@
 package org.openlcb.implementations;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by bracz on 4/24/16.
  */
@@ -17,6 +19,17 @@ public class DatagramUtils {
         return retval;
     }
 
+    static long parseLong(ByteBuffer payload, int offset) {
+        return payload.getInt(offset) & 0xffffffffL;
+    }
+
+    static void renderLong(byte[] payload, int offset, long value) {
+        payload[offset++] = (byte) (value >> 24);
+        payload[offset++] = (byte) (value >> 16);
+        payload[offset++] = (byte) (value >> 8);
+        payload[offset++] = (byte) value;
+    }
+
     static void renderLong(int[] payload, int offset, long value) {
         payload[offset++] = (int) ((value >> 24) & 0xff);
         payload[offset++] = (int) ((value >> 16) & 0xff);
@@ -31,6 +44,13 @@ public class DatagramUtils {
         return retval;
     }
 
+    static int parseErrorCode(ByteBuffer payload, int offset) {
+        int retval = payload.get(offset++) & 0xff;
+        retval <<= 8;
+        retval |= payload.get(offset) & 0xff;
+        return retval;
+    }
+
     static void renderErrorCode(int[] payload, int offset, int errorCode) {
         payload[offset++] = (errorCode >> 8) & 0xff;
         payload[offset++] = errorCode & 0xff;
@@ -55,4 +75,25 @@ public class DatagramUtils {
             dst[i+iDst] = intToByte(src[i + iSrc]);
         }
     }
+
+    static byte[] toByteArray(int[] src) {
+        byte[] dst = new byte[src.length];
+        intToByteArray(dst, 0, src, 0, src.length);
+        return dst;
+    }
+
+    /// Copies the bytes between position and limit, leaving the buffer unchanged.
+    static byte[] toByteArray(ByteBuffer src) {
+        byte[] dst = new byte[src.remaining()];
+        src.duplicate().get(dst);
+        return dst;
+    }
+
+    static int[] toIntArray(ByteBuffer src) {
+        int[] dst = new int[src.remaining()];
+        for (int i = 0; i < dst.length; ++i) {
+            dst[i] = byteToInt(src.get(src.position() + i));
+        }
+        return dst;
+    }
 }
@@ -1,8 +1,8 @@
 package org.openlcb.implementations;
 
 import org.openlcb.*;
-
-import java.util.HashSet;
+import org.openlcb.metrics.Counter;
+import org.openlcb.metrics.MetricsRegistry;
 
 /**
  * Gateway that filters event messages that aren't needed.
@@ -13,15 +13,31 @@ import java.util.HashSet;
  *  Once a "ConsumerIdentified" message for a particular EventID
  *         comes from one side,<br>
  *  ProducedConsumerEventReport messages with that EventID are
- *         forwarded <u>to</u> that side.
- * 
+ *         forwarded <u>to</u> that side.<br>
+ *  A "ConsumerRangeIdentified" message does the same for all
+ *         events in the range.
+ * <p>
+ * All other messages are forwarded. The learned events are kept in a {@link LearnedEventSet}
+ * per side; forwarding checks do not lock, so both sides can deliver messages from their own
+ * threads. With {@link #setMaxAge(long)} events that are not identified again within the
+ * given time are forgotten, e.g. when some tool sends Identify Events periodically. Counters
+ * tell how many event reports were forwarded and suppressed in each direction.
+ *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
  */
 public class EventFilterGateway extends Gateway {
     public EventFilterGateway() {
+        idsGoingWest = new LearnedEventSet();
+        idsGoingEast = new LearnedEventSet();
     }
-    
+
+    /// Creates a gateway whose learned events age by the given clock; for testing.
+    EventFilterGateway(LearnedEventSet.Clock clock) {
+        idsGoingWest = new LearnedEventSet(clock);
+        idsGoingEast = new LearnedEventSet(clock);
+    }
+
     /**
      * Provide a connection object for use by
      * the East node.
@@ -40,54 +56,110 @@ public class EventFilterGateway extends Gateway {
         return westInputConnection;
     }
 
-    HashSet<EventID> idsGoingWest = new HashSet<EventID>();
-    HashSet<EventID> idsGoingEast = new HashSet<EventID>();
-    
-    class EastConnection extends MessageDecoder implements Connection {
-        boolean forward;
+    /**
+     * Sets how long learned events stay valid without being identified again.
+     *
+     * @param msec maximum age in milliseconds; 0 (the default) to never forget.
+     */
+    public void setMaxAge(long msec) {
+        idsGoingWest.setMaxAge(msec);
+        idsGoingEast.setMaxAge(msec);
+    }
 
-        @Override
-        public void put(Message msg, Connection sender) {
-            forward = true;     // all messages forwarded, unless veto'd
-            msg.applyTo(this, sender);  // distribute
-            if (forward) sendMessageToWest(msg, sender);
-        }
+    /// Drops the expired learned events. Lookups ignore them anyway; this frees the memory.
+    public void purge() {
+        idsGoingWest.purge();
+        idsGoingEast.purge();
+    }
 
-        @Override
-        public void handleProducerConsumerEventReport(ProducerConsumerEventReportMessage msg,
-                                                        Connection sender){
-            if (! idsGoingWest.contains(msg.getEventID()))
-                forward = false;
-        }
+    /**
+     * Reports the counters of this gateway into a registry, as
+     * {@code <prefix>.toWest.forwarded}, {@code <prefix>.toWest.suppressed} and the same for
+     * toEast. Call before connecting the gateway; counts so far are not carried over.
+     *
+     * @param metrics registry, e.g. of the interface this gateway belongs to.
+     * @param prefix  name prefix for the counters.
+     */
+    public void setMetrics(MetricsRegistry metrics, String prefix) {
+        forwardedWest = metrics.counter(prefix + ".toWest.forwarded");
+        suppressedWest = metrics.counter(prefix + ".toWest.suppressed");
+        forwardedEast = metrics.counter(prefix + ".toEast.forwarded");
+        suppressedEast = metrics.counter(prefix + ".toEast.suppressed");
+    }
 
-        @Override
-        public void handleConsumerIdentified(ConsumerIdentifiedMessage msg,
-                                                        Connection sender){
-            idsGoingEast.add(msg.getEventID());
-        }
-    }    
+    /// @return the number of event reports forwarded from east to west.
+    public long getForwardedToWest() {
+        return forwardedWest.get();
+    }
 
-    class WestConnection extends MessageDecoder implements Connection {
-        boolean forward;
+    /// @return the number of event reports not forwarded from east to west.
+    public long getSuppressedToWest() {
+        return suppressedWest.get();
+    }
 
-        @Override
-        public void put(Message msg, Connection sender) {
-            forward = true;     // all messages forwarded, unless veto'd
-            msg.applyTo(this, sender);  // distribute
-            if (forward) sendMessageToEast(msg, sender);
+    /// @return the number of event reports forwarded from west to east.
+    public long getForwardedToEast() {
+        return forwardedEast.get();
+    }
+
+    /// @return the number of event reports not forwarded from west to east.
+    public long getSuppressedToEast() {
+        return suppressedEast.get();
+    }
+
+    /// Events consumed by nodes on the west side.
+    final LearnedEventSet idsGoingWest;
+    /// Events consumed by nodes on the east side.
+    final LearnedEventSet idsGoingEast;
+
+    private volatile Counter forwardedWest = new Counter();
+    private volatile Counter suppressedWest = new Counter();
+    private volatile Counter forwardedEast = new Counter();
+    private volatile Counter suppressedEast = new Counter();
+
+    /**
+     * Learns from a message arriving on one side and decides whether to forward it.
+     *
+     * @param msg        message arriving.
+     * @param sameSide   events consumed on the side the message came from.
+     * @param otherSide  events consumed on the side the message would go to.
+     * @param forwarded  counts forwarded event reports.
+     * @param suppressed counts suppressed event reports.
+     * @return true if the message should be forwarded.
+     */
+    private static boolean filter(Message msg, LearnedEventSet sameSide, LearnedEventSet
+            otherSide, Counter forwarded, Counter suppressed) {
+        if (msg instanceof ProducerConsumerEventReportMessage) {
+            if (otherSide.contains(((EventMessage) msg).getEventID().toLong())) {
+                forwarded.inc();
+                return true;
+            }
+            suppressed.inc();
+            return false;
         }
+        if (msg instanceof ConsumerIdentifiedMessage) {
+            sameSide.add(((EventMessage) msg).getEventID().toLong());
+        } else if (msg instanceof ConsumerRangeIdentifiedMessage) {
+            sameSide.addRange(((EventMessage) msg).getEventID().toLong());
+        }
+        return true;
+    }
 
+    class EastConnection extends AbstractConnection {
         @Override
-        public void handleProducerConsumerEventReport(ProducerConsumerEventReportMessage msg,
-                                                        Connection sender){
-            if (! idsGoingEast.contains(msg.getEventID()))
-                forward = false;
+        public void put(Message msg, Connection sender) {
+            if (filter(msg, idsGoingEast, idsGoingWest, forwardedWest, suppressedWest)) {
+                sendMessageToWest(msg, sender);
+            }
         }
+    }
 
+    class WestConnection extends AbstractConnection {
         @Override
-        public void handleConsumerIdentified(ConsumerIdentifiedMessage msg,
-                                                        Connection sender){
-            idsGoingWest.add(msg.getEventID());
+        public void put(Message msg, Connection sender) {
+            if (filter(msg, idsGoingWest, idsGoingEast, forwardedEast, suppressedEast)) {
+                sendMessageToEast(msg, sender);
+            }
         }
-    }    
-}
\ No newline at end of file
+    }
+}
@@ -0,0 +1,625 @@
+package org.openlcb.implementations;
+
+import org.openlcb.Connection;
+import org.openlcb.ConsumerIdentifiedMessage;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.EventID;
+import org.openlcb.EventState;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.MessageDecoder;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.ProducerIdentifiedMessage;
+import org.openlcb.ProducerRangeIdentifiedMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Network-wide index of which nodes produce and consume which events.
+ * <p>
+ * The registry listens to the messages arriving on an interface and records every Producer
+ * Identified, Consumer Identified and range identified message, together with the last
+ * reported event state of each (node, event) pair. Tools can ask who produces or consumes an
+ * event without sending Identify Producers / Identify Consumers to the bus; the answers are as
+ * complete as the traffic seen so far, so a global Identify Events is a good way to fill the
+ * registry after startup.
+ * <p>
+ * Single events are kept in a hash map keyed by the 64-bit event ID. Ranges are kept in an
+ * interval index: an OpenLCB event range is always an aligned block whose size is a power of
+ * two, so two ranges are either disjoint or one contains the other, and the ranges containing
+ * an event are found with one lookup per block size in use. All queries take constant time in
+ * the number of events and ranges known.
+ * <p>
+ * An Initialization Complete message from a node removes everything known about that node,
+ * since it may have been reconfigured. Each node's events and ranges are indexed too, so this
+ * takes time in proportion to what the node itself identified.
+ * <p>
+ * EventRegistry is thread-safe. Queries run in parallel; message processing takes a short
+ * write lock.
+ */
+@ThreadSafe
+public class EventRegistry extends MessageDecoder {
+    private final OlcbInterface iface;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /// Single events, keyed by event ID.
+    private final LongMap<EventRecord> events = new LongMap<>();
+    /// Producer ranges; element w-1 holds the ranges of 2^w events keyed by their first event.
+    private final RangeTable[] producerRanges = new RangeTable[64];
+    private final RangeTable[] consumerRanges = new RangeTable[64];
+    /// Bit w-1 is set if producerRanges has ranges of width w.
+    private long producerWidths = 0;
+    private long consumerWidths = 0;
+    /// What each node identified, to forget it without looking at other nodes' records.
+    private final Map<NodeID, NodeIndex> nodes = new HashMap<>();
+
+    /**
+     * Creates a registry that records the traffic of an interface.
+     *
+     * @param iface interface to listen to. Call {@link #dispose()} to stop listening.
+     */
+    public EventRegistry(OlcbInterface iface) {
+        this.iface = iface;
+        iface.registerMessageListener(this);
+    }
+
+    /// Creates a registry that is not attached to an interface; feed it messages via put().
+    public EventRegistry() {
+        this.iface = null;
+    }
+
+    /// De-registers the message listener to prepare for deallocating this object.
+    public void dispose() {
+        if (iface != null) {
+            iface.unRegisterMessageListener(this);
+        }
+    }
+
+    /**
+     * A producer or consumer range as reported by a node.
+     */
+    public static class Range {
+        private final NodeID node;
+        private final long first;
+        private final long last;
+
+        Range(NodeID node, long first, long last) {
+            this.node = node;
+            this.first = first;
+            this.last = last;
+        }
+
+        /// @return the node that reported the range.
+        public NodeID getNode() {
+            return node;
+        }
+
+        /// @return the lowest event ID of the range.
+        public EventID getFirst() {
+            return toEventID(first);
+        }
+
+        /// @return the highest event ID of the range.
+        public EventID getLast() {
+            return toEventID(last);
+        }
+
+        /// @return whether the event is in this range.
+        public boolean contains(EventID event) {
+            long e = event.toLong();
+            return Long.compareUnsigned(first, e) <= 0 && Long.compareUnsigned(e, last) <= 0;
+        }
+
+        @Override
+        public String toString() {
+            return node + " " + getFirst() + " - " + getLast();
+        }
+    }
+
+    /**
+     * @param event event ID.
+     * @return the nodes that identified as producer of this event, either for this single
+     * event or for a range containing it.
+     */
+    public Set<NodeID> getProducers(EventID event) {
+        return getNodes(event, true);
+    }
+
+    /**
+     * @param event event ID.
+     * @return the nodes that identified as consumer of this event, either for this single
+     * event or for a range containing it.
+     */
+    public Set<NodeID> getConsumers(EventID event) {
+        return getNodes(event, false);
+    }
+
+    /**
+     * @param node  a node.
+     * @param event event ID.
+     * @return the last state the node reported as producer of the event, or null if the node
+     * did not identify as producer of this single event.
+     */
+    @Nullable
+    public EventState getProducerState(NodeID node, EventID event) {
+        return getState(node, event, true);
+    }
+
+    /**
+     * @param node  a node.
+     * @param event event ID.
+     * @return the last state the node reported as consumer of the event, or null if the node
+     * did not identify as consumer of this single event.
+     */
+    @Nullable
+    public EventState getConsumerState(NodeID node, EventID event) {
+        return getState(node, event, false);
+    }
+
+    /**
+     * @param event event ID.
+     * @return the producer ranges containing the event, from the largest to the smallest.
+     */
+    public List<Range> getProducerRanges(EventID event) {
+        return getRanges(event, true);
+    }
+
+    /**
+     * @param event event ID.
+     * @return the consumer ranges containing the event, from the largest to the smallest.
+     */
+    public List<Range> getConsumerRanges(EventID event) {
+        return getRanges(event, false);
+    }
+
+    /// @return the number of single events known.
+    public int getEventCount() {
+        lock.readLock().lock();
+        try {
+            return events.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /// Forgets everything.
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            events.clear();
+            nodes.clear();
+            Arrays.fill(producerRanges, null);
+            Arrays.fill(consumerRanges, null);
+            producerWidths = 0;
+            consumerWidths = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all events and ranges of a node.
+     *
+     * @param node node that went away or was reinitialized.
+     */
+    public void forgetNode(NodeID node) {
+        lock.writeLock().lock();
+        try {
+            NodeIndex ni = nodes.remove(node);
+            if (ni == null) return;
+            for (long key : ni.events.keys()) {
+                EventRecord r = events.get(key);
+                if (r == null) continue;
+                r.producers.remove(node);
+                r.consumers.remove(node);
+                if (r.producers.isEmpty() && r.consumers.isEmpty()) {
+                    events.remove(key);
+                }
+            }
+            producerWidths = forgetRanges(node, ni.producerRanges, producerRanges,
+                    producerWidths);
+            consumerWidths = forgetRanges(node, ni.consumerRanges, consumerRanges,
+                    consumerWidths);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /// @return the index of a node, created if needed. Holds the write lock.
+    private NodeIndex indexOf(NodeID node) {
+        NodeIndex ni = nodes.get(node);
+        if (ni == null) {
+            ni = new NodeIndex();
+            nodes.put(node, ni);
+        }
+        return ni;
+    }
+
+    @Override
+    public void handleProducerIdentified(ProducerIdentifiedMessage msg, Connection sender) {
+        setState(msg.getSourceNodeID(), msg.getEventID(), msg.getEventState(), true);
+    }
+
+    @Override
+    public void handleConsumerIdentified(ConsumerIdentifiedMessage msg, Connection sender) {
+        setState(msg.getSourceNodeID(), msg.getEventID(), msg.getEventState(), false);
+    }
+
+    @Override
+    public void handleProducerRangeIdentified(ProducerRangeIdentifiedMessage msg, Connection
+            sender) {
+        addRange(msg.getSourceNodeID(), msg.getEventID(), true);
+    }
+
+    @Override
+    public void handleConsumerRangeIdentified(ConsumerRangeIdentifiedMessage msg, Connection
+            sender) {
+        addRange(msg.getSourceNodeID(), msg.getEventID(), false);
+    }
+
+    /// An event report means the event is now valid at a producer that identified for it.
+    @Override
+    public void handleProducerConsumerEventReport(ProducerConsumerEventReportMessage msg,
+                                                  Connection sender) {
+        long key = msg.getEventID().toLong();
+        lock.writeLock().lock();
+        try {
+            EventRecord r = events.get(key);
+            if (r != null) {
+                r.producers.update(msg.getSourceNodeID(), EventState.Valid);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void handleInitializationComplete(InitializationCompleteMessage msg, Connection
+            sender) {
+        forgetNode(msg.getSourceNodeID());
+    }
+
+    private void setState(NodeID node, EventID event, EventState state, boolean producer) {
+        long key = event.toLong();
+        lock.writeLock().lock();
+        try {
+            EventRecord r = events.get(key);
+            if (r == null) {
+                r = new EventRecord();
+                events.put(key, r);
+            }
+            (producer ? r.producers : r.consumers).set(node, state);
+            indexOf(node).events.put(key, Boolean.TRUE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addRange(NodeID node, EventID event, boolean producer) {
+        long id = event.toLong();
+        int width = rangeWidth(id);
+        long first = id & ~rangeMask(width);
+        lock.writeLock().lock();
+        try {
+            RangeTable[] index = producer ? producerRanges : consumerRanges;
+            RangeTable m = index[width - 1];
+            if (m == null) {
+                m = new RangeTable();
+                index[width - 1] = m;
+                if (producer) {
+                    producerWidths |= 1L << (width - 1);
+                } else {
+                    consumerWidths |= 1L << (width - 1);
+                }
+            }
+            RangeRecord r = m.get(first);
+            if (r == null) {
+                r = new RangeRecord();
+                m.put(first, r);
+            }
+            r.nodes.add(node);
+            NodeIndex ni = indexOf(node);
+            LongMap<Long> mine = producer ? ni.producerRanges : ni.consumerRanges;
+            Long w = mine.get(first);
+            mine.put(first, (w == null ? 0 : w) | 1L << (width - 1));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Set<NodeID> getNodes(EventID event, boolean producer) {
+        long id = event.toLong();
+        Set<NodeID> ret = new LinkedHashSet<>();
+        lock.readLock().lock();
+        try {
+            EventRecord r = events.get(id);
+            if (r != null) {
+                (producer ? r.producers : r.consumers).addNodesTo(ret);
+            }
+            RangeTable[] index = producer ? producerRanges : consumerRanges;
+            for (long widths = producer ? producerWidths : consumerWidths; widths != 0;
+                 widths &= widths - 1) {
+                int width = Long.numberOfTrailingZeros(widths) + 1;
+                RangeRecord rr = index[width - 1].get(id & ~rangeMask(width));
+                if (rr != null) {
+                    ret.addAll(rr.nodes);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return ret;
+    }
+
+    @Nullable
+    private EventState getState(NodeID node, EventID event, boolean producer) {
+        lock.readLock().lock();
+        try {
+            EventRecord r = events.get(event.toLong());
+            if (r == null) return null;
+            return (producer ? r.producers : r.consumers).get(node);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Range> getRanges(EventID event, boolean producer) {
+        long id = event.toLong();
+        List<Range> ret = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            RangeTable[] index = producer ? producerRanges : consumerRanges;
+            for (long widths = producer ? producerWidths : consumerWidths; widths != 0;
+                 widths &= ~Long.highestOneBit(widths)) {
+                int width = 64 - Long.numberOfLeadingZeros(widths);
+                long first = id & ~rangeMask(width);
+                RangeRecord rr = index[width - 1].get(first);
+                if (rr == null) continue;
+                for (NodeID n : rr.nodes) {
+                    ret.add(new Range(n, first, first | rangeMask(width)));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return ret;
+    }
+
+    /**
+     * Removes a node from its ranges.
+     *
+     * @param ranges the node's ranges; see {@link NodeIndex}.
+     * @return the new widths in use.
+     */
+    private static long forgetRanges(NodeID node, LongMap<Long> ranges, RangeTable[]
+            index, long widths) {
+        for (long first : ranges.keys()) {
+            for (long mine = ranges.get(first); mine != 0; mine &= mine - 1) {
+                int w = Long.numberOfTrailingZeros(mine);
+                if (index[w] == null) continue;
+                RangeRecord r = index[w].get(first);
+                if (r == null) continue;
+                r.nodes.remove(node);
+                if (!r.nodes.isEmpty()) continue;
+                index[w].remove(first);
+                if (index[w].size() == 0) {
+                    index[w] = null;
+                    widths &= ~(1L << w);
+                }
+            }
+        }
+        return widths;
+    }
+
+    /**
+     * Computes the size of the range described by a range identified event ID. The low bits
+     * that are all equal to the lowest bit are the mask of the range.
+     *
+     * @param id event ID from a range identified message.
+     * @return the number of bits masked by the range, 1..64.
+     */
+    static int rangeWidth(long id) {
+        if ((id & 1) != 0) {
+            id = ~id;
+        }
+        return id == 0 ? 64 : Long.numberOfTrailingZeros(id);
+    }
+
+    private static long rangeMask(int width) {
+        return width == 64 ? -1L : (1L << width) - 1;
+    }
+
+    static EventID toEventID(long id) {
+        byte[] b = new byte[8];
+        for (int i = 7; i >= 0; --i) {
+            b[i] = (byte) id;
+            id >>>= 8;
+        }
+        return new EventID(b);
+    }
+
+    /// Producers and consumers of one event.
+    private static class EventRecord {
+        final NodeStates producers = new NodeStates();
+        final NodeStates consumers = new NodeStates();
+    }
+
+    /// Nodes with a given range.
+    private static class RangeRecord {
+        final Set<NodeID> nodes = new LinkedHashSet<>(2);
+    }
+
+    /// Ranges of one width keyed by their first event; a named type so it can form an array.
+    private static class RangeTable extends LongMap<RangeRecord> {
+    }
+
+    /**
+     * Events and ranges a node identified. Ranges are keyed by their first event; the value has
+     * bit w-1 set for each range of width w starting there, since ranges of different sizes
+     * can share the first event.
+     */
+    private static class NodeIndex {
+        final LongMap<Boolean> events = new LongMap<>();
+        final LongMap<Long> producerRanges = new LongMap<>();
+        final LongMap<Long> consumerRanges = new LongMap<>();
+    }
+
+    /// Small list of (node, state) pairs. Most events have one or two producers or consumers.
+    private static class NodeStates {
+        NodeID[] nodes = new NodeID[0];
+        EventState[] states = new EventState[0];
+
+        int indexOf(NodeID node) {
+            for (int i = 0; i < nodes.length; ++i) {
+                if (nodes[i].equals(node)) return i;
+            }
+            return -1;
+        }
+
+        EventState get(NodeID node) {
+            int i = indexOf(node);
+            return i < 0 ? null : states[i];
+        }
+
+        void set(NodeID node, EventState state) {
+            int i = indexOf(node);
+            if (i < 0) {
+                i = nodes.length;
+                nodes = Arrays.copyOf(nodes, i + 1);
+                states = Arrays.copyOf(states, i + 1);
+                nodes[i] = node;
+            }
+            states[i] = state;
+        }
+
+        /// Changes the state only if the node is already known.
+        void update(NodeID node, EventState state) {
+            int i = indexOf(node);
+            if (i >= 0) states[i] = state;
+        }
+
+        void remove(NodeID node) {
+            int i = indexOf(node);
+            if (i < 0) return;
+            int n = nodes.length - 1;
+            System.arraycopy(nodes, i + 1, nodes, i, n - i);
+            System.arraycopy(states, i + 1, states, i, n - i);
+            nodes = Arrays.copyOf(nodes, n);
+            states = Arrays.copyOf(states, n);
+        }
+
+        boolean isEmpty() {
+            return nodes.length == 0;
+        }
+
+        void addNodesTo(Set<NodeID> set) {
+            Collections.addAll(set, nodes);
+        }
+    }
+
+    /**
+     * Hash map from primitive long keys to objects, using open addressing with linear probing.
+     * Not thread-safe. Null values are not allowed.
+     */
+    static class LongMap<V> {
+        private long[] keys = new long[16];
+        private Object[] values = new Object[16];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long key) {
+            for (int i = slot(key); values[i] != null; i = (i + 1) & (keys.length - 1)) {
+                if (keys[i] == key) return (V) values[i];
+            }
+            return null;
+        }
+
+        void put(long key, V value) {
+            int i = slot(key);
+            for (; values[i] != null; i = (i + 1) & (keys.length - 1)) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+        }
+
+        void clear() {
+            keys = new long[16];
+            values = new Object[16];
+            size = 0;
+        }
+
+        /// Removes a key, moving back the entries after it in the probe sequence. Does not shrink.
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key);
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) break;
+            }
+            if (values[i] == null) return;
+            --size;
+            // Fills the hole with a later entry whose home slot is not between the hole and it.
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = slot(keys[j]);
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            values[i] = null;
+        }
+
+        /// @return a copy of the keys.
+        long[] keys() {
+            long[] ret = new long[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; ++i) {
+                if (values[i] != null) ret[n++] = keys[i];
+            }
+            return ret;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldValues[i] == null) continue;
+                int j = slot(oldKeys[i]);
+                while (values[j] != null) {
+                    j = (j + 1) & (capacity - 1);
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -4,10 +4,15 @@ import org.openlcb.DefaultPropertyListenerSupport;
 import org.openlcb.EventID;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
@@ -20,6 +25,11 @@ import javax.annotation.concurrent.ThreadSafe;
  * <p>
  * EventTable is thread-safe.
  * <p>
+ * Searching uses an index of the words of all descriptions, maintained when entries are added,
+ * changed or removed, so that a search only looks at the entries that can match well. The
+ * index is guarded by a read-write lock: searches run in parallel and only wait for the
+ * short index updates.
+ * <p>
  * Created by bracz on 4/6/17.
  */
 
@@ -27,6 +37,13 @@ import javax.annotation.concurrent.ThreadSafe;
 public class EventTable {
     private final HashMap<Long, EventInfo> entries = new HashMap<>();
 
+    /// Guards the search index: wordIndex, allEntries and the index fields of the entries.
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+    /// Lowercase words of all descriptions, to the entries containing them.
+    private final TreeMap<String, Set<EventTableEntry>> wordIndex = new TreeMap<>();
+    /// Every registered entry.
+    private final Set<EventTableEntry> allEntries = new HashSet<>();
+
     /// This property change notification is produced when the list of descriptions registered
     /// for a given event ID has changed (due to addition, removal or description change).
     public final static String UPDATED_EVENT_LIST = "UPDATED_EVENT_LIST";
@@ -91,10 +108,40 @@ public class EventTable {
         }
         PriorityQueue<SearchEntryHelper> heap = new PriorityQueue<SearchEntryHelper>(maxResults +
                 1);
-        synchronized (entries) {
-            for (EventInfo ev : entries.values()) {
-                for (EventTableEntry entry : ev.entries) {
-                    float sc = match(entry.description, query);
+        String lowerQuery = query.toLowerCase();
+        List<String> queryWords = splitWords(lowerQuery);
+        indexLock.readLock().lock();
+        try {
+            // Every word of the query has to be the prefix of a word of a word-prefix match;
+            // the longest query word gives the fewest candidates.
+            Set<EventTableEntry> candidates = allEntries;
+            if (!queryWords.isEmpty()) {
+                String longest = queryWords.get(0);
+                for (String w : queryWords) {
+                    if (w.length() > longest.length()) longest = w;
+                }
+                candidates = entriesWithWordPrefix(longest);
+            }
+            int wordPrefixMatches = 0;
+            for (EventTableEntry entry : candidates) {
+                float sc = match(entry.description, entry.lowerDescription, query, lowerQuery);
+                if (sc <= 0) continue; // no match
+                if (sc >= MIN_WORDPREF_SCORE) ++wordPrefixMatches;
+                heap.add(new SearchEntryHelper(entry, sc));
+                if (heap.size() > maxResults) {
+                    heap.poll();
+                }
+            }
+            if (wordPrefixMatches < maxResults && candidates != allEntries) {
+                // Entries that only match as a subsequence score lower than all word-prefix
+                // matches; look for them only if we do not have enough results. The character
+                // masks rule out most entries without running the matcher.
+                long queryMask = charMask(lowerQuery);
+                for (EventTableEntry entry : allEntries) {
+                    if ((entry.charMask & queryMask) != queryMask) continue;
+                    if (candidates.contains(entry)) continue;
+                    float sc = match(entry.description, entry.lowerDescription, query,
+                            lowerQuery);
                     if (sc <= 0) continue; // no match
                     heap.add(new SearchEntryHelper(entry, sc));
                     if (heap.size() > maxResults) {
@@ -102,6 +149,8 @@ public class EventTable {
                     }
                 }
             }
+        } finally {
+            indexLock.readLock().unlock();
         }
         LinkedList<EventTableEntry> results = new LinkedList<>();
         while (!heap.isEmpty()) {
@@ -111,6 +160,126 @@ public class EventTable {
         return results;
     }
 
+    /**
+     * Collects the entries having a word starting with a given prefix. Must be called with
+     * the index lock held.
+     *
+     * @param prefix lowercase word prefix
+     * @return the set of matching entries.
+     */
+    private Set<EventTableEntry> entriesWithWordPrefix(String prefix) {
+        Set<EventTableEntry> ret = new HashSet<>();
+        for (Set<EventTableEntry> s : wordIndex.subMap(prefix, true, prefix + Character
+                .MAX_VALUE, false).values()) {
+            ret.addAll(s);
+        }
+        return ret;
+    }
+
+    /**
+     * Splits a string into words, i.e. maximal runs of letters and digits, the same way as
+     * {@link #wordPrefixMatch} does.
+     *
+     * @param s string to split
+     * @return the words in order of appearance.
+     */
+    static List<String> splitWords(String s) {
+        List<String> ret = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= s.length(); ++i) {
+            boolean isWordChar = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+            if (isWordChar && start < 0) {
+                start = i;
+            } else if (!isWordChar && start >= 0) {
+                ret.add(s.substring(start, i));
+                start = -1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Computes a bit mask of the characters in a string. If string A is a subsequence of
+     * string B, then every bit of mask(A) is set in mask(B).
+     *
+     * @param s string
+     * @return bit mask with one bit per letter, digit or group of other characters.
+     */
+    static long charMask(String s) {
+        long mask = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            int bit;
+            if (c >= 'a' && c <= 'z') {
+                bit = c - 'a';
+            } else if (c >= '0' && c <= '9') {
+                bit = 26 + c - '0';
+            } else {
+                bit = 36 + c % 28;
+            }
+            mask |= 1L << bit;
+        }
+        return mask;
+    }
+
+    /**
+     * Adds an entry to the search index, or updates it after the description changed.
+     *
+     * @param entry entry with its current description
+     * @param isNew true for a new entry; false to update an entry only if it is still indexed
+     */
+    void indexEntry(EventTableEntry entry, boolean isNew) {
+        indexLock.writeLock().lock();
+        try {
+            if (allEntries.contains(entry)) {
+                unindexWords(entry);
+            } else if (!isNew) {
+                // Released meanwhile.
+                return;
+            }
+            entry.lowerDescription = entry.description.toLowerCase();
+            entry.charMask = charMask(entry.lowerDescription);
+            entry.words = splitWords(entry.lowerDescription);
+            for (String w : entry.words) {
+                Set<EventTableEntry> set = wordIndex.get(w);
+                if (set == null) {
+                    set = new HashSet<>();
+                    wordIndex.put(w, set);
+                }
+                set.add(entry);
+            }
+            allEntries.add(entry);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an entry from the search index.
+     *
+     * @param entry entry to remove.
+     */
+    void unindexEntry(EventTableEntry entry) {
+        indexLock.writeLock().lock();
+        try {
+            if (allEntries.remove(entry)) {
+                unindexWords(entry);
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    private void unindexWords(EventTableEntry entry) {
+        for (String w : entry.words) {
+            Set<EventTableEntry> set = wordIndex.get(w);
+            if (set == null) continue;
+            set.remove(entry);
+            if (set.isEmpty()) wordIndex.remove(w);
+        }
+        entry.words = Collections.emptyList();
+    }
+
     /**
      * Substring match strategy. Matches when each character of the query appears in the
      * description; using the same order as the query.
@@ -182,12 +351,20 @@ public class EventTable {
     private static float WORDPREF_SCORE = 20;
     private static float WORDPREFIC_SCORE = 17;
     private static float HASPAREN_SCORE = -1;
+    /// Lowest score of a case-insensitive word prefix match; higher than any other match.
+    private static float MIN_WORDPREF_SCORE = WORDPREFIC_SCORE + SUBSTRINGIC_SCORE +
+            HASPAREN_SCORE;
 
 
     public static float match(String description, String query) {
-        boolean isSubStringICase = substringMatch(description.toLowerCase(), query.toLowerCase());
+        return match(description, description.toLowerCase(), query, query.toLowerCase());
+    }
+
+    private static float match(String description, String lowerDescription, String query,
+                               String lowerQuery) {
+        boolean isSubStringICase = substringMatch(lowerDescription, lowerQuery);
         boolean isSubString = isSubStringICase && substringMatch(description, query);
-        boolean isWordPrefixICase = wordPrefixMatch(description.toLowerCase(), query.toLowerCase());
+        boolean isWordPrefixICase = wordPrefixMatch(lowerDescription, lowerQuery);
         boolean isWordPrefix = isWordPrefixICase && wordPrefixMatch(description, query);
         boolean hasParen = description.indexOf('(') >= 0;
 
@@ -231,6 +408,7 @@ public class EventTable {
             synchronized (entries) {
                 entries.add(newEntry);
             }
+            indexEntry(newEntry, true);
             notifyUpdated();
             return h;
         }
@@ -242,14 +420,18 @@ public class EventTable {
          * @param h the holder object.
          */
         void remove(EventTableEntryHolder h) {
+            List<EventTableEntry> removed = new ArrayList<>(1);
             synchronized (entries) {
                 for (int i = 0; i < entries.size(); ++i) {
                     if (entries.get(i).h == h) {
-                        entries.remove(i);
+                        removed.add(entries.remove(i));
                         --i;
                     }
                 }
             }
+            for (EventTableEntry e : removed) {
+                unindexEntry(e);
+            }
             notifyUpdated();
         }
 
@@ -282,6 +464,10 @@ public class EventTable {
         String description;
         /// This is the holder object that the client has a reference to.
         EventTableEntryHolder h;
+        // Search index data of the description. Guarded by the index lock.
+        String lowerDescription;
+        long charMask;
+        List<String> words = Collections.emptyList();
 
         EventTableEntry(String d) {
             description = d;
@@ -321,6 +507,7 @@ public class EventTable {
                 if (description.equals(newDescription)) return;
                 description = newDescription;
             }
+            indexEntry(this, false);
             h.event.notifyUpdated();
         }
     }
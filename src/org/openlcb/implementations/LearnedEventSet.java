@@ -0,0 +1,260 @@
+package org.openlcb.implementations;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Set of event IDs and event ranges learned from the network, with the time each one was
+ * last refreshed.
+ * <p>
+ * Lookups do not lock and do not allocate, so they can run on every forwarded message.
+ * Learning takes a lock. Single events are stored by their primitive 64-bit value in an open
+ * addressing table; ranges in a small array scanned linearly, since nodes declare only a few
+ * ranges each.
+ * <p>
+ * With a maximum age set, an entry that has not been refreshed for that long no longer
+ * matches. Expired entries are dropped from the table the next time it is rebuilt, or by
+ * {@link #purge()}.
+ */
+@ThreadSafe
+public class LearnedEventSet {
+    /// Time source in milliseconds; replaceable for testing.
+    interface Clock {
+        long millis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long millis() {
+            return System.nanoTime() / 1000000;
+        }
+    };
+
+    private final Clock clock;
+    /// Stamps are stored relative to this, plus one, so that 0 can mean an empty slot.
+    private final long epoch;
+    private volatile long maxAge = 0;
+    private volatile Table table = new Table(16);
+    private volatile RangeEntry[] ranges = new RangeEntry[0];
+
+    public LearnedEventSet() {
+        this(SYSTEM_CLOCK);
+    }
+
+    LearnedEventSet(Clock clock) {
+        this.clock = clock;
+        this.epoch = clock.millis();
+    }
+
+    /**
+     * Sets how long entries stay valid without being refreshed.
+     *
+     * @param msec maximum age in milliseconds; 0 to keep entries forever.
+     */
+    public void setMaxAge(long msec) {
+        maxAge = msec;
+    }
+
+    /// @return the maximum age in milliseconds; 0 if entries never expire.
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Adds an event, or refreshes it if it is already in the set.
+     *
+     * @param event event ID as a long.
+     */
+    public synchronized void add(long event) {
+        long stamp = stamp();
+        Table t = table;
+        int i = t.find(event);
+        if (i >= 0) {
+            t.stamps.set(i, stamp);
+            return;
+        }
+        if ((t.used + 1) * 2 > t.keys.length) {
+            t = rebuild();
+        }
+        t.insert(event, stamp);
+    }
+
+    /**
+     * Adds an event range, or refreshes it if it is already in the set.
+     *
+     * @param rangeEvent event ID from a range identified message. The low bits that are equal
+     *                   to the lowest bit mark the range.
+     */
+    public synchronized void addRange(long rangeEvent) {
+        int width = EventRegistry.rangeWidth(rangeEvent);
+        long mask = width == 64 ? -1L : (1L << width) - 1;
+        long first = rangeEvent & ~mask;
+        long stamp = stamp();
+        RangeEntry[] r = ranges;
+        for (RangeEntry e : r) {
+            if (e.first == first && e.mask == mask) {
+                e.stamp = stamp;
+                return;
+            }
+        }
+        RangeEntry[] n = new RangeEntry[r.length + 1];
+        System.arraycopy(r, 0, n, 0, r.length);
+        n[r.length] = new RangeEntry(first, mask, stamp);
+        ranges = n;
+    }
+
+    /**
+     * @param event event ID as a long.
+     * @return true if the event or a range containing it is in the set and not expired.
+     */
+    public boolean contains(long event) {
+        long oldest = oldestValidStamp();
+        Table t = table;
+        int i = t.find(event);
+        if (i >= 0 && t.stamps.get(i) >= oldest) return true;
+        for (RangeEntry e : ranges) {
+            if ((event & ~e.mask) == e.first && e.stamp >= oldest) return true;
+        }
+        return false;
+    }
+
+    /// @return the number of single events in the set that are not expired.
+    public int size() {
+        long oldest = oldestValidStamp();
+        Table t = table;
+        int n = 0;
+        for (int i = 0; i < t.keys.length; ++i) {
+            if (t.stamps.get(i) >= oldest) ++n;
+        }
+        return n;
+    }
+
+    /// @return the number of ranges in the set that are not expired.
+    public int rangeCount() {
+        long oldest = oldestValidStamp();
+        int n = 0;
+        for (RangeEntry e : ranges) {
+            if (e.stamp >= oldest) ++n;
+        }
+        return n;
+    }
+
+    /// Drops the expired entries.
+    public synchronized void purge() {
+        rebuild();
+        long oldest = oldestValidStamp();
+        int live = 0;
+        RangeEntry[] r = ranges;
+        for (RangeEntry e : r) {
+            if (e.stamp >= oldest) ++live;
+        }
+        if (live == r.length) return;
+        RangeEntry[] n = new RangeEntry[live];
+        live = 0;
+        for (RangeEntry e : r) {
+            if (e.stamp >= oldest) n[live++] = e;
+        }
+        ranges = n;
+    }
+
+    /// Removes everything.
+    public synchronized void clear() {
+        table = new Table(16);
+        ranges = new RangeEntry[0];
+    }
+
+    private long stamp() {
+        return clock.millis() - epoch + 1;
+    }
+
+    /// @return the lowest stamp that is not expired; 1 (any entry) if there is no max age.
+    private long oldestValidStamp() {
+        long age = maxAge;
+        if (age <= 0) return 1;
+        return Math.max(1, stamp() - age);
+    }
+
+    /**
+     * Copies the live entries into a new table, sized to be at most a quarter full, and
+     * publishes it. Readers keep using the old table until they see the new one.
+     *
+     * @return the new table.
+     */
+    private Table rebuild() {
+        Table old = table;
+        long oldest = oldestValidStamp();
+        int live = 0;
+        for (int i = 0; i < old.keys.length; ++i) {
+            if (old.stamps.get(i) >= oldest) ++live;
+        }
+        int capacity = 16;
+        while (capacity < (live + 1) * 4) {
+            capacity *= 2;
+        }
+        Table t = new Table(capacity);
+        for (int i = 0; i < old.keys.length; ++i) {
+            long s = old.stamps.get(i);
+            if (s >= oldest) t.insert(old.keys[i], s);
+        }
+        table = t;
+        return t;
+    }
+
+    /**
+     * Open addressing table with linear probing. A slot is empty while its stamp is 0; the key
+     * of a slot is written before its stamp and never changes afterwards, so readers that see
+     * a non-zero stamp also see the key. Entries are never removed, only left to expire and
+     * skipped when the table is rebuilt.
+     */
+    private static class Table {
+        final long[] keys;
+        final AtomicLongArray stamps;
+        /// Number of non-empty slots. Only accessed by writers under the lock.
+        int used = 0;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            stamps = new AtomicLongArray(capacity);
+        }
+
+        int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+        }
+
+        /// @return the slot holding the key, or -1.
+        int find(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key); stamps.get(i) != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) return i;
+            }
+            return -1;
+        }
+
+        /// Adds a key that is not in the table yet. There must be a free slot.
+        void insert(long key, long stamp) {
+            int mask = keys.length - 1;
+            int i = slot(key);
+            while (stamps.get(i) != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            stamps.set(i, stamp);
+            ++used;
+        }
+    }
+
+    /// A learned range: the events e with (e & ~mask) == first.
+    private static class RangeEntry {
+        final long first;
+        final long mask;
+        volatile long stamp;
+
+        RangeEntry(long first, long mask, long stamp) {
+            this.first = first;
+            this.mask = mask;
+            this.stamp = stamp;
+        }
+    }
+}
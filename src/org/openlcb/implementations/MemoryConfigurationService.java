@@ -1,19 +1,23 @@
 package org.openlcb.implementations;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
+import javax.annotation.Nullable;
 import org.openlcb.FailureCallback;
+import org.openlcb.HashedWheelTimer;
 import org.openlcb.NoReturnCallback;
 import org.openlcb.NodeID;
 import org.openlcb.Utilities;
+import org.openlcb.metrics.Counter;
+import org.openlcb.metrics.Histogram;
+import org.openlcb.metrics.MetricsRegistry;
 
 /**
  * Service for reading and writing via the Memory Configuration protocol
@@ -49,13 +53,33 @@ public class MemoryConfigurationService {
     private final static long TIMEOUT = 3000;
     private long timeoutMillis = TIMEOUT;
     private final static long MAX_TRIES = 3;
+    private Counter requests = new Counter();
+    private Counter retries = new Counter();
+    private Counter timeouts = new Counter();
+    private Counter failures = new Counter();
+    private Histogram requestTime = new Histogram();
 
     /**
      * @param here       our node ID
      * @param downstream Connection in the direction of the layout
      */
     public MemoryConfigurationService(NodeID here, DatagramService downstream) {
-        retryTimer = new Timer("OpenLCB Memory Configuration Service Retry Timer");
+        this(here, downstream, null);
+    }
+
+    /**
+     * @param here       our node ID
+     * @param downstream Connection in the direction of the layout
+     * @param timer      shared timer for the retry timeouts (usually the interface's). If
+     *                   null, a private timer is created and stopped in dispose().
+     */
+    public MemoryConfigurationService(NodeID here, DatagramService downstream, @Nullable
+            HashedWheelTimer timer) {
+        if (timer == null) {
+            timer = new HashedWheelTimer("OpenLCB Memory Configuration Service Retry Timer");
+            ownsTimer = true;
+        }
+        retryTimer = timer;
         this.here = here;
         this.downstream = downstream;   
         
@@ -70,10 +94,25 @@ public class MemoryConfigurationService {
             //
             // doesn't check for match of reply to memo, but eventually should.
             @Override
-            public synchronized void handleData(NodeID dest, int[] data, DatagramService.ReplyMemo
-                    service) {
+            public void handleData(NodeID dest, int[] data, DatagramService.ReplyMemo service) {
+                handleData(dest, ByteBuffer.wrap(DatagramUtils.toByteArray(data)), service);
+            }
+
+            @Override
+            public synchronized void handleData(NodeID dest, ByteBuffer payload, DatagramService
+                    .ReplyMemo service) {
                 //log System.out.println("OLCB: handleData");
                 service.acceptData(0);
+                payload = payload.slice();
+                if (addrSpaceMemo != null || configMemo != null || hasWriteStreamMemo(dest)) {
+                    handleLegacyData(dest, DatagramUtils.toIntArray(payload));
+                    return;
+                }
+                handleResponse(dest, payload);
+            }
+
+            /// Replies to the requests that are not in pendingRequests.
+            private void handleLegacyData(NodeID dest, int[] data) {
                 if (addrSpaceMemo != null) {
                     // doesn't handle decode of desc string, but should
                     int space = data[2] & 0xFF;
@@ -122,12 +161,11 @@ public class MemoryConfigurationService {
                     }
                     memo.handleWriteReply(code);
                 }*/
-                if (writeStreamMemo != null) {
+                McsWriteStreamMemo memo = takeWriteStreamMemo(dest);
+                if (memo != null) {
                     // figure out address space uses byte?
                     boolean spaceByte = ((data[1] & 0x03) == 0);
                     int spaceOfs = spaceByte ? 1 : 0;
-                    McsWriteStreamMemo memo = writeStreamMemo;
-                    writeStreamMemo = null;
                     // TODO: compare the incoming parameters to the information in the memo.
                     if ((data[1] & 0x08) == 0) {
                         // OK
@@ -139,7 +177,10 @@ public class MemoryConfigurationService {
                     }
                     return;
                 }
-                int requestCode = getRequestTypeFromResponseType(data[1]);
+            }
+
+            private void handleResponse(NodeID dest, ByteBuffer data) {
+                int requestCode = getRequestTypeFromResponseType(data.get(1) & 0xFF);
                 RequestWithReplyDatagram memo = null;
                 McsRequestMemo rqMemo = null;
                 synchronized (this) {
@@ -147,13 +188,13 @@ public class MemoryConfigurationService {
                         rqMemo = pendingRequests.get(requestCode);
                         if (!rqMemo.getDest().equals(dest)) {
                             logger.warning("Spurious MemCfg response datagram " + Utilities
-                                    .toHexSpaceString(data)+": expected source " + rqMemo.getDest()
+                                    .toHexSpaceString(DatagramUtils.toByteArray(data))+": expected source " + rqMemo.getDest()
                                     + " actual source " + dest);
                             delayRetryMemo(rqMemo);
                             return;
                         }
                         if (!(rqMemo instanceof RequestWithReplyDatagram)) {
-                            logger.warning("Spurious MemCfg response datagram " + Utilities.toHexSpaceString(data)+
+                            logger.warning("Spurious MemCfg response datagram " + Utilities.toHexSpaceString(DatagramUtils.toByteArray(data))+
                                     ": the request memo does not support response datagrams. " +
                                     "Memo: " + rqMemo);
                             delayRetryMemo(rqMemo);
@@ -163,7 +204,7 @@ public class MemoryConfigurationService {
                         if (!memo.compareResponse(data)) {
                             logger.warning("Unexpected MemCfg response datagram from " + dest
                                     .toString() + ": " + memo + " payload " + Utilities
-                                    .toHexSpaceString(data));
+                                    .toHexSpaceString(DatagramUtils.toByteArray(data)));
                             delayRetryMemo(rqMemo);
                             return;
                         } else {
@@ -172,11 +213,12 @@ public class MemoryConfigurationService {
                     } else {
                         logger.warning("Could not find a matching memo for MemCfg response " +
                                 "datagram from " + dest.toString() + " payload " + Utilities
-                                .toHexSpaceString(data));
+                                .toHexSpaceString(DatagramUtils.toByteArray(data)));
                     }
                 }
                 if (memo != null) {
                     rqMemo.foundResponse = true;
+                    requestTime.recordSince(rqMemo.startNanos);
                     memo.handleResponseDatagram(data);
                 }
             }
@@ -186,16 +228,30 @@ public class MemoryConfigurationService {
     
     NodeID here;
     DatagramService downstream;
-    private Timer retryTimer;
+    private final HashedWheelTimer retryTimer;
+    private boolean ownsTimer = false;
 
     public MemoryConfigurationService(MemoryConfigurationService mcs) {
-        this(mcs.here, mcs.downstream);
+        this(mcs.here, mcs.downstream, mcs.ownsTimer ? null : mcs.retryTimer);
     }
 
     public void setTimeoutMillis(long t) {
         timeoutMillis = t;
     }
 
+    /**
+     * Reports the requests, retries and response times of this service in a metrics registry.
+     *
+     * @param metrics where to register the metrics.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        requests = metrics.counter("mcs.requests");
+        retries = metrics.counter("mcs.retries");
+        timeouts = metrics.counter("mcs.timeouts");
+        failures = metrics.counter("mcs.failures");
+        requestTime = metrics.histogram("mcs.nanos");
+    }
+
     /**
      * Waits to ensure that all pending timer tasks are complete. Used for testing.
      *
@@ -203,12 +259,15 @@ public class MemoryConfigurationService {
      */
     public void waitForTimer() throws InterruptedException {
         final Semaphore s = new Semaphore(0);
-        retryTimer.schedule(new TimerTask() {
+        if (retryTimer.isStopped()) return;
+        if (retryTimer.schedule(new Runnable() {
             @Override
             public void run() {
                 s.release();
             }
-        }, 1);
+        }, 0).isCancelled()) {
+            return;
+        }
         s.acquire();
     }
 
@@ -220,6 +279,8 @@ public class MemoryConfigurationService {
         protected final FailureCallback failureCallback;
         boolean foundResponse = false;
         int numTries = 0;
+        /// When the request was made, from System.nanoTime().
+        long startNanos;
 
         McsRequestMemo(NodeID dest, int requestCode, FailureCallback cb) {
             this.dest = dest;
@@ -246,7 +307,7 @@ public class MemoryConfigurationService {
          * Creates the payload of the datagram to transmit.
          * @return the transmit datagram bytes.
          */
-        protected abstract int[] renderTransmitDatagram();
+        protected abstract byte[] renderTransmitDatagram();
 
     }
 
@@ -260,14 +321,14 @@ public class MemoryConfigurationService {
          * returns true), then this function will be called with the response datagram payload.
          * @param data response datagram payload.
          */
-        void handleResponseDatagram(int[] data);
+        void handleResponseDatagram(ByteBuffer data);
 
         /**
          * Returns true if the received response belongs to this request.
          * @param data datagram pyaload
          * @return true if the response is for this request
          */
-        boolean compareResponse(int[] data);
+        boolean compareResponse(ByteBuffer data);
     }
 
     /**
@@ -314,17 +375,17 @@ public class MemoryConfigurationService {
          * @param data    the datagram contents
          * @return 7 if there is a separate space byte, 6 if the space is encoded in the low bits.
          */
-        protected int getPayloadOffset(int[] data) {
-            return 6 + ((data[1] & 0x3) != 0 ? 0 : 1);
+        protected int getPayloadOffset(ByteBuffer data) {
+            return 6 + ((data.get(1) & 0x3) != 0 ? 0 : 1);
         }
 
-        protected void fillRequest(int[] data) {
+        protected void fillRequest(byte[] data) {
             data[0] = DATAGRAM_TYPE;
-            data[1] = getRequestCode();
+            data[1] = (byte) getRequestCode();
             if (space >= 0xFD) {
                 data[1] |= space & 3;
             } else {
-                data[6] = space & 0xff;
+                data[6] = (byte) space;
             }
             DatagramUtils.renderLong(data, 2, address);
         }
@@ -339,19 +400,19 @@ public class MemoryConfigurationService {
          * @param data already allocated array with everything until the payload (space,
          *             address, request code, datagram code) being filled in.
          */
-        protected abstract void fillPayload(int[] data);
+        protected abstract void fillPayload(byte[] data);
 
         @Override
-        protected int[] renderTransmitDatagram() {
-            int[] data = new int[getPayloadOffset() + getPayloadLength()];
+        protected byte[] renderTransmitDatagram() {
+            byte[] data = new byte[getPayloadOffset() + getPayloadLength()];
             fillRequest(data);
             fillPayload(data);
             return data;
         }
 
         @Override
-        public boolean compareResponse(int[] data) {
-            if (data.length < (6 + getSpaceOffset())) return false;
+        public boolean compareResponse(ByteBuffer data) {
+            if (data.limit() < (6 + getSpaceOffset())) return false;
             if (address != DatagramUtils.parseLong(data, 2)) return false;
             if (space != getSpaceFromPayload(data)) return false;
             return true;
@@ -377,8 +438,8 @@ public class MemoryConfigurationService {
         }
 
         @Override
-        public void handleResponseDatagram(int[] data) {
-            if ((data[1] & SUBCMD_ERROR) != 0) {
+        public void handleResponseDatagram(ByteBuffer data) {
+            if ((data.get(1) & SUBCMD_ERROR) != 0) {
                 failureCallback.handleFailure(DatagramUtils.parseErrorCode(data, getPayloadOffset(data)));
                 return;
             }
@@ -390,7 +451,7 @@ public class MemoryConfigurationService {
          * matching.
          * @param data payload of response datagram.
          */
-        protected abstract void handleSuccessResponse(int[] data);
+        protected abstract void handleSuccessResponse(ByteBuffer data);
     }
 
     public static int getSpaceFromPayload(int[] data) {
@@ -398,6 +459,15 @@ public class MemoryConfigurationService {
         return data[6];
     }
 
+    /**
+     * @param data datagram payload, starting at index 0
+     * @return the address space of a memory config request or response.
+     */
+    public static int getSpaceFromPayload(ByteBuffer data) {
+        if ((data.get(1) & 0x3) != 0) { return 0xFC + (data.get(1) & 0x3); }
+        return data.get(6) & 0xFF;
+    }
+
     /**
      * Computes what the request type would be that caused this response command to arrive.
      * @param subCmd data[1] of an incoming response.
@@ -465,19 +535,20 @@ public class MemoryConfigurationService {
      */
     private void delayRetryMemo(final McsRequestMemo memo) {
         if (memo.numTries >= MAX_TRIES) {
+            timeouts.inc();
             // TODO: add proper error code.
             checkAndPopMemo(memo);
             memo.failureCallback.handleFailure(0x1000);
         }
-        TimerTask tt = new TimerTask() {
+        retryTimer.schedule(new Runnable() {
             @Override
             public void run() {
                 if (memo.foundResponse) return;
                 if (!isBlockingPendingQueue(memo)) return;
+                retries.inc();
                 sendRequest(memo);
             }
-        };
-        retryTimer.schedule(tt, timeoutMillis);
+        }, timeoutMillis);
     }
 
     private void sendRequest(final McsRequestMemo memo) {
@@ -487,6 +558,7 @@ public class MemoryConfigurationService {
             public void handleSuccess(int flags) {
                 if (memo instanceof RequestWithNoReply &&
                         ((flags & DatagramService.FLAG_REPLY_PENDING) == 0)) {
+                    requestTime.recordSince(memo.startNanos);
                     checkAndPopMemo(memo);
                     ((RequestWithNoReply) memo).getNoReturnCallback().handleSuccess();
                     return;
@@ -510,6 +582,7 @@ public class MemoryConfigurationService {
 
             @Override
             public void handleFailure(int errorCode) {
+                failures.inc();
                 checkAndPopMemo(memo);
                 memo.failureCallback.handleFailure(errorCode);
             }
@@ -517,6 +590,8 @@ public class MemoryConfigurationService {
     }
 
     public void request(McsRequestMemo memo) {
+        requests.inc();
+        memo.startNanos = System.nanoTime();
         synchronized(this) {
             int rqCode = memo.getRequestCode();
             if (pendingRequests.containsKey(rqCode)) {
@@ -561,14 +636,12 @@ public class MemoryConfigurationService {
         }
 
         @Override
-        protected void fillPayload(int[] data) {
-            for (int i = 0; i < this.data.length; ++i) {
-                data[getPayloadOffset() + i] = DatagramUtils.byteToInt(this.data[i]);
-            }
+        protected void fillPayload(byte[] data) {
+            System.arraycopy(this.data, 0, data, getPayloadOffset(), this.data.length);
         }
 
         @Override
-        protected void handleSuccessResponse(int[] data) {
+        protected void handleSuccessResponse(ByteBuffer data) {
             callback.handleSuccess();
         }
 
@@ -624,15 +697,16 @@ public class MemoryConfigurationService {
         }
 
         @Override
-        protected void fillPayload(int[] data) {
-            data[getPayloadOffset()] = len;
+        protected void fillPayload(byte[] data) {
+            data[getPayloadOffset()] = (byte) len;
         }
 
         @Override
-        protected void handleSuccessResponse(int[] data) {
+        protected void handleSuccessResponse(ByteBuffer data) {
             int payofs = getPayloadOffset(data);
-            byte[] response  = new byte[data.length - payofs];
-            DatagramUtils.intToByteArray(response, 0, data, payofs, response.length);
+            byte[] response  = new byte[data.limit() - payofs];
+            data.position(payofs);
+            data.get(response);
             callback.handleReadData(dest, space, address, response);
         }
     }
@@ -661,12 +735,29 @@ public class MemoryConfigurationService {
     }*/
     
     // dph
-    McsWriteStreamMemo writeStreamMemo;
+    /// Write stream requests waiting for their reply, by target node. Guarded by itself.
+    private final Map<NodeID, McsWriteStreamMemo> writeStreamMemos = new HashMap<>();
+
+    private boolean hasWriteStreamMemo(NodeID dest) {
+        synchronized (writeStreamMemos) {
+            return writeStreamMemos.containsKey(dest);
+        }
+    }
+
+    /// @return the write stream request to a node, removed, or null if there is none.
+    private McsWriteStreamMemo takeWriteStreamMemo(NodeID dest) {
+        synchronized (writeStreamMemos) {
+            return writeStreamMemos.remove(dest);
+        }
+    }
+
     public void request(McsWriteStreamMemo memo) {
         // forward as write Datagram
                                       //System.out.println("writeStreamMemo: "+memo.dest+","+memo.space+","+memo.address);
                                       // System.out.println("writeStreamMemo: "+memo.dest);
-        writeStreamMemo = memo;
+        synchronized (writeStreamMemos) {
+            writeStreamMemos.put(memo.dest, memo);
+        }
         WriteStreamMemo dg = new WriteStreamMemo(memo.dest, memo.space, memo.address, memo.srcStreamId,
                 memo);
         downstream.sendData(dg);
@@ -771,13 +862,13 @@ public class MemoryConfigurationService {
             if (0 != (flags & DatagramService.FLAG_REPLY_PENDING)) {
                 return;
             }
-            writeStreamMemo = null;
+            takeWriteStreamMemo(memo.dest);
             memo.handleSuccess();
         }
 
         @Override
         public void handleFailure(int errorCode) {
-            writeStreamMemo = null;
+            takeWriteStreamMemo(memo.dest);
             memo.handleFailure("TxDatagram", errorCode);
         }
     }
@@ -954,6 +1045,8 @@ public class MemoryConfigurationService {
 
 
     public void dispose(){
-       retryTimer.cancel();
+       if (ownsTimer) {
+          retryTimer.stop();
+       }
     }
 }
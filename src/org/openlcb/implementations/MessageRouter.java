@@ -0,0 +1,207 @@
+package org.openlcb.implementations;
+
+import org.openlcb.AbstractConnection;
+import org.openlcb.AddressedMessage;
+import org.openlcb.Connection;
+import org.openlcb.ConsumerIdentifiedMessage;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.EventMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.metrics.Counter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes messages between any number of ports, e.g. several CAN segments and TCP hubs in one
+ * program.
+ * <p>
+ * Each port is a pair of connections: the router sends to the port's output connection, and
+ * the nodes behind the port send to the port's {@link Port#getInputConnection()}. The router
+ * learns behind which port a node lives from the source node ID of the messages arriving
+ * there. Addressed messages go only to the port of their destination; while the destination
+ * is unknown they go to all other ports. Global messages go to all ports except the one they
+ * came from.
+ * <p>
+ * A port can filter event reports like {@link EventFilterGateway}: with
+ * {@link Port#setEventFilter(boolean)}, Producer/Consumer Event Reports are only sent to the
+ * port if a node behind it identified as consumer of the event (or of a range containing
+ * it).
+ * <p>
+ * Messages are routed on the thread that delivers them, without locks: the list of ports is a
+ * copy-on-write array, and ports can be added and removed while traffic flows.
+ * <p>
+ * This generalizes {@link org.openlcb.Gateway}, which has exactly two sides, and
+ * {@link ScatterGather}, which floods every message.
+ */
+public class MessageRouter {
+    private final Object portLock = new Object();
+    private volatile Port[] ports = new Port[0];
+    /// Port behind which each node was last seen, keyed by NodeID.toLong().
+    private final ConcurrentHashMap<Long, Port> nodeLocations = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a port.
+     *
+     * @param output where to send the messages routed to this port.
+     * @return the port; give its input connection to the nodes behind it.
+     */
+    public Port addPort(Connection output) {
+        Port p = new Port(output);
+        synchronized (portLock) {
+            Port[] o = ports;
+            Port[] n = new Port[o.length + 1];
+            System.arraycopy(o, 0, n, 0, o.length);
+            n[o.length] = p;
+            ports = n;
+        }
+        return p;
+    }
+
+    /**
+     * Removes a port. Messages arriving on it afterwards are dropped, and the nodes learned
+     * behind it are forgotten.
+     *
+     * @param port a port of this router.
+     */
+    public void removePort(Port port) {
+        synchronized (portLock) {
+            Port[] o = ports;
+            int idx = -1;
+            for (int i = 0; i < o.length; ++i) {
+                if (o[i] == port) idx = i;
+            }
+            if (idx < 0) return;
+            Port[] n = new Port[o.length - 1];
+            System.arraycopy(o, 0, n, 0, idx);
+            System.arraycopy(o, idx + 1, n, idx, o.length - idx - 1);
+            ports = n;
+            port.removed = true;
+        }
+        nodeLocations.values().removeIf(p -> p == port);
+    }
+
+    /// @return the number of ports.
+    public int getPortCount() {
+        return ports.length;
+    }
+
+    /**
+     * @param node a node ID.
+     * @return the port the node was last seen behind, or null if unknown.
+     */
+    public Port getPortOf(NodeID node) {
+        return nodeLocations.get(node.toLong());
+    }
+
+    void route(Port from, Message msg) {
+        if (from.removed) return;
+        from.received.inc();
+        long src = msg.getSourceNodeID().toLong();
+        if (nodeLocations.get(src) != from) {
+            nodeLocations.put(src, from);
+        }
+        if (msg instanceof ConsumerIdentifiedMessage) {
+            from.consumedEvents.add(((EventMessage) msg).getEventID().toLong());
+        } else if (msg instanceof ConsumerRangeIdentifiedMessage) {
+            from.consumedEvents.addRange(((EventMessage) msg).getEventID().toLong());
+        }
+        if (msg instanceof AddressedMessage) {
+            NodeID dest = ((AddressedMessage) msg).getDestNodeID();
+            Port to = dest == null ? null : nodeLocations.get(dest.toLong());
+            if (to != null && to.removed) {
+                nodeLocations.remove(dest.toLong(), to);
+                to = null;
+            }
+            if (to != null) {
+                if (to != from) {
+                    to.send(msg);
+                }
+                return;
+            }
+            // Unknown destination: flood.
+        }
+        long event = 0;
+        boolean isReport = msg instanceof ProducerConsumerEventReportMessage;
+        if (isReport) {
+            event = ((EventMessage) msg).getEventID().toLong();
+        }
+        for (Port p : ports) {
+            if (p == from) continue;
+            if (isReport && p.eventFilter && !p.consumedEvents.contains(event)) {
+                p.suppressed.inc();
+                continue;
+            }
+            p.send(msg);
+        }
+    }
+
+    /**
+     * One port of the router.
+     */
+    public class Port {
+        private final Connection output;
+        private final Connection input;
+        private volatile boolean eventFilter = false;
+        private volatile boolean removed = false;
+        /// Events consumed by the nodes behind this port.
+        private final LearnedEventSet consumedEvents = new LearnedEventSet();
+        private final Counter received = new Counter();
+        private final Counter sent = new Counter();
+        private final Counter suppressed = new Counter();
+
+        Port(Connection output) {
+            this.output = output;
+            this.input = new AbstractConnection() {
+                @Override
+                public void put(Message msg, Connection sender) {
+                    route(Port.this, msg);
+                }
+            };
+        }
+
+        void send(Message msg) {
+            sent.inc();
+            output.put(msg, input);
+        }
+
+        /// @return the connection the nodes behind this port send their messages to.
+        public Connection getInputConnection() {
+            return input;
+        }
+
+        /**
+         * Turns event report filtering on or off for this port.
+         *
+         * @param filter true to only send event reports that a node behind this port consumes.
+         */
+        public void setEventFilter(boolean filter) {
+            eventFilter = filter;
+        }
+
+        /**
+         * Sets how long learned consumer events stay valid without being identified again.
+         *
+         * @param msec maximum age in milliseconds; 0 (the default) to never forget.
+         */
+        public void setMaxEventAge(long msec) {
+            consumedEvents.setMaxAge(msec);
+        }
+
+        /// @return the number of messages that arrived on this port.
+        public long getReceivedCount() {
+            return received.get();
+        }
+
+        /// @return the number of messages sent to this port.
+        public long getSentCount() {
+            return sent.get();
+        }
+
+        /// @return the number of event reports not sent to this port because of the filter.
+        public long getSuppressedCount() {
+            return suppressed.get();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.openlcb.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic event counter. Updates are striped across cells, so threads counting at the same
+ * time do not contend, and do not allocate.
+ */
+public class Counter {
+    private final LongAdder value = new LongAdder();
+
+    /// Counts one event.
+    public void inc() {
+        value.increment();
+    }
+
+    /**
+     * Counts several events.
+     *
+     * @param n number of events.
+     */
+    public void add(long n) {
+        value.add(n);
+    }
+
+    /// @return the number of events counted so far.
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,9 @@
+package org.openlcb.metrics;
+
+/**
+ * A value that is read when a snapshot is taken, such as the length of a queue.
+ */
+public interface Gauge {
+    /// @return the current value. Called from the thread taking the snapshot; must not block.
+    long getValue();
+}
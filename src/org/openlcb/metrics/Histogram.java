@@ -0,0 +1,138 @@
+package org.openlcb.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values, typically latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets as in HdrHistogram: each power of two is split in
+ * {@value #SUB_BUCKETS} linear sub-buckets, so every recorded value is known to within about
+ * 3% across the whole range, with a fixed amount of memory. Recording is a few bit operations
+ * and an atomic increment; it never allocates or locks. Values above {@link #MAX_VALUE} (about
+ * 18 minutes in nanoseconds) are counted as {@link #MAX_VALUE}.
+ */
+public class Histogram {
+    static final int SUB_BUCKET_BITS = 5;
+    /// Number of linear sub-buckets per power of two.
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /// Largest value that is recorded exactly.
+    public static final long MAX_VALUE = (1L << 40) - 1;
+    static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param value the value; negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        if (value > MAX_VALUE) value = MAX_VALUE;
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since a start time.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} at the start.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /// @return the bucket a value is counted in.
+    static int indexOf(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = Math.max(0, msb - SUB_BUCKET_BITS);
+        // For shift > 0 the top bits are in [SUB_BUCKETS, 2*SUB_BUCKETS).
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /// @return the highest value counted in a bucket.
+    static long highestValueOf(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long sub = index - ((long) shift << SUB_BUCKET_BITS);
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @return a copy of the current state. Values recorded while the copy is taken may or may
+     * not be included.
+     */
+    public Snapshot snapshot() {
+        long[] c = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < c.length; ++i) {
+            c[i] = counts.get(i);
+            total += c[i];
+        }
+        return new Snapshot(c, total, sum.sum(), max.get());
+    }
+
+    /**
+     * Immutable view of a histogram at some point in time.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /// @return number of values recorded.
+        public long getCount() {
+            return count;
+        }
+
+        /// @return average of the values recorded, or 0.
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /// @return the largest value recorded.
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return a value such that the given percentage of the recorded values were at most
+         * this large (within the precision of the histogram), or 0 if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) return 0;
+            long target = (long) Math.ceil(count * Math.min(100, percentile) / 100);
+            if (target < 1) target = 1;
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + (long) getMean() + " p50=" +
+                    getValueAtPercentile(50) + " p99=" + getValueAtPercentile(99) + " max=" + max;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.openlcb.metrics;
+
+import org.openlcb.Message;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts messages separately for each message type. The type is the message class, which is
+ * coarser than the MTI: e.g. the global and addressed Verify Node ID share one class, and so
+ * do the valid, invalid and unknown variants of Producer/Consumer Identified. After the first
+ * message of a type, counting is a map lookup and an increment, and does not allocate.
+ */
+public class MessageCounter {
+    private final ConcurrentHashMap<Class<?>, LongAdder> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Counts a message.
+     *
+     * @param m the message
+     */
+    public void count(Message m) {
+        Class<?> c = m.getClass();
+        LongAdder a = counts.get(c);
+        if (a == null) {
+            a = counts.computeIfAbsent(c, k -> new LongAdder());
+        }
+        a.increment();
+    }
+
+    /**
+     * @param type message class
+     * @return number of messages of that type counted.
+     */
+    public long get(Class<? extends Message> type) {
+        LongAdder a = counts.get(type);
+        return a == null ? 0 : a.sum();
+    }
+
+    /// @return sum over all types.
+    public long getTotal() {
+        long t = 0;
+        for (LongAdder a : counts.values()) {
+            t += a.sum();
+        }
+        return t;
+    }
+
+    /**
+     * @return the counts by message type name. The name is the class name without the
+     * "Message" suffix, e.g. "ProducerConsumerEventReport".
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> ret = new TreeMap<>();
+        for (Map.Entry<Class<?>, LongAdder> e : counts.entrySet()) {
+            ret.merge(Message.typeName(e.getKey()), e.getValue().sum(), Long::sum);
+        }
+        return ret;
+    }
+}
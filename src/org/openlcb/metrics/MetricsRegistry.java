@@ -0,0 +1,143 @@
+package org.openlcb.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named counters, histograms and gauges of one {@link org.openlcb.OlcbInterface}.
+ * <p>
+ * Components look up their metrics once (by name, creating them on first use) and keep the
+ * returned objects, so the hot paths only touch the metric itself. Readers call
+ * {@link #snapshot()} periodically, e.g. to log or to display the numbers.
+ * <p>
+ * Names are dotted paths, like {@code "datagram.retries"}; histograms of durations are in
+ * nanoseconds and named {@code "*.nanos"}.
+ */
+public class MetricsRegistry {
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MessageCounter> messageCounters = new
+            ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * @param name metric name
+     * @return the counter with that name; created if it does not exist yet.
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    /**
+     * @param name metric name
+     * @return the histogram with that name; created if it does not exist yet.
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * @param name metric name; the per-type counts appear in snapshots as
+     *             {@code name.<type>}.
+     * @return the per-message-type counter with that name; created if it does not exist yet.
+     */
+    public MessageCounter messageCounter(String name) {
+        return messageCounters.computeIfAbsent(name, k -> new MessageCounter());
+    }
+
+    /**
+     * Registers a gauge, replacing any earlier gauge with the same name.
+     *
+     * @param name  metric name
+     * @param gauge reads the value
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /// @return the current values of all metrics.
+    public Snapshot snapshot() {
+        Map<String, Long> c = new TreeMap<>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            c.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, MessageCounter> e : messageCounters.entrySet()) {
+            for (Map.Entry<String, Long> t : e.getValue().getCounts().entrySet()) {
+                c.put(e.getKey() + "." + t.getKey(), t.getValue());
+            }
+        }
+        Map<String, Long> g = new TreeMap<>();
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            g.put(e.getKey(), e.getValue().getValue());
+        }
+        Map<String, Histogram.Snapshot> h = new TreeMap<>();
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            h.put(e.getKey(), e.getValue().snapshot());
+        }
+        return new Snapshot(System.currentTimeMillis(), c, g, h);
+    }
+
+    /**
+     * Values of all metrics at one point in time. The maps are sorted by name.
+     */
+    public static class Snapshot {
+        private final long timeMillis;
+        private final Map<String, Long> counters;
+        private final Map<String, Long> gauges;
+        private final Map<String, Histogram.Snapshot> histograms;
+
+        Snapshot(long timeMillis, Map<String, Long> counters, Map<String, Long> gauges,
+                 Map<String, Histogram.Snapshot> histograms) {
+            this.timeMillis = timeMillis;
+            this.counters = Collections.unmodifiableMap(counters);
+            this.gauges = Collections.unmodifiableMap(gauges);
+            this.histograms = Collections.unmodifiableMap(histograms);
+        }
+
+        /// @return when the snapshot was taken, msec since the epoch.
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        /// @return counter values by name.
+        public Map<String, Long> getCounters() {
+            return counters;
+        }
+
+        /**
+         * @param name counter name
+         * @return the value of the counter, or 0 if it does not exist.
+         */
+        public long getCounter(String name) {
+            Long v = counters.get(name);
+            return v == null ? 0 : v;
+        }
+
+        /// @return gauge values by name.
+        public Map<String, Long> getGauges() {
+            return gauges;
+        }
+
+        /// @return histograms by name.
+        public Map<String, Histogram.Snapshot> getHistograms() {
+            return histograms;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder();
+            for (Map.Entry<String, Long> e : counters.entrySet()) {
+                b.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Long> e : gauges.entrySet()) {
+                b.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Histogram.Snapshot> e : histograms.entrySet()) {
+                b.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            return b.toString();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+/**
+Lightweight runtime metrics of the OpenLCB stack.
+
+<p>
+Every {@link org.openlcb.OlcbInterface} owns a
+{@link org.openlcb.metrics.MetricsRegistry}, in which the CAN layer, the message dispatcher,
+the datagram layer and the memory configuration service keep their counters, latency
+histograms and queue-length gauges. Updating a metric does not allocate and does not take a
+lock, so the instrumentation stays on in production. Read the values with
+{@code iface.getMetrics().snapshot()}.
+*/
+package org.openlcb.metrics;
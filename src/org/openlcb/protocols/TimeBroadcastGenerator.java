@@ -5,6 +5,7 @@ import org.openlcb.ConsumerRangeIdentifiedMessage;
 import org.openlcb.DefaultPropertyListenerSupport;
 import org.openlcb.EventID;
 import org.openlcb.EventState;
+import org.openlcb.HashedWheelTimer;
 import org.openlcb.Message;
 import org.openlcb.MessageDecoder;
 import org.openlcb.MessageTypeIdentifier;
@@ -16,9 +17,7 @@ import org.openlcb.ProducerRangeIdentifiedMessage;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.TimeZone;
-import java.util.TimerTask;
 
 import static org.openlcb.MessageTypeIdentifier.ConsumerRangeIdentified;
 import static org.openlcb.MessageTypeIdentifier.ProducerConsumerEventReport;
@@ -156,7 +155,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
             delayedSyncTask.cancel();
             delayedSyncTask = null;
         }
-        delayedSyncTask = new TimerTask() {
+        delayedSyncTask = iface.getTimerService().schedule(new Runnable() {
             @Override
             public void run() {
                 synchronized(TimeBroadcastGenerator.this) {
@@ -164,8 +163,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
                 }
                 triggerClockSyncNow();
             }
-        };
-        iface.getTimer().schedule(delayedSyncTask, RESYNC_DELAY_MSEC);
+        }, RESYNC_DELAY_MSEC);
         // @todo.
     }
 
@@ -199,9 +197,11 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
     /// Internal implementation for the current (fast) time.
     TimeKeeper timeKeeper;
     /// Timer task used for delaying a sync.
-    TimerTask delayedSyncTask = null;
+    HashedWheelTimer.Timeout delayedSyncTask = null;
     /// Timer task used to announce midnight
-    private TimerTask midnightTask = null;
+    private Runnable midnightTask = null;
+    /// Handle of the scheduled midnight task, for cancelling it.
+    private HashedWheelTimer.Timeout midnightTimeout = null;
     /// Real-time at which the current midnight task is scheduled.
     private long midnightScheduledTime = 0;
     /// Current day (by fast time) for the purpose of midnight announcements. This changes exactly
@@ -275,20 +275,22 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
             desiredTime -= 1;
         }
         if (desiredTime == midnightScheduledTime) return; // no need to change.
-        if (midnightTask != null) {
-            midnightTask.cancel();
+        if (midnightTimeout != null) {
+            midnightTimeout.cancel();
+            midnightTimeout = null;
             midnightTask = null;
         }
         midnightScheduledTime = 0;
         if (desiredTime == 0) return;
-        midnightTask = new TimerTask() {
+        midnightTask = new Runnable() {
             @Override
             public void run() {
                 announceMidnight(this);
             }
         };
         midnightScheduledTime = desiredTime;
-        iface.getTimer().schedule(midnightTask, new Date(midnightScheduledTime));
+        midnightTimeout = iface.getTimerService().schedule(midnightTask,
+                midnightScheduledTime - System.currentTimeMillis());
     }
 
     /// Updates internal state and property change listeners. Does not talk to the bus.
@@ -305,7 +307,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
         firePropertyChange(TimeProtocol.PROP_TIME_UPDATE, oldTime, newTime);
     }
 
-    private synchronized void announceMidnight(TimerTask self) {
+    private synchronized void announceMidnight(Runnable self) {
         // We only run if the midnight task has not been changed from us. This is the
         // lock-protected synchronization we do to avoid outdated midnight tasks from executing.
         if (!timeKeeper.isRunning || midnightTask != self) {
@@ -313,6 +315,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
         }
         sendClockEvent(TimeProtocol.DATE_ROLLOVER);
         midnightTask = null;
+        midnightTimeout = null;
         int deltaDays = 0;
         if (timeKeeper.rate > 0) {
             deltaDays = 1;
@@ -31,11 +31,12 @@ public class VerifyNodeIdHandler extends MessageDecoder {
 
     @Override
     public void handleVerifyNodeIDNumber(VerifyNodeIDNumberMessage msg, Connection sender) {
-        /* This is the Verify Node ID number "global" message.
-        *
-        * TODO: we need to add VerifyNode ID number "addressed" message to the list of
-        * supported MTIs et al.
-        */
+        // The addressed form is only for its destination node, which always replies.
+        if (msg.getDestNodeID() != null) {
+            if (!msg.getDestNodeID().equals(id)) return;
+            iface.getOutputConnection().put(new VerifiedNodeIDNumberMessage(id), this);
+            return;
+        }
 
         // Only reply if requesting all nodes or one node where the ID is this specific node.
         if (msg.getContent() == null || msg.getContent().equals(id)) {
@@ -209,16 +209,21 @@ public class MonPane extends JPanel  {
 
         // display decoded data
         sb.append(line);
+        boolean postUpdate;
 		synchronized(self) {
 			linesBuffer.append( sb.toString() );
+			// only one display update is queued at a time; it takes all pending lines
+			postUpdate = !updatePending && !freezeButton.isSelected();
+			if (postUpdate) updatePending = true;
 		}
 
         // if not frozen, display it in the Swing thread
-        if (!freezeButton.isSelected()) {
+        if (postUpdate) {
             Runnable r = new Runnable() {
                 @Override
                 public void run() {
 					synchronized(self) {
+						updatePending = false;
 						monTextPane.append( linesBuffer.toString() );
 						int LineCount = monTextPane.getLineCount() ;
 						if (LineCount > MAX_LINES) {
@@ -326,6 +331,8 @@ public class MonPane extends JPanel  {
     DateFormat df = new SimpleDateFormat("HH:mm:ss.SSS");
 
 	StringBuffer linesBuffer = new StringBuffer();
+	// true while a display update is queued on the Swing thread; guarded by self
+	boolean updatePending = false;
 	private static int MAX_LINES = 500 ;
 	
 	public Connection getConnection() {
@@ -0,0 +1,337 @@
+package org.openlcb.swing;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.swing.table.AbstractTableModel;
+
+import org.openlcb.AbstractConnection;
+import org.openlcb.AddressedMessage;
+import org.openlcb.Connection;
+import org.openlcb.EventID;
+import org.openlcb.EventMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.OpenLcbCanFrame;
+
+/**
+ * Table model of monitored bus traffic, for high traffic volumes.
+ * <p>
+ * Messages, CAN frames and text notes are stored unformatted in a fixed-capacity ring buffer;
+ * when the buffer is full, the oldest entries are dropped. Adding an entry from the network
+ * threads takes a short lock and does not touch Swing. The table is updated on the Swing
+ * thread by a timer at a fixed rate, with all entries arrived since the last tick in one
+ * batch, and entries are formatted only when the table displays them. This way the monitor
+ * keeps up with a saturated bus and the Swing thread load is bounded by the tick rate.
+ * <p>
+ * The table shows the entries matching a {@link Filter}. All methods except the adding ones
+ * must be called on the Swing thread.
+ */
+public class MonitorModel extends AbstractTableModel {
+    /** Comment for <code>serialVersionUID</code>. */
+    private static final long serialVersionUID = 4405816219431307751L;
+
+    /// Default number of entries kept.
+    public static final int DEFAULT_CAPACITY = 100000;
+    /// Default time between display updates.
+    public static final int DEFAULT_TICK_MSEC = 40;
+
+    public static final int TIME_COLUMN = 0;
+    public static final int SOURCE_COLUMN = 1;
+    public static final int TYPE_COLUMN = 2;
+    public static final int CONTENT_COLUMN = 3;
+    private static final String[] COLUMN_NAMES = {"Time", "Source", "Type", "Content"};
+
+    private final int capacity;
+    // Ring buffer; guarded by lock. The entry with sequence number s is at s % capacity.
+    private final Object lock = new Object();
+    private final long[] times;
+    private final Object[] items;
+    /// Sequence number of the next entry to add.
+    private long nextSeq = 0;
+
+    // Displayed rows, as a ring of sequence numbers. Swing thread only.
+    private final long[] view;
+    private int viewHead = 0;
+    private int viewCount = 0;
+    /// Entries below this sequence number were already considered for the view.
+    private long scannedSeq = 0;
+    private Filter filter = Filter.ALL;
+    private boolean frozen = false;
+
+    private final javax.swing.Timer timer;
+    private final DateFormat df = new SimpleDateFormat("HH:mm:ss.SSS");
+
+    public MonitorModel() {
+        this(DEFAULT_CAPACITY, DEFAULT_TICK_MSEC);
+    }
+
+    /**
+     * @param capacity how many entries to keep.
+     * @param tickMsec time between display updates.
+     */
+    public MonitorModel(int capacity, int tickMsec) {
+        this.capacity = capacity;
+        times = new long[capacity];
+        items = new Object[capacity];
+        view = new long[capacity];
+        timer = new javax.swing.Timer(tickMsec, e -> update());
+    }
+
+    /// Starts the periodic display updates.
+    public void start() {
+        timer.start();
+    }
+
+    /// Stops the periodic display updates.
+    public void stop() {
+        timer.stop();
+    }
+
+    /**
+     * Adds a message. May be called from any thread.
+     *
+     * @param m message seen on the bus.
+     */
+    public void add(Message m) {
+        addItem(m);
+    }
+
+    /**
+     * Adds a raw CAN frame. May be called from any thread. The frame is copied, so the caller
+     * may reuse it (as FrameReplay does).
+     *
+     * @param f frame seen on the bus.
+     */
+    public void add(CanFrame f) {
+        addItem(new OpenLcbCanFrame(f));
+    }
+
+    /**
+     * Adds a text note. May be called from any thread.
+     *
+     * @param text the note.
+     */
+    public void addText(String text) {
+        addItem(text);
+    }
+
+    private void addItem(Object item) {
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            int slot = (int) (nextSeq % capacity);
+            times[slot] = now;
+            items[slot] = item;
+            ++nextSeq;
+        }
+    }
+
+    /// @return a connection that adds every message it receives.
+    public Connection getConnection() {
+        return new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                add(msg);
+            }
+        };
+    }
+
+    /// @return a frame listener that adds every frame it receives.
+    public CanFrameListener getFrameListener() {
+        return new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                add(frame);
+            }
+        };
+    }
+
+    /**
+     * Brings the table up to date with the entries added since the last update. Called by the
+     * timer.
+     */
+    public void update() {
+        if (frozen) return;
+        // Copies the new entries under the lock; filtering them can take a while with a full
+        // buffer and must not hold up the network threads.
+        long oldest;
+        long from;
+        Object[] added;
+        synchronized (lock) {
+            oldest = Math.max(0, nextSeq - capacity);
+            from = Math.max(scannedSeq, oldest);
+            added = new Object[(int) (nextSeq - from)];
+            int slot = (int) (from % capacity);
+            int first = Math.min(added.length, capacity - slot);
+            System.arraycopy(items, slot, added, 0, first);
+            System.arraycopy(items, 0, added, first, added.length - first);
+            scannedSeq = nextSeq;
+        }
+        int dropped = 0;
+        while (viewCount > 0 && view[viewHead] < oldest) {
+            viewHead = (viewHead + 1) % capacity;
+            --viewCount;
+            ++dropped;
+        }
+        int before = viewCount;
+        for (int i = 0; i < added.length; ++i) {
+            if (filter.matches(added[i])) {
+                view[(viewHead + viewCount) % capacity] = from + i;
+                ++viewCount;
+            }
+        }
+        if (dropped > 0) {
+            fireTableRowsDeleted(0, dropped - 1);
+        }
+        if (viewCount > before) {
+            fireTableRowsInserted(before, viewCount - 1);
+        }
+    }
+
+    /**
+     * Sets which entries to display, and rebuilds the table from the entries in the buffer.
+     *
+     * @param filter the filter; {@link Filter#ALL} to show everything.
+     */
+    public void setFilter(Filter filter) {
+        this.filter = filter;
+        viewHead = 0;
+        viewCount = 0;
+        scannedSeq = 0;
+        fireTableDataChanged();
+        boolean wasFrozen = frozen;
+        frozen = false;
+        update();
+        frozen = wasFrozen;
+    }
+
+    /// @return the current filter.
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Stops or restarts updating the table. Entries keep being recorded while frozen.
+     *
+     * @param frozen true to stop updating.
+     */
+    public void setFrozen(boolean frozen) {
+        this.frozen = frozen;
+    }
+
+    /// Removes all entries from the table. Entries added later are displayed.
+    public void clear() {
+        synchronized (lock) {
+            scannedSeq = nextSeq;
+        }
+        viewHead = 0;
+        viewCount = 0;
+        fireTableDataChanged();
+    }
+
+    /// @return the total number of entries added so far, including the dropped ones.
+    public long getTotalCount() {
+        synchronized (lock) {
+            return nextSeq;
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return viewCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        if (row < 0 || row >= viewCount) return "";
+        long seq = view[(viewHead + row) % capacity];
+        Object item;
+        long time;
+        synchronized (lock) {
+            if (seq < nextSeq - capacity) {
+                // Overwritten since the last update; the row goes away at the next tick.
+                return "";
+            }
+            int slot = (int) (seq % capacity);
+            item = items[slot];
+            time = times[slot];
+        }
+        switch (column) {
+            case TIME_COLUMN:
+                return df.format(new Date(time));
+            case SOURCE_COLUMN:
+                return item instanceof Message ? ((Message) item).getSourceNodeID().toString()
+                        : "";
+            case TYPE_COLUMN:
+                if (item instanceof Message) {
+                    return Message.typeName(item.getClass());
+                }
+                return item instanceof CanFrame ? "Frame" : "Note";
+            case CONTENT_COLUMN:
+                if (item instanceof CanFrame) {
+                    return GridConnect.format((CanFrame) item);
+                }
+                return String.valueOf(item).trim();
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Selects the entries to display by message type, node and event. Frames and text notes
+     * are only displayed when nothing is selected.
+     */
+    public static class Filter {
+        /// Displays everything.
+        public static final Filter ALL = new Filter(null, null, null);
+
+        private final Class<? extends Message> type;
+        private final NodeID node;
+        private final EventID event;
+
+        /**
+         * @param type  only messages of this class (or its subclasses); null for any.
+         * @param node  only messages from or addressed to this node; null for any.
+         * @param event only event messages with this event ID; null for any.
+         */
+        public Filter(Class<? extends Message> type, NodeID node, EventID event) {
+            this.type = type;
+            this.node = node;
+            this.event = event;
+        }
+
+        /**
+         * @param item an entry of the monitor.
+         * @return whether the entry should be displayed.
+         */
+        public boolean matches(Object item) {
+            if (type == null && node == null && event == null) return true;
+            if (!(item instanceof Message)) return false;
+            Message m = (Message) item;
+            if (type != null && !type.isInstance(m)) return false;
+            if (node != null && !node.equals(m.getSourceNodeID()) && !(m instanceof
+                    AddressedMessage && node.equals(((AddressedMessage) m).getDestNodeID()))) {
+                return false;
+            }
+            if (event != null && !(m instanceof EventMessage && event.equals(((EventMessage)
+                    m).getEventID()))) {
+                return false;
+            }
+            return true;
+        }
+    }
+}
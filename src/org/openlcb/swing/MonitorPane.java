@@ -0,0 +1,181 @@
+package org.openlcb.swing;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.logging.Logger;
+
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.JToggleButton;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import org.openlcb.Connection;
+import org.openlcb.ConsumerIdentifiedMessage;
+import org.openlcb.DatagramMessage;
+import org.openlcb.EventID;
+import org.openlcb.EventMessage;
+import org.openlcb.IdentifyConsumersMessage;
+import org.openlcb.IdentifyEventsMessage;
+import org.openlcb.IdentifyProducersMessage;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.ProducerIdentifiedMessage;
+import org.openlcb.VerifiedNodeIDNumberMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+import org.openlcb.can.CanFrameListener;
+
+/**
+ * Pane for monitoring communications at high traffic volumes.
+ * <p>
+ * Unlike {@link MonPane}, which appends every line to a text area, this pane displays a
+ * {@link MonitorModel} in a table: only the visible rows are formatted, and the display is
+ * updated in batches at a fixed rate. The traffic can be filtered by message type, node and
+ * event.
+ */
+public class MonitorPane extends JPanel {
+    /** Comment for <code>serialVersionUID</code>. */
+    private static final long serialVersionUID = -3010826950226318153L;
+
+    private static final Logger logger = Logger.getLogger(MonitorPane.class.getName());
+
+    private static final Class<?>[] FILTER_TYPES = new Class<?>[]{
+            null,
+            EventMessage.class,
+            ProducerConsumerEventReportMessage.class,
+            ProducerIdentifiedMessage.class,
+            ConsumerIdentifiedMessage.class,
+            IdentifyProducersMessage.class,
+            IdentifyConsumersMessage.class,
+            IdentifyEventsMessage.class,
+            InitializationCompleteMessage.class,
+            VerifyNodeIDNumberMessage.class,
+            VerifiedNodeIDNumberMessage.class,
+            DatagramMessage.class,
+    };
+
+    protected final MonitorModel model;
+    protected JTable table;
+    protected JScrollPane scrollPane;
+    protected JButton clearButton = new JButton("Clear");
+    protected JToggleButton freezeButton = new JToggleButton("Freeze");
+    protected JComboBox<String> typeBox = new JComboBox<>();
+    protected JTextField nodeField = new JTextField(17);
+    protected JTextField eventField = new JTextField(23);
+    protected JButton filterButton = new JButton("Filter");
+    protected JLabel statusLabel = new JLabel();
+
+    public MonitorPane() {
+        this(new MonitorModel());
+    }
+
+    public MonitorPane(MonitorModel model) {
+        this.model = model;
+    }
+
+    public void initComponents() {
+        table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(MonitorModel.TIME_COLUMN).setPreferredWidth(90);
+        table.getColumnModel().getColumn(MonitorModel.SOURCE_COLUMN).setPreferredWidth(130);
+        table.getColumnModel().getColumn(MonitorModel.TYPE_COLUMN).setPreferredWidth(180);
+        table.getColumnModel().getColumn(MonitorModel.CONTENT_COLUMN).setPreferredWidth(500);
+        scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(900, 400));
+
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        add(scrollPane);
+
+        for (Class<?> c : FILTER_TYPES) {
+            typeBox.addItem(c == null ? "All types" : Message.typeName(c));
+        }
+        nodeField.setToolTipText("Only show messages from or to this node, e.g. 02.01.12.FE.00" +
+                ".01; empty for all");
+        eventField.setToolTipText("Only show messages with this event ID; empty for all");
+        freezeButton.setToolTipText("Stop display updates; traffic is still recorded");
+
+        JPanel pane1 = new JPanel();
+        pane1.setLayout(new BoxLayout(pane1, BoxLayout.X_AXIS));
+        pane1.add(clearButton);
+        pane1.add(freezeButton);
+        pane1.add(typeBox);
+        pane1.add(new JLabel(" Node:"));
+        pane1.add(nodeField);
+        pane1.add(new JLabel(" Event:"));
+        pane1.add(eventField);
+        pane1.add(filterButton);
+        add(pane1);
+        add(statusLabel);
+
+        clearButton.addActionListener(e -> model.clear());
+        freezeButton.addActionListener(e -> model.setFrozen(freezeButton.isSelected()));
+        filterButton.addActionListener(e -> applyFilter());
+        typeBox.addActionListener(e -> applyFilter());
+
+        // Keeps the newest row in view, unless the user scrolled up.
+        model.addTableModelListener(new TableModelListener() {
+            @Override
+            public void tableChanged(TableModelEvent e) {
+                statusLabel.setText(model.getRowCount() + " shown, " + model.getTotalCount() +
+                        " total");
+                if (e.getType() != TableModelEvent.INSERT) return;
+                JScrollBar bar = scrollPane.getVerticalScrollBar();
+                if (bar.getValue() + bar.getVisibleAmount() < bar.getMaximum() - table
+                        .getRowHeight() * (e.getLastRow() - e.getFirstRow() + 2)) {
+                    return;
+                }
+                Rectangle r = table.getCellRect(model.getRowCount() - 1, 0, true);
+                table.scrollRectToVisible(r);
+            }
+        });
+        model.start();
+    }
+
+    /// Stops the display updates. Call when the pane is closed.
+    public void dispose() {
+        model.stop();
+    }
+
+    /// @return the model holding the traffic.
+    public MonitorModel getModel() {
+        return model;
+    }
+
+    /// @return a connection to register on a message bus; it records every message.
+    public Connection getConnection() {
+        return model.getConnection();
+    }
+
+    /// @return a listener to add to a CAN frame hub; it records every frame.
+    public CanFrameListener getFrameListener() {
+        return model.getFrameListener();
+    }
+
+    void applyFilter() {
+        Class<?> selected = FILTER_TYPES[Math.max(0, typeBox.getSelectedIndex())];
+        Class<? extends Message> type = selected == null ? null : selected.asSubclass(Message
+                .class);
+        NodeID node = null;
+        EventID event = null;
+        try {
+            String n = nodeField.getText().trim();
+            if (!n.isEmpty()) node = new NodeID(n);
+            String ev = eventField.getText().trim();
+            if (!ev.isEmpty()) event = new EventID(ev);
+        } catch (RuntimeException ex) {
+            logger.warning("Invalid filter: " + ex);
+            statusLabel.setText("Invalid filter: " + ex.getMessage());
+            return;
+        }
+        model.setFilter(new MonitorModel.Filter(type, node, event));
+    }
+}
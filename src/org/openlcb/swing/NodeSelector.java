@@ -3,6 +3,7 @@
 package org.openlcb.swing;
 
 import static org.openlcb.MimicNodeStore.ADD_PROP_NODE;
+import static org.openlcb.MimicNodeStore.ADD_PROP_NODES;
 import static org.openlcb.MimicNodeStore.CLEAR_ALL_NODES;
 import static org.openlcb.MimicNodeStore.NodeMemo.UPDATE_PROP_SIMPLE_NODE_IDENT;
 
@@ -10,6 +11,7 @@ import java.awt.event.HierarchyEvent;
 import java.awt.event.HierarchyListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.util.List;
 import java.util.logging.Logger;
 
 import javax.swing.BoxLayout;
@@ -59,6 +61,13 @@ public class NodeSelector extends JPanel  {
                     MimicNodeStore.NodeMemo memo = (MimicNodeStore.NodeMemo) e
                             .getNewValue();
                     newNodeInList(memo);
+                } else if (e.getPropertyName().equals(ADD_PROP_NODES)) {
+                    @SuppressWarnings("unchecked")
+                    List<MimicNodeStore.NodeMemo> memos = (List<MimicNodeStore.NodeMemo>) e
+                            .getNewValue();
+                    for (MimicNodeStore.NodeMemo memo : memos) {
+                        newNodeInList(memo);
+                    }
                 } else if (e.getPropertyName().equals(CLEAR_ALL_NODES)) {
                     clearList();
                 }
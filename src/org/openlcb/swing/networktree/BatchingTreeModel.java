@@ -0,0 +1,274 @@
+package org.openlcb.swing.networktree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.SwingUtilities;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeNode;
+
+/**
+ * Tree model that applies changes in batches.
+ * <p>
+ * Changes to the tree are posted as Runnables with {@link #post(Runnable)} from any thread.
+ * They are collected for a short window, then run together on the Swing thread. The model
+ * events the changes cause are not fired one by one; at the end of the batch the model fires
+ * one event per changed parent: a single insert event with all new children, a single change
+ * event with all changed children, or a structure change if children were removed. Events
+ * for nodes that were themselves inserted in the same batch are not fired at all.
+ * <p>
+ * Changes made outside of a batch fire their events immediately, as in
+ * {@link DefaultTreeModel}.
+ */
+public class BatchingTreeModel extends DefaultTreeModel {
+    /** Comment for <code>serialVersionUID</code>. */
+    private static final long serialVersionUID = 1845112390755364032L;
+
+    /// Default time to collect changes before applying them.
+    public static final int DEFAULT_WINDOW_MSEC = 100;
+
+    /**
+     * Gets notified around each batch, e.g. to save and restore the expansion state of a
+     * tree over structure changes.
+     */
+    public interface BatchListener {
+        /// Called on the Swing thread before the changes of a batch are made.
+        void batchStarting();
+
+        /// Called on the Swing thread after the events of a batch were fired.
+        void batchApplied();
+    }
+
+    private final List<Runnable> pending = new ArrayList<>();
+    private final javax.swing.Timer timer;
+    private final List<BatchListener> batchListeners = new ArrayList<>();
+
+    // Events collected during a batch. Swing thread only.
+    private boolean inBatch = false;
+    private final Map<TreeNode, ParentChanges> changes = new IdentityHashMap<>();
+    private final List<TreeNode> changedParents = new ArrayList<>();
+    private final Set<TreeNode> insertedNodes = Collections.newSetFromMap(new
+            IdentityHashMap<>());
+    private boolean rootChanged = false;
+
+    public BatchingTreeModel(TreeNode root) {
+        this(root, DEFAULT_WINDOW_MSEC);
+    }
+
+    /**
+     * @param root        root node of the tree
+     * @param windowMsec  how long to collect changes before applying them.
+     */
+    public BatchingTreeModel(TreeNode root, int windowMsec) {
+        super(root);
+        timer = new javax.swing.Timer(windowMsec, e -> flush());
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Queues a change to the tree. The change will be run on the Swing thread together with
+     * the other changes posted within the batching window.
+     *
+     * @param change modifies the tree through the methods of this model.
+     */
+    public void post(Runnable change) {
+        synchronized (pending) {
+            pending.add(change);
+            if (pending.size() == 1) {
+                timer.restart();
+            }
+        }
+    }
+
+    /// @param l will be called around every batch.
+    public void addBatchListener(BatchListener l) {
+        batchListeners.add(l);
+    }
+
+    /// Stops the batching timer; changes posted but not yet applied are dropped.
+    public void release() {
+        timer.stop();
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Runs all queued changes and fires the combined events. Called by the batching timer;
+     * may be called on the Swing thread to apply the changes early.
+     */
+    public void flush() {
+        List<Runnable> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) return;
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            timer.stop();
+        }
+        for (BatchListener l : batchListeners) {
+            l.batchStarting();
+        }
+        inBatch = true;
+        try {
+            for (Runnable r : batch) {
+                r.run();
+            }
+        } finally {
+            inBatch = false;
+            fireCollected();
+        }
+        for (BatchListener l : batchListeners) {
+            l.batchApplied();
+        }
+    }
+
+    /// @return true if called on the Swing thread while a batch is being applied.
+    public boolean isInBatch() {
+        return SwingUtilities.isEventDispatchThread() && inBatch;
+    }
+
+    /// Runs a change now if called from a change of the current batch, otherwise posts it.
+    void apply(Runnable change) {
+        // inBatch belongs to the Swing thread; other threads must not even read it.
+        if (isInBatch()) {
+            change.run();
+        } else {
+            post(change);
+        }
+    }
+
+    private ParentChanges changesOf(TreeNode parent) {
+        ParentChanges c = changes.get(parent);
+        if (c == null) {
+            c = new ParentChanges();
+            changes.put(parent, c);
+            changedParents.add(parent);
+        }
+        return c;
+    }
+
+    @Override
+    public void nodesWereInserted(TreeNode node, int[] childIndices) {
+        if (!inBatch) {
+            super.nodesWereInserted(node, childIndices);
+            return;
+        }
+        if (node == null || childIndices == null) return;
+        ParentChanges c = changesOf(node);
+        for (int i : childIndices) {
+            TreeNode child = node.getChildAt(i);
+            c.inserted.add(child);
+            insertedNodes.add(child);
+        }
+    }
+
+    @Override
+    public void nodesWereRemoved(TreeNode node, int[] childIndices, Object[] removedChildren) {
+        if (!inBatch) {
+            super.nodesWereRemoved(node, childIndices, removedChildren);
+            return;
+        }
+        if (node == null) return;
+        changesOf(node).structure = true;
+    }
+
+    @Override
+    public void nodesChanged(TreeNode node, int[] childIndices) {
+        if (!inBatch) {
+            super.nodesChanged(node, childIndices);
+            return;
+        }
+        if (node == null) return;
+        if (childIndices == null) {
+            if (node == root) rootChanged = true;
+            return;
+        }
+        ParentChanges c = changesOf(node);
+        for (int i : childIndices) {
+            c.changed.add(node.getChildAt(i));
+        }
+    }
+
+    @Override
+    public void nodeStructureChanged(TreeNode node) {
+        if (!inBatch) {
+            super.nodeStructureChanged(node);
+            return;
+        }
+        if (node == null) return;
+        changesOf(node).structure = true;
+    }
+
+    /// @return true if the listeners do not know about this node yet or will get a
+    /// structure change event for one of its ancestors.
+    private boolean isCovered(TreeNode parent) {
+        if (parent != root && parent.getParent() == null) {
+            // Detached from the tree.
+            return true;
+        }
+        for (TreeNode n = parent; n != null; n = n.getParent()) {
+            if (insertedNodes.contains(n)) return true;
+            if (n != parent) {
+                ParentChanges c = changes.get(n);
+                if (c != null && c.structure) return true;
+            }
+        }
+        return false;
+    }
+
+    private void fireCollected() {
+        try {
+            if (rootChanged) {
+                super.nodesChanged(root, null);
+            }
+            for (TreeNode parent : changedParents) {
+                if (isCovered(parent)) continue;
+                ParentChanges c = changes.get(parent);
+                if (c.structure) {
+                    super.nodeStructureChanged(parent);
+                    continue;
+                }
+                int[] ins = indicesOf(parent, c.inserted, null);
+                if (ins.length > 0) {
+                    super.nodesWereInserted(parent, ins);
+                }
+                int[] chg = indicesOf(parent, c.changed, c.inserted);
+                if (chg.length > 0) {
+                    super.nodesChanged(parent, chg);
+                }
+            }
+        } finally {
+            changes.clear();
+            changedParents.clear();
+            insertedNodes.clear();
+            rootChanged = false;
+        }
+    }
+
+    /// @return the sorted indices of those nodes that are still children of parent.
+    private static int[] indicesOf(TreeNode parent, Set<TreeNode> children, Set<TreeNode>
+            exclude) {
+        int[] ret = new int[children.size()];
+        int n = 0;
+        for (TreeNode child : children) {
+            if (child.getParent() != parent) continue;
+            if (exclude != null && exclude.contains(child)) continue;
+            ret[n++] = parent.getIndex(child);
+        }
+        ret = Arrays.copyOf(ret, n);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    /// Changes of the children of one parent node during a batch.
+    private static class ParentChanges {
+        boolean structure = false;
+        final Set<TreeNode> inserted = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<TreeNode> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+}
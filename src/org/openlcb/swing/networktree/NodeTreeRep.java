@@ -49,32 +49,46 @@ public class NodeTreeRep extends DefaultMutableTreeNode  {
             @Override
             public void propertyChange(java.beans.PropertyChangeEvent e) { 
                 if (e.getPropertyName().equals("updateProtocol")) {
-                    updateProtocolIdent((ProtocolIdentification)e.getNewValue());                
+                    final ProtocolIdentification pi = (ProtocolIdentification) e.getNewValue();
+                    applyChange(() -> updateProtocolIdent(pi));
                 }
                 if (e.getPropertyName().equals("updateSimpleNodeIdent")) {
-                    updateSimpleNodeIdent((SimpleNodeIdent)e.getNewValue());
+                    final SimpleNodeIdent snii = (SimpleNodeIdent) e.getNewValue();
+                    applyChange(() -> updateSimpleNodeIdent(snii));
                 }
                 if (e.getPropertyName().equals("updateConsumers")) {
-                    getTreeModel().insertNodeInto(newNode("Supported Consumers"), getThis(),
-                                 getThis().getChildCount());
+                    applyChange(() -> getTreeModel().insertNodeInto(newNode(
+                            "Supported Consumers"), getThis(), getThis().getChildCount()));
                 }
                 if (e.getPropertyName().equals("updateProducers")) {
-                    getTreeModel().insertNodeInto(newNode("Supported Producers"), getThis(),
-                                 getThis().getChildCount());
+                    applyChange(() -> getTreeModel().insertNodeInto(newNode(
+                            "Supported Producers"), getThis(), getThis().getChildCount()));
                 }
             }
         });
         
         // see if protocol info already present
-        ProtocolIdentification pip = store.getProtocolIdentification(memo.getNodeID());
+        final ProtocolIdentification pip = store.getProtocolIdentification(memo.getNodeID());
         if (pip != null) {
-            updateProtocolIdent(pip);  // otherwise, will be notified later
+            applyChange(() -> updateProtocolIdent(pip));  // otherwise, will be notified later
         }
 
         // see if simple ID info already present
-        SimpleNodeIdent snii = store.getSimpleNodeIdent(memo.getNodeID());
+        final SimpleNodeIdent snii = store.getSimpleNodeIdent(memo.getNodeID());
         if (snii != null) {
-            updateSimpleNodeIdent(snii);  // otherwise, will be notified later
+            applyChange(() -> updateSimpleNodeIdent(snii));  // otherwise, will be notified later
+        }
+    }
+
+    /**
+     * Runs a change of the tree. With a {@link BatchingTreeModel} the change is queued and
+     * applied together with other changes on the Swing thread; otherwise it is run now.
+     */
+    void applyChange(Runnable change) {
+        if (treeModel instanceof BatchingTreeModel) {
+            ((BatchingTreeModel) treeModel).apply(change);
+        } else {
+            change.run();
         }
     }
     
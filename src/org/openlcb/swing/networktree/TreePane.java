@@ -13,8 +13,8 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Enumeration;
+import java.util.List;
 
 import javax.swing.AbstractAction;
 import javax.swing.JButton;
@@ -58,7 +58,7 @@ public class TreePane extends JPanel  {
 
     MimicNodeStore store;
     DefaultMutableTreeNode nodes;
-    DefaultTreeModel treeModel;
+    BatchingTreeModel treeModel;
     
     MimicNodeStore getStore() { return store; }
     DefaultTreeModel getTreeModel() { return treeModel; }
@@ -66,39 +66,11 @@ public class TreePane extends JPanel  {
     SortOrder sortOrder = SortOrder.BY_NODE_ID;
 
     NodeID nullNode = new NodeID(new byte[]{0,0,0,0,0,0});
-    private Timer timer;
-    private boolean needResortTree = false;
-
-    // This listener ensures that if any node's SNIP data changes we resort the visible tree.
-    PropertyChangeListener resortListener = new PropertyChangeListener() {
-        @Override
-        public void propertyChange(PropertyChangeEvent e) {
-            if (e.getPropertyName().equals(MimicNodeStore.NodeMemo.UPDATE_PROP_SIMPLE_NODE_IDENT)) {
-                // This code will delay the updating of the display by a bit and coalesces update
-                // commands. This way we can ensure we don't spend too much CPU repeatedly
-                // updating the display.
-                synchronized (timer) {
-                    needResortTree = true;
-                }
-                timer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        synchronized (timer) {
-                            if (needResortTree) {
-                                SwingUtilities.invokeLater(() -> resortTree());
-                                needResortTree = false;
-                            }
-                        }
-                    }
-                }, 100);
-            }
-        }
-    };
+    /// Nodes that were expanded when the current batch of tree changes started.
+    private final List<DefaultMutableTreeNode> expandedNodes = new ArrayList<>();
 
     public TreePane() {
         super();
-        
-        timer = new Timer("OpenLCB Tree Pane Timer");
     }
 
     public void initComponents(MimicNodeStore store, final Connection connection,
@@ -111,7 +83,9 @@ public class TreePane extends JPanel  {
         // build GUI
         setLayout(new javax.swing.BoxLayout(this, javax.swing.BoxLayout.Y_AXIS));
 
-        treeModel = new DefaultTreeModel(nodes);
+        // All changes to the tree go through the batching model: node arrivals and SNIP/PIP
+        // replies during a network refresh are applied together every 100 msec.
+        treeModel = new BatchingTreeModel(nodes);
         tree = new JTree(treeModel);
         tree.setEditable(true);
         tree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);  
@@ -155,35 +129,62 @@ public class TreePane extends JPanel  {
             @Override
             public void propertyChange(java.beans.PropertyChangeEvent e) { 
                 if (e.getPropertyName().equals(MimicNodeStore.ADD_PROP_NODE)) {
-                    MimicNodeStore.NodeMemo memo = (MimicNodeStore.NodeMemo) e.getNewValue();
-                    if (!memo.getNodeID().equals(nullNode)) {
-                        NodeTreeRep n = new NodeTreeRep(memo, getStore(), getTreeModel(), loader);
-                        addNewHardwareNode(n);
-                        n.initConnections();
-                        memo.addPropertyChangeListener(resortListener);
-                    }
+                    final MimicNodeStore.NodeMemo memo = (MimicNodeStore.NodeMemo) e
+                            .getNewValue();
+                    treeModel.post(() -> addNodeMemo(memo, loader));
+                } else if (e.getPropertyName().equals(MimicNodeStore.ADD_PROP_NODES)) {
+                    @SuppressWarnings("unchecked")
+                    final List<MimicNodeStore.NodeMemo> memos = (List<MimicNodeStore.NodeMemo>) e
+                            .getNewValue();
+                    treeModel.post(() -> {
+                        for (MimicNodeStore.NodeMemo memo : memos) {
+                            addNodeMemo(memo, loader);
+                        }
+                    });
                 } else if (e.getPropertyName().equals(MimicNodeStore.CLEAR_ALL_NODES)) {
-                    synchronized (nodes) {
-                        nodes.removeAllChildren();
-                        treeModel.nodeStructureChanged(nodes);
-                        SwingUtilities.invokeLater(()->tree.expandPath(new TreePath(nodes.getPath())));
-                    }
+                    treeModel.post(() -> {
+                        synchronized (nodes) {
+                            nodes.removeAllChildren();
+                            treeModel.nodeStructureChanged(nodes);
+                        }
+                    });
                 }
             }
         });
 
         // add nodes that exist now
         for (MimicNodeStore.NodeMemo memo : store.getNodeMemos() ) {
-            if (!memo.getNodeID().equals(nullNode)) {
-                NodeTreeRep n = new NodeTreeRep(memo, store, treeModel, loader);
-                addNewHardwareNode(n);
-                n.initConnections();
-            }
+            addNodeMemo(memo, loader);
         }
         
         // start with top level expanded
         tree.expandPath(new TreePath(nodes.getPath()));
 
+        // Structure changes collapse the tree; this restores what the user had expanded.
+        treeModel.addBatchListener(new BatchingTreeModel.BatchListener() {
+            @Override
+            public void batchStarting() {
+                expandedNodes.clear();
+                Enumeration<TreePath> en = tree.getExpandedDescendants(new TreePath(nodes
+                        .getPath()));
+                while (en != null && en.hasMoreElements()) {
+                    expandedNodes.add((DefaultMutableTreeNode) en.nextElement()
+                            .getLastPathComponent());
+                }
+            }
+
+            @Override
+            public void batchApplied() {
+                tree.expandPath(new TreePath(nodes.getPath()));
+                for (DefaultMutableTreeNode n : expandedNodes) {
+                    if (n.isNodeAncestor(nodes)) {
+                        tree.expandPath(new TreePath(n.getPath()));
+                    }
+                }
+                expandedNodes.clear();
+            }
+        });
+
         // kick off a listen when connection ready
         Connection.ConnectionListener cl = new Connection.ConnectionListener(){
             @Override
@@ -244,6 +245,32 @@ public class TreePane extends JPanel  {
         return it;
     }
 
+    /**
+     * Creates the tree entry for a newly discovered node.
+     *
+     * @param memo   the node from the node store
+     * @param loader the selection key loader for the tree entry
+     */
+    private void addNodeMemo(MimicNodeStore.NodeMemo memo,
+                             NodeTreeRep.SelectionKeyLoader loader) {
+        if (memo.getNodeID().equals(nullNode)) {
+            return;
+        }
+        final NodeTreeRep n = new NodeTreeRep(memo, getStore(), getTreeModel(), loader);
+        addNewHardwareNode(n);
+        n.initConnections();
+        // If the node's SNIP data changes, its place in the sort order may change.
+        memo.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent e) {
+                if (e.getPropertyName().equals(MimicNodeStore.NodeMemo
+                        .UPDATE_PROP_SIMPLE_NODE_IDENT)) {
+                    treeModel.post(() -> repositionNode(n));
+                }
+            }
+        });
+    }
+
     /**
      * Adds an OpenLCB node into the tree of nodes shown.
      *
@@ -251,16 +278,59 @@ public class TreePane extends JPanel  {
      */
     private void addNewHardwareNode(NodeTreeRep n) {
         synchronized (nodes) {
+            treeModel.insertNodeInto(n, nodes, findInsertIndex(n, getSorter()));
+        }
+    }
+
+    /**
+     * Binary search for the place of a node among the (sorted) nodes of the tree.
+     *
+     * @param n node to insert; must not be in the tree
+     * @param s current sort order
+     * @return index to insert the node at.
+     */
+    private int findInsertIndex(NodeTreeRep n, Comparator<NodeTreeRep> s) {
+        int lo = 0;
+        int hi = nodes.getChildCount();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (s.compare((NodeTreeRep) nodes.getChildAt(mid), n) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Moves a node to its place in the sort order after its sort key has changed. The other
+     * nodes stay sorted, so this does not need a full resort.
+     *
+     * @param n node in the tree
+     */
+    private void repositionNode(NodeTreeRep n) {
+        synchronized (nodes) {
+            if (n.getParent() != nodes) {
+                return;
+            }
             Comparator<NodeTreeRep> s = getSorter();
-            int i = 0;
-            while (i < nodes.getChildCount() &&
-                    s.compare((NodeTreeRep) nodes.getChildAt(i), n) < 0) {
-                ++i;
+            int i = nodes.getIndex(n);
+            if ((i == 0 || s.compare((NodeTreeRep) nodes.getChildAt(i - 1), n) < 0) &&
+                    (i == nodes.getChildCount() - 1 ||
+                            s.compare(n, (NodeTreeRep) nodes.getChildAt(i + 1)) < 0)) {
+                return;
             }
-            treeModel.insertNodeInto(n, nodes, i);
+            treeModel.removeNodeFromParent(n);
+            treeModel.insertNodeInto(n, nodes, findInsertIndex(n, s));
         }
     }
 
+    /// Applies the pending tree changes now. Must be called on the Swing thread.
+    void flushUpdates() {
+        treeModel.flush();
+    }
+
     /**
      * Sets the sort order to be used in the tree;
      *
@@ -271,7 +341,7 @@ public class TreePane extends JPanel  {
             return;
         }
         sortOrder = order;
-        SwingUtilities.invokeLater(() -> resortTree());
+        treeModel.post(() -> resortTree());
     }
 
     public void addTreeSelectionListener(final TreeSelectionListener listener) {
@@ -374,6 +444,6 @@ public class TreePane extends JPanel  {
      * Cleans up all property change listeners etc in preparation when closing the window.
      */
     public void release() {
-        timer.cancel(); 
+        treeModel.release();
     }
 }
@@ -0,0 +1,368 @@
+package org.openlcb.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openlcb.AddressedPayloadMessage;
+import org.openlcb.Connection;
+import org.openlcb.ConsumerIdentifiedMessage;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.DatagramAcknowledgedMessage;
+import org.openlcb.DatagramMessage;
+import org.openlcb.DatagramRejectedMessage;
+import org.openlcb.EventID;
+import org.openlcb.EventMessage;
+import org.openlcb.EventState;
+import org.openlcb.IdentifyConsumersMessage;
+import org.openlcb.IdentifyEventsMessage;
+import org.openlcb.IdentifyProducersMessage;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.LearnEventMessage;
+import org.openlcb.Message;
+import org.openlcb.MessageDecoder;
+import org.openlcb.MessageTypeIdentifier;
+import org.openlcb.NodeID;
+import org.openlcb.OptionalIntRejectedMessage;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.ProducerIdentifiedMessage;
+import org.openlcb.ProducerRangeIdentifiedMessage;
+import org.openlcb.ProtocolIdentificationReplyMessage;
+import org.openlcb.ProtocolIdentificationRequestMessage;
+import org.openlcb.SimpleNodeIdentInfoReplyMessage;
+import org.openlcb.SimpleNodeIdentInfoRequestMessage;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataProceedMessage;
+import org.openlcb.StreamDataSendMessage;
+import org.openlcb.StreamInitiateReplyMessage;
+import org.openlcb.StreamInitiateRequestMessage;
+import org.openlcb.Utilities;
+import org.openlcb.VerifiedNodeIDNumberMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+import org.openlcb.messages.TractionControlReplyMessage;
+import org.openlcb.messages.TractionControlRequestMessage;
+import org.openlcb.messages.TractionProxyReplyMessage;
+import org.openlcb.messages.TractionProxyRequestMessage;
+
+/**
+ * Converts between OpenLCB Message objects and their binary form in the OpenLCB TCP transfer
+ * protocol: 16-bit MTI, 6-byte source node ID, 6-byte destination node ID for addressed
+ * messages, then the payload. Unlike CAN, the message is never fragmented and node IDs are
+ * sent in full, so no alias map is needed.
+ * <p>
+ * Encoding is not thread-safe; use one codec per output thread. Decoding is static.
+ */
+public class MessageCodec {
+    private final static Logger logger = Logger.getLogger(MessageCodec.class.getName());
+
+    /// MTI bit telling that a destination node ID follows the source.
+    static final int MTI_ADDRESSED_BIT = 0x0008;
+    static final int MTI_DATAGRAM = MessageTypeIdentifier.Datagram.mti();
+    static final int MTI_STREAM_DATA_SEND = MessageTypeIdentifier.StreamDataSend.mti();
+    /// Largest message: addressed stream data filling a 16-bit stream buffer.
+    static final int MAX_MESSAGE_SIZE = 14 + 1 + 0xFFFF;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Encoder encoder = new Encoder();
+
+    /**
+     * Renders a message to binary.
+     *
+     * @param msg message to send.
+     * @return MTI, source, destination (if addressed) and payload.
+     * @throws IllegalArgumentException if the message type cannot be sent.
+     */
+    public byte[] encode(Message msg) {
+        encoder.mti = -1;
+        encoder.payload = EMPTY;
+        encoder.dest = null;
+        msg.applyTo(encoder, null);
+        if (encoder.mti < 0) {
+            throw new IllegalArgumentException("Cannot encode message " + msg);
+        }
+        byte[] payload = encoder.payload;
+        boolean addressed = (encoder.mti & MTI_ADDRESSED_BIT) != 0;
+        int headerLen = addressed ? 14 : 8;
+        byte[] ret = new byte[headerLen + payload.length];
+        Utilities.HostToNetworkUint16(ret, 0, encoder.mti);
+        Utilities.HostToNetworkUint48(ret, 2, msg.getSourceNodeID().toLong());
+        if (addressed) {
+            NodeID dest = encoder.dest != null ? encoder.dest : ((org.openlcb.AddressedMessage)
+                    msg).getDestNodeID();
+            Utilities.HostToNetworkUint48(ret, 8, dest.toLong());
+        }
+        System.arraycopy(payload, 0, ret, headerLen, payload.length);
+        return ret;
+    }
+
+    /**
+     * Parses a binary message.
+     *
+     * @param buf    buffer holding the message.
+     * @param offset where the message (its MTI) starts.
+     * @param len    length of the message in bytes.
+     * @return the message, or null if it is malformed or of an unknown type.
+     */
+    public static Message decode(byte[] buf, int offset, int len) {
+        if (len < 8) {
+            logger.log(Level.FINE, "Message too short: {0} bytes", len);
+            return null;
+        }
+        int mti = Utilities.NetworkToHostUint16(buf, offset);
+        NodeID source = new NodeID(Arrays.copyOfRange(buf, offset + 2, offset + 8));
+        NodeID dest = null;
+        int payloadStart = offset + 8;
+        if ((mti & MTI_ADDRESSED_BIT) != 0) {
+            if (len < 14) {
+                logger.log(Level.FINE, "Addressed message too short: {0} bytes", len);
+                return null;
+            }
+            dest = new NodeID(Arrays.copyOfRange(buf, offset + 8, offset + 14));
+            payloadStart = offset + 14;
+        }
+        byte[] p = Arrays.copyOfRange(buf, payloadStart, offset + len);
+
+        if (mti == MTI_DATAGRAM) {
+            return new DatagramMessage(source, dest, p);
+        }
+        if (mti == MTI_STREAM_DATA_SEND) {
+            if (p.length < 1) return null;
+            int[] data = new int[p.length - 1];
+            for (int i = 0; i < data.length; ++i) {
+                data[i] = p[i + 1] & 0xff;
+            }
+            return new StreamDataSendMessage(source, dest, p[0], data);
+        }
+        MessageTypeIdentifier value = MessageTypeIdentifier.get(mti);
+        if (value == null) {
+            logger.log(Level.FINE, "Unknown MTI 0x{0}", Integer.toHexString(mti));
+            return null;
+        }
+        try {
+            switch (value) {
+                case InitializationComplete:
+                    return new InitializationCompleteMessage(source);
+                case VerifyNodeIdAddressed:
+                    return new VerifyNodeIDNumberMessage(source, dest, p.length >= 6 ? new
+                            NodeID(p) : null);
+                case VerifyNodeIdGlobal:
+                    if (p.length >= 6) {
+                        return new VerifyNodeIDNumberMessage(source, new NodeID(p));
+                    }
+                    return new VerifyNodeIDNumberMessage(source);
+                case VerifiedNodeId:
+                    return new VerifiedNodeIDNumberMessage(source);
+                case OptionalInteractionRejected:
+                    return new OptionalIntRejectedMessage(source, dest, uint16(p, 0), uint16(p,
+                            2));
+                case ProtocolSupportInquiry:
+                    return new ProtocolIdentificationRequestMessage(source, dest);
+                case ProtocolSupportReply: {
+                    byte[] b = Arrays.copyOf(p, 6);
+                    return new ProtocolIdentificationReplyMessage(source, dest, Utilities
+                            .NetworkToHostUint48(b, 0));
+                }
+                case TractionControlRequest:
+                    return new TractionControlRequestMessage(source, dest, p);
+                case TractionControlReply:
+                    return new TractionControlReplyMessage(source, dest, p);
+                case TractionProxyRequest:
+                    return new TractionProxyRequestMessage(source, dest, p);
+                case TractionProxyReply:
+                    return new TractionProxyReplyMessage(source, dest, p);
+                case IdentifyConsumer:
+                    return new IdentifyConsumersMessage(source, new EventID(p));
+                case ConsumerRangeIdentified:
+                    return new ConsumerRangeIdentifiedMessage(source, new EventID(p));
+                case ConsumerIdentifiedUnknown:
+                    return new ConsumerIdentifiedMessage(source, new EventID(p), EventState
+                            .Unknown);
+                case ConsumerIdentifiedValid:
+                    return new ConsumerIdentifiedMessage(source, new EventID(p), EventState.Valid);
+                case ConsumerIdentifiedInvalid:
+                    return new ConsumerIdentifiedMessage(source, new EventID(p), EventState
+                            .Invalid);
+                case IdentifyProducer:
+                    return new IdentifyProducersMessage(source, new EventID(p));
+                case ProducerRangeIdentified:
+                    return new ProducerRangeIdentifiedMessage(source, new EventID(p));
+                case ProducerIdentifiedUnknown:
+                    return new ProducerIdentifiedMessage(source, new EventID(p), EventState
+                            .Unknown);
+                case ProducerIdentifiedValid:
+                    return new ProducerIdentifiedMessage(source, new EventID(p), EventState.Valid);
+                case ProducerIdentifiedInvalid:
+                    return new ProducerIdentifiedMessage(source, new EventID(p), EventState
+                            .Invalid);
+                case ProducerConsumerEventReport:
+                    return new ProducerConsumerEventReportMessage(source, new EventID(p));
+                case IdentifyEventsAddressed:
+                    return new IdentifyEventsMessage(source, dest);
+                case IdentifyEventsGlobal:
+                    return new IdentifyEventsMessage(source, null);
+                case LearnEvent:
+                    return new LearnEventMessage(source, new EventID(p));
+                case SimpleNodeIdentInfoRequest:
+                    return new SimpleNodeIdentInfoRequestMessage(source, dest);
+                case SimpleNodeIdentInfoReply:
+                    return new SimpleNodeIdentInfoReplyMessage(source, dest, p);
+                case DatagramReceivedOK:
+                    if (p.length > 0) {
+                        return new DatagramAcknowledgedMessage(source, dest, p[0] & 0xff);
+                    }
+                    return new DatagramAcknowledgedMessage(source, dest);
+                case DatagramRejected:
+                    return new DatagramRejectedMessage(source, dest, uint16(p, 0));
+                case StreamInitiateRequest:
+                    return new StreamInitiateRequestMessage(source, dest, uint16(p, 0), p[4],
+                            p.length > 5 ? p[5] : -1);
+                case StreamInitiateReply:
+                    return new StreamInitiateReplyMessage(source, dest, uint16(p, 0), p[4], p[5]);
+                case StreamDataProceed:
+                    return new StreamDataProceedMessage(source, dest, p[0], p[1]);
+                case StreamDataComplete:
+                    return new StreamDataCompleteMessage(source, dest, p.length > 0 ? p[0] : -1,
+                            p.length > 1 ? p[1] : -1);
+                default:
+                    logger.log(Level.FINE, "Unhandled MTI {0}", value);
+                    return null;
+            }
+        } catch (RuntimeException e) {
+            // Payload too short for the message type.
+            logger.log(Level.FINE, "Malformed message with MTI " + value, e);
+            return null;
+        }
+    }
+
+    private static int uint16(byte[] p, int offset) {
+        if (p.length < offset + 2) return 0;
+        return Utilities.NetworkToHostUint16(p, offset);
+    }
+
+    /// Collects the MTI and payload of a message through the double dispatch of MessageDecoder.
+    private static class Encoder extends MessageDecoder {
+        int mti;
+        byte[] payload;
+        /// Destination of addressed messages that are not AddressedMessage subclasses.
+        NodeID dest;
+
+        private void event(MessageTypeIdentifier t, EventMessage msg) {
+            mti = t.mti();
+            payload = msg.getEventID().getContents();
+        }
+
+        @Override
+        protected void defaultHandler(Message msg, Connection sender) {
+            if (msg instanceof AddressedPayloadMessage) {
+                AddressedPayloadMessage m = (AddressedPayloadMessage) msg;
+                mti = m.getEMTI().mti();
+                payload = m.getPayload();
+            }
+        }
+
+        @Override
+        public void handleInitializationComplete(InitializationCompleteMessage msg, Connection
+                sender) {
+            mti = MessageTypeIdentifier.InitializationComplete.mti();
+            payload = nodeBytes(msg.getSourceNodeID());
+        }
+
+        @Override
+        public void handleVerifiedNodeIDNumber(VerifiedNodeIDNumberMessage msg, Connection
+                sender) {
+            mti = MessageTypeIdentifier.VerifiedNodeId.mti();
+            payload = nodeBytes(msg.getSourceNodeID());
+        }
+
+        @Override
+        public void handleVerifyNodeIDNumber(VerifyNodeIDNumberMessage msg, Connection sender) {
+            if (msg.getDestNodeID() != null) {
+                mti = MessageTypeIdentifier.VerifyNodeIdAddressed.mti();
+                dest = msg.getDestNodeID();
+            } else {
+                mti = MessageTypeIdentifier.VerifyNodeIdGlobal.mti();
+            }
+            if (msg.getContent() != null) {
+                payload = nodeBytes(msg.getContent());
+            }
+        }
+
+        @Override
+        public void handleProducerConsumerEventReport(ProducerConsumerEventReportMessage msg,
+                                                      Connection sender) {
+            event(MessageTypeIdentifier.ProducerConsumerEventReport, msg);
+        }
+
+        @Override
+        public void handleIdentifyConsumers(IdentifyConsumersMessage msg, Connection sender) {
+            event(MessageTypeIdentifier.IdentifyConsumer, msg);
+        }
+
+        @Override
+        public void handleConsumerIdentified(ConsumerIdentifiedMessage msg, Connection sender) {
+            event(msg.getEventState().getConsumerIdentifierMti(), msg);
+        }
+
+        @Override
+        public void handleConsumerRangeIdentified(ConsumerRangeIdentifiedMessage msg,
+                                                  Connection sender) {
+            event(MessageTypeIdentifier.ConsumerRangeIdentified, msg);
+        }
+
+        @Override
+        public void handleIdentifyProducers(IdentifyProducersMessage msg, Connection sender) {
+            event(MessageTypeIdentifier.IdentifyProducer, msg);
+        }
+
+        @Override
+        public void handleProducerIdentified(ProducerIdentifiedMessage msg, Connection sender) {
+            event(msg.getEventState().getProducerIdentifierMti(), msg);
+        }
+
+        @Override
+        public void handleProducerRangeIdentified(ProducerRangeIdentifiedMessage msg,
+                                                  Connection sender) {
+            event(MessageTypeIdentifier.ProducerRangeIdentified, msg);
+        }
+
+        @Override
+        public void handleIdentifyEvents(IdentifyEventsMessage msg, Connection sender) {
+            if (msg.getDestNodeID() != null) {
+                mti = MessageTypeIdentifier.IdentifyEventsAddressed.mti();
+            } else {
+                mti = MessageTypeIdentifier.IdentifyEventsGlobal.mti();
+            }
+        }
+
+        @Override
+        public void handleLearnEvent(LearnEventMessage msg, Connection sender) {
+            event(MessageTypeIdentifier.LearnEvent, msg);
+        }
+
+        @Override
+        public void handleDatagram(DatagramMessage msg, Connection sender) {
+            mti = MTI_DATAGRAM;
+            ByteBuffer data = msg.getPayload();
+            payload = new byte[data.remaining()];
+            data.get(payload);
+        }
+
+        @Override
+        public void handleStreamDataSend(StreamDataSendMessage msg, Connection sender) {
+            mti = MTI_STREAM_DATA_SEND;
+            int[] data = msg.getData();
+            payload = new byte[data.length + 1];
+            payload[0] = msg.getDestinationStreamID();
+            for (int i = 0; i < data.length; ++i) {
+                payload[i + 1] = (byte) data[i];
+            }
+        }
+
+        private static byte[] nodeBytes(NodeID node) {
+            byte[] b = new byte[6];
+            Utilities.HostToNetworkUint48(b, 0, node.toLong());
+            return b;
+        }
+    }
+}
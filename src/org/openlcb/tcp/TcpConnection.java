@@ -0,0 +1,187 @@
+package org.openlcb.tcp;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbExecution;
+import org.openlcb.OlcbInterface;
+import org.openlcb.can.impl.OlcbConnection.ConnectionListener;
+
+/**
+ * Connects an OpenLCB interface to a peer speaking native OpenLCB over TCP.
+ * <p>
+ * This is the counterpart of {@link org.openlcb.can.impl.OlcbConnection} for the binary TCP
+ * transfer protocol: the messages of the interface go to the socket whole, without CAN
+ * frames, aliases or GridConnect encoding, so the link is usable as soon as the socket is
+ * connected. Either connect to a host and port with {@link #startConnect()}, or wrap a socket
+ * that a server accepted with {@link #TcpConnection(NodeID, Socket, ConnectionListener)}.
+ */
+public class TcpConnection {
+    private final static Logger logger = Logger.getLogger(TcpConnection.class.getName());
+    /// Default TCP port of OpenLCB hubs.
+    public static final int DEFAULT_PORT = 12000;
+    final static int minThreads = 10;
+    final static int maxThreads = 100;
+    /// How long shutdown() waits for the queued messages to be written.
+    static final int DRAIN_TIMEOUT_MSEC = 2000;
+
+    private final NodeID nodeId;
+    private final String hostName;
+    private final int portNumber;
+    private final CopyOnWriteArrayList<ConnectionListener> listeners = new
+            CopyOnWriteArrayList<>();
+    private Socket socket;
+    private TcpInput input;
+    private TcpOutput output;
+    private OlcbInterface olcbInterface;
+
+    /**
+     * Creates a connection to a host. Call {@link #startConnect()} to connect.
+     *
+     * @param nodeId             node ID of the local interface.
+     * @param hostName           host to connect to.
+     * @param portNumber         TCP port to connect to.
+     * @param connectionListener gets notified about the connection state. May be null.
+     */
+    public TcpConnection(NodeID nodeId, String hostName, int portNumber, ConnectionListener
+            connectionListener) {
+        this.nodeId = nodeId;
+        this.hostName = hostName;
+        this.portNumber = portNumber;
+        if (connectionListener != null) listeners.add(connectionListener);
+    }
+
+    /**
+     * Creates a connection on an already connected socket, e.g. one accepted by a server, and
+     * starts the interface right away.
+     *
+     * @param nodeId             node ID of the local interface.
+     * @param socket             connected socket.
+     * @param connectionListener gets notified about the connection state. May be null.
+     * @throws IOException if the socket streams cannot be opened.
+     */
+    public TcpConnection(NodeID nodeId, Socket socket, ConnectionListener connectionListener)
+            throws IOException {
+        this(nodeId, socket.getInetAddress().getHostAddress(), socket.getPort(),
+                connectionListener);
+        synchronized (this) {
+            attach(socket);
+        }
+        notifyConnect();
+    }
+
+    /// Connects on a background thread.
+    public void startConnect() {
+        OlcbExecution.getDefault().newThread("openlcb-tcp-connect", new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, true).start();
+    }
+
+    private final Runnable onError = new Runnable() {
+        @Override
+        public void run() {
+            if (!close()) return; // already shut down
+            for (ConnectionListener l : listeners) {
+                l.onDisconnect();
+            }
+        }
+    };
+
+    /**
+     * Connects on the calling thread.
+     *
+     * @return true if the connection was established.
+     */
+    public boolean connect() {
+        for (ConnectionListener l : listeners) {
+            l.onConnectionPending();
+            l.onStatusChange("Connecting...");
+        }
+        try {
+            Socket s = new Socket(hostName, portNumber);
+            synchronized (this) {
+                attach(s);
+            }
+        } catch (IOException e) {
+            for (ConnectionListener l : listeners) {
+                l.onStatusChange("Connection failed: " + e.toString());
+                l.onDisconnect();
+            }
+            return false;
+        }
+        notifyConnect();
+        return true;
+    }
+
+    private void attach(Socket s) throws IOException {
+        s.setTcpNoDelay(true);
+        socket = s;
+        output = new TcpOutput(s.getOutputStream(), nodeId, onError);
+        olcbInterface = new OlcbInterface(nodeId, output, OlcbExecution.getDefault()
+                .newThreadPool(minThreads, maxThreads));
+        input = new TcpInput(s.getInputStream(), olcbInterface.getInputConnection(), onError);
+    }
+
+    private void notifyConnect() {
+        logger.fine("Connected to " + hostName + ":" + portNumber);
+        for (ConnectionListener l : listeners) {
+            l.onStatusChange("Connected.");
+            l.onConnect();
+        }
+    }
+
+    /**
+     * Closes the socket after the queued messages are written (waiting at most
+     * {@link #DRAIN_TIMEOUT_MSEC}), and disposes the interface.
+     */
+    public void shutdown() {
+        close();
+    }
+
+    /// @return false if it was closed already.
+    private boolean close() {
+        Socket s;
+        TcpOutput o;
+        OlcbInterface i;
+        synchronized (this) {
+            if (socket == null) return false;
+            s = socket;
+            o = output;
+            i = olcbInterface;
+            socket = null;
+            input = null;
+            output = null;
+            olcbInterface = null;
+        }
+        o.close();
+        if (!o.awaitClosed(DRAIN_TIMEOUT_MSEC)) {
+            logger.fine("Closing OpenLCB TCP connection without writing all queued messages");
+        }
+        // Causes the input thread to exit.
+        try {
+            s.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+        i.dispose();
+        return true;
+    }
+
+    public void addConnectionListener(ConnectionListener l) {
+        listeners.add(l);
+    }
+
+    public void removeConnectionListener(ConnectionListener l) {
+        listeners.remove(l);
+    }
+
+    /// @return the interface, or null if not connected (yet or any more).
+    public synchronized OlcbInterface getInterface() {
+        return olcbInterface;
+    }
+}
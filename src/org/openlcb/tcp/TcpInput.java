@@ -0,0 +1,93 @@
+package org.openlcb.tcp;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openlcb.Connection;
+import org.openlcb.Message;
+import org.openlcb.OlcbExecution;
+import org.openlcb.Utilities;
+
+/**
+ * Parses an input stream in the binary OpenLCB TCP framing and forwards the messages.
+ * <p>
+ * Link control frames and multi-part frames are skipped.
+ */
+public class TcpInput {
+    private final static Logger logger = Logger.getLogger(TcpInput.class.getName());
+    private final DataInputStream input;
+    private final Connection target;
+    private final Runnable onError;
+    private byte[] buffer = new byte[256];
+
+    /**
+     * Creates the input parser. Starts the parsing thread.
+     *
+     * @param input   the socket stream to read from.
+     * @param target  the parsed messages will be forwarded to this connection.
+     * @param onError will be called when an IO error happens on the input thread. May be null.
+     */
+    public TcpInput(InputStream input, Connection target, Runnable onError) {
+        this.input = new DataInputStream(new BufferedInputStream(input, 65536));
+        this.target = target;
+        this.onError = onError;
+        OlcbExecution.getDefault().newThread("openlcb-tcp-input", new Runnable() {
+            @Override
+            public void run() {
+                threadBody();
+            }
+        }, true).start();
+    }
+
+    private void threadBody() {
+        byte[] preamble = new byte[TcpOutput.PREAMBLE_SIZE];
+        try {
+            while (true) {
+                input.readFully(preamble);
+                int flags = Utilities.NetworkToHostUint16(preamble, 0);
+                int length = ((preamble[2] & 0xff) << 16) | ((preamble[3] & 0xff) << 8) |
+                        (preamble[4] & 0xff);
+                if (length > TcpOutput.MAX_LENGTH) {
+                    // Nothing valid is this long; the stream is corrupt or hostile.
+                    throw new IOException("Frame length " + length + " exceeds the largest " +
+                            "message");
+                }
+                if (length > buffer.length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                input.readFully(buffer, 0, length);
+                if ((flags & TcpOutput.FLAG_MESSAGE) == 0) {
+                    logger.fine("Skipping link control frame");
+                    continue;
+                }
+                if ((flags & TcpOutput.MULTIPART_MASK) != 0) {
+                    logger.log(Level.WARNING, "Multi-part frames are not supported; dropping " +
+                            "frame with flags 0x{0}", Integer.toHexString(flags));
+                    continue;
+                }
+                if (length < TcpOutput.GATEWAY_HEADER_SIZE) {
+                    logger.log(Level.FINE, "Frame too short: {0}", length);
+                    continue;
+                }
+                Message m = MessageCodec.decode(buffer, TcpOutput.GATEWAY_HEADER_SIZE, length -
+                        TcpOutput.GATEWAY_HEADER_SIZE);
+                if (m != null) {
+                    target.put(m, null);
+                }
+            }
+        } catch (IOException e) {
+            logger.info("Error reading from OpenLCB TCP port " + e.toString());
+            try {
+                input.close();
+            } catch (IOException e1) {
+                logger.fine("Error closing OpenLCB TCP port " + e1.toString());
+            }
+            if (onError != null) {
+                onError.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.openlcb.tcp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openlcb.Connection;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbExecution;
+import org.openlcb.Utilities;
+
+/**
+ * Writes messages to an output stream in the binary OpenLCB TCP framing.
+ * <p>
+ * Each message becomes one frame: a 17-byte link header (flags, length, originating gateway
+ * node ID, capture timestamp) followed by the binary message from {@link MessageCodec}.
+ * Messages are queued and written by a dedicated thread, which flushes the stream only when
+ * the queue runs empty; under load many messages go out in one TCP segment.
+ */
+public class TcpOutput implements Connection {
+    private final static Logger logger = Logger.getLogger(TcpOutput.class.getName());
+
+    /// Link header flag: the frame carries an OpenLCB message (otherwise link control).
+    static final int FLAG_MESSAGE = 0x8000;
+    /// Link header flags: multi-part frame bits; 0 for a complete message.
+    static final int MULTIPART_MASK = 0x0C00;
+    /// Bytes before the length field counts: flags (2), length (3).
+    static final int PREAMBLE_SIZE = 5;
+    /// Bytes of the header counted by the length field: gateway node ID, timestamp.
+    static final int GATEWAY_HEADER_SIZE = 12;
+    /// Largest value of the length field that a valid message needs.
+    static final int MAX_LENGTH = GATEWAY_HEADER_SIZE + MessageCodec.MAX_MESSAGE_SIZE;
+
+    /// Queue entry that makes the writer thread exit.
+    private static final Message STOP = new Message(new NodeID()) {
+        @Override
+        public int getMTI() {
+            return 0;
+        }
+    };
+
+    private final BufferedOutputStream output;
+    private final long gatewayId;
+    private final Runnable onError;
+    private final MessageCodec codec = new MessageCodec();
+    private final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+    private final byte[] header = new byte[PREAMBLE_SIZE + GATEWAY_HEADER_SIZE];
+    private volatile boolean closed = false;
+    private final Thread writer;
+    /// Released when the writer thread exits.
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Creates the output and starts its writer thread.
+     *
+     * @param output    the (raw) output socket to send to.
+     * @param gatewayId node ID to put into the frames as originating gateway.
+     * @param onError   will be called when the output experiences an IO error. May be null.
+     */
+    public TcpOutput(OutputStream output, NodeID gatewayId, Runnable onError) {
+        this.output = new BufferedOutputStream(output, 65536);
+        this.gatewayId = gatewayId.toLong();
+        this.onError = onError;
+        writer = OlcbExecution.getDefault().newThread("openlcb-tcp-output", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    threadBody();
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, true);
+        writer.start();
+    }
+
+    @Override
+    public void put(Message msg, Connection sender) {
+        if (closed) return;
+        queue.add(msg);
+    }
+
+    /// The stream is connected already, so listeners are called right away.
+    @Override
+    public void registerStartNotification(ConnectionListener c) {
+        c.connectionActive(this);
+    }
+
+    /// Stops the writer thread after the queued messages are written.
+    public void close() {
+        closed = true;
+        queue.add(STOP);
+    }
+
+    /**
+     * Waits until the writer thread exits, after {@link #close()} or an error.
+     *
+     * @param timeoutMsec how long to wait at most.
+     * @return true if the thread exited; false on timeout, or if called on the writer thread
+     * itself (e.g. from the error callback).
+     */
+    public boolean awaitClosed(long timeoutMsec) {
+        if (Thread.currentThread() == writer) return false;
+        try {
+            return done.await(timeoutMsec, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void threadBody() {
+        try {
+            while (true) {
+                Message m = queue.take();
+                if (m == STOP) break;
+                write(m);
+                if (queue.isEmpty()) {
+                    output.flush();
+                }
+            }
+            output.flush();
+        } catch (InterruptedException e) {
+            // Terminating.
+        } catch (IOException e) {
+            logger.warning("Error writing to OpenLCB TCP output: " + e.toString());
+            closed = true;
+            queue.clear();
+            try {
+                output.close();
+            } catch (IOException e1) {
+                logger.fine("Error closing OpenLCB TCP output: " + e1.toString());
+            }
+            if (onError != null) {
+                onError.run();
+            }
+        }
+    }
+
+    private void write(Message m) throws IOException {
+        byte[] body;
+        try {
+            body = codec.encode(m);
+        } catch (IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Dropping message that cannot be sent over TCP: {0}", m);
+            return;
+        }
+        int length = GATEWAY_HEADER_SIZE + body.length;
+        if (length > MAX_LENGTH) {
+            logger.log(Level.WARNING, "Dropping oversized message: {0}", m);
+            return;
+        }
+        Utilities.HostToNetworkUint16(header, 0, FLAG_MESSAGE);
+        header[2] = (byte) (length >> 16);
+        header[3] = (byte) (length >> 8);
+        header[4] = (byte) length;
+        Utilities.HostToNetworkUint48(header, PREAMBLE_SIZE, gatewayId);
+        Utilities.HostToNetworkUint48(header, PREAMBLE_SIZE + 6, System.currentTimeMillis());
+        output.write(header);
+        output.write(body);
+    }
+}
@@ -0,0 +1,11 @@
+
+/**
+Native OpenLCB-over-TCP transport.
+<p>
+Messages are sent whole in the binary framing of the OpenLCB TCP transfer protocol, with full
+node IDs, instead of being fragmented into CAN frames and rendered as GridConnect text. There
+is no alias allocation and no datagram fragmentation. Use {@link org.openlcb.tcp.TcpConnection}
+in place of {@link org.openlcb.can.impl.OlcbConnection} when the other end speaks native
+OpenLCB over TCP.
+*/
+package org.openlcb.tcp;
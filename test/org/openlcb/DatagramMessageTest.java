@@ -74,6 +74,36 @@ public class DatagramMessageTest {
         Assert.assertTrue( ! m1.equals(m2));
     }
 
+    @Test
+    public void testBytesAndIntsEqual() {
+        DatagramMessage m1 = new DatagramMessage(nodeID1, nodeID2, new int[]{0x20, 0xFF});
+        DatagramMessage m2 = new DatagramMessage(nodeID1, nodeID2, new byte[]{0x20, (byte) 0xFF});
+        DatagramMessage m3 = DatagramMessage.wrap(nodeID1, nodeID2, new byte[]{0x20, (byte) 0xFF});
+
+        Assert.assertTrue(m1.equals(m2));
+        Assert.assertTrue(m2.equals(m3));
+        Assert.assertTrue(m3.equals(m1));
+        Assert.assertArrayEquals(new int[]{0x20, 0xFF}, m3.getData());
+        Assert.assertEquals(m1.toString(), m3.toString());
+    }
+
+    @Test
+    public void testPayloadView() {
+        byte[] data = new byte[]{1, 2, 3};
+        DatagramMessage m = DatagramMessage.wrap(nodeID1, nodeID2, data);
+        java.nio.ByteBuffer p = m.getPayload();
+        Assert.assertTrue(p.isReadOnly());
+        Assert.assertEquals(3, p.remaining());
+        Assert.assertEquals(3, m.getPayloadLength());
+        Assert.assertEquals(2, p.get(1));
+        // Reading one view does not move another.
+        p.get();
+        Assert.assertEquals(3, m.getPayload().remaining());
+
+        DatagramMessage fromInts = new DatagramMessage(nodeID1, nodeID2, new int[]{1, 0x80});
+        Assert.assertEquals((byte) 0x80, fromInts.getPayload().get(1));
+    }
+
     @Test 
     public void testHandling() {
         result = false;
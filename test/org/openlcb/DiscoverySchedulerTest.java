@@ -0,0 +1,149 @@
+package org.openlcb;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the metering of discovery requests.
+ */
+public class DiscoverySchedulerTest {
+    HashedWheelTimer timer;
+    long now = 1000;
+    DiscoveryScheduler scheduler;
+    List<TestRequest> sent = new ArrayList<>();
+    List<TestRequest> timedOut = new ArrayList<>();
+
+    class TestRequest extends DiscoveryScheduler.Request {
+        TestRequest(int n, int timeout, boolean metered) {
+            super(new NodeID(new byte[]{5, 1, 1, 1, 0, (byte) n}), timeout, metered);
+        }
+
+        @Override
+        protected void send() {
+            synchronized (sent) {
+                sent.add(this);
+            }
+        }
+
+        @Override
+        protected void onTimeout() {
+            synchronized (timedOut) {
+                timedOut.add(this);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("DiscoverySchedulerTest");
+        scheduler = new DiscoveryScheduler(timer) {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void testWindow() {
+        scheduler.setRequestsPerSecond(0);
+        scheduler.setWindow(2);
+        TestRequest[] r = new TestRequest[4];
+        for (int i = 0; i < r.length; ++i) {
+            r[i] = new TestRequest(i, 10000, true);
+            scheduler.submit(r[i]);
+        }
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(2, scheduler.getOutstanding());
+        Assert.assertEquals(2, scheduler.getQueueLength());
+
+        // Unmetered requests do not wait for the window.
+        TestRequest u = new TestRequest(10, 10000, false);
+        scheduler.submit(u);
+        Assert.assertEquals(3, sent.size());
+        Assert.assertSame(u, sent.get(2));
+
+        scheduler.complete(r[0]);
+        Assert.assertEquals(4, sent.size());
+        Assert.assertSame(r[2], sent.get(3));
+
+        // Completing a request that is still queued drops it.
+        scheduler.complete(r[3]);
+        Assert.assertEquals(0, scheduler.getQueueLength());
+        scheduler.complete(r[1]);
+        scheduler.complete(r[2]);
+        Assert.assertEquals(4, sent.size());
+        Assert.assertEquals(0, scheduler.getOutstanding());
+    }
+
+    @Test
+    public void testRate() {
+        scheduler.setWindow(100);
+        scheduler.setRequestsPerSecond(10);
+        for (int i = 0; i < 20; ++i) {
+            scheduler.submit(new TestRequest(i, 10000, true));
+        }
+        // The initial burst is the default window.
+        Assert.assertEquals(DiscoveryScheduler.DEFAULT_WINDOW, sent.size());
+        now += 100;
+        scheduler.pump();
+        Assert.assertEquals(DiscoveryScheduler.DEFAULT_WINDOW + 1, sent.size());
+        now += 50;
+        scheduler.pump();
+        Assert.assertEquals(DiscoveryScheduler.DEFAULT_WINDOW + 1, sent.size());
+        // 1.05 seconds since the last start allow 10 more.
+        now += 1000;
+        scheduler.pump();
+        Assert.assertEquals(DiscoveryScheduler.DEFAULT_WINDOW + 11, sent.size());
+    }
+
+    @Test
+    public void testAdaptiveTimeoutAndLatency() {
+        TestRequest r = new TestRequest(1, 700, true);
+        Assert.assertEquals(700, scheduler.getTimeoutMsec(r.node, 700));
+        scheduler.submit(r);
+        now += 50;
+        scheduler.complete(r);
+        Assert.assertEquals(1, scheduler.getCompletedCount());
+        Assert.assertEquals(50.0, scheduler.getAverageLatencyMsec(), 0.01);
+        Assert.assertEquals(50, scheduler.getMaxLatencyMsec());
+        // A fast node gets the minimum timeout.
+        Assert.assertEquals(DiscoveryScheduler.MIN_TIMEOUT_MSEC, scheduler.getTimeoutMsec(r
+                .node, 700));
+
+        r = new TestRequest(2, 700, true);
+        scheduler.submit(r);
+        now += 1000;
+        scheduler.complete(r);
+        // A slow node gets a timeout above its response time.
+        Assert.assertTrue(scheduler.getTimeoutMsec(r.node, 700) > 1000);
+        Assert.assertEquals(525.0, scheduler.getAverageLatencyMsec(), 0.01);
+    }
+
+    @Test
+    public void testTimeoutBacksOff() throws Exception {
+        TestRequest r = new TestRequest(1, 20, true);
+        scheduler.submit(r);
+        for (int i = 0; i < 100 && scheduler.getTimeoutCount() == 0; ++i) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(10);
+        synchronized (timedOut) {
+            Assert.assertEquals(1, timedOut.size());
+        }
+        Assert.assertEquals(1, scheduler.getTimeoutCount());
+        Assert.assertEquals(0, scheduler.getOutstanding());
+        Assert.assertEquals(40, scheduler.getTimeoutMsec(r.node, 20));
+        // Late completion is ignored.
+        scheduler.complete(r);
+        Assert.assertEquals(0, scheduler.getCompletedCount());
+        Assert.assertEquals(0, scheduler.getOutstanding());
+    }
+}
@@ -0,0 +1,197 @@
+package org.openlcb;
+
+import org.junit.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the hashed wheel timer.
+ */
+public class HashedWheelTimerTest {
+    HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("HashedWheelTimerTest", 5, 8);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void testFiresNotEarly() throws Exception {
+        final CountDownLatch l = new CountDownLatch(1);
+        final long[] firedAt = new long[1];
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout t = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                firedAt[0] = System.nanoTime();
+                l.countDown();
+            }
+        }, 50);
+        Assert.assertFalse(t.isExpired());
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Assert.assertTrue((firedAt[0] - start) / 1000000 >= 50);
+        Assert.assertTrue(t.isExpired());
+        Assert.assertFalse(t.cancel());
+    }
+
+    @Test
+    public void testImmediateRunsInOrder() throws Exception {
+        final StringBuffer order = new StringBuffer();
+        final CountDownLatch l = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                order.append('a');
+                // Holds the worker so that the next task is still pending when we cancel it.
+                try {
+                    release.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0);
+        HashedWheelTimer.Timeout cancelled = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                order.append('x');
+            }
+        }, 0);
+        Assert.assertTrue(cancelled.cancel());
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                order.append('b');
+                l.countDown();
+            }
+        }, 0);
+        release.countDown();
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals("ab", order.toString());
+        Assert.assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+        HashedWheelTimer.Timeout t1 = timer.schedule(r, 20);
+        HashedWheelTimer.Timeout t2 = timer.schedule(r, 20);
+        HashedWheelTimer.Timeout t3 = timer.schedule(r, 20);
+        Assert.assertEquals(3, timer.getPendingCount());
+        // Unlinking from the middle and the head of a bucket.
+        Assert.assertTrue(t2.cancel());
+        Assert.assertTrue(t3.cancel());
+        Assert.assertFalse(t3.cancel());
+        Assert.assertTrue(t3.isCancelled());
+        Assert.assertEquals(1, timer.getPendingCount());
+        Thread.sleep(100);
+        Assert.assertEquals(1, count.get());
+        Assert.assertTrue(t1.isExpired());
+        Assert.assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void testMultipleRounds() throws Exception {
+        // With 8 buckets of 5 msec, a 100 msec delay wraps around the wheel several times.
+        final CountDownLatch l = new CountDownLatch(2);
+        final AtomicInteger order = new AtomicInteger();
+        final int[] seen = new int[2];
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                seen[1] = order.incrementAndGet();
+                l.countDown();
+            }
+        }, 100);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                seen[0] = order.incrementAndGet();
+                l.countDown();
+            }
+        }, 10);
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals(1, seen[0]);
+        Assert.assertEquals(2, seen[1]);
+    }
+
+    @Test
+    public void testManyTimeouts() throws Exception {
+        final int n = 1000;
+        final CountDownLatch l = new CountDownLatch(n / 2);
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                l.countDown();
+            }
+        };
+        HashedWheelTimer.Timeout[] t = new HashedWheelTimer.Timeout[n];
+        for (int i = 0; i < n; ++i) {
+            // Long enough that none fire before they are cancelled below.
+            t[i] = timer.schedule(r, 200 + i % 50);
+        }
+        for (int i = 0; i < n; i += 2) {
+            t[i].cancel();
+        }
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && timer.getPendingCount() > 0; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+        HashedWheelTimer.Timeout t = timer.schedule(r, 10);
+        timer.stop();
+        Assert.assertTrue(t.isCancelled());
+        Assert.assertTrue(timer.schedule(r, 0).isCancelled());
+        Thread.sleep(50);
+        Assert.assertEquals(0, count.get());
+    }
+
+    @Test
+    public void testSurvivesFailingTasks() throws Exception {
+        final CountDownLatch l = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new AssertionError("thrown on purpose");
+            }
+        }, 0);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // The worker's next wait is interrupted.
+                Thread.currentThread().interrupt();
+            }
+        }, 5);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                l.countDown();
+            }
+        }, 30);
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+    }
+}
@@ -277,7 +277,7 @@ public class LoaderClientTest {
         dcs.put(m, null);
     // Stream Setup
         Assert.assertEquals("StreamSetup", 1, messagesReceived.size());
-        Assert.assertTrue(messagesReceived.get(0).equals(new StreamInitiateRequestMessage(hereID,farID,16384,(byte)4,(byte)0))); // Stream negn
+        Assert.assertTrue(messagesReceived.get(0).equals(new StreamInitiateRequestMessage(hereID,farID,LoaderClient.MAX_STREAM_BUFFER_SIZE,(byte)4,(byte)0))); // Stream negn
         messagesReceived.clear();
         // *********** note small buffersize! **********
         xmt.put(new StreamInitiateReplyMessage(farID,hereID,6,(byte)4,(byte)6), null);
@@ -331,7 +331,7 @@ public class LoaderClientTest {
         Message m = new DatagramAcknowledgedMessage(farID,hereID);
         dcs.put(m, null);
         // Stream Setup
-        Assert.assertEquals(new StreamInitiateRequestMessage(hereID, farID, 16384, (byte)4, (byte)0), messagesReceived.get(0));
+        Assert.assertEquals(new StreamInitiateRequestMessage(hereID, farID, LoaderClient.MAX_STREAM_BUFFER_SIZE, (byte)4, (byte)0), messagesReceived.get(0));
         messagesReceived.clear();
         // *********** note larger buffersize! **********
         xmt.put(new StreamInitiateReplyMessage(farID,hereID,64,(byte)4,(byte)6), null);
@@ -346,6 +346,209 @@ public class LoaderClientTest {
         xmt.dispose();
     }
 
+    /// @return the address of a memory config write datagram.
+    private static long writeAddress(Message m) {
+        int[] d = ((DatagramMessage) m).getData();
+        Assert.assertEquals(0x20, d[0]);
+        return ((long) d[2] << 24) | (d[3] << 16) | (d[4] << 8) | d[5];
+    }
+
+    /// Runs freeze and protocol identification, leaving the client starting the transfer.
+    private void startLoad(LoaderClient xmt, long protocols) {
+        startLoad(xmt, farID, protocols);
+    }
+
+    private void startLoad(LoaderClient xmt, NodeID target, long protocols) {
+        messagesReceived.clear();
+        dcs.put(new DatagramAcknowledgedMessage(target,hereID), null);
+        xmt.put(new InitializationCompleteMessage(target), null);
+        delay(200);
+        messagesReceived.clear();
+        xmt.put(new ProtocolIdentificationReplyMessage(target,hereID,protocols), null);
+    }
+
+    @Test
+    public void testParallelStreamsUseOwnStreamID() {
+        NodeID otherID = new NodeID(new byte[]{1,1,1,1,1,2});
+        data = new byte[]{'a','b','c','d'};
+        LoaderStatusReporter ignore = new LoaderStatusReporter() {
+            public void onProgress(float percent) {
+            }
+            public void onDone(int errorCode, String errorString) {
+            }
+        };
+        LoaderClient first = new LoaderClient(testConnection, mcs, dcs);
+        first.doLoad(hereID,farID, 45, 0, data, ignore);
+        startLoad(first, 0x200030000000L);
+        Assert.assertEquals(new DatagramMessage(hereID,farID,new int[]{0x20, 0x20, 0x00, 0x00, 0x00, 0x00, 0x2D, 0x04}), messagesReceived.get(0));
+        dcs.put(new DatagramAcknowledgedMessage(farID,hereID), null);
+
+        // The first stream is still being set up.
+        LoaderClient second = new LoaderClient(testConnection, mcs, dcs);
+        second.doLoad(hereID,otherID, 45, 0, data, ignore);
+        startLoad(second, otherID, 0x200030000000L);
+        Assert.assertEquals(new DatagramMessage(hereID,otherID,new int[]{0x20, 0x20, 0x00, 0x00, 0x00, 0x00, 0x2D, 0x05}), messagesReceived.get(0));
+        dcs.put(new DatagramAcknowledgedMessage(otherID,hereID), null);
+        first.dispose();
+        second.dispose();
+
+        // Both IDs were given back.
+        LoaderClient third = new LoaderClient(testConnection, mcs, dcs);
+        third.doLoad(hereID,farID, 45, 0, data, ignore);
+        startLoad(third, 0x200030000000L);
+        Assert.assertEquals(new DatagramMessage(hereID,farID,new int[]{0x20, 0x20, 0x00, 0x00, 0x00, 0x00, 0x2D, 0x04}), messagesReceived.get(0));
+        third.dispose();
+    }
+
+    @Test
+    public void testLoaderClientDGWindowRetry() {
+        data = new byte[160];
+        final int[] done = new int[]{-1};
+        LoaderClient xmt = new LoaderClient(testConnection, mcs, dcs);
+        xmt.setDatagramWindow(2);
+        xmt.doLoad(hereID,farID, 0xEF, 0x1000, data, new LoaderStatusReporter() {
+            public void onProgress(float percent) {
+            }
+            public void onDone(int errorCode, String errorString) {
+                done[0] = errorCode;
+            }
+        });
+        startLoad(xmt, 0x400030000000L);
+        java.util.List<Long> addresses = new java.util.ArrayList<>();
+        for (int i = 0; i < 10 && done[0] < 0; i++) {
+            Assert.assertEquals(1, messagesReceived.size());
+            Message m = messagesReceived.get(0);
+            messagesReceived.clear();
+            if (((DatagramMessage) m).getData()[1] == 0xA0) {
+                // Unfreeze
+                dcs.put(new DatagramAcknowledgedMessage(farID,hereID), null);
+                break;
+            }
+            addresses.add(writeAddress(m));
+            if (i == 1) {
+                // The second chunk fails; the writes start over from it.
+                dcs.put(new DatagramRejectedMessage(farID,hereID,0x1000), null);
+            } else {
+                dcs.put(new DatagramAcknowledgedMessage(farID,hereID), null);
+            }
+        }
+        // The write queued behind the failed one goes out too, and is written again.
+        Assert.assertEquals(java.util.Arrays.asList(0x1000L, 0x1040L, 0x1080L, 0x1040L,
+                0x1080L), addresses);
+        Assert.assertEquals(0, done[0]);
+        xmt.dispose();
+    }
+
+    @Test
+    public void testLoaderClientDGRetryLimit() {
+        data = new byte[64];
+        final String[] error = new String[1];
+        LoaderClient xmt = new LoaderClient(testConnection, mcs, dcs);
+        xmt.doLoad(hereID,farID, 0xEF, 0, data, new LoaderStatusReporter() {
+            public void onProgress(float percent) {
+            }
+            public void onDone(int errorCode, String errorString) {
+                error[0] = errorString;
+            }
+        });
+        startLoad(xmt, 0x400030000000L);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(1, messagesReceived.size());
+            Assert.assertEquals(0, writeAddress(messagesReceived.get(0)));
+            messagesReceived.clear();
+            dcs.put(new DatagramRejectedMessage(farID,hereID,0x1000), null);
+        }
+        Assert.assertEquals("Repeated errors writing to firmware space.", error[0]);
+        xmt.dispose();
+    }
+
+    @Test
+    public void testLoaderClientStreamRetry() {
+        data = new byte[]{'a','b','c','d','e','f','g','h','i','j'};
+        final int[] done = new int[]{-1};
+        LoaderClient xmt = new LoaderClient(testConnection, mcs, dcs);
+        xmt.setStreamBufferSize(6);
+        xmt.streamDataProceedTimeoutMsec = 50;
+        xmt.doLoad(hereID,farID, 45, 0, data, new LoaderStatusReporter() {
+            public void onProgress(float percent) {
+            }
+            public void onDone(int errorCode, String errorString) {
+                done[0] = errorCode;
+            }
+        });
+        startLoad(xmt, 0x200030000000L);
+        messagesReceived.clear();
+        dcs.put(new DatagramAcknowledgedMessage(farID,hereID), null);
+        messagesReceived.clear();
+        xmt.put(new StreamInitiateReplyMessage(farID,hereID,6,(byte)4,(byte)6), null);
+        Assert.assertEquals(new StreamDataSendMessage(hereID,farID,(byte)6,new int[]{'a','b','c','d','e','f'}), messagesReceived.get(0));
+        messagesReceived.clear();
+        // No proceed: the stream is closed and a new one set up from the first byte.
+        for (int i = 0; i < 200 && messagesReceived.size() < 2; i++) {
+            delay(10);
+        }
+        Assert.assertEquals(2, messagesReceived.size());
+        Assert.assertEquals(new StreamDataCompleteMessage(hereID,farID,(byte)4,(byte)6), messagesReceived.get(0));
+        Assert.assertEquals(new DatagramMessage(hereID,farID,new int[]{0x20, 0x20, 0x00, 0x00, 0x00, 0x00, 0x2D, 0x05}), messagesReceived.get(1));
+        messagesReceived.clear();
+        dcs.put(new DatagramAcknowledgedMessage(farID,hereID), null);
+        Assert.assertEquals(new StreamInitiateRequestMessage(hereID, farID, 6, (byte)5, (byte)6), messagesReceived.get(0));
+        messagesReceived.clear();
+        // A late message of the old stream is ignored.
+        xmt.put(new StreamDataProceedMessage(farID,hereID,(byte)4,(byte)6),null);
+        Assert.assertEquals(0, messagesReceived.size());
+        xmt.put(new StreamInitiateReplyMessage(farID,hereID,6,(byte)5,(byte)7), null);
+        Assert.assertEquals(new StreamDataSendMessage(hereID,farID,(byte)7,new int[]{'a','b','c','d','e','f'}), messagesReceived.get(0));
+        messagesReceived.clear();
+        xmt.put(new StreamDataProceedMessage(farID,hereID,(byte)5,(byte)7),null);
+        Assert.assertEquals(3, messagesReceived.size());
+        Assert.assertEquals(new StreamDataSendMessage(hereID,farID,(byte)7,new int[]{'g','h','i','j'}), messagesReceived.get(0));
+        Assert.assertEquals(new StreamDataCompleteMessage(hereID,farID,(byte)5,(byte)7), messagesReceived.get(1));
+        messagesReceived.clear();
+        dcs.put(new DatagramAcknowledgedMessage(farID,hereID), null);
+        Assert.assertEquals(0, done[0]);
+        xmt.dispose();
+    }
+
+    @Test
+    public void testLoaderClientStreamFromFile() throws Exception {
+        java.io.File f = java.io.File.createTempFile("firmware", ".bin");
+        f.deleteOnExit();
+        java.io.FileOutputStream out = new java.io.FileOutputStream(f);
+        out.write(new byte[]{'a','b','c','d','e','f','g','h','i','j'});
+        out.close();
+        final java.util.List<Float> progress = new java.util.ArrayList<>();
+        final java.util.List<Long> etas = new java.util.ArrayList<>();
+        LoaderClient xmt = new LoaderClient(testConnection, mcs, dcs);
+        xmt.setStreamBufferSize(8);
+        xmt.doLoad(hereID,farID, 45, 0, f, new LoaderStatusReporter() {
+            public void onProgress(float percent) {
+                progress.add(percent);
+            }
+            public void onDone(int errorCode, String errorString) {
+            }
+            @Override
+            public void onRate(double bytesPerSecond, long etaMsec) {
+                Assert.assertTrue(bytesPerSecond > 0);
+                etas.add(etaMsec);
+            }
+        });
+        startLoad(xmt, 0x200030000000L);
+        messagesReceived.clear();
+        dcs.put(new DatagramAcknowledgedMessage(farID,hereID), null);
+        Assert.assertEquals(new StreamInitiateRequestMessage(hereID, farID, 8, (byte)4, (byte)0), messagesReceived.get(0));
+        messagesReceived.clear();
+        xmt.put(new StreamInitiateReplyMessage(farID,hereID,6,(byte)4,(byte)6), null);
+        Assert.assertEquals(new StreamDataSendMessage(hereID,farID,(byte)6,new int[]{'a','b','c','d','e','f'}), messagesReceived.get(0));
+        messagesReceived.clear();
+        xmt.put(new StreamDataProceedMessage(farID,hereID,(byte)4,(byte)6),null);
+        Assert.assertEquals(3, messagesReceived.size());
+        Assert.assertEquals(java.util.Arrays.asList(60.0F, 100.0F), progress);
+        Assert.assertEquals(2, etas.size());
+        Assert.assertEquals(0, (long) etas.get(1));
+        xmt.dispose();
+    }
+
     private void delay(int msec) {
         long start = System.currentTimeMillis();
         while (true) {
@@ -0,0 +1,116 @@
+package org.openlcb;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the shared event IDs and event reports. The allocation they save is measured by
+ * FlyweightBenchmark in benchmark/.
+ */
+public class MessageFlyweightsTest {
+    NodeID source = new NodeID(new byte[]{5, 1, 1, 1, 3, 1});
+    NodeID other = new NodeID(new byte[]{5, 1, 1, 1, 3, 2});
+    EventID event = new EventID(new byte[]{5, 1, 1, 1, 3, 1, 0, (byte) 0x80});
+
+    @Test
+    public void testEventID() {
+        MessageFlyweights fw = new MessageFlyweights();
+        EventID e1 = fw.getEventID(event.toLong());
+        Assert.assertEquals(event, e1);
+        Assert.assertSame(e1, fw.getEventID(event.toLong()));
+        Assert.assertEquals(1, fw.size());
+        Assert.assertEquals(1, fw.getHits());
+        Assert.assertEquals(1, fw.getMisses());
+    }
+
+    @Test
+    public void testKnownEvent() {
+        MessageFlyweights fw = new MessageFlyweights();
+        fw.addKnownEvent(event);
+        Assert.assertSame(event, fw.getEventID(event.toLong()));
+        Assert.assertEquals(0, fw.getMisses());
+    }
+
+    @Test
+    public void testEventReport() {
+        MessageFlyweights fw = new MessageFlyweights();
+        ProducerConsumerEventReportMessage m1 = fw.getEventReport(source, event.toLong());
+        Assert.assertEquals(new ProducerConsumerEventReportMessage(source, event), m1);
+        Assert.assertSame(m1, fw.getEventReport(source, event.toLong()));
+        // Another node reporting the same event gets its own message.
+        ProducerConsumerEventReportMessage m2 = fw.getEventReport(other, event.toLong());
+        Assert.assertEquals(other, m2.getSourceNodeID());
+        Assert.assertSame(m1.getEventID(), m2.getEventID());
+    }
+
+    @Test
+    public void testReportersTakeTurns() {
+        MessageFlyweights fw = new MessageFlyweights();
+        ProducerConsumerEventReportMessage m1 = fw.getEventReport(source, event.toLong());
+        ProducerConsumerEventReportMessage m2 = fw.getEventReport(other, event.toLong());
+        // A producer and a consumer echoing the event each keep their report.
+        Assert.assertSame(m1, fw.getEventReport(source, event.toLong()));
+        Assert.assertSame(m2, fw.getEventReport(other, event.toLong()));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final MessageFlyweights fw = new MessageFlyweights(64);
+        final EventID[][] seen = new EventID[4][100];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[seen.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int n = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // Every thread looks up the same keys in the same order, so whatever the
+                    // interleaving the table fills up with keys 0..63.
+                    for (int i = 0; i < 100; i++) {
+                        seen[n][i] = fw.getEventID(i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(64, fw.size());
+        for (int i = 0; i < 100; i++) {
+            for (int t = 0; t < threads.length; t++) {
+                Assert.assertEquals(i, seen[t][i].toLong());
+                if (i < 64) {
+                    Assert.assertSame(fw.getEventID(i), seen[t][i]);
+                } else {
+                    Assert.assertNotSame(fw.getEventID(i), seen[t][i]);
+                }
+            }
+        }
+        Assert.assertEquals(64, fw.size());
+    }
+
+    @Test
+    public void testFull() {
+        MessageFlyweights fw = new MessageFlyweights(2);
+        for (long i = 0; i < 5; i++) {
+            Assert.assertEquals(i, fw.getEventID(i).toLong());
+        }
+        Assert.assertEquals(2, fw.size());
+        Assert.assertSame(fw.getEventID(1), fw.getEventID(1));
+        Assert.assertNotSame(fw.getEventID(4), fw.getEventID(4));
+
+        ProducerConsumerEventReportMessage m = fw.getEventReport(source, 4);
+        Assert.assertEquals(source, m.getSourceNodeID());
+        Assert.assertEquals(4, m.getEventID().toLong());
+        Assert.assertNotSame(m, fw.getEventReport(source, 4));
+        Assert.assertEquals(2, fw.size());
+    }
+}
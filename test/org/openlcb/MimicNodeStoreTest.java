@@ -260,4 +260,127 @@ public class MimicNodeStoreTest {
         Assert.assertNull(store.findNode(nid2));
     }
 
+    @Test
+    public void testSnapshotIsStable() {
+        store.put(pim1,null);
+        Collection<MimicNodeStore.NodeMemo> list = store.getNodeMemos();
+        Assert.assertSame(list, store.getNodeMemos());
+        store.put(pim2,null);
+        // The earlier snapshot is not modified.
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(2, store.getNodeMemos().size());
+        try {
+            store.getNodeMemos().clear();
+            Assert.fail("snapshot should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        final int numThreads = 4;
+        final int numNodes = 1000;
+        final java.util.concurrent.atomic.AtomicInteger adds = new java.util.concurrent.atomic
+                .AtomicInteger();
+        store.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent e) {
+                if (e.getPropertyName().equals(MimicNodeStore.ADD_PROP_NODE)) {
+                    adds.incrementAndGet();
+                }
+            }
+        });
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < numNodes; ++i) {
+                        store.addNode(new NodeID(new byte[]{5, 1, 1, 1, (byte) (i >> 8), (byte) i}));
+                        store.getNodeMemos();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(numNodes, adds.get());
+        Assert.assertEquals(numNodes, store.getNodeMemos().size());
+    }
+
+    @Test
+    public void testBatchedNotification() {
+        final java.util.List<PropertyChangeEvent> events = new java.util.ArrayList<>();
+        store.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent e) {
+                events.add(e);
+            }
+        });
+        store.setBatchDelay(10000);
+        store.refresh();
+        events.clear();
+        for (int i = 0; i < 200; ++i) {
+            store.addNode(new NodeID(new byte[]{5, 1, 1, 1, 0, (byte) i}));
+        }
+        Assert.assertEquals(0, events.size());
+        Assert.assertEquals(200, store.getNodeMemos().size());
+        store.flushPendingNodes();
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(MimicNodeStore.ADD_PROP_NODES, events.get(0).getPropertyName());
+        Assert.assertEquals(200, ((java.util.List<?>) events.get(0).getNewValue()).size());
+
+        // Nothing left to flush.
+        store.flushPendingNodes();
+        Assert.assertEquals(1, events.size());
+
+        // Turning off batching goes back to one event per node.
+        store.setBatchDelay(0);
+        store.put(pim1, null);
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(MimicNodeStore.ADD_PROP_NODE, events.get(1).getPropertyName());
+    }
+
+    @Rule
+    public org.junit.rules.TemporaryFolder folder = new org.junit.rules.TemporaryFolder();
+
+    @Test
+    public void testIdentityStore() throws Exception {
+        NodeIdentityStore ids = NodeIdentityStore.open(folder.getRoot().toPath().resolve("n"));
+        ids.recordSnip(nid1, new byte[]{1, 'a', 'b', 'c', 0, 0, 0, 0, 1, 0, 0});
+        ids.recordPip(nid1, 0xF00000000000L);
+        store.setIdentityStore(ids);
+
+        // Cached data is available without any traffic.
+        Assert.assertEquals(1, store.getNodeMemos().size());
+        MimicNodeStore.NodeMemo memo = store.getNodeMemos().iterator().next();
+        Assert.assertNull(lastMessage);
+        Assert.assertEquals("abc", memo.getSimpleNodeIdent().getMfgName());
+        // ... and gets re-validated once.
+        Assert.assertTrue(lastMessage instanceof SimpleNodeIdentInfoRequestMessage);
+        lastMessage = null;
+        Assert.assertEquals("abc", memo.getSimpleNodeIdent().getMfgName());
+        Assert.assertNull(lastMessage);
+
+        // A partial reply keeps the re-validation going, so a lost frame is retried.
+        store.put(new SimpleNodeIdentInfoReplyMessage(nid1, src, new byte[]{1, 'x', 'y', 'z',
+                0, 0}), null);
+        Assert.assertEquals("abc", memo.getSimpleNodeIdent().getMfgName());
+        Assert.assertNotNull(memo.snipInteraction);
+        store.put(new SimpleNodeIdentInfoReplyMessage(nid1, src, new byte[]{0, 0, 1, 0, 0}),
+                null);
+        Assert.assertNull(memo.snipInteraction);
+        Assert.assertEquals("xyz", memo.getSimpleNodeIdent().getMfgName());
+        Assert.assertArrayEquals(new byte[]{1, 'x', 'y', 'z', 0, 0, 0, 0, 1, 0, 0}, ids.get(nid1)
+                .getSnipData());
+        Assert.assertTrue(ids.get(nid1).getLastSeen() > 0);
+
+        // Newly seen nodes are recorded.
+        store.put(new ProtocolIdentificationReplyMessage(nid2, src, 0x800000000000L), null);
+        Assert.assertEquals(0x800000000000L, ids.get(nid2).getProtocolIdentification());
+        ids.close();
+    }
 }
@@ -0,0 +1,131 @@
+package org.openlcb;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Tests the persistent node identity cache.
+ */
+public class NodeIdentityStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    NodeID nid1 = new NodeID(new byte[]{5, 1, 1, 1, 3, 1});
+    NodeID nid2 = new NodeID(new byte[]{5, 1, 1, 1, 3, 2});
+    byte[] snip = new byte[]{1, 'a', 0, 'b', 0, 'c', 0, 'd', 0, 1, 'e', 0, 'f', 0};
+
+    Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.getRoot().toPath().resolve("nodes.bin");
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        NodeIdentityStore s = NodeIdentityStore.open(file);
+        Assert.assertTrue(s.getEntries().isEmpty());
+        s.recordSnip(nid1, snip);
+        s.recordPip(nid1, 0x123456L);
+        s.recordSeen(nid1, 1000000L);
+        s.recordAlias(nid1, 0x5A3);
+        s.recordPip(nid2, 7);
+        s.close();
+
+        s = NodeIdentityStore.open(file);
+        Assert.assertEquals(2, s.getEntries().size());
+        NodeIdentityStore.Entry e = s.get(nid1);
+        Assert.assertArrayEquals(snip, e.getSnipData());
+        Assert.assertTrue(e.hasProtocolIdentification());
+        Assert.assertEquals(0x123456L, e.getProtocolIdentification());
+        Assert.assertEquals(1000000L, e.getLastSeen());
+        Assert.assertEquals(0x5A3, e.getAlias());
+        e = s.get(nid2);
+        Assert.assertNull(e.getSnipData());
+        Assert.assertEquals(7, e.getProtocolIdentification());
+        Assert.assertEquals(-1, e.getAlias());
+        s.close();
+    }
+
+    @Test
+    public void testUnchangedDataIsNotWritten() throws IOException {
+        NodeIdentityStore s = NodeIdentityStore.open(file);
+        s.recordSnip(nid1, snip);
+        s.recordSnip(nid1, snip.clone());
+        s.recordPip(nid1, 3);
+        s.recordPip(nid1, 3);
+        s.recordSeen(nid1, 1000000L);
+        s.recordSeen(nid1, 1000000L + NodeIdentityStore.SEEN_RESOLUTION_MSEC - 1);
+        Assert.assertEquals(3, s.getRecordCount());
+        s.recordSeen(nid1, 1000000L + NodeIdentityStore.SEEN_RESOLUTION_MSEC);
+        s.recordPip(nid1, 4);
+        Assert.assertEquals(5, s.getRecordCount());
+        s.close();
+
+        // The last record wins.
+        s = NodeIdentityStore.open(file);
+        Assert.assertEquals(4, s.get(nid1).getProtocolIdentification());
+        s.close();
+    }
+
+    @Test
+    public void testTruncatedRecordDiscarded() throws IOException {
+        NodeIdentityStore s = NodeIdentityStore.open(file);
+        s.recordPip(nid1, 3);
+        s.recordSnip(nid2, snip);
+        s.close();
+        byte[] data = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(data, data.length - 3));
+
+        s = NodeIdentityStore.open(file);
+        Assert.assertEquals(3, s.get(nid1).getProtocolIdentification());
+        Assert.assertNull(s.get(nid2));
+        // Appending after the recovered point works.
+        s.recordPip(nid2, 9);
+        s.close();
+        s = NodeIdentityStore.open(file);
+        Assert.assertEquals(9, s.get(nid2).getProtocolIdentification());
+        s.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        NodeIdentityStore s = NodeIdentityStore.open(file);
+        for (int i = 0; i < 200; ++i) {
+            s.recordPip(nid1, i);
+        }
+        s.close();
+        long before = Files.size(file);
+
+        s = NodeIdentityStore.open(file);
+        Assert.assertEquals(1, s.getRecordCount());
+        Assert.assertTrue(Files.size(file) < before);
+        Assert.assertEquals(199, s.get(nid1).getProtocolIdentification());
+        s.recordPip(nid1, 1);
+        s.close();
+        s = NodeIdentityStore.open(file);
+        Assert.assertEquals(1, s.get(nid1).getProtocolIdentification());
+        s.close();
+    }
+
+    @Test
+    public void testFlush() throws IOException {
+        NodeIdentityStore s = NodeIdentityStore.open(file);
+        long empty = Files.size(file);
+        s.recordAlias(nid1, 0x5A3);
+        s.flush();
+        Assert.assertEquals(empty + NodeIdentityStore.RECORD_HEADER_SIZE + 2, Files.size(file));
+        s.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAStore() throws IOException {
+        Files.write(file, "hello world".getBytes());
+        NodeIdentityStore.open(file);
+    }
+}
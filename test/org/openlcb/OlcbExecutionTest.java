@@ -0,0 +1,110 @@
+package org.openlcb;
+
+import org.junit.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the selection of the threads used by the library.
+ */
+public class OlcbExecutionTest {
+    @After
+    public void tearDown() {
+        OlcbExecution.setDefault(null);
+    }
+
+    @Test
+    public void testPlatformDefault() throws Exception {
+        Assert.assertSame(OlcbExecution.platform(), OlcbExecution.getDefault());
+        Assert.assertFalse(OlcbExecution.platform().isVirtual());
+        Thread t = OlcbExecution.platform().newThread("test-thread", new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, true);
+        Assert.assertEquals("test-thread", t.getName());
+        Assert.assertTrue(t.isDaemon());
+        Assert.assertEquals(Thread.State.NEW, t.getState());
+    }
+
+    @Test
+    public void testCustomFactoryUsedByPool() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        OlcbExecution e = OlcbExecution.custom(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                created.incrementAndGet();
+                return new Thread(r, "custom");
+            }
+        });
+        ThreadPoolExecutor pool = e.newThreadPool(2, 4);
+        final CountDownLatch l = new CountDownLatch(1);
+        final String[] name = new String[1];
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                name[0] = Thread.currentThread().getName();
+                l.countDown();
+            }
+        });
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals("custom", name[0]);
+        Assert.assertEquals(1, created.get());
+        Assert.assertTrue(pool.allowsCoreThreadTimeOut());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testTimerUsesDefault() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        OlcbExecution.setDefault(OlcbExecution.custom(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                created.incrementAndGet();
+                return new Thread(r);
+            }
+        }));
+        HashedWheelTimer timer = new HashedWheelTimer("OlcbExecutionTest");
+        final CountDownLatch l = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                l.countDown();
+            }
+        }, 0);
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals(1, created.get());
+        timer.stop();
+    }
+
+    @Test
+    public void testVirtual() throws Exception {
+        if (!OlcbExecution.isVirtualThreadSupported()) {
+            try {
+                OlcbExecution.virtual();
+                Assert.fail("expected exception");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+            Assume.assumeTrue("no virtual threads in this JVM", false);
+        }
+        OlcbExecution e = OlcbExecution.virtual();
+        Assert.assertTrue(e.isVirtual());
+        ThreadPoolExecutor pool = e.newThreadPool(2, 50);
+        Assert.assertEquals(0, pool.getCorePoolSize());
+        Assert.assertEquals(Integer.MAX_VALUE, pool.getMaximumPoolSize());
+        final CountDownLatch l = new CountDownLatch(1);
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                l.countDown();
+            }
+        });
+        Assert.assertTrue(l.await(2, TimeUnit.SECONDS));
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,168 @@
+package org.openlcb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests updating several simulated nodes at once.
+ */
+public class ParallelLoaderTest {
+    static final long PIP_DG_UPGRADE = 0x400030000000L;
+    static final long PIP_DG_NO_UPGRADE = 0x400020000000L;
+
+    NodeID here = new NodeID(new byte[]{1, 2, 3, 4, 5, 6});
+    List<NodeID> nodes = new ArrayList<>();
+    /// Protocols each node answers with after each freeze; the last one repeats.
+    Map<NodeID, List<Long>> protocols = new HashMap<>();
+    Map<NodeID, Integer> freezeCount = new HashMap<>();
+    /// Nodes between freeze and unfreeze.
+    Set<NodeID> frozen = new HashSet<>();
+    int maxFrozen = 0;
+    int bytesWritten = 0;
+    ExecutorService bus = Executors.newSingleThreadExecutor();
+    OlcbInterface iface;
+
+    /// Answers as the target nodes would, from another thread.
+    Connection output = new AbstractConnection() {
+        @Override
+        public void put(final Message msg, Connection sender) {
+            bus.execute(new Runnable() {
+                @Override
+                public void run() {
+                    answer(msg);
+                }
+            });
+        }
+    };
+
+    void answer(Message msg) {
+        if (!(msg instanceof AddressedMessage)) return;
+        NodeID node = ((AddressedMessage) msg).getDestNodeID();
+        if (!protocols.containsKey(node)) return;
+        Connection in = iface.getInputConnection();
+        if (msg instanceof DatagramMessage) {
+            int[] d = ((DatagramMessage) msg).getData();
+            in.put(new DatagramAcknowledgedMessage(node, here), null);
+            if (d[1] == 0xA1) {
+                freezeCount.put(node, freezeCount.containsKey(node) ? freezeCount.get(node) + 1 :
+                        1);
+                frozen.add(node);
+                maxFrozen = Math.max(maxFrozen, frozen.size());
+                in.put(new InitializationCompleteMessage(node), null);
+            } else if (d[1] == 0xA0) {
+                frozen.remove(node);
+            } else if (d[1] == 0x00) {
+                bytesWritten += d.length - 7;
+            }
+        } else if (msg instanceof ProtocolIdentificationRequestMessage) {
+            List<Long> p = protocols.get(node);
+            int n = freezeCount.containsKey(node) ? freezeCount.get(node) : 1;
+            in.put(new ProtocolIdentificationReplyMessage(node, here, p.get(Math.min(n, p.size())
+                    - 1)), null);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        iface = new OlcbInterface(here, output, OlcbExecution.getDefault().newThreadPool(4, 4));
+        for (int i = 0; i < 5; i++) {
+            NodeID n = new NodeID(new byte[]{5, 1, 1, 1, 9, (byte) i});
+            nodes.add(n);
+            protocols.put(n, Arrays.asList(PIP_DG_UPGRADE));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        iface.dispose();
+        bus.shutdownNow();
+    }
+
+    Map<NodeID, ParallelLoader.NodeResult> run(ParallelLoader loader, byte[] image) throws
+            Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Map<NodeID, ParallelLoader.NodeResult> results = new HashMap<>();
+        loader.start(nodes, 0xEF, 0, image, new ParallelLoader.Listener() {
+            @Override
+            public void onAllDone(Map<NodeID, ParallelLoader.NodeResult> r) {
+                results.putAll(r);
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(20, TimeUnit.SECONDS));
+        loader.dispose();
+        return results;
+    }
+
+    @Test
+    public void testAllNodes() throws Exception {
+        ParallelLoader loader = new ParallelLoader(iface);
+        loader.setMaxConcurrent(2);
+        Map<NodeID, ParallelLoader.NodeResult> results = run(loader, new byte[100]);
+        Assert.assertEquals(5, results.size());
+        for (ParallelLoader.NodeResult r : results.values()) {
+            Assert.assertEquals(r.toString(), ParallelLoader.Status.SUCCEEDED, r.getStatus());
+            Assert.assertEquals(1, r.getAttempts());
+        }
+        Assert.assertEquals(500, bytesWritten);
+        Assert.assertTrue(maxFrozen <= 2);
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        NodeID flaky = nodes.get(1);
+        NodeID broken = nodes.get(3);
+        protocols.put(flaky, Arrays.asList(PIP_DG_NO_UPGRADE, PIP_DG_UPGRADE));
+        protocols.put(broken, Arrays.asList(PIP_DG_NO_UPGRADE));
+        ParallelLoader loader = new ParallelLoader(iface);
+        loader.setMaxAttempts(2);
+        loader.setRetryDelayMsec(10);
+        Map<NodeID, ParallelLoader.NodeResult> results = run(loader, new byte[10]);
+        Assert.assertEquals(ParallelLoader.Status.SUCCEEDED, results.get(flaky).getStatus());
+        Assert.assertEquals(2, results.get(flaky).getAttempts());
+        Assert.assertEquals(ParallelLoader.Status.FAILED, results.get(broken).getStatus());
+        Assert.assertEquals(2, results.get(broken).getAttempts());
+        Assert.assertEquals("Target not in Upgrade state.", results.get(broken).getErrorString());
+        Assert.assertEquals(ParallelLoader.Status.SUCCEEDED, results.get(nodes.get(0))
+                .getStatus());
+        Assert.assertEquals(1, results.get(nodes.get(0)).getAttempts());
+    }
+
+    @Test
+    public void testNoNodes() throws Exception {
+        ParallelLoader loader = new ParallelLoader(iface);
+        nodes.clear();
+        Map<NodeID, ParallelLoader.NodeResult> results = run(loader, new byte[10]);
+        Assert.assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void testStartAfterDispose() throws Exception {
+        ParallelLoader loader = new ParallelLoader(iface);
+        loader.dispose();
+        try {
+            loader.start(nodes, 0xEF, 0, new byte[10], new ParallelLoader.Listener() {
+                @Override
+                public void onAllDone(Map<NodeID, ParallelLoader.NodeResult> r) {
+                }
+            });
+            Assert.fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -75,6 +75,52 @@ public class SimpleNodeIdentTest  {
         Assert.assertTrue("complete", id.contentComplete());
     }
 
+    @Test
+    public void testRequestKeepsContent() {
+        SimpleNodeIdent id = new SimpleNodeIdent(nid1, nid2,
+                new byte[]{1,'a','b',0,'1',0,'2',0,'A',0,1,'u','s',0,'3','4',0});
+        final int[] requests = new int[1];
+        id.start(new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                requests[0]++;
+            }
+        });
+        Assert.assertEquals(1, requests[0]);
+        Assert.assertTrue("complete", id.contentComplete());
+        Assert.assertEquals("us", id.getUserName());
+
+        // A partial reply does not replace the content yet.
+        id.addMsg(new SimpleNodeIdentInfoReplyMessage(nid2, nid1,
+                new byte[]{1,'c','d',0,'1',0,'2',0}));
+        Assert.assertEquals("ab", id.getMfgName());
+        Assert.assertTrue("complete", id.contentComplete());
+
+        id.addMsg(new SimpleNodeIdentInfoReplyMessage(nid2, nid1,
+                new byte[]{'A',0,1,'v','w',0,0}));
+        Assert.assertEquals("cd", id.getMfgName());
+        Assert.assertEquals("vw", id.getUserName());
+        Assert.assertTrue("complete", id.contentComplete());
+    }
+
+    @Test
+    public void testOverlongReplyIgnored() {
+        SimpleNodeIdent id = new SimpleNodeIdent(nid1, nid2,
+                new byte[]{1,'a','b',0,'1',0,'2',0,'A',0,1,'u','s',0,'3','4',0});
+        id.start(new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+            }
+        });
+        // A garbled reply without the terminating zeros, overflowing the buffer.
+        byte[] garbage = new byte[]{1,'x','x','x','x','x','x','x','x','x','x','x'};
+        for (int i = 0; i < 22; i++) {
+            id.addMsg(new SimpleNodeIdentInfoReplyMessage(nid2, nid1, garbage));
+        }
+        Assert.assertEquals("ab", id.getMfgName());
+        Assert.assertEquals("us", id.getUserName());
+    }
+
     @Test   
     public void testOverrunMessage() {
         SimpleNodeIdent id = new SimpleNodeIdent(
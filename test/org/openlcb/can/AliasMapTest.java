@@ -52,4 +52,46 @@ public class AliasMapTest  {
         Assert.assertEquals("get NodeID", new NodeID(), map.getNodeID(0));
     }
     
+    @Test
+    public void testAliasReused() {
+        AliasMap map = new AliasMap();
+        NodeID a = new NodeID(new byte[]{0,1,2,3,4,5});
+        NodeID b = new NodeID(new byte[]{0,1,2,3,4,6});
+        map.insert(0x123, a);
+        // Another node took the alias.
+        map.insert(0x123, b);
+        Assert.assertEquals(b, map.getNodeID(0x123));
+        Assert.assertEquals(-1, map.getAlias(a));
+        // The node moved to a new alias.
+        map.insert(0x456, b);
+        Assert.assertEquals(0x456, map.getAlias(b));
+        Assert.assertEquals(new NodeID(), map.getNodeID(0x123));
+    }
+
+    @Test
+    public void testRestoreProvisional() {
+        AliasMap map = new AliasMap();
+        NodeID a = new NodeID(new byte[]{0,1,2,3,4,5});
+        NodeID b = new NodeID(new byte[]{0,1,2,3,4,6});
+        map.insert(0x123, a);
+        java.util.Map<NodeID, Integer> snapshot = map.snapshot();
+        snapshot.put(b, 0x456);
+
+        AliasMap restored = new AliasMap();
+        restored.restore(snapshot);
+        Assert.assertEquals(0x123, restored.getAlias(a));
+        Assert.assertEquals(b, restored.getNodeID(0x456));
+        Assert.assertTrue(restored.isProvisional(0x123));
+
+        // A frame from the alias confirms it.
+        OpenLcbCanFrame f = new OpenLcbCanFrame(0x123);
+        f.setInitializationComplete(0x123, a);
+        restored.processFrame(f);
+        Assert.assertFalse(restored.isProvisional(0x123));
+
+        Assert.assertEquals(1, restored.dropProvisional());
+        Assert.assertEquals(0x123, restored.getAlias(a));
+        Assert.assertEquals(-1, restored.getAlias(b));
+    }
+
 }
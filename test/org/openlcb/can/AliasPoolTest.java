@@ -0,0 +1,136 @@
+package org.openlcb.can;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.EventID;
+import org.openlcb.HashedWheelTimer;
+import org.openlcb.NodeID;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests reserving spare aliases in the background.
+ */
+public class AliasPoolTest {
+    NodeID nodeId = new NodeID(new byte[]{2, 3, 4, 5, 6, 7});
+    HashedWheelTimer timer = new HashedWheelTimer("test timer");
+    List<OpenLcbCanFrame> frames = new ArrayList<>();
+    CanFrameListener output = new CanFrameListener() {
+        @Override
+        public void send(CanFrame frame) {
+            synchronized (frames) {
+                frames.add(new OpenLcbCanFrame(frame));
+            }
+        }
+    };
+    AliasCache cache = new AliasCache();
+    AliasPool pool = new AliasPool(nodeId, output, timer, cache);
+
+    @After
+    public void tearDown() {
+        pool.dispose();
+        timer.stop();
+    }
+
+    void waitForReserved(int count) throws InterruptedException {
+        for (int i = 0; i < 200 && pool.getReserved().size() < count; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, pool.getReserved().size());
+    }
+
+    int countRim() {
+        int n = 0;
+        synchronized (frames) {
+            for (OpenLcbCanFrame f : frames) {
+                if (f.isRIM()) ++n;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void testFill() throws Exception {
+        int own = new NIDa(nodeId).getNIDa();
+        pool.exclude(own);
+        pool.fill(3);
+        waitForReserved(3);
+        Assert.assertEquals(0, pool.getPendingCount());
+        Assert.assertEquals(3, countRim());
+        List<Integer> spares = pool.getReserved();
+        Assert.assertFalse(spares.contains(own));
+        Assert.assertEquals(3, new java.util.HashSet<>(spares).size());
+        Assert.assertEquals(spares, cache.getSpares(nodeId));
+
+        int a = pool.take();
+        Assert.assertEquals((int) spares.get(0), a);
+        Assert.assertFalse(pool.getReserved().contains(a));
+        // A replacement is reserved.
+        waitForReserved(3);
+        Assert.assertFalse(pool.getReserved().contains(a));
+    }
+
+    @Test
+    public void testDefend() throws Exception {
+        pool.fill(1);
+        waitForReserved(1);
+        int spare = pool.getReserved().get(0);
+        int rims = countRim();
+
+        OpenLcbCanFrame cid = new OpenLcbCanFrame(spare);
+        cid.setCIM(0, 0x111, spare);
+        pool.send(cid);
+        Assert.assertEquals(rims + 1, countRim());
+        Assert.assertEquals(1, pool.getReserved().size());
+
+        OpenLcbCanFrame other = new OpenLcbCanFrame(spare);
+        other.setPCEventReport(new EventID(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+        pool.send(other);
+        Assert.assertFalse(pool.getReserved().contains(spare));
+        waitForReserved(1);
+        Assert.assertNotEquals(spare, (int) pool.getReserved().get(0));
+    }
+
+    @Test
+    public void testRestoreFromCache() throws Exception {
+        List<Integer> spares = new ArrayList<>();
+        spares.add(0x555);
+        cache.setSpares(nodeId, spares);
+        AliasPool p = new AliasPool(nodeId, output, timer, cache);
+        // Not usable before it was checked on this connection.
+        Assert.assertTrue(p.getReserved().isEmpty());
+        Assert.assertEquals(-1, p.take());
+        p.fill(1);
+        for (int i = 0; i < 200 && p.getReserved().isEmpty(); ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(spares, p.getReserved());
+        boolean checked = false;
+        synchronized (frames) {
+            for (OpenLcbCanFrame f : frames) {
+                if (f.isCIM() && f.getSourceAlias() == 0x555) checked = true;
+            }
+        }
+        Assert.assertTrue(checked);
+        Assert.assertEquals(0x555, p.take());
+        p.dispose();
+    }
+
+    @Test
+    public void testRecheck() throws Exception {
+        pool.fill(1);
+        waitForReserved(1);
+        int spare = pool.getReserved().get(0);
+        pool.recheck();
+        Assert.assertTrue(pool.getReserved().isEmpty());
+        Assert.assertEquals(-1, pool.take());
+        // Another node took the spare while we were away.
+        OpenLcbCanFrame other = new OpenLcbCanFrame(spare);
+        other.setPCEventReport(new EventID(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+        pool.send(other);
+        waitForReserved(1);
+        Assert.assertNotEquals(spare, (int) pool.getReserved().get(0));
+    }
+}
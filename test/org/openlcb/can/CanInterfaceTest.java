@@ -8,6 +8,11 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.openlcb.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  *
  * @author Paul Bender Copyright (C) 2017	
@@ -22,6 +27,186 @@ public class CanInterfaceTest {
         t.dispose();
     }
 
+    static class FrameRecorder implements CanFrameListener {
+        final List<OpenLcbCanFrame> frames = new ArrayList<>();
+
+        @Override
+        public synchronized void send(CanFrame frame) {
+            frames.add(new OpenLcbCanFrame(frame));
+        }
+
+        synchronized int count(int variableField) {
+            int n = 0;
+            for (OpenLcbCanFrame f : frames) {
+                if (f.isFrameTypeCAN() && f.getVariableField() == variableField) ++n;
+            }
+            return n;
+        }
+
+        synchronized List<OpenLcbCanFrame> get() {
+            return new ArrayList<>(frames);
+        }
+    }
+
+    static void waitForStart(CanInterface iface) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        iface.addStartListener(new Connection.ConnectionListener() {
+            @Override
+            public void connectionActive(Connection c) {
+                started.countDown();
+            }
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFastStart() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{1,2,3,4,5,7});
+        AliasCache cache = new AliasCache();
+        cache.setSpareCount(0);
+        FrameRecorder bus = new FrameRecorder();
+
+        // First connection: full reservation.
+        CanInterface first = new CanInterface(nodeID, bus, cache);
+        waitForStart(first);
+        OpenLcbCanFrame remoteInit = new OpenLcbCanFrame(0x777);
+        remoteInit.setInitializationComplete(0x777, remote);
+        first.frameInput().send(remoteInit);
+        int alias = cache.getLocalAlias(nodeID);
+        Assert.assertTrue(alias > 0);
+        Assert.assertEquals(Integer.valueOf(0x777), cache.getRemoteAliases().get(remote));
+        first.dispose();
+
+        // Reconnect: the old alias is taken over without waiting.
+        FrameRecorder bus2 = new FrameRecorder();
+        long start = System.nanoTime();
+        CanInterface second = new CanInterface(nodeID, bus2, cache);
+        waitForStart(second);
+        Assert.assertTrue(System.nanoTime() - start < 100000000L);
+        Assert.assertEquals(1, bus2.count(OpenLcbCanFrame.RIM_VAR_FIELD));
+        Assert.assertEquals(1, bus2.count(OpenLcbCanFrame.AMD_VAR_FIELD));
+        for (OpenLcbCanFrame f : bus2.get()) {
+            Assert.assertEquals(alias, f.getSourceAlias());
+        }
+
+        // The restored remote alias is usable right away.
+        second.getInterface().getOutputConnection().put(new SimpleNodeIdentInfoRequestMessage
+                (nodeID, remote), null);
+        second.getInterface().flushSendQueue();
+        OpenLcbCanFrame last = bus2.get().get(bus2.get().size() - 1);
+        Assert.assertEquals(0x777, ((last.getElement(0) & 0xF) << 8) | last.getElement(1));
+        second.dispose();
+    }
+
+    @Test
+    public void testAliasConflictUsesSpare() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        AliasCache cache = new AliasCache();
+        cache.setSpareCount(1);
+        FrameRecorder bus = new FrameRecorder();
+        CanInterface t = new CanInterface(nodeID, bus, cache);
+        waitForStart(t);
+        for (int i = 0; i < 200 && cache.getSpares(nodeID).isEmpty(); ++i) {
+            Thread.sleep(10);
+        }
+        int spare = cache.getSpares(nodeID).get(0);
+        int alias = cache.getLocalAlias(nodeID);
+
+        OpenLcbCanFrame other = new OpenLcbCanFrame(alias);
+        other.setPCEventReport(new EventID(new byte[]{1,2,3,4,5,6,7,8}));
+        t.frameInput().send(other);
+        Assert.assertEquals(spare, cache.getLocalAlias(nodeID));
+        List<OpenLcbCanFrame> frames = bus.get();
+        OpenLcbCanFrame amd = frames.get(frames.size() - 1);
+        Assert.assertTrue(amd.isAliasMapDefinition());
+        Assert.assertEquals(spare, amd.getSourceAlias());
+        // The lost alias is released first.
+        OpenLcbCanFrame amr = frames.get(frames.size() - 2);
+        Assert.assertEquals(OpenLcbCanFrame.AMR_VAR_FIELD, amr.getVariableField());
+        Assert.assertEquals(alias, amr.getSourceAlias());
+        Assert.assertEquals(nodeID, amr.getNodeID());
+        t.dispose();
+    }
+
+    @Test
+    public void testReannounceChecksAlias() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        AliasCache cache = new AliasCache();
+        cache.setSpareCount(0);
+        FrameRecorder bus = new FrameRecorder();
+        CanInterface t = new CanInterface(nodeID, bus, cache);
+        waitForStart(t);
+        int alias = cache.getLocalAlias(nodeID);
+
+        FrameRecorder direct = new FrameRecorder();
+        final CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        t.reannounce(direct, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        // Another node took the alias during the outage.
+        OpenLcbCanFrame other = new OpenLcbCanFrame(alias);
+        other.setRIM(alias);
+        t.frameInput().send(other);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= 200000000L);
+
+        int newAlias = cache.getLocalAlias(nodeID);
+        Assert.assertNotEquals(alias, newAlias);
+        List<OpenLcbCanFrame> frames = direct.get();
+        Assert.assertEquals(7, frames.size());
+        for (int i = 0; i < 4; ++i) {
+            Assert.assertTrue(frames.get(i).isCIM());
+        }
+        Assert.assertTrue(frames.get(4).isRIM());
+        Assert.assertTrue(frames.get(5).isAliasMapDefinition());
+        Assert.assertTrue(frames.get(6).isInitializationComplete());
+        for (OpenLcbCanFrame f : frames) {
+            Assert.assertEquals(newAlias, f.getSourceAlias());
+        }
+        t.dispose();
+    }
+
+    @Test
+    public void testMessagesHeldWhileReserving() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        AliasCache cache = new AliasCache();
+        cache.setSpareCount(0);
+        FrameRecorder bus = new FrameRecorder();
+        CanInterface t = new CanInterface(nodeID, bus, cache);
+        waitForStart(t);
+        int alias = cache.getLocalAlias(nodeID);
+
+        // No spare: a new alias is reserved, which takes a while.
+        OpenLcbCanFrame other = new OpenLcbCanFrame(alias);
+        other.setPCEventReport(new EventID(new byte[]{1,2,3,4,5,6,7,8}));
+        t.frameInput().send(other);
+        int before = bus.get().size();
+        t.getInterface().getOutputConnection().put(new ProducerConsumerEventReportMessage(
+                nodeID, new EventID(new byte[]{1,2,3,4,5,6,7,9})), null);
+        t.getInterface().flushSendQueue();
+        for (OpenLcbCanFrame f : bus.get().subList(before, bus.get().size())) {
+            Assert.assertFalse(f.isFrameTypeOpenLcb());
+        }
+
+        OpenLcbCanFrame report = null;
+        for (int i = 0; i < 200 && report == null; ++i) {
+            Thread.sleep(10);
+            for (OpenLcbCanFrame f : bus.get().subList(before, bus.get().size())) {
+                if (f.isFrameTypeOpenLcb()) report = f;
+            }
+        }
+        Assert.assertNotNull(report);
+        int newAlias = cache.getLocalAlias(nodeID);
+        Assert.assertNotEquals(alias, newAlias);
+        Assert.assertEquals(newAlias, report.getSourceAlias());
+        t.dispose();
+    }
+
     // The minimal setup for log4J
     @Before
     public void setUp() {
@@ -40,6 +40,21 @@ public class MessageBuilderTest  {
         Assert.assertEquals("header", toHexString(0x19100123), toHexString(f0.getHeader()));
         compareContent(source.getContents(), f0);
     }
+
+    @Test
+    public void testVerifyNodeIDNumberMessageAddressed() {
+        NodeID dest = new NodeID(new byte[]{6, 5, 4, 3, 2, 1});
+        Message m = new VerifyNodeIDNumberMessage(source, dest, null);
+        MessageBuilder b = new MessageBuilder(map);
+
+        List<OpenLcbCanFrame> list = b.processMessage(m);
+
+        // sent as global, carrying the destination
+        Assert.assertEquals("count", 1, list.size());
+        CanFrame f0 = list.get(0);
+        Assert.assertEquals("header", toHexString(0x19490123), toHexString(f0.getHeader()));
+        compareContent(dest.getContents(), f0);
+    }
     @Test	
     public void testVerifyNodeIDNumberMessageEmpty() {
         
@@ -136,6 +151,27 @@ public class MessageBuilderTest  {
         compareContent(event.getContents(), f0);
     }
 
+    @Test
+    public void testProducerConsumerEventReportFlyweights() {
+        MessageBuilder b = new MessageBuilder(map);
+        b.setFlyweights(new MessageFlyweights());
+        OpenLcbCanFrame frame = b.processMessage(new ProducerConsumerEventReportMessage(source,
+                event)).get(0);
+
+        List<Message> l1 = b.processFrame(frame);
+        List<Message> l2 = b.processFrame(frame);
+        Assert.assertEquals(1, l1.size());
+        Assert.assertEquals(new ProducerConsumerEventReportMessage(source, event), l1.get(0));
+        Assert.assertSame(l1.get(0), l2.get(0));
+
+        // Other event messages share the event ID.
+        OpenLcbCanFrame identify = b.processMessage(new IdentifyConsumersMessage(source, event))
+                .get(0);
+        IdentifyConsumersMessage m = (IdentifyConsumersMessage) b.processFrame(identify).get(0);
+        Assert.assertSame(((ProducerConsumerEventReportMessage) l1.get(0)).getEventID(), m
+                .getEventID());
+    }
+
     @Test	
     public void testTractionControlRequestMessageSingle() {
         Message m = new TractionControlRequestMessage(source, destination, new byte[]{(byte)0xCC,
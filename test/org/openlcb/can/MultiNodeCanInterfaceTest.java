@@ -0,0 +1,277 @@
+package org.openlcb.can;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.EventID;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.SimpleNodeIdentInfoRequestMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests hosting many nodes on one CAN interface.
+ */
+public class MultiNodeCanInterfaceTest {
+    FrameRecorder bus = new FrameRecorder();
+    MultiNodeCanInterface iface = new MultiNodeCanInterface(bus);
+    NodeID remote = new NodeID(new byte[]{5, 1, 1, 1, 3, 0x33});
+    int remoteAlias = 0x333;
+    AliasMap remoteMap = new AliasMap();
+    MessageBuilder remoteBuilder = new MessageBuilder(remoteMap);
+
+    static class FrameRecorder implements CanFrameListener {
+        final List<OpenLcbCanFrame> frames = new ArrayList<>();
+
+        @Override
+        public synchronized void send(CanFrame frame) {
+            frames.add(new OpenLcbCanFrame(frame));
+        }
+
+        synchronized int count(int variableField) {
+            int n = 0;
+            for (OpenLcbCanFrame f : frames) {
+                if (f.isFrameTypeCAN() && f.getVariableField() == variableField) ++n;
+            }
+            return n;
+        }
+
+        synchronized int countMti(int mti) {
+            int n = 0;
+            for (OpenLcbCanFrame f : frames) {
+                if (f.isOpenLcbMTI(mti)) ++n;
+            }
+            return n;
+        }
+
+        synchronized void clear() {
+            frames.clear();
+        }
+    }
+
+    static class Recorder extends AbstractConnection {
+        final List<Message> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void put(Message msg, Connection sender) {
+            messages.add(msg);
+        }
+
+        synchronized int count(Class<?> type) {
+            int n = 0;
+            for (Message m : messages) {
+                if (type.isInstance(m)) ++n;
+            }
+            return n;
+        }
+    }
+
+    static NodeID node(int i) {
+        return new NodeID(new byte[]{5, 1, 1, 1, 0x22, (byte) i});
+    }
+
+    void waitForInit(MultiNodeCanInterface.VirtualNode... nodes) throws InterruptedException {
+        for (MultiNodeCanInterface.VirtualNode n : nodes) {
+            for (int i = 0; i < 200 && !n.isInitialized(); ++i) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(n.isInitialized());
+            remoteMap.insert(n.getAlias(), n.getNodeId());
+        }
+        remoteMap.insert(remoteAlias, remote);
+    }
+
+    /// Sends a message from the remote node to the interface as CAN frames.
+    void fromRemote(Message m) {
+        for (OpenLcbCanFrame f : remoteBuilder.processMessage(m)) {
+            iface.frameInput().send(f);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        iface.dispose();
+    }
+
+    @Test
+    public void testParallelReservation() throws Exception {
+        MultiNodeCanInterface.VirtualNode[] nodes = new MultiNodeCanInterface.VirtualNode[30];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < nodes.length; ++i) {
+            nodes[i] = iface.addNode(node(i));
+        }
+        waitForInit(nodes);
+        // One reservation takes about 300 msec; thirty in a row would take 9 seconds.
+        Assert.assertTrue(System.currentTimeMillis() - start < 3000);
+        Set<Integer> aliases = new HashSet<>();
+        for (MultiNodeCanInterface.VirtualNode n : nodes) {
+            aliases.add(n.getAlias());
+        }
+        Assert.assertEquals(nodes.length, aliases.size());
+        Assert.assertEquals(nodes.length, iface.getNodeCount());
+        Assert.assertEquals(nodes.length, bus.count(OpenLcbCanFrame.RIM_VAR_FIELD));
+        Assert.assertEquals(nodes.length, bus.count(OpenLcbCanFrame.AMD_VAR_FIELD));
+        Assert.assertEquals(1, bus.count(OpenLcbCanFrame.AME_VAR_FIELD));
+        for (int i = 0; i < 100 && bus.countMti(org.openlcb.MessageTypeIdentifier
+                .InitializationComplete.mti()) < nodes.length; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(nodes.length, bus.countMti(org.openlcb.MessageTypeIdentifier
+                .InitializationComplete.mti()));
+    }
+
+    @Test
+    public void testRoutingFromBus() throws Exception {
+        MultiNodeCanInterface.VirtualNode a = iface.addNode(node(1));
+        MultiNodeCanInterface.VirtualNode b = iface.addNode(node(2));
+        waitForInit(a, b);
+        Recorder ra = new Recorder();
+        Recorder rb = new Recorder();
+        a.registerMessageListener(ra);
+        b.registerMessageListener(rb);
+
+        fromRemote(new SimpleNodeIdentInfoRequestMessage(remote, b.getNodeId()));
+        Assert.assertEquals(0, ra.count(SimpleNodeIdentInfoRequestMessage.class));
+        Assert.assertEquals(1, rb.count(SimpleNodeIdentInfoRequestMessage.class));
+
+        fromRemote(new ProducerConsumerEventReportMessage(remote, new EventID(new byte[]{1, 2,
+                3, 4, 5, 6, 7, 8})));
+        Assert.assertEquals(1, ra.count(ProducerConsumerEventReportMessage.class));
+        Assert.assertEquals(1, rb.count(ProducerConsumerEventReportMessage.class));
+
+        bus.clear();
+        fromRemote(new VerifyNodeIDNumberMessage(remote));
+        Assert.assertEquals(2, bus.countMti(org.openlcb.MessageTypeIdentifier.VerifiedNodeId
+                .mti()));
+
+        bus.clear();
+        OpenLcbCanFrame ame = new OpenLcbCanFrame(remoteAlias);
+        ame.setAME(remoteAlias, null);
+        iface.frameInput().send(ame);
+        Assert.assertEquals(2, bus.count(OpenLcbCanFrame.AMD_VAR_FIELD));
+    }
+
+    @Test
+    public void testLocalTraffic() throws Exception {
+        MultiNodeCanInterface.VirtualNode a = iface.addNode(node(1));
+        MultiNodeCanInterface.VirtualNode b = iface.addNode(node(2));
+        waitForInit(a, b);
+        Recorder rb = new Recorder();
+        b.registerMessageListener(rb);
+        bus.clear();
+
+        a.getOutputConnection().put(new SimpleNodeIdentInfoRequestMessage(a.getNodeId(), b
+                .getNodeId()), null);
+        Assert.assertEquals(1, rb.count(SimpleNodeIdentInfoRequestMessage.class));
+        Assert.assertEquals(0, bus.frames.size());
+
+        a.getOutputConnection().put(new ProducerConsumerEventReportMessage(a.getNodeId(), new
+                EventID(new byte[]{1, 2, 3, 4, 5, 6, 7, 8})), null);
+        Assert.assertEquals(1, rb.count(ProducerConsumerEventReportMessage.class));
+        Assert.assertEquals(1, bus.frames.size());
+    }
+
+    @Test
+    public void testHeldBackUntilInitialized() throws Exception {
+        MultiNodeCanInterface.VirtualNode a = iface.addNode(node(1));
+        a.getOutputConnection().put(new ProducerConsumerEventReportMessage(a.getNodeId(), new
+                EventID(new byte[]{1, 2, 3, 4, 5, 6, 7, 8})), null);
+        Assert.assertEquals(0, bus.countMti(org.openlcb.MessageTypeIdentifier
+                .ProducerConsumerEventReport.mti()));
+        waitForInit(a);
+        List<Message> sent = new ArrayList<>();
+        synchronized (bus) {
+            for (OpenLcbCanFrame f : bus.frames) {
+                List<Message> l = new MessageBuilder(remoteMap).processFrame(f);
+                if (l == null) continue;
+                for (Message m : l) {
+                    // Skips the query for the other nodes' aliases.
+                    if (!(m instanceof VerifyNodeIDNumberMessage)) sent.add(m);
+                }
+            }
+        }
+        Assert.assertEquals(2, sent.size());
+        Assert.assertTrue(sent.get(0) instanceof InitializationCompleteMessage);
+        Assert.assertTrue(sent.get(1) instanceof ProducerConsumerEventReportMessage);
+    }
+
+    @Test
+    public void testReceivedWhileInitializing() throws Exception {
+        remoteMap.insert(remoteAlias, remote);
+        final MultiNodeCanInterface[] other = new MultiNodeCanInterface[1];
+        // Answers the Initialization Complete of the node right away, before it is done.
+        other[0] = new MultiNodeCanInterface(new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                OpenLcbCanFrame f = new OpenLcbCanFrame(frame);
+                if (!f.isOpenLcbMTI(org.openlcb.MessageTypeIdentifier.InitializationComplete
+                        .mti())) return;
+                for (OpenLcbCanFrame r : remoteBuilder.processMessage(new
+                        ProducerConsumerEventReportMessage(remote, new EventID(new byte[]{1, 2,
+                        3, 4, 5, 6, 7, 8})))) {
+                    other[0].frameInput().send(r);
+                }
+            }
+        });
+        try {
+            MultiNodeCanInterface.VirtualNode a = other[0].addNode(node(1));
+            Recorder ra = new Recorder();
+            a.registerMessageListener(ra);
+            for (int i = 0; i < 200 && !a.isInitialized(); ++i) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(a.isInitialized());
+            Assert.assertEquals(1, ra.count(ProducerConsumerEventReportMessage.class));
+        } finally {
+            other[0].dispose();
+        }
+    }
+
+    @Test
+    public void testRemoveNode() throws Exception {
+        MultiNodeCanInterface.VirtualNode a = iface.addNode(node(1));
+        waitForInit(a);
+        int alias = a.getAlias();
+        iface.removeNode(a);
+        Assert.assertEquals(0, iface.getNodeCount());
+        Assert.assertEquals(1, bus.count(OpenLcbCanFrame.AMR_VAR_FIELD));
+        Assert.assertFalse(a.isInitialized());
+
+        // A CID for the old alias is no longer answered.
+        bus.clear();
+        OpenLcbCanFrame cid = new OpenLcbCanFrame(alias);
+        cid.setCIM(0, 0x123, alias);
+        iface.frameInput().send(cid);
+        Assert.assertEquals(0, bus.frames.size());
+    }
+
+    @Test
+    public void testAliasConflict() throws Exception {
+        MultiNodeCanInterface.VirtualNode a = iface.addNode(node(1));
+        waitForInit(a);
+        int alias = a.getAlias();
+        bus.clear();
+        // Reservation attempt for our alias is refused.
+        OpenLcbCanFrame cid = new OpenLcbCanFrame(alias);
+        cid.setCIM(0, 0x123, alias);
+        iface.frameInput().send(cid);
+        Assert.assertEquals(1, bus.count(OpenLcbCanFrame.RIM_VAR_FIELD));
+        // Someone using our alias makes us pick a new one.
+        OpenLcbCanFrame other = new OpenLcbCanFrame(alias);
+        other.setPCEventReport(new EventID(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+        iface.frameInput().send(other);
+        Assert.assertFalse(a.isInitialized());
+        Assert.assertEquals(1, bus.count(OpenLcbCanFrame.AMR_VAR_FIELD));
+        waitForInit(a);
+        Assert.assertNotEquals(alias, a.getAlias());
+    }
+}
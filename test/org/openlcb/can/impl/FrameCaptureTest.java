@@ -0,0 +1,117 @@
+package org.openlcb.can.impl;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests recording frames to capture files and playing them back.
+ */
+public class FrameCaptureTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> replayed = new ArrayList<>();
+    private final CanFrameListener collector = new CanFrameListener() {
+        @Override
+        public void send(CanFrame frame) {
+            replayed.add(GridConnect.format(frame));
+        }
+    };
+
+    private static CanFrame frame(String gc) {
+        return GridConnect.parse(gc).get(0);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File base = new File(folder.getRoot(), "cap");
+        FrameCapture capture = new FrameCapture(base);
+        capture.getInputTap().send(frame(":X195B4123N0102030405060708;"));
+        capture.getOutputTap().send(frame(":X19490456N;"));
+        capture.getInputTap().send(frame(":X10700123N;"));
+        capture.getInputTap().send(frame(":S123N0A;"));
+        Assert.assertEquals(4, capture.getFrameCount());
+        capture.close();
+        // Ignored after close.
+        capture.getInputTap().send(frame(":X10700123N;"));
+
+        File segment = FrameCapture.segmentFile(base, 0);
+        Assert.assertTrue(segment.exists());
+        Assert.assertEquals(FrameCapture.HEADER_SIZE + 4 * FrameCapture.RECORD_SIZE, segment
+                .length());
+
+        FrameReplay replay = new FrameReplay(base, collector);
+        replay.setSpeed(FrameReplay.AS_FAST_AS_POSSIBLE);
+        Assert.assertEquals(3, replay.replay());
+        Assert.assertEquals(3, replayed.size());
+        Assert.assertEquals(":X195B4123N0102030405060708;", replayed.get(0));
+        Assert.assertEquals(":X10700123N;", replayed.get(1));
+        Assert.assertEquals(":S123N0A;", replayed.get(2));
+
+        replayed.clear();
+        replay = new FrameReplay(base, collector);
+        replay.setSpeed(FrameReplay.AS_FAST_AS_POSSIBLE);
+        replay.setDirections(false, true);
+        Assert.assertEquals(1, replay.replay());
+        Assert.assertEquals(":X19490456N;", replayed.get(0));
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        File base = new File(folder.getRoot(), "rot");
+        int segmentSize = FrameCapture.HEADER_SIZE + 10 * FrameCapture.RECORD_SIZE;
+        FrameCapture capture = new FrameCapture(base, segmentSize, 2);
+        for (int i = 0; i < 35; ++i) {
+            capture.getInputTap().send(frame(String.format(":X195B4123N%02X;", i)));
+        }
+        capture.close();
+        // 4 segments were written, the first two were deleted.
+        Assert.assertFalse(FrameCapture.segmentFile(base, 0).exists());
+        Assert.assertFalse(FrameCapture.segmentFile(base, 1).exists());
+        Assert.assertTrue(FrameCapture.segmentFile(base, 2).exists());
+        Assert.assertTrue(FrameCapture.segmentFile(base, 3).exists());
+
+        FrameReplay replay = new FrameReplay(base, collector);
+        replay.setSpeed(FrameReplay.AS_FAST_AS_POSSIBLE);
+        Assert.assertEquals(15, replay.replay());
+        Assert.assertEquals(":X195B4123N14;", replayed.get(0));
+        Assert.assertEquals(":X195B4123N22;", replayed.get(14));
+    }
+
+    @Test
+    public void testTiming() throws Exception {
+        File base = new File(folder.getRoot(), "time");
+        FrameCapture capture = new FrameCapture(base);
+        capture.getInputTap().send(frame(":X10700123N;"));
+        Thread.sleep(200);
+        capture.getInputTap().send(frame(":X10700123N;"));
+        capture.close();
+
+        FrameReplay replay = new FrameReplay(base, collector);
+        long start = System.nanoTime();
+        replay.replay();
+        long original = System.nanoTime() - start;
+        Assert.assertTrue("took " + original, original >= 190000000L);
+
+        replay = new FrameReplay(base, collector);
+        replay.setSpeed(4);
+        start = System.nanoTime();
+        replay.replay();
+        long fast = System.nanoTime() - start;
+        Assert.assertTrue("took " + fast, fast >= 45000000L && fast < original);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testMissingCapture() throws Exception {
+        new FrameReplay(new File(folder.getRoot(), "none"), collector);
+    }
+}
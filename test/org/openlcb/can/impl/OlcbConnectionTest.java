@@ -7,6 +7,17 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openlcb.*;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.OpenLcbCanFrame;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -34,6 +45,182 @@ public class OlcbConnectionTest {
         Assert.assertNotNull("exists",t);
     }
 
+    AtomicInteger connects = new AtomicInteger();
+    AtomicInteger disconnects = new AtomicInteger();
+    OlcbConnection.ConnectionListener counter = new OlcbConnection.ConnectionListener() {
+        @Override
+        public void onConnect() {
+            connects.incrementAndGet();
+        }
+
+        @Override
+        public void onDisconnect() {
+            disconnects.incrementAndGet();
+        }
+
+        @Override
+        public void onStatusChange(String status) {
+        }
+
+        @Override
+        public void onConnectionPending() {
+        }
+    };
+
+    static void waitFor(AtomicInteger value, int expected) throws InterruptedException {
+        for (int i = 0; i < 500 && value.get() < expected; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, value.get());
+    }
+
+    static boolean hasMti(CanFrame f, int mti) {
+        return (f.getHeader() & 0x1F000000) == 0x19000000 && ((f.getHeader() >> 12) & 0xFFF)
+                == mti;
+    }
+
+    /// Reads frames from the hub side of a socket until one matches the MTI.
+    static List<CanFrame> readUntil(Socket s, int mti) throws Exception {
+        s.setSoTimeout(5000);
+        BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(),
+                "ISO-8859-1"));
+        List<CanFrame> frames = new ArrayList<>();
+        while (true) {
+            String line = r.readLine();
+            Assert.assertNotNull("connection closed", line);
+            for (CanFrame f : GridConnect.parse(line)) {
+                frames.add(f);
+                if (hasMti(f, mti)) return frames;
+            }
+        }
+    }
+
+    @Test
+    public void testReconnectKeepsInterface() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        ServerSocket hub = new ServerSocket(0);
+        hub.setSoTimeout(5000);
+        OlcbConnection c = new OlcbConnection(nodeID, "localhost", hub.getLocalPort(), counter);
+        c.setAutoReconnect(true);
+        c.setReconnectDelay(20, 100);
+        try {
+            c.startConnect();
+            Socket s1 = hub.accept();
+            waitFor(connects, 1);
+            OlcbInterface iface = c.getInterface();
+
+            s1.close();
+            waitFor(disconnects, 1);
+            // Sent during the outage; goes out after the node announced itself again.
+            EventID event = new EventID(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            iface.getOutputConnection().put(new ProducerConsumerEventReportMessage(nodeID,
+                    event), null);
+
+            Socket s2 = hub.accept();
+            waitFor(connects, 2);
+            Assert.assertSame(iface, c.getInterface());
+            List<CanFrame> frames = readUntil(s2, MessageTypeIdentifier
+                    .ProducerConsumerEventReport.mti());
+            // The alias is checked again before anything else goes out.
+            Assert.assertEquals(0x17, frames.get(0).getHeader() >> 24);
+            boolean initSeen = false;
+            for (CanFrame f : frames) {
+                if (hasMti(f, MessageTypeIdentifier.InitializationComplete.mti())) {
+                    initSeen = true;
+                }
+            }
+            Assert.assertTrue(initSeen);
+            Assert.assertEquals(1, iface.getMetrics().counter("connection.reconnects").get());
+            s2.close();
+        } finally {
+            c.shutdown();
+            hub.close();
+        }
+    }
+
+    @Test
+    public void testReconnectWithTakenAlias() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,8});
+        ServerSocket hub = new ServerSocket(0);
+        hub.setSoTimeout(5000);
+        OlcbConnection c = new OlcbConnection(nodeID, "localhost", hub.getLocalPort(), counter);
+        c.setAutoReconnect(true);
+        c.setReconnectDelay(20, 100);
+        try {
+            c.startConnect();
+            Socket s1 = hub.accept();
+            waitFor(connects, 1);
+            OlcbInterface iface = c.getInterface();
+
+            s1.close();
+            waitFor(disconnects, 1);
+            EventID event = new EventID(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            iface.getOutputConnection().put(new ProducerConsumerEventReportMessage(nodeID,
+                    event), null);
+            iface.flushSendQueue();
+
+            Socket s2 = hub.accept();
+            s2.setSoTimeout(5000);
+            BufferedReader r = new BufferedReader(new InputStreamReader(s2.getInputStream(),
+                    "ISO-8859-1"));
+            CanFrame cid = GridConnect.parse(r.readLine()).get(0);
+            Assert.assertEquals(0x17, cid.getHeader() >> 24);
+            int oldAlias = cid.getHeader() & 0xFFF;
+            // Another node took the alias during the outage.
+            OpenLcbCanFrame rid = new OpenLcbCanFrame(oldAlias);
+            rid.setHeader(0x10700000 | oldAlias);
+            rid.setData(new byte[0]);
+            s2.getOutputStream().write((GridConnect.format(rid) + "\n").getBytes("ISO-8859-1"));
+            s2.getOutputStream().flush();
+
+            CanFrame report = null;
+            int newAlias = -1;
+            while (report == null) {
+                String line = r.readLine();
+                Assert.assertNotNull("connection closed", line);
+                for (CanFrame f : GridConnect.parse(line)) {
+                    if ((f.getHeader() & 0x1FFFF000) == 0x10701000) {
+                        newAlias = f.getHeader() & 0xFFF;
+                    }
+                    if (hasMti(f, MessageTypeIdentifier.ProducerConsumerEventReport.mti())) {
+                        report = f;
+                    }
+                }
+            }
+            Assert.assertNotEquals(oldAlias, report.getHeader() & 0xFFF);
+            Assert.assertEquals(newAlias, report.getHeader() & 0xFFF);
+            waitFor(connects, 2);
+            s2.close();
+        } finally {
+            c.shutdown();
+            hub.close();
+        }
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,7});
+        ServerSocket dead = new ServerSocket(0);
+        int deadPort = dead.getLocalPort();
+        dead.close();
+        ServerSocket hub = new ServerSocket(0);
+        hub.setSoTimeout(5000);
+        OlcbConnection c = new OlcbConnection(nodeID, "localhost", deadPort, counter);
+        c.setAutoReconnect(true);
+        c.setReconnectDelay(20, 100);
+        c.addEndpoint("localhost", hub.getLocalPort());
+        try {
+            c.startConnect();
+            Socket s = hub.accept();
+            waitFor(connects, 1);
+            Assert.assertEquals(0, disconnects.get());
+            s.close();
+        } finally {
+            c.shutdown();
+            hub.close();
+        }
+    }
+
     // The minimal setup for log4J
     @Before
     public void setUp() {
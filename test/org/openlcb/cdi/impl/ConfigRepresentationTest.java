@@ -83,6 +83,31 @@ public class ConfigRepresentationTest {
         });
     }
 
+    @Test
+    public void testCdiWithoutTerminator() throws Exception {
+        org.jdom2.output.XMLOutputter fmt = new org.jdom2.output.XMLOutputter();
+        String s = fmt.outputString(new Document(SampleFactory.getOffsetSample()));
+        // Reading past the end of the space fails.
+        mcs.addSpace(remoteNode, mcs.SPACE_CDI, s.getBytes(), false);
+        byte[] config = new byte[1000];
+        mcs.addSpace(remoteNode, 13, config, true);
+        mcs.addSpace(remoteNode, 14, config, true);
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+        Assert.assertEquals("Representation complete.", rep.getStatus());
+        Assert.assertEquals(2, rep.getRoot().getEntries().size());
+    }
+
+    @Test
+    public void testTruncatedCdiFails() throws Exception {
+        org.jdom2.output.XMLOutputter fmt = new org.jdom2.output.XMLOutputter();
+        String s = fmt.outputString(new Document(SampleFactory.getOffsetSample()));
+        mcs.addSpace(remoteNode, mcs.SPACE_CDI, s.substring(0, s.length() - 10).getBytes(),
+                false);
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+        Assert.assertTrue(rep.getStatus(), rep.getStatus().startsWith("Failed to load CDI"));
+        Assert.assertNull(rep.getRoot());
+    }
+
     @Test
     public void testStringWrites() throws Exception {
         addCdiData(SampleFactory.getLargeStringSample());
@@ -0,0 +1,206 @@
+package org.openlcb.cdi.impl;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import org.openlcb.EventID;
+import org.openlcb.FakeOlcbInterface;
+import org.openlcb.NodeID;
+import org.openlcb.cdi.jdom.SampleFactory;
+import org.openlcb.implementations.FakeMemoryConfigurationService;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Tests the binary config snapshot format and diffing.
+ */
+public class ConfigSnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    FakeOlcbInterface iface;
+    FakeMemoryConfigurationService mcs;
+    NodeID remoteNode = new NodeID("05.01.01.01.14.39");
+
+    void addCdiData(org.jdom2.Element root) {
+        org.jdom2.output.XMLOutputter fmt = new org.jdom2.output.XMLOutputter();
+        fmt.setFormat(org.jdom2.output.Format.getPrettyFormat());
+        String s = fmt.outputString(new org.jdom2.Document(root)) + "\0";
+        mcs.addSpace(remoteNode, FakeMemoryConfigurationService.SPACE_CDI, s.getBytes(), false);
+    }
+
+    @Before
+    public void setUp() {
+        iface = new FakeOlcbInterface();
+        mcs = new FakeMemoryConfigurationService(iface);
+    }
+
+    @After
+    public void tearDown() {
+        iface.dispose();
+        mcs.dispose();
+    }
+
+    ConfigRepresentation loadSample(byte[] space13, byte[] space14) {
+        addCdiData(SampleFactory.getOffsetSample());
+        mcs.addSpace(remoteNode, 13, space13, true);
+        mcs.addSpace(remoteNode, 14, space14, true);
+        return new ConfigRepresentation(iface, remoteNode);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] config = new byte[1000];
+        for (int i = 0; i < config.length; ++i) config[i] = (byte) i;
+        ConfigRepresentation rep = loadSample(config, new byte[100]);
+        ConfigSnapshot snap = ConfigSnapshot.fromRepresentation(rep);
+        Assert.assertEquals(remoteNode, snap.getNodeID());
+        Assert.assertEquals(2, snap.getSpaces().size());
+
+        Path f = folder.newFile("snap.bin").toPath();
+        snap.writeToFile(f);
+        ConfigSnapshot loaded = ConfigSnapshot.readFromFile(f);
+        Assert.assertEquals(remoteNode, loaded.getNodeID());
+        Assert.assertEquals(snap.getTimestamp(), loaded.getTimestamp());
+        Assert.assertArrayEquals(snap.getCdiHash(), loaded.getCdiHash());
+        Assert.assertArrayEquals(new byte[]{(byte) 153, (byte) 154}, loaded.read(13, 153, 2));
+        Assert.assertNull(loaded.read(13, 990, 2));
+
+        // Load a representation from the snapshot without any network traffic.
+        mcs.actualReadList.clear();
+        ConfigRepresentation offline = new ConfigRepresentation(loaded.getReadWriteAccess(), rep
+                .getCdiRep());
+        Assert.assertEquals(0, mcs.actualReadList.size());
+        ConfigRepresentation.IntegerEntry e1 = (ConfigRepresentation.IntegerEntry) rep
+                .getVariableForKey("seg1.child1");
+        ConfigRepresentation.IntegerEntry e2 = (ConfigRepresentation.IntegerEntry) offline
+                .getVariableForKey("seg1.child1");
+        Assert.assertNotNull(e1);
+        Assert.assertEquals(e1.getValue(), e2.getValue());
+
+        Assert.assertTrue(ConfigSnapshot.diff(new ConfigSnapshot.Layout(rep), snap, loaded)
+                .isEmpty());
+    }
+
+    @Test
+    public void testDiff() throws Exception {
+        ConfigRepresentation rep = loadSample(new byte[1000], new byte[100]);
+        ConfigSnapshot before = ConfigSnapshot.fromRepresentation(rep);
+
+        ConfigRepresentation.EventEntry ev = (ConfigRepresentation.EventEntry) rep
+                .getVariableForKey("seg1.child3");
+        ev.setValue(new EventID("01.02.03.04.05.06.07.08"));
+        ConfigSnapshot after = ConfigSnapshot.fromRepresentation(rep);
+
+        ConfigSnapshot.Layout layout = new ConfigSnapshot.Layout(rep);
+        Assert.assertEquals(13, layout.size());
+        List<ConfigSnapshot.Difference> diffs = ConfigSnapshot.diff(layout, before, after);
+        Assert.assertEquals(1, diffs.size());
+        Assert.assertEquals("seg1.child3", diffs.get(0).key);
+        Assert.assertEquals(158, diffs.get(0).origin);
+        Assert.assertArrayEquals(new byte[8], diffs.get(0).oldData);
+        Assert.assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, diffs.get(0).newData);
+    }
+
+    @Test
+    public void testStringDiffIgnoresTrailingBytes() throws Exception {
+        addCdiData(SampleFactory.getLargeStringWithNeighborsSample());
+        byte[] config = new byte[1000];
+        mcs.addSpace(remoteNode, 13, config, true);
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+        ConfigSnapshot a = ConfigSnapshot.fromRepresentation(rep);
+        ConfigSnapshot b = ConfigSnapshot.fromRepresentation(rep);
+        // garbage after the terminating null
+        byte[] data = new byte[200];
+        data[10] = 55;
+        b.putBlock(13, 2, data);
+        ConfigSnapshot.Layout layout = new ConfigSnapshot.Layout(rep);
+        Assert.assertTrue(ConfigSnapshot.diff(layout, a, b).isEmpty());
+        data[0] = 'x';
+        Assert.assertEquals(1, ConfigSnapshot.diff(layout, a, b).size());
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentDiffBothWays() throws Exception {
+        ConfigRepresentation rep = loadSample(new byte[1000], new byte[100]);
+        final ConfigSnapshot a = ConfigSnapshot.fromRepresentation(rep);
+        final ConfigSnapshot b = ConfigSnapshot.fromRepresentation(rep);
+        final ConfigSnapshot.Layout layout = new ConfigSnapshot.Layout(rep);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 2000; ++i) {
+                    ConfigSnapshot.diff(layout, b, a);
+                }
+            }
+        });
+        t.start();
+        for (int i = 0; i < 2000; ++i) {
+            Assert.assertTrue(ConfigSnapshot.diff(layout, a, b).isEmpty());
+        }
+        t.join();
+    }
+
+    @Test
+    public void testMappedFile() throws Exception {
+        ConfigSnapshot s = new ConfigSnapshot(new NodeID("05.01.01.01.14.39"), 1234L, new
+                byte[]{1, 2, 3});
+        byte[] big = new byte[(int) ConfigSnapshot.MMAP_THRESHOLD + 100];
+        big[65000] = 42;
+        s.putBlock(0xFD, 0, big);
+        s.putBlock(0xFD, 200000, new byte[]{7, 8});
+        Path f = folder.newFile("big.bin").toPath();
+        s.writeToFile(f);
+        ConfigSnapshot loaded = ConfigSnapshot.readFromFile(f);
+        Assert.assertEquals(1234L, loaded.getTimestamp());
+        Assert.assertArrayEquals(new byte[]{42}, loaded.read(0xFD, 65000, 1));
+        Assert.assertArrayEquals(new byte[]{7, 8}, loaded.read(0xFD, 200000, 2));
+
+        // Writing through the access object copies the mapped block.
+        final boolean[] ok = new boolean[1];
+        loaded.getReadWriteAccess().doWrite(65000, 0xFD, new byte[]{43}, new
+                FakeWriteHandler(ok));
+        Assert.assertTrue(ok[0]);
+        Assert.assertArrayEquals(new byte[]{43}, loaded.read(0xFD, 65000, 1));
+    }
+
+    @Test
+    public void testReadAcrossAdjacentBlocks() throws Exception {
+        ConfigSnapshot s = new ConfigSnapshot(null, 1234L, new byte[]{1, 2, 3});
+        s.putBlock(13, 100, new byte[]{1, 2, 3});
+        s.putBlock(13, 103, new byte[]{4, 5});
+        s.putBlock(13, 106, new byte[]{7});
+        Assert.assertArrayEquals(new byte[]{2, 3, 4}, s.read(13, 101, 3));
+        Assert.assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, s.read(13, 100, 5));
+        // 105 is missing
+        Assert.assertNull(s.read(13, 104, 3));
+
+        ConfigSnapshot o = new ConfigSnapshot(null, 1234L, new byte[]{1, 2, 3});
+        o.putBlock(13, 100, new byte[]{1, 2, 3, 4, 5});
+        Assert.assertTrue(s.rangeEquals(o, 13, 101, 3));
+        Assert.assertTrue(s.update(13, 102, new byte[]{9, 9}));
+        Assert.assertArrayEquals(new byte[]{1, 2, 9, 9, 5}, s.read(13, 100, 5));
+        Assert.assertFalse(s.rangeEquals(o, 13, 101, 3));
+        Assert.assertFalse(s.update(13, 104, new byte[]{0, 0, 0}));
+    }
+
+    static class FakeWriteHandler implements org.openlcb.implementations
+            .MemoryConfigurationService.McsWriteHandler {
+        final boolean[] ok;
+
+        FakeWriteHandler(boolean[] ok) {
+            this.ok = ok;
+        }
+
+        @Override
+        public void handleSuccess() {
+            ok[0] = true;
+        }
+
+        @Override
+        public void handleFailure(int errorCode) {
+            ok[0] = false;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.openlcb.cdi.impl;
+
+import org.junit.*;
+
+import org.openlcb.FakeOlcbInterface;
+import org.openlcb.NodeID;
+import org.openlcb.cdi.jdom.SampleFactory;
+import org.openlcb.implementations.FakeMemoryConfigurationService;
+
+/**
+ * Tests that restoring a configuration only writes the bytes that changed.
+ */
+public class ConfigSyncTest {
+    FakeOlcbInterface iface;
+    FakeMemoryConfigurationService mcs;
+    NodeID remoteNode = new NodeID("05.01.01.01.14.39");
+    byte[] space13 = new byte[1000];
+    ConfigRepresentation rep;
+    ConfigSync.Result result;
+
+    ConfigSync.Listener listener = new ConfigSync.Listener() {
+        @Override
+        public void onComplete(ConfigSync.Result r) {
+            result = r;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        iface = new FakeOlcbInterface();
+        mcs = new FakeMemoryConfigurationService(iface);
+        org.jdom2.output.XMLOutputter fmt = new org.jdom2.output.XMLOutputter();
+        fmt.setFormat(org.jdom2.output.Format.getPrettyFormat());
+        String s = fmt.outputString(new org.jdom2.Document(SampleFactory.getOffsetSample())) +
+                "\0";
+        mcs.addSpace(remoteNode, FakeMemoryConfigurationService.SPACE_CDI, s.getBytes(), false);
+        mcs.addSpace(remoteNode, 13, space13, true);
+        mcs.addSpace(remoteNode, 14, new byte[100], true);
+        rep = new ConfigRepresentation(iface, remoteNode);
+        Assert.assertTrue(rep.isCacheComplete());
+        mcs.actualWriteList.clear();
+    }
+
+    @After
+    public void tearDown() {
+        iface.dispose();
+        mcs.dispose();
+    }
+
+    @Test
+    public void testNoChange() {
+        ConfigSync sync = new ConfigSync(rep);
+        ConfigSnapshot desired = sync.createDesiredSnapshot();
+        Assert.assertTrue(sync.setValue(desired, "seg1.child1", "0"));
+        sync.sync(desired, listener);
+        Assert.assertNotNull(result);
+        Assert.assertTrue(result.changes.isEmpty());
+        Assert.assertTrue(result.writes.isEmpty());
+        Assert.assertTrue(mcs.actualWriteList.isEmpty());
+    }
+
+    @Test
+    public void testThreeFieldsThreeWrites() {
+        ConfigSync sync = new ConfigSync(rep);
+        ConfigSnapshot desired = sync.createDesiredSnapshot();
+        Assert.assertTrue(sync.setValue(desired, "seg1.child1", "258"));
+        Assert.assertTrue(sync.setValue(desired, "seg1.child7", "7"));
+        Assert.assertTrue(sync.setValue(desired, "seg1.child11", "1"));
+        Assert.assertFalse(sync.setValue(desired, "seg1.nonexistent", "1"));
+        sync.sync(desired, listener);
+        Assert.assertNotNull(result);
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals(3, result.changes.size());
+        try {
+            result.failedWrites.add(result.writes.get(0));
+            Assert.fail("failedWrites should be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        Assert.assertEquals(3, mcs.actualWriteList.size());
+        Assert.assertEquals(153, mcs.actualWriteList.get(0).address);
+        Assert.assertArrayEquals(new byte[]{1, 2}, mcs.actualWriteList.get(0).data);
+        Assert.assertEquals(167, mcs.actualWriteList.get(1).address);
+        Assert.assertArrayEquals(new byte[]{7}, mcs.actualWriteList.get(1).data);
+        // Only the low byte of the last integer differs.
+        Assert.assertEquals(255, mcs.actualWriteList.get(2).address);
+        Assert.assertArrayEquals(new byte[]{1}, mcs.actualWriteList.get(2).data);
+        Assert.assertEquals(258, ((ConfigRepresentation.IntegerEntry) rep.getVariableForKey(
+                "seg1.child1")).getValue());
+        Assert.assertEquals(2, space13[154]);
+
+        // Running again is a no-op.
+        result = null;
+        mcs.actualWriteList.clear();
+        sync.sync(desired, listener);
+        Assert.assertTrue(result.changes.isEmpty());
+        Assert.assertTrue(mcs.actualWriteList.isEmpty());
+    }
+
+    @Test
+    public void testCoalesceNearbyFields() {
+        ConfigSync sync = new ConfigSync(rep);
+        ConfigSnapshot desired = sync.createDesiredSnapshot();
+        Assert.assertTrue(sync.setValue(desired, "seg1.child1", "1"));
+        Assert.assertTrue(sync.setValue(desired, "seg1.child3", "05.01.01.01.14.39.00.01"));
+        sync.sync(desired, listener);
+        Assert.assertEquals(2, result.changes.size());
+        Assert.assertEquals(1, mcs.actualWriteList.size());
+        FakeMemoryConfigurationService.ActualWrite w = mcs.actualWriteList.get(0);
+        Assert.assertEquals(154, w.address);
+        Assert.assertArrayEquals(new byte[]{1, 0, 0, 0, 5, 1, 1, 1, 0x14, 0x39, 0, 1}, w.data);
+    }
+
+    @Test
+    public void testStringWritesOnlyUpToTerminator() {
+        ConfigSync sync = new ConfigSync(rep);
+        ConfigSnapshot desired = sync.createDesiredSnapshot();
+        Assert.assertTrue(sync.setValue(desired, "seg1.child9(1).child5(2).child1", "abc"));
+        sync.sync(desired, listener);
+        Assert.assertEquals(1, result.changes.size());
+        Assert.assertEquals(1, mcs.actualWriteList.size());
+        Assert.assertEquals(224, mcs.actualWriteList.get(0).address);
+        Assert.assertArrayEquals(new byte[]{'a', 'b', 'c'}, mcs.actualWriteList.get(0).data);
+    }
+
+    @Test
+    public void testWriteAcrossCacheBlocksUpdatesCache() {
+        iface.dispose();
+        mcs.dispose();
+        iface = new FakeOlcbInterface();
+        mcs = new FakeMemoryConfigurationService(iface);
+        org.jdom2.output.XMLOutputter fmt = new org.jdom2.output.XMLOutputter();
+        String s = fmt.outputString(new org.jdom2.Document(SampleFactory
+                .getLargeStringWithNeighborsSample())) + "\0";
+        mcs.addSpace(remoteNode, FakeMemoryConfigurationService.SPACE_CDI, s.getBytes(), false);
+        mcs.addSpace(remoteNode, 13, new byte[300], true);
+        rep = new ConfigRepresentation(iface, remoteNode);
+        Assert.assertTrue(rep.isCacheComplete());
+        mcs.actualWriteList.clear();
+
+        // The integer and the long string are cached in separate, adjacent blocks.
+        ConfigSync sync = new ConfigSync(rep);
+        ConfigSnapshot desired = sync.createDesiredSnapshot();
+        Assert.assertTrue(sync.setValue(desired, "seg0.child0", "258"));
+        Assert.assertTrue(sync.setValue(desired, "seg0.longdata", "ab"));
+        sync.sync(desired, listener);
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals(1, mcs.actualWriteList.size());
+        Assert.assertArrayEquals(new byte[]{1, 2, 'a', 'b'}, mcs.actualWriteList.get(0).data);
+        Assert.assertEquals(258, ((ConfigRepresentation.IntegerEntry) rep.getVariableForKey(
+                "seg0.child0")).getValue());
+        Assert.assertEquals("ab", ((ConfigRepresentation.StringEntry) rep.getVariableForKey(
+                "seg0.longdata")).getValue());
+    }
+}
@@ -94,4 +94,44 @@ public class CdiMemConfigReaderTest {
         while (rdr.read() > 0) count++;
         Assert.assertEquals("length", testString.length()-1, count); // -1 for trailing zero on input
     }
+
+    @Test
+    public void testChunkLoadFailure() {
+        MemoryConfigurationService failing = new MemoryConfigurationService(nidHere, dgs) {
+            public void requestRead(NodeID dest, int space, long address, int len, McsReadHandler
+                    cb) {
+                if (address > 0) {
+                    cb.handleFailure(0x1081);
+                    return;
+                }
+                byte[] data = new byte[len];
+                System.arraycopy(content, 0, data, 0, len);
+                cb.handleReadData(nidThere, space, address, data);
+            }
+        };
+        final StringBuilder events = new StringBuilder();
+        new CdiMemConfigReader(nidHere, store, failing).startLoadChunks(new CdiMemConfigReader
+                .ChunkAccess() {
+            @Override
+            public void progressNotify(long _bytesRead, long totalBytes) {
+            }
+
+            @Override
+            public void provideData(byte[] data, int offset, int length) {
+                events.append("data ").append(length).append(';');
+            }
+
+            @Override
+            public void endOfData() {
+                events.append("end;");
+            }
+
+            @Override
+            public void loadFailed(int errorCode) {
+                events.append("failed ").append(Integer.toHexString(errorCode)).append(';');
+            }
+        });
+        Assert.assertEquals("data 64;failed 1081;", events.toString());
+        failing.dispose();
+    }
 }
@@ -0,0 +1,238 @@
+package org.openlcb.cdi.sax;
+
+import org.junit.*;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.openlcb.cdi.CdiRep;
+import org.openlcb.cdi.jdom.JdomCdiRep;
+import org.openlcb.cdi.jdom.SampleFactory;
+import org.openlcb.cdi.jdom.XmlHelper;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the streaming parser against the JDOM implementation.
+ */
+public class SaxCdiReaderTest {
+
+    static String render(Element root) {
+        org.jdom2.output.XMLOutputter fmt = new org.jdom2.output.XMLOutputter();
+        fmt.setFormat(org.jdom2.output.Format.getPrettyFormat());
+        return fmt.outputString(new Document(root));
+    }
+
+    static SaxCdiRep parseByteByByte(byte[] b) throws Exception {
+        SaxCdiReader r = new SaxCdiReader();
+        for (int i = 0; i < b.length; ++i) {
+            r.feed(b, i, 1);
+        }
+        return r.finish();
+    }
+
+    static void compareMap(String where, CdiRep.Map expected, CdiRep.Map actual) {
+        Assert.assertEquals(where + " map keys", expected.getKeys(), actual.getKeys());
+        Assert.assertEquals(where + " map values", expected.getValues(), actual.getValues());
+    }
+
+    static void compareItems(String where, List<CdiRep.Item> expected, List<CdiRep.Item>
+            actual) {
+        Assert.assertEquals(where + " item count", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            CdiRep.Item e = expected.get(i);
+            CdiRep.Item a = actual.get(i);
+            String w = where + "/" + i;
+            Assert.assertEquals(w + " name", e.getName(), a.getName());
+            Assert.assertEquals(w + " description", e.getDescription(), a.getDescription());
+            Assert.assertEquals(w + " offset", e.getOffset(), a.getOffset());
+            Assert.assertEquals(w + " index", e.getIndexInParent(), a.getIndexInParent());
+            compareMap(w, e.getMap(), a.getMap());
+            if (e instanceof CdiRep.Group) {
+                Assert.assertTrue(w, a instanceof CdiRep.Group);
+                CdiRep.Group eg = (CdiRep.Group) e;
+                CdiRep.Group ag = (CdiRep.Group) a;
+                Assert.assertEquals(w + " replication", eg.getReplication(), ag.getReplication());
+                Assert.assertEquals(w + " repname", eg.getRepName(), ag.getRepName());
+                compareItems(w, eg.getItems(), ag.getItems());
+            } else if (e instanceof CdiRep.IntegerRep) {
+                Assert.assertTrue(w, a instanceof CdiRep.IntegerRep);
+                Assert.assertEquals(w + " size", ((CdiRep.IntegerRep) e).getSize(), (
+                        (CdiRep.IntegerRep) a).getSize());
+            } else if (e instanceof CdiRep.StringRep) {
+                Assert.assertTrue(w, a instanceof CdiRep.StringRep);
+                Assert.assertEquals(w + " size", ((CdiRep.StringRep) e).getSize(), (
+                        (CdiRep.StringRep) a).getSize());
+            } else if (e instanceof CdiRep.BitRep) {
+                Assert.assertTrue(w, a instanceof CdiRep.BitRep);
+                Assert.assertEquals(w + " size", ((CdiRep.BitRep) e).getSize(), (
+                        (CdiRep.BitRep) a).getSize());
+            } else if (e instanceof CdiRep.EventID) {
+                Assert.assertTrue(w, a instanceof CdiRep.EventID);
+            }
+        }
+    }
+
+    static void compare(CdiRep expected, CdiRep actual) {
+        CdiRep.Identification ei = expected.getIdentification();
+        CdiRep.Identification ai = actual.getIdentification();
+        if (ei == null) {
+            Assert.assertNull(ai);
+        } else {
+            Assert.assertEquals(ei.getManufacturer(), ai.getManufacturer());
+            Assert.assertEquals(ei.getModel(), ai.getModel());
+            Assert.assertEquals(ei.getHardwareVersion(), ai.getHardwareVersion());
+            Assert.assertEquals(ei.getSoftwareVersion(), ai.getSoftwareVersion());
+            compareMap("ident", ei.getMap(), ai.getMap());
+        }
+        List<CdiRep.Segment> es = expected.getSegments();
+        List<CdiRep.Segment> as = actual.getSegments();
+        Assert.assertEquals("segment count", es.size(), as.size());
+        for (int i = 0; i < es.size(); ++i) {
+            CdiRep.Segment e = es.get(i);
+            CdiRep.Segment a = as.get(i);
+            Assert.assertEquals("space", e.getSpace(), a.getSpace());
+            Assert.assertEquals("origin", e.getOrigin(), a.getOrigin());
+            Assert.assertEquals("name", e.getName(), a.getName());
+            Assert.assertEquals("description", e.getDescription(), a.getDescription());
+            Assert.assertEquals("index", e.getIndexInParent(), a.getIndexInParent());
+            compareItems("seg" + i, e.getItems(), a.getItems());
+        }
+    }
+
+    void checkSameAsJdom(String xml) throws Exception {
+        CdiRep jdom = new JdomCdiRep(XmlHelper.parseXmlFromReader(new StringReader(xml)));
+        compare(jdom, parseByteByByte(xml.getBytes(StandardCharsets.UTF_8)));
+        compare(jdom, SaxCdiReader.getRep(new StringReader(xml)));
+    }
+
+    @Test
+    public void testBasicSample() throws Exception {
+        checkSameAsJdom(render(SampleFactory.getBasicSample()));
+    }
+
+    @Test
+    public void testOffsetSample() throws Exception {
+        checkSameAsJdom(render(SampleFactory.getOffsetSample()));
+    }
+
+    @Test
+    public void testLargeStringSample() throws Exception {
+        checkSameAsJdom(render(SampleFactory.getLargeStringWithNeighborsSample()));
+    }
+
+    @Test
+    public void testFileSample() throws Exception {
+        String xml = new String(Files.readAllBytes(Paths.get("sample.xml")), StandardCharsets
+                .UTF_8);
+        checkSameAsJdom(xml);
+    }
+
+    @Test
+    public void testLexicalContent() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!DOCTYPE cdi [ <!ELEMENT cdi ANY> ]>\n"
+                + "<cdi xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+                + "xsi:noNamespaceSchemaLocation=\"http://openlcb.org/schema/cdi/1/1/cdi.xsd\">"
+                + "<segment space='253'><!-- comment --><name>Café &amp; "
+                + "<![CDATA[<more>]]> &#x41;</name>text<?pi data?>"
+                + "<int size=\"2\"/>\n<string size=\"8\"><name>s</name></string>"
+                + "<int><map><relation><property>1</property><value>On</value></relation>"
+                + "</map></int></segment></cdi>";
+        checkSameAsJdom(xml);
+        SaxCdiRep rep = parseByteByByte(xml.getBytes(StandardCharsets.UTF_8));
+        CdiRep.Segment s = rep.getSegments().get(0);
+        Assert.assertEquals("Café & <more> A", s.getName());
+        Assert.assertEquals(253, s.getSpace());
+        Assert.assertEquals("On", s.getItems().get(2).getMap().getEntry("1"));
+    }
+
+    @Test
+    public void testSegmentsAvailableEarly() throws Exception {
+        final List<CdiRep.Segment> completed = new ArrayList<>();
+        SaxCdiReader r = new SaxCdiReader(new SaxCdiRep.Listener() {
+            @Override
+            public void identificationComplete(CdiRep.Identification id) {
+            }
+
+            @Override
+            public void segmentComplete(CdiRep.Segment segment) {
+                completed.add(segment);
+            }
+        });
+        byte[] first = "<cdi><segment space='13'><int/></segment><segment space='1".getBytes();
+        r.feed(first, 0, first.length);
+        Assert.assertEquals(1, completed.size());
+        Assert.assertEquals(13, completed.get(0).getSpace());
+        Assert.assertEquals(1, r.getPartialRep().getSegments().size());
+        Assert.assertFalse(r.isComplete());
+        byte[] second = "4'></segment></cdi>".getBytes();
+        r.feed(second, 0, second.length);
+        Assert.assertTrue(r.isComplete());
+        Assert.assertEquals(2, completed.size());
+        Assert.assertEquals(14, completed.get(1).getSpace());
+        Assert.assertEquals(2, r.finish().getSegments().size());
+    }
+
+    @Test
+    public void testLimitsAndDefaults() throws Exception {
+        String xml = "<cdi><segment space='253'><int size='2'><min>-5</min><max>300</max>" +
+                "<default>7</default></int><bit><default>true</default></bit>" +
+                "<int/></segment></cdi>";
+        for (SaxCdiRep rep : new SaxCdiRep[]{parseByteByByte(xml.getBytes(StandardCharsets
+                .UTF_8)), SaxCdiReader.getRep(new StringReader(xml))}) {
+            List<CdiRep.Item> items = rep.getSegments().get(0).getItems();
+            CdiRep.IntegerRep i = (CdiRep.IntegerRep) items.get(0);
+            Assert.assertEquals(-5, i.getMin());
+            Assert.assertEquals(300, i.getMax());
+            Assert.assertEquals(7, i.getDefault());
+            Assert.assertTrue(((CdiRep.BitRep) items.get(1)).getDefault());
+            CdiRep.IntegerRep plain = (CdiRep.IntegerRep) items.get(2);
+            Assert.assertEquals(0, plain.getMin());
+            Assert.assertEquals(0, plain.getMax());
+            Assert.assertEquals(0, plain.getDefault());
+        }
+        // JdomCdiRep does not parse these.
+        CdiRep jdom = new JdomCdiRep(XmlHelper.parseXmlFromReader(new StringReader(xml)));
+        CdiRep.IntegerRep i = (CdiRep.IntegerRep) jdom.getSegments().get(0).getItems().get(0);
+        Assert.assertEquals(0, i.getMax());
+        Assert.assertEquals(0, i.getDefault());
+    }
+
+    @Test
+    public void testByteOrderMarkAndLineEnds() throws Exception {
+        String xml = "\uFEFF<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
+                + "<cdi>\r\n<segment space='253'><name>a\r\nb\rc</name>\r\n"
+                + "<int/></segment></cdi>\r\n";
+        SaxCdiRep rep = parseByteByByte(xml.getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals("a\nb\nc", rep.getSegments().get(0).getName());
+        Assert.assertEquals(1, rep.getSegments().get(0).getItems().size());
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        SaxCdiReader r = new SaxCdiReader();
+        byte[] b = "<cdi><segment></cdi>".getBytes();
+        r.feed(b, 0, b.length);
+        try {
+            r.finish();
+            Assert.fail("expected parse error");
+        } catch (org.xml.sax.SAXException e) {
+            // expected
+        }
+
+        r = new SaxCdiReader();
+        b = "<cdi><segment>".getBytes();
+        r.feed(b, 0, b.length);
+        try {
+            r.finish();
+            Assert.fail("expected parse error");
+        } catch (org.xml.sax.SAXException e) {
+            // expected
+        }
+    }
+}
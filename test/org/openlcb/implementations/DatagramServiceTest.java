@@ -237,5 +237,85 @@ public class DatagramServiceTest {
         Assert.assertEquals("1st messages", 0, messagesReceived.size());
         
     }
+
+    @Test
+    public void testReceiveBytes() {
+        final byte[] payload = new byte[]{0x20, (byte) 0x80, 3};
+        DatagramService.DatagramServiceReceiveMemo m20 =
+            new DatagramService.DatagramServiceReceiveMemo(0x20){
+                @Override
+                public void handleData(NodeID n, java.nio.ByteBuffer data, DatagramService
+                        .ReplyMemo service) {
+                    flag = true;
+                    Assert.assertTrue(data.isReadOnly());
+                    Assert.assertEquals(3, data.remaining());
+                    Assert.assertEquals((byte) 0x80, data.get(1));
+                    service.acceptData(0);
+                }
+            };
+        service.registerForReceive(m20);
+
+        service.put(DatagramMessage.wrap(farID, hereID, payload), null);
+        Assert.assertTrue(flag);
+        Assert.assertTrue(messagesReceived.get(0) instanceof DatagramAcknowledgedMessage);
+    }
+
+    @Test
+    public void testSendBytes() {
+        byte[] data = new byte[]{0x20, 0x41, 0, 0, 0, 0, (byte) 0xFF};
+        DatagramService.DatagramServiceTransmitMemo memo =
+            new DatagramService.DatagramServiceTransmitMemo(farID, data) {
+                @Override
+                public void handleSuccess(int flags) {}
+
+                @Override
+                public void handleFailure(int errorCode) {}
+            };
+        service.sendData(memo);
+
+        Assert.assertEquals(1, messagesReceived.size());
+        Assert.assertEquals(new DatagramMessage(hereID, farID, new int[]{0x20, 0x41, 0, 0, 0, 0,
+                0xFF}), messagesReceived.get(0));
+        // Memos made from bytes and from ints compare by content.
+        DatagramService.DatagramServiceTransmitMemo intMemo =
+            new DatagramService.DatagramServiceTransmitMemo(farID, new int[]{0x20, 0x41, 0, 0,
+                    0, 0, 0xFF}) {
+                @Override
+                public void handleSuccess(int flags) {}
+
+                @Override
+                public void handleFailure(int errorCode) {}
+            };
+        Assert.assertEquals(memo, intMemo);
+        Assert.assertEquals(memo.hashCode(), intMemo.hashCode());
+    }
+
+    @Test
+    public void testSendToTwoNodes() {
+        final NodeID otherID = new NodeID(new byte[]{1,2,3,4,5,8});
+        final java.util.List<String> replies = new java.util.ArrayList<>();
+        service.sendData(new DatagramService.DatagramServiceTransmitMemo(farID, new int[]{1}) {
+            @Override
+            public void handleSuccess(int flags) { replies.add("far ok"); }
+
+            @Override
+            public void handleFailure(int errorCode) { replies.add("far failed"); }
+        });
+        service.sendData(new DatagramService.DatagramServiceTransmitMemo(otherID, new int[]{2}) {
+            @Override
+            public void handleSuccess(int flags) { replies.add("other ok"); }
+
+            @Override
+            public void handleFailure(int errorCode) { replies.add("other failed"); }
+        });
+        Assert.assertEquals(2, messagesReceived.size());
+
+        // The replies come in any order, and each goes to the memo of its node.
+        service.put(new DatagramRejectedMessage(otherID, hereID, 0x1000), null);
+        service.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+        Assert.assertEquals(java.util.Arrays.asList("other failed", "far ok"), replies);
+        service.put(new DatagramAcknowledgedMessage(otherID, hereID), null);
+        Assert.assertEquals(2, replies.size());
+    }
     
 }
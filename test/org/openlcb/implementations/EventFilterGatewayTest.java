@@ -9,10 +9,18 @@ import org.junit.*;
  */
 public class EventFilterGatewayTest extends GatewayTest {
     
+    /// Current time of the gateway's clock, in msec.
+    long now = 1000;
+
     // create a filtering gateway for parent tests
     @Override
     protected Gateway getGateway() {
-        return new EventFilterGateway();
+        return new EventFilterGateway(new LearnedEventSet.Clock() {
+            @Override
+            public long millis() {
+                return now;
+            }
+        });
     }
 
     NodeID node1 = new NodeID(new byte[]{1,0,0,0,0,1});
@@ -75,5 +83,75 @@ public class EventFilterGatewayTest extends GatewayTest {
         cW.put(m2, tW);
         checkMovedWestToEastOnly();
     }
-    
+
+    @Test
+    public void testRangePasses() {
+        buildGateway();
+
+        // Consumer range 01.00.00.00.00.00.01.00 - 01.FF on the west side.
+        Message m1 = new ConsumerRangeIdentifiedMessage(node2,
+                new EventID(new byte[]{1,0,0,0,0,0,1,(byte)0xFF}));
+        cW.put(m1, tW);
+        checkMovedWestToEastOnly();
+
+        cE.put(new ProducerConsumerEventReportMessage(node1, eventA), tE);
+        checkMovedEastToWestOnly();
+        cE.put(new ProducerConsumerEventReportMessage(node1,
+                new EventID(new byte[]{1,0,0,0,0,0,1,0x42})), tE);
+        checkMovedEastToWestOnly();
+        cE.put(new ProducerConsumerEventReportMessage(node1,
+                new EventID(new byte[]{1,0,0,0,0,0,2,0})), tE);
+        checkMovedNeitherWay();
+        // The range was learned for the west side only.
+        cW.put(new ProducerConsumerEventReportMessage(node1, eventA), tW);
+        checkMovedNeitherWay();
+    }
+
+    @Test
+    public void testCounters() {
+        buildGateway();
+        EventFilterGateway fg = (EventFilterGateway) g;
+        org.openlcb.metrics.MetricsRegistry metrics = new org.openlcb.metrics.MetricsRegistry();
+        fg.setMetrics(metrics, "gw");
+
+        cW.put(new ConsumerIdentifiedMessage(node2, eventA, EventState.Unknown), tW);
+        cE.put(new ProducerConsumerEventReportMessage(node1, eventA), tE);
+        cE.put(new ProducerConsumerEventReportMessage(node1, eventA), tE);
+        cE.put(new ProducerConsumerEventReportMessage(node1, new EventID(new byte[]{1,0,0,0,0,
+                0,1,1})), tE);
+        cW.put(new ProducerConsumerEventReportMessage(node1, eventA), tW);
+
+        Assert.assertEquals(2, fg.getForwardedToWest());
+        Assert.assertEquals(1, fg.getSuppressedToWest());
+        Assert.assertEquals(0, fg.getForwardedToEast());
+        Assert.assertEquals(1, fg.getSuppressedToEast());
+        Assert.assertEquals(1, metrics.snapshot().getCounter("gw.toWest.suppressed"));
+        Assert.assertEquals(2, metrics.snapshot().getCounter("gw.toWest.forwarded"));
+    }
+
+    @Test
+    public void testAging() {
+        buildGateway();
+        EventFilterGateway fg = (EventFilterGateway) g;
+        fg.setMaxAge(200);
+
+        cW.put(new ConsumerIdentifiedMessage(node2, eventA, EventState.Unknown), tW);
+        checkMovedWestToEastOnly();
+        cE.put(new ProducerConsumerEventReportMessage(node1, eventA), tE);
+        checkMovedEastToWestOnly();
+
+        now += 199;
+        cE.put(new ProducerConsumerEventReportMessage(node1, eventA), tE);
+        checkMovedEastToWestOnly();
+
+        now += 2;
+        cE.put(new ProducerConsumerEventReportMessage(node1, eventA), tE);
+        checkMovedNeitherWay();
+
+        // Identifying again refreshes.
+        cW.put(new ConsumerIdentifiedMessage(node2, eventA, EventState.Unknown), tW);
+        checkMovedWestToEastOnly();
+        cE.put(new ProducerConsumerEventReportMessage(node1, eventA), tE);
+        checkMovedEastToWestOnly();
+    }
 }
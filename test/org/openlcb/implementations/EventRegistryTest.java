@@ -0,0 +1,245 @@
+package org.openlcb.implementations;
+
+import org.junit.*;
+import org.openlcb.ConsumerIdentifiedMessage;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.EventID;
+import org.openlcb.EventState;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.InterfaceTestBase;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.ProducerIdentifiedMessage;
+import org.openlcb.ProducerRangeIdentifiedMessage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests the network-wide event registry.
+ */
+public class EventRegistryTest extends InterfaceTestBase {
+    NodeID n1 = new NodeID("05.01.01.01.14.01");
+    NodeID n2 = new NodeID("05.01.01.01.14.02");
+    EventID e1 = new EventID("05.01.01.01.14.01.00.01");
+    EventID e2 = new EventID("05.01.01.01.14.01.00.02");
+
+    EventRegistry reg = new EventRegistry();
+
+    @Test
+    public void testProducersAndConsumers() {
+        reg.put(new ProducerIdentifiedMessage(n1, e1, EventState.Valid), null);
+        reg.put(new ConsumerIdentifiedMessage(n2, e1, EventState.Unknown), null);
+        reg.put(new ConsumerIdentifiedMessage(n1, e2, EventState.Invalid), null);
+
+        Assert.assertEquals(Collections.singleton(n1), reg.getProducers(e1));
+        Assert.assertEquals(Collections.singleton(n2), reg.getConsumers(e1));
+        Assert.assertTrue(reg.getProducers(e2).isEmpty());
+        Assert.assertEquals(Collections.singleton(n1), reg.getConsumers(e2));
+        Assert.assertEquals(2, reg.getEventCount());
+
+        Assert.assertEquals(EventState.Valid, reg.getProducerState(n1, e1));
+        Assert.assertNull(reg.getConsumerState(n1, e1));
+        Assert.assertEquals(EventState.Unknown, reg.getConsumerState(n2, e1));
+        Assert.assertEquals(EventState.Invalid, reg.getConsumerState(n1, e2));
+        Assert.assertNull(reg.getProducerState(n2, e2));
+    }
+
+    @Test
+    public void testStateUpdates() {
+        reg.put(new ProducerIdentifiedMessage(n1, e1, EventState.Invalid), null);
+        reg.put(new ProducerIdentifiedMessage(n2, e1, EventState.Invalid), null);
+        Assert.assertEquals(EventState.Invalid, reg.getProducerState(n1, e1));
+
+        // An event report makes the event valid at its producer.
+        reg.put(new ProducerConsumerEventReportMessage(n1, e1), null);
+        Assert.assertEquals(EventState.Valid, reg.getProducerState(n1, e1));
+        Assert.assertEquals(EventState.Invalid, reg.getProducerState(n2, e1));
+        // but does not add a producer.
+        reg.put(new ProducerConsumerEventReportMessage(n1, e2), null);
+        Assert.assertTrue(reg.getProducers(e2).isEmpty());
+
+        reg.put(new ProducerIdentifiedMessage(n1, e1, EventState.Invalid), null);
+        Assert.assertEquals(EventState.Invalid, reg.getProducerState(n1, e1));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(n1, n2)), reg.getProducers(e1));
+    }
+
+    @Test
+    public void testRanges() {
+        // 8 events: 05.01.01.01.14.01.00.08 - 0F.
+        reg.put(new ProducerRangeIdentifiedMessage(n1, new EventID("05.01.01.01.14.01.00.08")),
+                null);
+        // 8 events: 05.01.01.01.14.01.00.00 - 07, expressed with trailing ones.
+        reg.put(new ProducerRangeIdentifiedMessage(n2, new EventID("05.01.01.01.14.01.00.07")),
+                null);
+        reg.put(new ProducerRangeIdentifiedMessage(n1, new EventID("05.01.01.01.14.01.00.07")),
+                null);
+        // 256 events: 05.01.01.01.14.01.00.00 - FF.
+        reg.put(new ConsumerRangeIdentifiedMessage(n2, new EventID("05.01.01.01.14.01.00.FF")),
+                null);
+
+        EventID in = new EventID("05.01.01.01.14.01.00.0A");
+        EventID out = new EventID("05.01.01.01.14.01.00.10");
+        Assert.assertEquals(Collections.singleton(n1), reg.getProducers(in));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(n1, n2)), reg.getProducers(e1));
+        Assert.assertTrue(reg.getProducers(out).isEmpty());
+        Assert.assertEquals(Collections.singleton(n2), reg.getConsumers(in));
+        Assert.assertEquals(Collections.singleton(n2), reg.getConsumers(out));
+        Assert.assertTrue(reg.getConsumers(new EventID("05.01.01.01.14.01.01.00")).isEmpty());
+
+        List<EventRegistry.Range> ranges = reg.getProducerRanges(in);
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertEquals(n1, ranges.get(0).getNode());
+        Assert.assertEquals(new EventID("05.01.01.01.14.01.00.08"), ranges.get(0).getFirst());
+        Assert.assertEquals(new EventID("05.01.01.01.14.01.00.0F"), ranges.get(0).getLast());
+        Assert.assertTrue(ranges.get(0).contains(in));
+        Assert.assertFalse(ranges.get(0).contains(out));
+        Assert.assertEquals(2, reg.getProducerRanges(e1).size());
+
+        // Ranges and single events combine.
+        reg.put(new ProducerRangeIdentifiedMessage(n2, new EventID("05.01.01.01.14.01.00.FF")),
+                null);
+        reg.put(new ProducerIdentifiedMessage(n2, out, EventState.Valid), null);
+        ranges = reg.getProducerRanges(out);
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertEquals(new EventID("05.01.01.01.14.01.00.00"), ranges.get(0).getFirst());
+        Assert.assertEquals(new EventID("05.01.01.01.14.01.00.FF"), ranges.get(0).getLast());
+        Assert.assertEquals(Collections.singleton(n2), reg.getProducers(out));
+        // Largest range first.
+        ranges = reg.getProducerRanges(in);
+        Assert.assertEquals(2, ranges.size());
+        Assert.assertEquals(new EventID("05.01.01.01.14.01.00.FF"), ranges.get(0).getLast());
+        Assert.assertEquals(new EventID("05.01.01.01.14.01.00.0F"), ranges.get(1).getLast());
+    }
+
+    @Test
+    public void testRangeWidth() {
+        Assert.assertEquals(1, EventRegistry.rangeWidth(0x0501010114010002L));
+        Assert.assertEquals(1, EventRegistry.rangeWidth(0x0501010114010001L));
+        Assert.assertEquals(3, EventRegistry.rangeWidth(0x0501010114010008L));
+        Assert.assertEquals(3, EventRegistry.rangeWidth(0x0501010114010007L));
+        Assert.assertEquals(16, EventRegistry.rangeWidth(0x050101011400FFFFL));
+        Assert.assertEquals(64, EventRegistry.rangeWidth(0));
+        Assert.assertEquals(64, EventRegistry.rangeWidth(-1L));
+    }
+
+    @Test
+    public void testForgetNode() {
+        reg.put(new ProducerIdentifiedMessage(n1, e1, EventState.Valid), null);
+        reg.put(new ProducerIdentifiedMessage(n2, e1, EventState.Valid), null);
+        reg.put(new ConsumerIdentifiedMessage(n1, e2, EventState.Valid), null);
+        reg.put(new ConsumerRangeIdentifiedMessage(n1, new EventID("05.01.01.01.14.01.00.FF")),
+                null);
+
+        reg.put(new InitializationCompleteMessage(n1), null);
+        Assert.assertEquals(Collections.singleton(n2), reg.getProducers(e1));
+        Assert.assertTrue(reg.getConsumers(e2).isEmpty());
+        Assert.assertTrue(reg.getConsumerRanges(e2).isEmpty());
+        Assert.assertNull(reg.getProducerState(n1, e1));
+        Assert.assertEquals(1, reg.getEventCount());
+
+        reg.clear();
+        Assert.assertEquals(0, reg.getEventCount());
+        Assert.assertTrue(reg.getProducers(e1).isEmpty());
+    }
+
+    @Test
+    public void testManyEvents() {
+        Random r = new Random(42);
+        long[] ids = new long[5000];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = r.nextLong();
+            reg.put(new ProducerIdentifiedMessage(i % 2 == 0 ? n1 : n2, EventRegistry.toEventID
+                    (ids[i]), EventState.Valid), null);
+        }
+        Assert.assertEquals(ids.length, reg.getEventCount());
+        for (int i = 0; i < ids.length; ++i) {
+            Assert.assertEquals(Collections.singleton(i % 2 == 0 ? n1 : n2), reg.getProducers
+                    (EventRegistry.toEventID(ids[i])));
+        }
+        reg.forgetNode(n1);
+        Assert.assertEquals(ids.length / 2, reg.getEventCount());
+        for (int i = 0; i < ids.length; ++i) {
+            Assert.assertEquals(i % 2 == 0 ? Collections.emptySet() : Collections.singleton(n2),
+                    reg.getProducers(EventRegistry.toEventID(ids[i])));
+        }
+    }
+
+    @Test
+    public void testForgetNodeKeepsOtherRanges() {
+        EventID range = new EventID("05.01.01.01.14.01.00.FF");
+        reg.put(new ConsumerRangeIdentifiedMessage(n1, range), null);
+        reg.put(new ConsumerRangeIdentifiedMessage(n2, range), null);
+        reg.put(new ProducerRangeIdentifiedMessage(n2, new EventID("05.01.01.01.14.01.00.0F")),
+                null);
+        reg.forgetNode(n1);
+        reg.forgetNode(n1);
+        Assert.assertEquals(Collections.singleton(n2), reg.getConsumers(e2));
+        Assert.assertEquals(Collections.singleton(n2), reg.getProducers(e2));
+        reg.forgetNode(n2);
+        Assert.assertTrue(reg.getConsumerRanges(e2).isEmpty());
+        Assert.assertTrue(reg.getProducerRanges(e2).isEmpty());
+    }
+
+    @Test
+    public void testForgetUnalignedMaskRanges() {
+        EventID e9 = new EventID("05.01.01.01.14.01.00.09");
+        // Ranges whose mask is followed by a set bit, and two ranges sharing the first event.
+        reg.put(new ProducerRangeIdentifiedMessage(n1, new EventID("05.01.01.01.14.01.00.08")),
+                null);
+        reg.put(new ProducerRangeIdentifiedMessage(n1, new EventID("05.01.01.01.14.01.00.0F")),
+                null);
+        reg.put(new ProducerRangeIdentifiedMessage(n1, new EventID("05.01.01.01.14.01.00.07")),
+                null);
+        reg.put(new ConsumerRangeIdentifiedMessage(n1, new EventID("05.01.01.01.14.01.00.0B")),
+                null);
+        Assert.assertEquals(2, reg.getProducerRanges(e9).size());
+        Assert.assertEquals(2, reg.getProducerRanges(e1).size());
+        Assert.assertEquals(Collections.singleton(n1), reg.getConsumers(e9));
+        reg.put(new InitializationCompleteMessage(n1), null);
+        Assert.assertTrue(reg.getProducers(e9).isEmpty());
+        Assert.assertTrue(reg.getProducerRanges(e9).isEmpty());
+        Assert.assertTrue(reg.getProducerRanges(e1).isEmpty());
+        Assert.assertTrue(reg.getConsumers(e9).isEmpty());
+    }
+
+    @Test
+    public void testLongMapRemove() {
+        EventRegistry.LongMap<Long> m = new EventRegistry.LongMap<>();
+        Random r = new Random(7);
+        java.util.Map<Long, Long> expected = new java.util.HashMap<>();
+        for (int i = 0; i < 20000; ++i) {
+            // Few distinct keys, so that probe sequences collide and removals shift entries.
+            long k = r.nextInt(500);
+            if (r.nextBoolean()) {
+                m.put(k, k);
+                expected.put(k, k);
+            } else {
+                m.remove(k);
+                expected.remove(k);
+            }
+        }
+        Assert.assertEquals(expected.size(), m.size());
+        for (long k = 0; k < 500; ++k) {
+            Assert.assertEquals(expected.get(k), m.get(k));
+        }
+    }
+
+    @Test
+    public void testInterfaceTraffic() {
+        EventRegistry ifaceReg = iface.getEventRegistry();
+        Assert.assertSame(ifaceReg, iface.getEventRegistry());
+        sendMessage(new ProducerIdentifiedMessage(n1, e1, EventState.Valid));
+        sendMessage(new ConsumerRangeIdentifiedMessage(n2, new EventID
+                ("05.01.01.01.14.01.00.FF")));
+        Assert.assertEquals(Collections.singleton(n1), ifaceReg.getProducers(e1));
+        Assert.assertEquals(Collections.singleton(n2), ifaceReg.getConsumers(e2));
+
+        ifaceReg.dispose();
+        sendMessage(new ProducerIdentifiedMessage(n2, e1, EventState.Valid));
+        Assert.assertEquals(Collections.singleton(n1), ifaceReg.getProducers(e1));
+    }
+}
@@ -7,8 +7,11 @@ import org.openlcb.EventID;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -249,4 +252,79 @@ public class EventTableTest {
 
         expectQueryResults(table2, "S2m-red", 4); // no results
     }
+
+    @Test
+    public void testIndexFollowsUpdates() {
+        EventTable t = new EventTable();
+        EventTable.EventTableEntryHolder h1 = t.addEvent(e1, "Yard east turnout");
+        EventTable.EventTableEntryHolder h2 = t.addEvent(e2, "Yard west signal");
+        Assert.assertEquals(1, t.searchForEvent("turn", 5).size());
+
+        h1.getEntry().updateDescription("Yard east signal");
+        Assert.assertEquals(0, t.searchForEvent("turn", 5).size());
+        Assert.assertEquals(2, t.searchForEvent("sig", 5).size());
+
+        h2.release();
+        Assert.assertEquals(1, t.searchForEvent("sig", 5).size());
+        // Updating a released entry does not bring it back.
+        h2.getEntry().updateDescription("Yard west signal 2");
+        Assert.assertEquals(1, t.searchForEvent("sig", 5).size());
+        h1.release();
+        Assert.assertEquals(0, t.searchForEvent("", 5).size());
+    }
+
+    /// Ranks all descriptions with the scoring function, for comparison with the index.
+    private static List<String> bruteForceSearch(List<String> table, String query, int max) {
+        List<String> sorted = new ArrayList<>();
+        for (String d : table) {
+            if (EventTable.match(d, query) > 0) sorted.add(d);
+        }
+        sorted.sort((a, b) -> {
+            int c = Float.compare(EventTable.match(b, query), EventTable.match(a, query));
+            return c != 0 ? c : a.compareTo(b);
+        });
+        return sorted.subList(0, Math.min(max, sorted.size()));
+    }
+
+    @Test
+    public void testIndexedSearchSameAsFullScan() {
+        String[] words = {"Turnout", "turnout", "Sensor", "Signal", "yard", "East", "west",
+                "T1", "T12", "S1m-red", "(3,S1m-green)", "Activate", "Inactivate", "Thrown",
+                "Closed", "block", "Block", "occupancy"};
+        String[] queries = {"", "t", "T1", "tu th", "sig e", "s1m", "sen a", "ab", "yrd", "on",
+                "thr", "(", "y e t", "Block oc", "ct"};
+        Random r = new Random(42);
+        EventTable t = new EventTable();
+        List<String> table = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            StringBuilder b = new StringBuilder();
+            int n = 1 + r.nextInt(4);
+            for (int j = 0; j < n; ++j) {
+                if (j > 0) b.append(r.nextBoolean() ? " " : "-");
+                b.append(words[r.nextInt(words.length)]);
+            }
+            // Unique descriptions make the expected order well-defined.
+            b.append(' ').append(i);
+            table.add(b.toString());
+            t.addEvent(new EventID(new byte[]{5, 1, 1, 1, 0, 0, (byte) (i >> 8), (byte) i}), b
+                    .toString());
+        }
+        for (String q : queries) {
+            for (int max : new int[]{1, 5, 50, 1000}) {
+                List<String> actual = new ArrayList<>();
+                for (EventTable.EventTableEntry e : t.searchForEvent(q, max)) {
+                    actual.add(e.getDescription());
+                }
+                Assert.assertEquals("query '" + q + "' max " + max, bruteForceSearch(table, q,
+                        max), actual);
+            }
+        }
+    }
+
+    @Test
+    public void testSplitWords() {
+        Assert.assertEquals(Arrays.asList("output", "node", "outputs", "3", "s1m", "green"),
+                EventTable.splitWords("output node.outputs(3,s1m-green)"));
+        Assert.assertTrue(EventTable.splitWords(" -- ").isEmpty());
+    }
 }
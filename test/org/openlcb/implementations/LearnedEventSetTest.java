@@ -0,0 +1,131 @@
+package org.openlcb.implementations;
+
+import org.junit.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests the learned event set used by the filtering gateway.
+ */
+public class LearnedEventSetTest {
+    long now = 1000;
+    LearnedEventSet set = new LearnedEventSet(new LearnedEventSet.Clock() {
+        @Override
+        public long millis() {
+            return now;
+        }
+    });
+
+    @Test
+    public void testAddContains() {
+        Assert.assertFalse(set.contains(5));
+        set.add(5);
+        set.add(0);
+        set.add(-1);
+        Assert.assertTrue(set.contains(5));
+        Assert.assertTrue(set.contains(0));
+        Assert.assertTrue(set.contains(-1));
+        Assert.assertFalse(set.contains(6));
+        set.add(5);
+        Assert.assertEquals(3, set.size());
+    }
+
+    @Test
+    public void testMany() {
+        Random r = new Random(17);
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 10000; ++i) {
+            long id = r.nextLong();
+            expected.add(id);
+            set.add(id);
+        }
+        Assert.assertEquals(expected.size(), set.size());
+        for (long id : expected) {
+            Assert.assertTrue(set.contains(id));
+        }
+        for (int i = 0; i < 1000; ++i) {
+            long id = r.nextLong();
+            Assert.assertEquals(expected.contains(id), set.contains(id));
+        }
+    }
+
+    @Test
+    public void testRanges() {
+        set.addRange(0x05010101140100FFL); // ...00.00 - 00.FF
+        set.addRange(0x0501010114010008L); // ...01.08 - 01.0F
+        Assert.assertEquals(2, set.rangeCount());
+        Assert.assertTrue(set.contains(0x0501010114010000L));
+        Assert.assertTrue(set.contains(0x0501010114010042L));
+        Assert.assertTrue(set.contains(0x050101011401000FL));
+        Assert.assertFalse(set.contains(0x0501010114010100L));
+        Assert.assertFalse(set.contains(0x0501010114000000L));
+        set.addRange(0x0501010114010000L | 0xFF);
+        Assert.assertEquals(2, set.rangeCount());
+        Assert.assertEquals(0, set.size());
+    }
+
+    @Test
+    public void testAging() {
+        set.setMaxAge(100);
+        set.add(1);
+        set.addRange(0x10);
+        now += 60;
+        set.add(2);
+        Assert.assertTrue(set.contains(1));
+        Assert.assertTrue(set.contains(2));
+        Assert.assertTrue(set.contains(0x1F));
+        now += 60;
+        Assert.assertFalse(set.contains(1));
+        Assert.assertFalse(set.contains(0x1F));
+        Assert.assertTrue(set.contains(2));
+        Assert.assertEquals(1, set.size());
+        Assert.assertEquals(0, set.rangeCount());
+
+        // Refreshing brings it back.
+        set.add(1);
+        Assert.assertTrue(set.contains(1));
+        Assert.assertEquals(2, set.size());
+
+        now += 60;
+        set.purge();
+        Assert.assertTrue(set.contains(1));
+        Assert.assertFalse(set.contains(2));
+        Assert.assertEquals(1, set.size());
+
+        // Without max age nothing expires.
+        set.setMaxAge(0);
+        now += 100000;
+        Assert.assertTrue(set.contains(1));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws InterruptedException {
+        final int count = 20000;
+        final boolean[] failed = new boolean[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                // Events, once added, must stay visible while the table grows.
+                for (int round = 0; round < 50; ++round) {
+                    for (long i = 1; i <= count; i += 97) {
+                        if (set.contains(i * 3) && !set.contains(i * 3)) {
+                            failed[0] = true;
+                        }
+                    }
+                    if (set.contains(3) && !set.contains(3)) failed[0] = true;
+                }
+            }
+        };
+        set.add(3);
+        reader.start();
+        for (long i = 2; i <= count; ++i) {
+            set.add(i * 3);
+            if (!set.contains(3)) failed[0] = true;
+        }
+        reader.join();
+        Assert.assertFalse(failed[0]);
+        Assert.assertEquals(count, set.size());
+    }
+}
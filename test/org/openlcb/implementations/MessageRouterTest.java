@@ -0,0 +1,147 @@
+package org.openlcb.implementations;
+
+import org.junit.*;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.ConsumerIdentifiedMessage;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.DatagramMessage;
+import org.openlcb.EventID;
+import org.openlcb.EventState;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the multi-port message router.
+ */
+public class MessageRouterTest {
+    MessageRouter router = new MessageRouter();
+    Recorder r1 = new Recorder();
+    Recorder r2 = new Recorder();
+    Recorder r3 = new Recorder();
+    MessageRouter.Port p1 = router.addPort(r1);
+    MessageRouter.Port p2 = router.addPort(r2);
+    MessageRouter.Port p3 = router.addPort(r3);
+
+    NodeID n1 = new NodeID(new byte[]{1, 0, 0, 0, 0, 1});
+    NodeID n2 = new NodeID(new byte[]{1, 0, 0, 0, 0, 2});
+    NodeID n3 = new NodeID(new byte[]{1, 0, 0, 0, 0, 3});
+    EventID eventA = new EventID(new byte[]{1, 0, 0, 0, 0, 0, 1, 0});
+
+    static class Recorder extends AbstractConnection {
+        List<Message> messages = new ArrayList<>();
+
+        @Override
+        public void put(Message msg, Connection sender) {
+            messages.add(msg);
+        }
+
+        int take() {
+            int n = messages.size();
+            messages.clear();
+            return n;
+        }
+    }
+
+    @Test
+    public void testGlobalFanOut() {
+        Message m = new VerifyNodeIDNumberMessage(n1);
+        p1.getInputConnection().put(m, null);
+        Assert.assertEquals(0, r1.take());
+        Assert.assertEquals(1, r2.take());
+        Assert.assertEquals(1, r3.take());
+        Assert.assertSame(p1, router.getPortOf(n1));
+        Assert.assertEquals(1, p1.getReceivedCount());
+        Assert.assertEquals(1, p2.getSentCount());
+    }
+
+    @Test
+    public void testAddressedRouting() {
+        // Unknown destination floods.
+        p1.getInputConnection().put(new DatagramMessage(n1, n2, new int[]{1}), null);
+        Assert.assertEquals(0, r1.take());
+        Assert.assertEquals(1, r2.take());
+        Assert.assertEquals(1, r3.take());
+
+        // n2 answers from port 2; now it is known.
+        p2.getInputConnection().put(new DatagramMessage(n2, n1, new int[]{2}), null);
+        Assert.assertEquals(1, r1.take());
+        Assert.assertEquals(0, r2.take());
+        Assert.assertEquals(0, r3.take());
+
+        p1.getInputConnection().put(new DatagramMessage(n1, n2, new int[]{3}), null);
+        Assert.assertEquals(0, r1.take());
+        Assert.assertEquals(1, r2.take());
+        Assert.assertEquals(0, r3.take());
+
+        // Destination behind the same port: not forwarded.
+        p3.getInputConnection().put(new VerifyNodeIDNumberMessage(n3), null);
+        r1.take();
+        r2.take();
+        p3.getInputConnection().put(new DatagramMessage(n1, n3, new int[]{4}), null);
+        Assert.assertEquals(0, r1.take() + r2.take() + r3.take());
+    }
+
+    @Test
+    public void testNodeMoves() {
+        p1.getInputConnection().put(new VerifyNodeIDNumberMessage(n2), null);
+        Assert.assertSame(p1, router.getPortOf(n2));
+        p2.getInputConnection().put(new VerifyNodeIDNumberMessage(n2), null);
+        Assert.assertSame(p2, router.getPortOf(n2));
+        r1.take();
+        r2.take();
+        r3.take();
+        p3.getInputConnection().put(new DatagramMessage(n3, n2, new int[]{1}), null);
+        Assert.assertEquals(0, r1.take());
+        Assert.assertEquals(1, r2.take());
+    }
+
+    @Test
+    public void testRemovePort() {
+        p2.getInputConnection().put(new VerifyNodeIDNumberMessage(n2), null);
+        r1.take();
+        r3.take();
+        router.removePort(p2);
+        Assert.assertEquals(2, router.getPortCount());
+        Assert.assertNull(router.getPortOf(n2));
+
+        p1.getInputConnection().put(new DatagramMessage(n1, n2, new int[]{1}), null);
+        Assert.assertEquals(0, r2.take());
+        Assert.assertEquals(1, r3.take());
+        // Messages arriving on a removed port are dropped.
+        p2.getInputConnection().put(new VerifyNodeIDNumberMessage(n2), null);
+        Assert.assertEquals(0, r1.take() + r3.take());
+    }
+
+    @Test
+    public void testEventFilter() {
+        p2.setEventFilter(true);
+        p3.setEventFilter(true);
+        p2.getInputConnection().put(new ConsumerIdentifiedMessage(n2, eventA, EventState
+                .Unknown), null);
+        p3.getInputConnection().put(new ConsumerRangeIdentifiedMessage(n3, new EventID(new
+                byte[]{1, 0, 0, 0, 0, 0, 2, (byte) 0xFF})), null);
+        r1.take();
+        r2.take();
+        r3.take();
+
+        p1.getInputConnection().put(new ProducerConsumerEventReportMessage(n1, eventA), null);
+        Assert.assertEquals(1, r2.take());
+        Assert.assertEquals(0, r3.take());
+        Assert.assertEquals(1, p3.getSuppressedCount());
+
+        p1.getInputConnection().put(new ProducerConsumerEventReportMessage(n1, new EventID(new
+                byte[]{1, 0, 0, 0, 0, 0, 2, 0x33})), null);
+        Assert.assertEquals(0, r2.take());
+        Assert.assertEquals(1, r3.take());
+
+        // Unfiltered ports get all reports.
+        p2.getInputConnection().put(new ProducerConsumerEventReportMessage(n2, eventA), null);
+        Assert.assertEquals(1, r1.take());
+    }
+}
@@ -0,0 +1,71 @@
+package org.openlcb.metrics;
+
+import org.junit.*;
+
+/**
+ * Tests the bucketing and percentiles of the latency histogram.
+ */
+public class HistogramTest {
+    @Test
+    public void testBucketsAreContiguous() {
+        Assert.assertEquals(0, Histogram.indexOf(0));
+        long prevHighest = -1;
+        for (int i = 0; i < Histogram.BUCKET_COUNT; ++i) {
+            long hi = Histogram.highestValueOf(i);
+            Assert.assertTrue("bucket " + i, hi > prevHighest);
+            Assert.assertEquals(i, Histogram.indexOf(prevHighest + 1));
+            Assert.assertEquals(i, Histogram.indexOf(hi));
+            prevHighest = hi;
+        }
+        Assert.assertEquals(Histogram.MAX_VALUE, prevHighest);
+    }
+
+    @Test
+    public void testEmpty() {
+        Histogram.Snapshot s = new Histogram().snapshot();
+        Assert.assertEquals(0, s.getCount());
+        Assert.assertEquals(0, s.getValueAtPercentile(50));
+        Assert.assertEquals(0.0, s.getMean(), 0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 100000; ++v) {
+            h.record(v * 1000);
+        }
+        Histogram.Snapshot s = h.snapshot();
+        Assert.assertEquals(100000, s.getCount());
+        Assert.assertEquals(100000000, s.getMax());
+        Assert.assertEquals(50000500.0, s.getMean(), 1);
+        assertWithin(50000000, s.getValueAtPercentile(50));
+        assertWithin(99000000, s.getValueAtPercentile(99));
+        Assert.assertEquals(100000000, s.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testSmallValuesExact() {
+        Histogram h = new Histogram();
+        h.record(3);
+        h.record(7);
+        h.record(-5);
+        Histogram.Snapshot s = h.snapshot();
+        Assert.assertEquals(3, s.getCount());
+        Assert.assertEquals(0, s.getValueAtPercentile(10));
+        Assert.assertEquals(3, s.getValueAtPercentile(50));
+        Assert.assertEquals(7, s.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testClampsAtMax() {
+        Histogram h = new Histogram();
+        h.record(Long.MAX_VALUE);
+        Assert.assertEquals(Histogram.MAX_VALUE, h.snapshot().getMax());
+        Assert.assertEquals(Histogram.MAX_VALUE, h.snapshot().getValueAtPercentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assert.assertTrue("expected about " + expected + " got " + actual,
+                Math.abs(actual - expected) <= expected * 0.035);
+    }
+}
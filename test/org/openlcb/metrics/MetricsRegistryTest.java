@@ -0,0 +1,89 @@
+package org.openlcb.metrics;
+
+import org.junit.*;
+import org.openlcb.EventID;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.InterfaceTestBase;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+
+/**
+ * Tests the metrics registry, and that the interface layers report into it.
+ */
+public class MetricsRegistryTest extends InterfaceTestBase {
+    NodeID farID = new NodeID(new byte[]{1, 2, 3, 4, 5, 6});
+
+    @Test
+    public void testGetOrCreate() {
+        MetricsRegistry r = new MetricsRegistry();
+        Counter c = r.counter("a.b");
+        Assert.assertSame(c, r.counter("a.b"));
+        Assert.assertNotSame(c, r.counter("a.c"));
+        Assert.assertSame(r.histogram("h"), r.histogram("h"));
+        Assert.assertSame(r.messageCounter("m"), r.messageCounter("m"));
+
+        c.inc();
+        c.add(4);
+        MetricsRegistry.Snapshot s = r.snapshot();
+        Assert.assertEquals(5, s.getCounter("a.b"));
+        Assert.assertEquals(0, s.getCounter("a.c"));
+        Assert.assertEquals(0, s.getCounter("nonexistent"));
+        Assert.assertTrue(s.getHistograms().containsKey("h"));
+    }
+
+    @Test
+    public void testGauge() {
+        MetricsRegistry r = new MetricsRegistry();
+        final long[] v = new long[]{3};
+        r.gauge("q", new Gauge() {
+            @Override
+            public long getValue() {
+                return v[0];
+            }
+        });
+        Assert.assertEquals(Long.valueOf(3), r.snapshot().getGauges().get("q"));
+        v[0] = 7;
+        Assert.assertEquals(Long.valueOf(7), r.snapshot().getGauges().get("q"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotImmutable() {
+        MetricsRegistry r = new MetricsRegistry();
+        r.counter("x").inc();
+        r.snapshot().getCounters().put("x", 42L);
+    }
+
+    @Test
+    public void testMessageCounter() {
+        MetricsRegistry r = new MetricsRegistry();
+        MessageCounter mc = r.messageCounter("in");
+        Message pcer = new ProducerConsumerEventReportMessage(farID, new EventID("01.02.03.04" +
+                ".05.06.07.08"));
+        mc.count(pcer);
+        mc.count(pcer);
+        mc.count(new VerifyNodeIDNumberMessage(farID));
+        Assert.assertEquals(2, mc.get(ProducerConsumerEventReportMessage.class));
+        Assert.assertEquals(1, mc.get(VerifyNodeIDNumberMessage.class));
+        Assert.assertEquals(0, mc.get(InitializationCompleteMessage.class));
+        Assert.assertEquals(3, mc.getTotal());
+
+        MetricsRegistry.Snapshot s = r.snapshot();
+        Assert.assertEquals(2, s.getCounter("in.ProducerConsumerEventReport"));
+        Assert.assertEquals(1, s.getCounter("in.VerifyNodeIDNumber"));
+        Assert.assertFalse(s.getCounters().containsKey("in.InitializationComplete"));
+    }
+
+    @Test
+    public void testInterfaceCounts() {
+        MetricsRegistry.Snapshot before = iface.getMetrics().snapshot();
+        sendMessage(new ProducerConsumerEventReportMessage(farID, new EventID("01.02.03.04" +
+                ".05.06.07.08")));
+        MetricsRegistry.Snapshot after = iface.getMetrics().snapshot();
+        Assert.assertTrue(after.getHistograms().get("dispatch.nanos").getCount() >
+                before.getHistograms().get("dispatch.nanos").getCount());
+        Assert.assertTrue(after.getGauges().containsKey("output.queue"));
+        Assert.assertTrue(after.getGauges().containsKey("datagram.queue"));
+    }
+}
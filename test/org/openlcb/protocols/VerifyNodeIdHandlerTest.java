@@ -1,9 +1,7 @@
 package org.openlcb.protocols;
 
-import org.junit.After;
 import org.junit.Assert;
 import org.junit.Assume;
-import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openlcb.*;
@@ -12,7 +10,8 @@ import org.openlcb.*;
  *
  * @author Paul Bender Copyright (C) 2017	
  */
-public class VerifyNodeIdHandlerTest {
+public class VerifyNodeIdHandlerTest extends InterfaceTestBase {
+    NodeID other = new NodeID(new byte[]{5,5,5,5,5,5});
 
     @Test
     public void testCTor() {
@@ -27,13 +26,21 @@ public class VerifyNodeIdHandlerTest {
         oi.dispose();
     }
 
-    // The minimal setup for log4J
-    @Before
-    public void setUp() {
+    @Test
+    public void testGlobal() {
+        sendMessageAndExpectResult(new VerifyNodeIDNumberMessage(other),
+                new VerifiedNodeIDNumberMessage(iface.getNodeId()));
+        sendMessage(new VerifyNodeIDNumberMessage(other, other));
+        expectNoMessages();
     }
 
-    @After
-    public void tearDown() {
+    @Test
+    public void testAddressed() {
+        sendMessageAndExpectResult(new VerifyNodeIDNumberMessage(other, iface.getNodeId(),
+                null), new VerifiedNodeIDNumberMessage(iface.getNodeId()));
+        // Meant for another node on the same hub.
+        sendMessage(new VerifyNodeIDNumberMessage(other, other, null));
+        expectNoMessages();
     }
 
 }
@@ -0,0 +1,180 @@
+package org.openlcb.swing;
+
+import org.junit.*;
+import org.openlcb.EventID;
+import org.openlcb.IdentifyConsumersMessage;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.OpenLcbCanFrame;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the ring buffer, batching and filtering of the monitor table model.
+ */
+public class MonitorModelTest {
+    NodeID id1 = new NodeID(new byte[]{0, 0, 0, 0, 0, 1});
+    NodeID id2 = new NodeID(new byte[]{0, 0, 0, 0, 0, 2});
+    EventID eventA = new EventID(new byte[]{1, 0, 0, 0, 0, 0, 1, 0});
+    EventID eventB = new EventID(new byte[]{1, 0, 0, 0, 0, 0, 2, 0});
+
+    MonitorModel model;
+    List<TableModelEvent> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        model = new MonitorModel(10, 1000);
+        model.addTableModelListener(new TableModelListener() {
+            @Override
+            public void tableChanged(TableModelEvent e) {
+                events.add(e);
+            }
+        });
+    }
+
+    @Test
+    public void testBatchedUpdate() {
+        model.add(new ProducerConsumerEventReportMessage(id1, eventA));
+        model.add(GridConnect.parse(":X195B4123N0102030405060708;").get(0));
+        model.addText("hello\n");
+        // Nothing is displayed until the tick.
+        Assert.assertEquals(0, model.getRowCount());
+        Assert.assertTrue(events.isEmpty());
+
+        model.update();
+        Assert.assertEquals(3, model.getRowCount());
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(TableModelEvent.INSERT, events.get(0).getType());
+        Assert.assertEquals(0, events.get(0).getFirstRow());
+        Assert.assertEquals(2, events.get(0).getLastRow());
+
+        Assert.assertEquals(id1.toString(), model.getValueAt(0, MonitorModel.SOURCE_COLUMN));
+        Assert.assertEquals("ProducerConsumerEventReport", model.getValueAt(0, MonitorModel
+                .TYPE_COLUMN));
+        Assert.assertEquals("Frame", model.getValueAt(1, MonitorModel.TYPE_COLUMN));
+        Assert.assertEquals(":X195B4123N0102030405060708;", model.getValueAt(1, MonitorModel
+                .CONTENT_COLUMN));
+        Assert.assertEquals("Note", model.getValueAt(2, MonitorModel.TYPE_COLUMN));
+        Assert.assertEquals("hello", model.getValueAt(2, MonitorModel.CONTENT_COLUMN));
+    }
+
+    @Test
+    public void testReusedFrameIsCopied() {
+        OpenLcbCanFrame f = new OpenLcbCanFrame(GridConnect.parse(
+                ":X195B4123N0102030405060708;").get(0));
+        model.getFrameListener().send(f);
+        f.setHeader(0x195B4456);
+        f.setData(new byte[]{9});
+        model.getFrameListener().send(f);
+        model.update();
+        Assert.assertEquals(":X195B4123N0102030405060708;", model.getValueAt(0, MonitorModel
+                .CONTENT_COLUMN));
+        Assert.assertEquals(":X195B4456N09;", model.getValueAt(1, MonitorModel.CONTENT_COLUMN));
+    }
+
+    @Test
+    public void testRingDropsOldest() {
+        for (int i = 0; i < 8; ++i) {
+            model.addText("a" + i);
+        }
+        model.update();
+        Assert.assertEquals(8, model.getRowCount());
+        for (int i = 0; i < 5; ++i) {
+            model.addText("b" + i);
+        }
+        model.update();
+        Assert.assertEquals(10, model.getRowCount());
+        Assert.assertEquals(13, model.getTotalCount());
+        Assert.assertEquals("a3", model.getValueAt(0, MonitorModel.CONTENT_COLUMN));
+        Assert.assertEquals("b4", model.getValueAt(9, MonitorModel.CONTENT_COLUMN));
+
+        // More than the capacity between two ticks.
+        for (int i = 0; i < 25; ++i) {
+            model.addText("c" + i);
+        }
+        model.update();
+        Assert.assertEquals(10, model.getRowCount());
+        Assert.assertEquals("c15", model.getValueAt(0, MonitorModel.CONTENT_COLUMN));
+        Assert.assertEquals("c24", model.getValueAt(9, MonitorModel.CONTENT_COLUMN));
+    }
+
+    @Test
+    public void testFilter() {
+        model.add(new ProducerConsumerEventReportMessage(id1, eventA));
+        model.add(new ProducerConsumerEventReportMessage(id2, eventB));
+        model.add(new IdentifyConsumersMessage(id2, eventA));
+        model.add(new VerifyNodeIDNumberMessage(id1));
+        model.addText("note");
+        model.update();
+        Assert.assertEquals(5, model.getRowCount());
+
+        model.setFilter(new MonitorModel.Filter(null, null, eventA));
+        Assert.assertEquals(2, model.getRowCount());
+        Assert.assertEquals("IdentifyConsumers", model.getValueAt(1, MonitorModel.TYPE_COLUMN));
+
+        model.setFilter(new MonitorModel.Filter(ProducerConsumerEventReportMessage.class, id2,
+                null));
+        Assert.assertEquals(1, model.getRowCount());
+        Assert.assertEquals(id2.toString(), model.getValueAt(0, MonitorModel.SOURCE_COLUMN));
+
+        // New entries go through the filter too.
+        model.add(new ProducerConsumerEventReportMessage(id2, eventA));
+        model.add(new ProducerConsumerEventReportMessage(id1, eventA));
+        model.update();
+        Assert.assertEquals(2, model.getRowCount());
+
+        model.setFilter(MonitorModel.Filter.ALL);
+        Assert.assertEquals(7, model.getRowCount());
+    }
+
+    @Test
+    public void testFilterRunsWithoutLock() throws Exception {
+        model.addText("1");
+        model.addText("2");
+        // The filter adds an entry from another thread; this would deadlock if the buffer
+        // lock was held while filtering.
+        model.setFilter(new MonitorModel.Filter(null, null, null) {
+            @Override
+            public boolean matches(Object item) {
+                Thread t = new Thread(() -> model.addText("late"));
+                t.start();
+                try {
+                    t.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Assert.assertFalse(t.isAlive());
+                return !"1".equals(item);
+            }
+        });
+        Assert.assertEquals(1, model.getRowCount());
+        Assert.assertEquals(4, model.getTotalCount());
+    }
+
+    @Test
+    public void testFreezeAndClear() {
+        model.addText("1");
+        model.update();
+        model.setFrozen(true);
+        model.addText("2");
+        model.update();
+        Assert.assertEquals(1, model.getRowCount());
+        model.setFrozen(false);
+        model.update();
+        Assert.assertEquals(2, model.getRowCount());
+
+        model.clear();
+        Assert.assertEquals(0, model.getRowCount());
+        model.update();
+        Assert.assertEquals(0, model.getRowCount());
+        model.addText("3");
+        model.update();
+        Assert.assertEquals(1, model.getRowCount());
+        Assert.assertEquals("3", model.getValueAt(0, MonitorModel.CONTENT_COLUMN));
+    }
+}
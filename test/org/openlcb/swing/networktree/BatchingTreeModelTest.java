@@ -0,0 +1,169 @@
+package org.openlcb.swing.networktree;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.DefaultMutableTreeNode;
+
+/**
+ * Tests that the batching tree model combines the events of the changes in a batch.
+ */
+public class BatchingTreeModelTest {
+    DefaultMutableTreeNode root = new DefaultMutableTreeNode("root");
+    BatchingTreeModel model = new BatchingTreeModel(root, 10000);
+    List<String> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        model.addTreeModelListener(new TreeModelListener() {
+            @Override
+            public void treeNodesChanged(TreeModelEvent e) {
+                events.add("changed " + describe(e));
+            }
+
+            @Override
+            public void treeNodesInserted(TreeModelEvent e) {
+                events.add("inserted " + describe(e));
+            }
+
+            @Override
+            public void treeNodesRemoved(TreeModelEvent e) {
+                events.add("removed " + describe(e));
+            }
+
+            @Override
+            public void treeStructureChanged(TreeModelEvent e) {
+                events.add("structure " + describe(e));
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        model.release();
+    }
+
+    private static String describe(TreeModelEvent e) {
+        return e.getTreePath().getLastPathComponent() + " " + Arrays.toString(e
+                .getChildIndices());
+    }
+
+    private void flush() throws Exception {
+        SwingUtilities.invokeAndWait(() -> model.flush());
+    }
+
+    private DefaultMutableTreeNode add(DefaultMutableTreeNode parent, String name, int index) {
+        DefaultMutableTreeNode n = new DefaultMutableTreeNode(name);
+        model.insertNodeInto(n, parent, index);
+        return n;
+    }
+
+    @Test
+    public void testUnbatchedFiresImmediately() {
+        add(root, "a", 0);
+        Assert.assertEquals(Arrays.asList("inserted root [0]"), events);
+    }
+
+    @Test
+    public void testInsertsCombined() throws Exception {
+        final DefaultMutableTreeNode a = add(root, "a", 0);
+        events.clear();
+        model.post(() -> add(root, "c", 1));
+        model.post(() -> add(root, "b", 1));
+        model.post(() -> {
+            DefaultMutableTreeNode d = add(root, "d", 0);
+            // Children of a new node need no events of their own.
+            add(d, "d1", 0);
+            add(d, "d2", 1);
+        });
+        model.post(() -> {
+            a.setUserObject("a'");
+            model.nodeChanged(a);
+            add(a, "a1", 0);
+        });
+        Assert.assertTrue(events.isEmpty());
+        Assert.assertEquals(1, root.getChildCount());
+
+        flush();
+        Assert.assertEquals(4, root.getChildCount());
+        Assert.assertEquals(Arrays.asList(
+                "inserted root [0, 2, 3]",
+                "changed root [1]",
+                "inserted a' [0]"), events);
+    }
+
+    @Test
+    public void testRemoveGivesStructureChange() throws Exception {
+        final DefaultMutableTreeNode a = add(root, "a", 0);
+        final DefaultMutableTreeNode b = add(root, "b", 1);
+        events.clear();
+        model.post(() -> {
+            model.removeNodeFromParent(a);
+            model.insertNodeInto(a, root, 1);
+            add(b, "b1", 0);
+            model.nodeChanged(b);
+        });
+        flush();
+        Assert.assertSame(b, root.getChildAt(0));
+        Assert.assertSame(a, root.getChildAt(1));
+        Assert.assertEquals(Arrays.asList("structure root null"), events);
+    }
+
+    @Test
+    public void testBatchListener() throws Exception {
+        final List<String> calls = new ArrayList<>();
+        model.addBatchListener(new BatchingTreeModel.BatchListener() {
+            @Override
+            public void batchStarting() {
+                calls.add("start " + root.getChildCount());
+            }
+
+            @Override
+            public void batchApplied() {
+                calls.add("applied " + root.getChildCount() + " " + events.size());
+            }
+        });
+        model.post(() -> add(root, "a", 0));
+        flush();
+        // No batch without changes.
+        flush();
+        Assert.assertEquals(Arrays.asList("start 0", "applied 1 1"), calls);
+    }
+
+    @Test
+    public void testApplyFromOtherThreadIsPosted() throws Exception {
+        final List<Boolean> ranOnSwing = new ArrayList<>();
+        model.post(() -> {
+            // A network thread reporting a change while the batch runs.
+            Thread t = new Thread(() -> model.apply(() -> ranOnSwing.add(SwingUtilities
+                    .isEventDispatchThread())));
+            t.start();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        flush();
+        Assert.assertTrue(ranOnSwing.isEmpty());
+        flush();
+        Assert.assertEquals(Arrays.asList(true), ranOnSwing);
+    }
+
+    @Test
+    public void testTimerFlushes() throws Exception {
+        BatchingTreeModel m = new BatchingTreeModel(new DefaultMutableTreeNode("r"), 10);
+        final DefaultMutableTreeNode n = new DefaultMutableTreeNode("n");
+        m.post(() -> m.insertNodeInto(n, (DefaultMutableTreeNode) m.getRoot(), 0));
+        for (int i = 0; i < 100 && n.getParent() == null; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertNotNull(n.getParent());
+    }
+}
@@ -133,9 +133,19 @@ public class TreePaneTest  {
                         0x00, 0, 0, 0, 1, 'h', 'e', 'l', 'l', 'o', 0, 'd', 'e', 's', 'c', 0}
                 );
         store.put(msg, null);
+        flush();
         Assert.assertEquals("00.00.00.00.00.02 - hello - desc", pane.nodes.getChildAt(1).toString());
     }
 
+    /// Applies the batched tree changes.
+    private void flush() {
+        try {
+            SwingUtilities.invokeAndWait(() -> pane.flushUpdates());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void addNodeWithSnii(NodeID node, String manufacturer, String model, String userName, String userDesc) {
         List<Byte> dt = new ArrayList<>();
         dt.add((byte)1);
@@ -172,12 +182,16 @@ public class TreePaneTest  {
     public void testNodeOrder() {
         frame.setTitle("test node order");
         store.put(new ProtocolIdentificationReplyMessage(nid2, nid1, 0xF01800000000L), null);
+        flush();
         Assert.assertEquals(2, pane.nodes.getChildCount());
         store.put(new ProtocolIdentificationReplyMessage(nid6, nid1, 0xF01800000000L), null);
+        flush();
         Assert.assertEquals(3, pane.nodes.getChildCount());
         store.put(new ProtocolIdentificationReplyMessage(nid3, nid1, 0xF01800000000L), null);
+        flush();
         Assert.assertEquals(4, pane.nodes.getChildCount());
         store.put(new ProtocolIdentificationReplyMessage(nid4, nid1, 0xF01800000000L), null);
+        flush();
         Assert.assertEquals(5, pane.nodes.getChildCount());
         Assert.assertEquals("00.00.00.00.00.01", pane.nodes.getChildAt(0).toString().substring(0, 17));
         Assert.assertEquals("00.00.00.00.00.02", pane.nodes.getChildAt(1).toString().substring(0, 17));
@@ -270,31 +284,32 @@ public class TreePaneTest  {
         addNodeWithSnii(nid2, "xxx", "qqq", "aaa", "bbb");
         addNodeWithSnii(nid3, "yyy", "ppp", "ccc", "aaa");
         addNodeWithSnii(nid4, "xxx", "ppp", "bbb", "ccc");
+        flush();
 
         Assert.assertEquals(nid2.toString(), pane.nodes.getChildAt(0).toString().substring(0, 17));
         Assert.assertEquals(nid3.toString(), pane.nodes.getChildAt(1).toString().substring(0, 17));
         Assert.assertEquals(nid4.toString(), pane.nodes.getChildAt(2).toString().substring(0, 17));
 
         pane.setSortOrder(TreePane.SortOrder.BY_NAME);
-        SwingUtilities.invokeAndWait(()->{});
+        flush();
         Assert.assertEquals(nid2.toString(), pane.nodes.getChildAt(0).toString().substring(0, 17));
         Assert.assertEquals(nid4.toString(), pane.nodes.getChildAt(1).toString().substring(0, 17));
         Assert.assertEquals(nid3.toString(), pane.nodes.getChildAt(2).toString().substring(0, 17));
 
         pane.setSortOrder(TreePane.SortOrder.BY_DESCRIPTION);
-        SwingUtilities.invokeAndWait(()->{});
+        flush();
         Assert.assertEquals(nid3.toString(), pane.nodes.getChildAt(0).toString().substring(0, 17));
         Assert.assertEquals(nid2.toString(), pane.nodes.getChildAt(1).toString().substring(0, 17));
         Assert.assertEquals(nid4.toString(), pane.nodes.getChildAt(2).toString().substring(0, 17));
 
         pane.setSortOrder(TreePane.SortOrder.BY_MODEL);
-        SwingUtilities.invokeAndWait(()->{});
+        flush();
         Assert.assertEquals(nid4.toString(), pane.nodes.getChildAt(0).toString().substring(0, 17));
         Assert.assertEquals(nid2.toString(), pane.nodes.getChildAt(1).toString().substring(0, 17));
         Assert.assertEquals(nid3.toString(), pane.nodes.getChildAt(2).toString().substring(0, 17));
 
         addNodeWithSnii(nid5, "xxx", "pqq", "bbb", "ccc");
-        Thread.sleep(200);
+        flush();
 
         Assert.assertEquals(nid4.toString(), pane.nodes.getChildAt(0).toString().substring(0, 17));
         Assert.assertEquals(nid5.toString(), pane.nodes.getChildAt(1).toString().substring(0, 17));
@@ -308,7 +323,7 @@ public class TreePaneTest  {
         store.put(new ProtocolIdentificationReplyMessage(nid4, nid1, 0xF01800000000L), null);
         store.put(new ProtocolIdentificationReplyMessage(nid3, nid1, 0xF01800000000L), null);
         pane.setSortOrder(TreePane.SortOrder.BY_MODEL);
-        SwingUtilities.invokeAndWait(()->{});
+        flush();
 
         Assert.assertEquals(nid3.toString(), pane.nodes.getChildAt(0).toString().substring(0, 17));
         Assert.assertEquals(nid4.toString(), pane.nodes.getChildAt(1).toString().substring(0, 17));
@@ -351,6 +366,7 @@ public class TreePaneTest  {
         testNodeOrder();
         Assert.assertEquals(5, pane.nodes.getChildCount());
         store.refresh();
+        flush();
         Assert.assertEquals(0, pane.nodes.getChildCount());
     }
 }
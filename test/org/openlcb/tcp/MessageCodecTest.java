@@ -0,0 +1,164 @@
+package org.openlcb.tcp;
+
+import org.junit.*;
+import org.openlcb.AddressedPayloadMessage;
+import org.openlcb.ConsumerIdentifiedMessage;
+import org.openlcb.ConsumerRangeIdentifiedMessage;
+import org.openlcb.DatagramAcknowledgedMessage;
+import org.openlcb.DatagramMessage;
+import org.openlcb.DatagramRejectedMessage;
+import org.openlcb.EventID;
+import org.openlcb.EventState;
+import org.openlcb.IdentifyConsumersMessage;
+import org.openlcb.IdentifyEventsMessage;
+import org.openlcb.IdentifyProducersMessage;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.LearnEventMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.OptionalIntRejectedMessage;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.ProducerIdentifiedMessage;
+import org.openlcb.ProducerRangeIdentifiedMessage;
+import org.openlcb.ProtocolIdentificationReplyMessage;
+import org.openlcb.ProtocolIdentificationRequestMessage;
+import org.openlcb.SimpleNodeIdentInfoReplyMessage;
+import org.openlcb.SimpleNodeIdentInfoRequestMessage;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataProceedMessage;
+import org.openlcb.StreamDataSendMessage;
+import org.openlcb.StreamInitiateReplyMessage;
+import org.openlcb.StreamInitiateRequestMessage;
+import org.openlcb.VerifiedNodeIDNumberMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+import org.openlcb.messages.TractionControlRequestMessage;
+
+/**
+ * Tests the binary message encoding of the OpenLCB TCP transport.
+ */
+public class MessageCodecTest {
+    MessageCodec codec = new MessageCodec();
+    NodeID src = new NodeID(new byte[]{1, 2, 3, 4, 5, 6});
+    NodeID dst = new NodeID(new byte[]{6, 5, 4, 3, 2, 1});
+    EventID event = new EventID(new byte[]{5, 1, 1, 1, 0x14, 0, 0, 8});
+
+    private Message roundTrip(Message m) {
+        byte[] b = codec.encode(m);
+        Message r = MessageCodec.decode(b, 0, b.length);
+        Assert.assertNotNull("decode " + m, r);
+        Assert.assertEquals(m.getClass(), r.getClass());
+        Assert.assertEquals(m.getSourceNodeID(), r.getSourceNodeID());
+        if (m instanceof AddressedPayloadMessage) {
+            AddressedPayloadMessage a = (AddressedPayloadMessage) m;
+            AddressedPayloadMessage ar = (AddressedPayloadMessage) r;
+            Assert.assertEquals(a.getDestNodeID(), ar.getDestNodeID());
+            Assert.assertArrayEquals(a.getPayload(), ar.getPayload());
+        }
+        Assert.assertEquals(m, r);
+        return r;
+    }
+
+    @Test
+    public void testEncodeLayout() {
+        byte[] b = codec.encode(new ProducerConsumerEventReportMessage(src, event));
+        Assert.assertArrayEquals(new byte[]{0x05, (byte) 0xB4, 1, 2, 3, 4, 5, 6, 5, 1, 1, 1,
+                0x14, 0, 0, 8}, b);
+        b = codec.encode(new SimpleNodeIdentInfoRequestMessage(src, dst));
+        Assert.assertArrayEquals(new byte[]{0x0D, (byte) 0xE8, 1, 2, 3, 4, 5, 6, 6, 5, 4, 3,
+                2, 1}, b);
+    }
+
+    @Test
+    public void testGlobalMessages() {
+        roundTrip(new InitializationCompleteMessage(src));
+        roundTrip(new VerifiedNodeIDNumberMessage(src));
+        roundTrip(new VerifyNodeIDNumberMessage(src));
+        roundTrip(new VerifyNodeIDNumberMessage(src, dst));
+        roundTrip(new ProducerConsumerEventReportMessage(src, event));
+        roundTrip(new IdentifyConsumersMessage(src, event));
+        roundTrip(new IdentifyProducersMessage(src, event));
+        roundTrip(new LearnEventMessage(src, event));
+        byte[] b = codec.encode(new IdentifyEventsMessage(src, null));
+        Message m = MessageCodec.decode(b, 0, b.length);
+        Assert.assertTrue(m instanceof IdentifyEventsMessage);
+        Assert.assertNull(((IdentifyEventsMessage) m).getDestNodeID());
+        roundTrip(new ConsumerRangeIdentifiedMessage(src, event));
+        roundTrip(new ProducerRangeIdentifiedMessage(src, event));
+        for (EventState s : new EventState[]{EventState.Valid, EventState.Invalid, EventState
+                .Unknown}) {
+            m = roundTrip(new ConsumerIdentifiedMessage(src, event, s));
+            Assert.assertEquals(s, ((ConsumerIdentifiedMessage) m).getEventState());
+            m = roundTrip(new ProducerIdentifiedMessage(src, event, s));
+            Assert.assertEquals(s, ((ProducerIdentifiedMessage) m).getEventState());
+        }
+    }
+
+    @Test
+    public void testAddressedMessages() {
+        Message m = roundTrip(new VerifyNodeIDNumberMessage(src, dst, null));
+        Assert.assertEquals(dst, ((VerifyNodeIDNumberMessage) m).getDestNodeID());
+        byte[] b = codec.encode(m);
+        Assert.assertArrayEquals(new byte[]{0x04, (byte) 0x88, 1, 2, 3, 4, 5, 6, 6, 5, 4, 3,
+                2, 1}, b);
+        roundTrip(new VerifyNodeIDNumberMessage(src, dst, dst));
+        roundTrip(new IdentifyEventsMessage(src, dst));
+        roundTrip(new ProtocolIdentificationRequestMessage(src, dst));
+        roundTrip(new ProtocolIdentificationReplyMessage(src, dst, 0x801234560000L));
+        roundTrip(new SimpleNodeIdentInfoRequestMessage(src, dst));
+        roundTrip(new SimpleNodeIdentInfoReplyMessage(src, dst, new byte[]{4, 'a', 0, 'b', 0,
+                0, 0, 2, 0, 0}));
+        roundTrip(new OptionalIntRejectedMessage(src, dst, 0x0DE8, 0x1042));
+        roundTrip(new DatagramAcknowledgedMessage(src, dst));
+        roundTrip(new DatagramAcknowledgedMessage(src, dst, 0x80));
+        roundTrip(new DatagramRejectedMessage(src, dst, 0x2020));
+        roundTrip(new StreamInitiateRequestMessage(src, dst, 512, (byte) 4, (byte) 7));
+        roundTrip(new StreamInitiateReplyMessage(src, dst, 256, (byte) 4, (byte) 7));
+        roundTrip(new StreamDataProceedMessage(src, dst, (byte) 4, (byte) 7));
+        roundTrip(new StreamDataCompleteMessage(src, dst, (byte) 4, (byte) 7));
+        b = codec.encode(new TractionControlRequestMessage(src, dst, new byte[]{0, 0x45, 0}));
+        m = MessageCodec.decode(b, 0, b.length);
+        Assert.assertTrue(m instanceof TractionControlRequestMessage);
+        Assert.assertArrayEquals(new byte[]{0, 0x45, 0}, ((TractionControlRequestMessage) m)
+                .getPayload());
+    }
+
+    @Test
+    public void testLongDatagramAndStream() {
+        int[] data = new int[72];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (i * 7) & 0xff;
+        }
+        roundTrip(new DatagramMessage(src, dst, data));
+        int[] stream = new int[1000];
+        for (int i = 0; i < stream.length; ++i) {
+            stream[i] = i & 0xff;
+        }
+        StreamDataSendMessage r = (StreamDataSendMessage) roundTrip(new StreamDataSendMessage(src,
+                dst, (byte) 7, stream));
+        Assert.assertEquals(7, r.getDestinationStreamID());
+        Assert.assertArrayEquals(stream, r.getData());
+    }
+
+    @Test
+    public void testDecodeAtOffset() {
+        byte[] b = codec.encode(new ProducerConsumerEventReportMessage(src, event));
+        byte[] buf = new byte[b.length + 12];
+        System.arraycopy(b, 0, buf, 12, b.length);
+        Assert.assertEquals(new ProducerConsumerEventReportMessage(src, event), MessageCodec
+                .decode(buf, 12, b.length));
+    }
+
+    @Test
+    public void testMalformed() {
+        Assert.assertNull(MessageCodec.decode(new byte[]{0x05, (byte) 0xB4, 1, 2}, 0, 4));
+        // Addressed message without destination.
+        Assert.assertNull(MessageCodec.decode(new byte[]{0x0D, (byte) 0xE8, 1, 2, 3, 4, 5, 6},
+                0, 8));
+        // Unknown MTI.
+        Assert.assertNull(MessageCodec.decode(new byte[]{0x7F, (byte) 0xF0, 1, 2, 3, 4, 5, 6},
+                0, 8));
+        // Event report without event ID.
+        Assert.assertNull(MessageCodec.decode(new byte[]{0x05, (byte) 0xB4, 1, 2, 3, 4, 5, 6},
+                0, 8));
+    }
+}
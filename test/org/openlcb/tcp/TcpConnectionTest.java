@@ -0,0 +1,165 @@
+package org.openlcb.tcp;
+
+import org.junit.*;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.DatagramMessage;
+import org.openlcb.EventID;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.can.impl.OlcbConnection;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the native TCP transport against a peer on a localhost socket.
+ */
+public class TcpConnectionTest {
+    NodeID local = new NodeID(new byte[]{2, 1, 0x12, 0, 0, 1});
+    NodeID peer = new NodeID(new byte[]{2, 1, 0x12, 0, 0, 2});
+    ServerSocket server;
+    TcpConnection connection;
+    Socket peerSocket;
+    TcpOutput peerOutput;
+    BlockingQueue<Message> peerReceived = new LinkedBlockingQueue<>();
+    volatile boolean connected = false;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        connection = new TcpConnection(local, "localhost", server.getLocalPort(), new
+                OlcbConnection.ConnectionListener() {
+            @Override
+            public void onConnect() {
+                connected = true;
+            }
+
+            @Override
+            public void onDisconnect() {
+                connected = false;
+            }
+
+            @Override
+            public void onStatusChange(String status) {
+            }
+
+            @Override
+            public void onConnectionPending() {
+            }
+        });
+        connection.startConnect();
+        server.setSoTimeout(5000);
+        peerSocket = server.accept();
+        new TcpInput(peerSocket.getInputStream(), new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                peerReceived.add(msg);
+            }
+        }, null);
+        peerOutput = new TcpOutput(peerSocket.getOutputStream(), peer, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.shutdown();
+        peerOutput.close();
+        peerSocket.close();
+        server.close();
+    }
+
+    @Test
+    public void testInitializationComplete() throws Exception {
+        Message m = peerReceived.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals(new InitializationCompleteMessage(local), m);
+        for (int i = 0; i < 50 && !connected; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(connected);
+        Assert.assertNotNull(connection.getInterface());
+    }
+
+    @Test
+    public void testMessagesBothWays() throws Exception {
+        Assert.assertEquals(new InitializationCompleteMessage(local), peerReceived.poll(5,
+                TimeUnit.SECONDS));
+        int[] data = new int[72];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = i;
+        }
+        // A datagram larger than a CAN datagram arrives in one piece.
+        connection.getInterface().getOutputConnection().put(new DatagramMessage(local, peer,
+                data), null);
+        Assert.assertEquals(new DatagramMessage(local, peer, data), peerReceived.poll(5,
+                TimeUnit.SECONDS));
+
+        final BlockingQueue<Message> localReceived = new LinkedBlockingQueue<>();
+        connection.getInterface().registerMessageListener(new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                localReceived.add(msg);
+            }
+        });
+        EventID ev = new EventID(new byte[]{2, 1, 0x12, 0, 0, 2, 0, 1});
+        for (int i = 0; i < 100; ++i) {
+            peerOutput.put(new ProducerConsumerEventReportMessage(peer, ev), null);
+        }
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertEquals(new ProducerConsumerEventReportMessage(peer, ev), localReceived
+                    .poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testPeerDisconnect() throws Exception {
+        Assert.assertNotNull(peerReceived.poll(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 50 && !connected; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(connected);
+        peerSocket.close();
+        for (int i = 0; i < 500 && connected; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(connected);
+    }
+
+    @Test
+    public void testShutdownWritesQueuedMessages() throws Exception {
+        Assert.assertNotNull(peerReceived.poll(5, TimeUnit.SECONDS));
+        EventID ev = new EventID(new byte[]{2, 1, 0x12, 0, 0, 1, 0, 1});
+        for (int i = 0; i < 500; ++i) {
+            connection.getInterface().getOutputConnection().put(new
+                    ProducerConsumerEventReportMessage(local, ev), null);
+        }
+        connection.getInterface().flushSendQueue();
+        connection.shutdown();
+        Assert.assertNull(connection.getInterface());
+        for (int i = 0; i < 500; ++i) {
+            Assert.assertEquals(new ProducerConsumerEventReportMessage(local, ev), peerReceived
+                    .poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testOversizedFrameDisconnects() throws Exception {
+        Assert.assertNotNull(peerReceived.poll(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 50 && !connected; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(connected);
+        // Claims a 16 MB message.
+        peerSocket.getOutputStream().write(new byte[]{(byte) 0x80, 0, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF});
+        peerSocket.getOutputStream().flush();
+        for (int i = 0; i < 500 && connected; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(connected);
+    }
+}